@@ -0,0 +1,181 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel;
+
+import io.netty.channel.Channel;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.experimental.Accessors;
+import net.daporkchop.turbotunnel.protocol.ProxyServer;
+import net.daporkchop.turbotunnel.transport.TransportPool;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+
+/**
+ * Keeps track of all running servers and the client connections accepted by them, and takes care of shutting them down gracefully.
+ * <p>
+ * Shutting down happens in three stages:
+ * <ol>
+ *     <li>all servers are closed, so no new connections are accepted (with {@code SO_REUSEPORT}, a replacement process may already be listening on
+ *     the same port and will take over from here)</li>
+ *     <li>existing connections are left alone until they have all been closed, or until the drain timeout expires</li>
+ *     <li>any remaining connections are forcibly closed, additional resources are closed and the event loop pool is shut down</li>
+ * </ol>
+ *
+ * @author DaPorkchop_
+ */
+@Accessors(fluent = true)
+public final class Lifecycle {
+    private final TransportPool loopGroupPool;
+    private final List<ProxyServer> servers = new CopyOnWriteArrayList<>();
+    private final List<AutoCloseable> resources = new CopyOnWriteArrayList<>();
+    private final ChannelGroup channels = new DefaultChannelGroup("clients", GlobalEventExecutor.INSTANCE);
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    @Getter
+    private final long drainTimeout;
+
+    private volatile boolean shuttingDown;
+
+    public Lifecycle(@NonNull TransportPool loopGroupPool, long drainTimeout, @NonNull TimeUnit unit) {
+        checkArg(drainTimeout >= 0L, "drainTimeout may not be negative!");
+        this.loopGroupPool = loopGroupPool;
+        this.drainTimeout = unit.toMillis(drainTimeout);
+    }
+
+    /**
+     * Registers a JVM shutdown hook which will gracefully shut everything down when the process receives {@code SIGTERM} or {@code SIGINT}.
+     */
+    public Lifecycle installShutdownHook() {
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "TurboTunnel shutdown"));
+        return this;
+    }
+
+    public void addServer(@NonNull ProxyServer server) {
+        checkState(!this.shuttingDown, "already shutting down!");
+        this.servers.add(server);
+    }
+
+    /**
+     * Adds a resource which will be closed once all connections have been closed, before the event loop pool is shut down.
+     */
+    public <T extends AutoCloseable> T addResource(@NonNull T resource) {
+        checkState(!this.shuttingDown, "already shutting down!");
+        this.resources.add(resource);
+        return resource;
+    }
+
+    /**
+     * Called when a new client connection has been accepted.
+     *
+     * @param channel the client channel
+     * @return whether or not the connection may continue
+     */
+    public boolean accept(@NonNull Channel channel) {
+        if (this.shuttingDown) {
+            return false;
+        }
+        this.channels.add(channel);
+        return true;
+    }
+
+    /**
+     * @return the number of currently open client connections
+     */
+    public int activeConnections() {
+        return this.channels.size();
+    }
+
+    /**
+     * Gracefully shuts down all servers, blocking until complete.
+     * <p>
+     * If a shutdown is already in progress, this method waits for it to complete.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            if (this.shuttingDown) {
+                this.awaitTermination();
+                return;
+            }
+            this.shuttingDown = true;
+        }
+
+        try {
+            System.out.println("Stopping...");
+            this.servers.forEach(ProxyServer::close);
+
+            long deadline = System.currentTimeMillis() + this.drainTimeout;
+            int lastCount = -1;
+            while (!this.channels.isEmpty() && System.currentTimeMillis() < deadline) {
+                int count = this.channels.size();
+                if (count != lastCount) {
+                    System.out.printf("Waiting for %d connections to close...\n", lastCount = count);
+                }
+                Thread.sleep(100L);
+            }
+
+            if (!this.channels.isEmpty()) {
+                System.out.printf("Drain timeout expired, forcibly closing %d connections\n", this.channels.size());
+                this.channels.close().awaitUninterruptibly();
+            }
+
+            for (AutoCloseable resource : this.resources) {
+                try {
+                    resource.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+            this.loopGroupPool.shutdown();
+            System.out.println("Stopped!");
+        } catch (InterruptedException e) {
+            this.channels.close().awaitUninterruptibly();
+            Thread.currentThread().interrupt();
+        } finally {
+            this.terminated.countDown();
+        }
+    }
+
+    /**
+     * Blocks until a shutdown has completed.
+     */
+    public void awaitTermination() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                this.terminated.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -20,34 +20,62 @@
 
 package net.daporkchop.turbotunnel;
 
-import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
-import net.daporkchop.lib.common.function.throwing.EFunction;
-import net.daporkchop.lib.network.nettycommon.PorkNettyHelper;
-import net.daporkchop.turbotunnel.loadbalance.FixedRandomBalancer;
+import net.daporkchop.turbotunnel.acl.AccessControlList;
+import net.daporkchop.turbotunnel.admin.AdminServer;
+import net.daporkchop.turbotunnel.auth.CredentialStore;
+import net.daporkchop.turbotunnel.capture.TrafficCapture;
+import net.daporkchop.turbotunnel.capture.TrafficReplay;
+import net.daporkchop.turbotunnel.dns.DnsCache;
+import net.daporkchop.turbotunnel.limit.DestinationLimiter;
+import net.daporkchop.turbotunnel.loadbalance.Balancers;
+import net.daporkchop.turbotunnel.loadbalance.EgressHealth;
 import net.daporkchop.turbotunnel.loadbalance.InetAddressBalancer;
+import net.daporkchop.turbotunnel.memory.MemoryBudget;
+import net.daporkchop.turbotunnel.mux.MuxCompressionBenchmark;
+import net.daporkchop.turbotunnel.mux.MuxServer;
+import net.daporkchop.turbotunnel.mux.MuxSettings;
+import net.daporkchop.turbotunnel.plugin.PluginChain;
+import net.daporkchop.turbotunnel.protocol.ServerOptions;
 import net.daporkchop.turbotunnel.protocol.http.HTTPServer;
 import net.daporkchop.turbotunnel.protocol.socks.SOCKS5Server;
+import net.daporkchop.turbotunnel.snapshot.StateSnapshot;
+import net.daporkchop.turbotunnel.tls.TlsContext;
+import net.daporkchop.turbotunnel.transport.TransportPool;
+import net.daporkchop.turbotunnel.transport.Transports;
+import net.daporkchop.turbotunnel.tunnel.TunnelRegistry;
+import net.daporkchop.turbotunnel.upstream.UpstreamRouter;
+import net.daporkchop.turbotunnel.warm.WarmPool;
 
 import java.io.BufferedReader;
 import java.io.FileInputStream;
-import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
-import java.net.Inet4Address;
-import java.net.Inet6Address;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
+import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
-import java.util.Scanner;
-import java.util.stream.StreamSupport;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
 
 /**
  * @author DaPorkchop_
  */
 public class Main {
-    public static void main(String... args) throws UnknownHostException, IOException {
+    public static void main(String... args) throws Exception {
+        if (args.length == 2 && "--hash-password".equals(args[0])) {
+            System.out.println(CredentialStore.hash(args[1]));
+            return;
+        } else if (args.length >= 1 && "--benchmark-compression".equals(args[0])) {
+            MuxCompressionBenchmark.run(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        } else if (args.length >= 1 && "--replay".equals(args[0])) {
+            TrafficReplay.run(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
         String configName = args.length > 0 ? args[0] : "config.json";
 
         JsonObject obj;
@@ -55,30 +83,91 @@ public class Main {
             obj = new JsonParser().parse(reader).getAsJsonObject();
         }
 
-        InetAddressBalancer balancer = new FixedRandomBalancer(
-                StreamSupport.stream(obj.getAsJsonArray("v4").spliterator(), false)
-                        .map(JsonElement::getAsString)
-                        .map((EFunction<String, InetAddress>) InetAddress::getByName)
-                        .map(Inet4Address.class::cast)
-                        .toArray(Inet4Address[]::new),
-                StreamSupport.stream(obj.getAsJsonArray("v6").spliterator(), false)
-                        .map(JsonElement::getAsString)
-                        .map((EFunction<String, InetAddress>) InetAddress::getByName)
-                        .map(Inet6Address.class::cast)
-                        .toArray(Inet6Address[]::new),
-                obj.get("prefer6").getAsBoolean());
+        EgressHealth egress = obj.has("egressHealth") ? EgressHealth.fromJson(obj.getAsJsonObject("egressHealth")) : null;
+        InetAddressBalancer balancer = egress != null ? egress.wrap(Balancers.fromJson(obj)) : Balancers.fromJson(obj);
 
         JsonObject http = obj.getAsJsonObject("http");
         JsonObject socks = obj.getAsJsonObject("socks");
 
+        CredentialStore credentials = obj.has("users")
+                ? CredentialStore.load(Paths.get(obj.get("users").getAsString()), obj.has("authThreads") ? obj.get("authThreads").getAsInt() : Math.max(Runtime.getRuntime().availableProcessors() >> 1, 1), egress)
+                : null;
+
+        AccessControlList acl = obj.has("acl") ? AccessControlList.fromJson(obj.getAsJsonObject("acl")) : null;
+        DestinationLimiter destinationLimiter = obj.has("destinationLimit") ? DestinationLimiter.fromJson(obj.getAsJsonObject("destinationLimit")) : null;
+
+        TransportPool transport = Transports.fromJson(obj);
+        System.out.printf("Using %s transport\n", transport.name());
+
+        Lifecycle lifecycle = new Lifecycle(transport, obj.has("drainTimeout") ? obj.get("drainTimeout").getAsLong() : 30L, TimeUnit.SECONDS);
+
+        PluginChain plugins = obj.has("plugins")
+                ? lifecycle.addResource(PluginChain.fromJson(obj.getAsJsonArray("plugins"), obj.has("pluginThreads") ? obj.get("pluginThreads").getAsInt() : 64))
+                : null;
+        UpstreamRouter upstream = obj.has("upstream") ? lifecycle.addResource(UpstreamRouter.fromJson(obj.getAsJsonObject("upstream"), transport)) : null;
+        MemoryBudget memory = lifecycle.addResource(MemoryBudget.fromJson(obj.has("memory") ? obj.getAsJsonObject("memory") : new JsonObject()));
+        TunnelRegistry tunnels = new TunnelRegistry();
+        if (egress != null) {
+            lifecycle.addResource(egress);
+        }
+        TlsContext tls = obj.has("tls") ? lifecycle.addResource(TlsContext.fromJson(obj.getAsJsonObject("tls"))) : null;
+        if (tls != null) {
+            System.out.printf("Using %s TLS implementation\n", tls.provider());
+        }
+        DnsCache dns = obj.has("dnsCache") ? DnsCache.fromJson(obj.getAsJsonObject("dnsCache")) : null;
+        if (obj.has("snapshot")) {
+            lifecycle.addResource(StateSnapshot.fromJson(obj.getAsJsonObject("snapshot"), dns, egress));
+        }
+        TrafficCapture capture = obj.has("capture") ? lifecycle.addResource(TrafficCapture.fromJson(obj.getAsJsonObject("capture"))) : null;
+        WarmPool warmPool = obj.has("warmPool") ? lifecycle.addResource(WarmPool.fromJson(obj.getAsJsonObject("warmPool"), transport)) : null;
+
         System.out.println("Starting...");
-        try (HTTPServer httpServer = http.get("enable").getAsBoolean() ? new HTTPServer(PorkNettyHelper.getPoolTCP(), balancer, http.get("port").getAsInt()) : null;
-             SOCKS5Server socksServer = socks.get("enable").getAsBoolean() ? new SOCKS5Server(PorkNettyHelper.getPoolTCP(), balancer, socks.get("port").getAsInt()) : null) {
-            System.out.println("Started!");
-            new Scanner(System.in).nextLine();
-            System.out.println("Stopping...");
+        if (http.get("enable").getAsBoolean()) {
+            new HTTPServer(transport, balancer, lifecycle, parseOptions(http, credentials, acl, plugins, destinationLimiter, upstream, warmPool, memory, tunnels, egress, dns, tls, capture));
+        }
+        if (socks.get("enable").getAsBoolean()) {
+            new SOCKS5Server(transport, balancer, lifecycle, parseOptions(socks, credentials, acl, plugins, destinationLimiter, upstream, warmPool, memory, tunnels, egress, dns, tls, capture));
+        }
+        if (obj.has("mux") && obj.getAsJsonObject("mux").get("enable").getAsBoolean()) {
+            JsonObject mux = obj.getAsJsonObject("mux");
+            new MuxServer(transport, balancer, lifecycle, parseOptions(mux, credentials, acl, plugins, destinationLimiter, upstream, warmPool, memory, tunnels, egress, dns, tls, capture)
+                    .mux(MuxSettings.fromJson(mux)));
+        }
+        if (obj.has("admin")) {
+            JsonObject admin = obj.getAsJsonObject("admin");
+            lifecycle.addResource(new AdminServer(
+                    new InetSocketAddress(admin.has("host") ? admin.get("host").getAsString() : "127.0.0.1", admin.get("port").getAsInt()),
+                    admin.has("token") ? admin.get("token").getAsString() : null,
+                    tunnels, memory, egress, lifecycle));
         }
-        PorkNettyHelper.getPoolTCP().shutdown().syncUninterruptibly();
-        System.out.println("Stopped!");
+        lifecycle.installShutdownHook();
+        System.out.println("Started!");
+
+        lifecycle.awaitTermination();
+    }
+
+    private static ServerOptions parseOptions(JsonObject obj, CredentialStore credentials, AccessControlList acl, PluginChain plugins, DestinationLimiter destinationLimiter, UpstreamRouter upstream, WarmPool warmPool, MemoryBudget memory, TunnelRegistry tunnels, EgressHealth egress, DnsCache dns, TlsContext tls, TrafficCapture capture) {
+        boolean auth = obj.has("auth") && obj.get("auth").getAsBoolean();
+        checkArg(!auth || credentials != null, "authentication is enabled, but no users file is configured!");
+        boolean tlsEnabled = obj.has("tls") && obj.get("tls").getAsBoolean();
+        checkArg(!tlsEnabled || tls != null, "TLS is enabled, but no certificate is configured!");
+
+        return new ServerOptions()
+                .port(obj.get("port").getAsInt())
+                .reusePort(obj.has("reusePort") && obj.get("reusePort").getAsBoolean())
+                .proxyProtocol(obj.has("proxyProtocol") && obj.get("proxyProtocol").getAsBoolean())
+                .optimisticReply(obj.has("optimisticReply") && obj.get("optimisticReply").getAsBoolean())
+                .tls(tlsEnabled ? tls : null)
+                .credentials(auth ? credentials : null)
+                .acl(acl)
+                .plugins(plugins)
+                .destinationLimiter(destinationLimiter)
+                .upstream(upstream)
+                .warmPool(warmPool)
+                .memory(memory)
+                .tunnels(tunnels)
+                .egress(egress)
+                .dns(dns)
+                .capture(capture);
     }
 }
@@ -0,0 +1,152 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.acl;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import lombok.NonNull;
+import net.daporkchop.turbotunnel.util.DestinationMatcher;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Decides which destinations clients are allowed to connect to.
+ * <p>
+ * Rules are matched by a {@link DestinationMatcher}, so the most specific matching rule wins. If an allow and a deny rule are equally specific, the
+ * deny rule wins.
+ * <p>
+ * Domain rules are checked against the hostname requested by the client. Unless the hostname is denied, it is then resolved and every resolved
+ * address is checked against the IP rules, so a hostname can't be used to reach an address which is denied. If a domain rule allowed the hostname,
+ * only explicit IP deny rules apply to its addresses, not the default action. Allowed domains may be trusted to resolve to any address by setting
+ * {@code "domainsOverrideAddresses": true}.
+ *
+ * @author DaPorkchop_
+ */
+public final class AccessControlList {
+    /**
+     * Creates a new {@link AccessControlList} from the given JSON object.
+     * <p>
+     * The object may contain a {@code "default"} action ({@code "allow"} or {@code "deny"}, defaults to {@code "allow"}), {@code "allow"} and
+     * {@code "deny"} arrays of rules and {@code "allowFile"} and {@code "denyFile"} paths to files containing one rule per line (blank lines and
+     * lines beginning with {@code #} are ignored), and {@code "domainsOverrideAddresses"} (defaults to {@code false}, see
+     * {@link #checkHostname(String)}).
+     */
+    public static AccessControlList fromJson(@NonNull JsonObject obj) throws IOException {
+        AccessControlList acl = new AccessControlList(
+                !obj.has("default") || "allow".equalsIgnoreCase(obj.get("default").getAsString()),
+                obj.has("domainsOverrideAddresses") && obj.get("domainsOverrideAddresses").getAsBoolean());
+        for (boolean allow : new boolean[]{true, false}) {
+            String name = allow ? "allow" : "deny";
+            if (obj.has(name)) {
+                for (JsonElement element : obj.getAsJsonArray(name)) {
+                    acl.add(element.getAsString(), allow);
+                }
+            }
+            if (obj.has(name + "File")) {
+                try (BufferedReader reader = Files.newBufferedReader(Paths.get(obj.get(name + "File").getAsString()), StandardCharsets.UTF_8)) {
+                    for (String line; (line = reader.readLine()) != null; ) {
+                        if (!(line = line.trim()).isEmpty() && line.charAt(0) != '#') {
+                            acl.add(line, allow);
+                        }
+                    }
+                }
+            }
+        }
+        return acl;
+    }
+
+    private final boolean defaultAllow;
+    private final boolean domainsOverrideAddresses;
+    private final DestinationMatcher<Boolean> rules = new DestinationMatcher<>((a, b) -> a && b); //deny wins
+
+    public AccessControlList(boolean defaultAllow) {
+        this(defaultAllow, false);
+    }
+
+    public AccessControlList(boolean defaultAllow, boolean domainsOverrideAddresses) {
+        this.defaultAllow = defaultAllow;
+        this.domainsOverrideAddresses = domainsOverrideAddresses;
+    }
+
+    /**
+     * Adds a new rule.
+     * <p>
+     * This method is not thread-safe, all rules must be added before the list is shared with other threads.
+     *
+     * @param rule  the rule, either an IP prefix or a domain
+     * @param allow whether the rule allows or denies connections to matching destinations
+     */
+    public AccessControlList add(@NonNull String rule, boolean allow) {
+        this.rules.add(rule, allow);
+        return this;
+    }
+
+    /**
+     * Checks whether or not connections to the given address are allowed.
+     *
+     * @param address the address
+     * @return whether or not connections to the address are allowed
+     */
+    public boolean isAllowed(@NonNull InetAddress address) {
+        Boolean allowed = this.rules.matchAddress(address);
+        return allowed != null ? allowed : this.defaultAllow;
+    }
+
+    /**
+     * Checks whether or not connections to the given address, which a hostname requested by a client resolved to, are allowed.
+     *
+     * @param address         the address
+     * @param hostnameAllowed the result of {@link #checkHostname(String)} for the hostname
+     * @return whether or not connections to the address are allowed
+     */
+    public boolean isAllowed(@NonNull InetAddress address, Boolean hostnameAllowed) {
+        if (hostnameAllowed == Boolean.TRUE) { //the domain rule takes the place of the default action, but explicitly denied addresses stay denied
+            return this.rules.matchAddress(address) != Boolean.FALSE;
+        }
+        return this.isAllowed(address);
+    }
+
+    /**
+     * Checks whether or not connections to the given hostname are allowed, based only on the domain rules.
+     * <p>
+     * Unless this returns {@link Boolean#FALSE}, the addresses which the hostname resolves to must still be checked using
+     * {@link #isAllowed(InetAddress, Boolean)}. The only exception is if this returns {@link Boolean#TRUE} and {@link #domainsOverrideAddresses()}
+     * is set, in which case an allowed domain may resolve to any address (including loopback or private addresses which are otherwise denied).
+     *
+     * @param hostname the hostname
+     * @return {@link Boolean#TRUE} or {@link Boolean#FALSE} if a domain rule matched, or {@code null} if none did
+     */
+    public Boolean checkHostname(@NonNull String hostname) {
+        return this.rules.matchHostname(hostname);
+    }
+
+    /**
+     * @return whether or not hostnames allowed by a domain rule may resolve to any address, without checking the addresses against the IP rules
+     */
+    public boolean domainsOverrideAddresses() {
+        return this.domainsOverrideAddresses;
+    }
+}
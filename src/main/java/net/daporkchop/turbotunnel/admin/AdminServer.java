@@ -0,0 +1,335 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.admin;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+import com.sun.net.httpserver.HttpServer;
+import lombok.NonNull;
+import net.daporkchop.turbotunnel.Lifecycle;
+import net.daporkchop.turbotunnel.loadbalance.EgressHealth;
+import net.daporkchop.turbotunnel.memory.MemoryBudget;
+import net.daporkchop.turbotunnel.tunnel.Tunnel;
+import net.daporkchop.turbotunnel.tunnel.TunnelRegistry;
+import net.daporkchop.turbotunnel.util.DestinationMatcher;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+
+/**
+ * A small HTTP server which exposes information about running tunnels as JSON, and allows closing them.
+ * <p>
+ * If a token is configured, every request must carry it in an {@code Authorization: Bearer <token>} header. A token is required unless the
+ * server is bound to a loopback address, as it allows closing any tunnel. Even so, it should only be bound to a trusted network, as the token is
+ * sent in plain text.
+ * <p>
+ * Endpoints:
+ * <ul>
+ *     <li>{@code GET /tunnels}: lists open tunnels matching the filters given as query parameters (see below). {@code limit} limits the number
+ *     of results</li>
+ *     <li>{@code GET /tunnels/top}: lists the {@code n} (default 10) tunnels matching the filters which transferred the most data during the
+ *     last {@code window} seconds (default 1, {@code 0} ranks by the total amount of data transferred)</li>
+ *     <li>{@code POST /tunnels/close}: closes all tunnels matching the filters, at least one filter must be given</li>
+ *     <li>{@code GET /stats}: global statistics</li>
+ *     <li>{@code GET /egress}: the health of every local address which direct connections were made from (see {@link EgressHealth})</li>
+ * </ul>
+ * Filters:
+ * <ul>
+ *     <li>{@code id}: the tunnel's ID</li>
+ *     <li>{@code user}: the name of the user which opened the tunnel</li>
+ *     <li>{@code client}, {@code destination}, {@code source}: comma-separated IP prefixes or domains which the client address, the requested
+ *     destination or the local address of the outbound connection must match</li>
+ * </ul>
+ *
+ * @author DaPorkchop_
+ */
+public final class AdminServer implements AutoCloseable {
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+
+    private final TunnelRegistry tunnels;
+    private final MemoryBudget memory;
+    private final EgressHealth egress;
+    private final Lifecycle lifecycle;
+    private final HttpServer server;
+    private final ScheduledExecutorService executor; //requests never block, so a single thread is enough
+
+    /**
+     * @param token the token which requests must be authenticated with, or {@code null} to accept unauthenticated requests (only allowed if the
+     *              address is a loopback address)
+     */
+    public AdminServer(@NonNull InetSocketAddress address, String token, @NonNull TunnelRegistry tunnels, @NonNull MemoryBudget memory, EgressHealth egress, @NonNull Lifecycle lifecycle) throws IOException {
+        checkArg(token != null || (address.getAddress() != null && address.getAddress().isLoopbackAddress()),
+                "the admin API must have a token unless it is bound to a loopback address (%s)", address);
+        checkArg(token == null || !token.isEmpty(), "token may not be empty");
+        this.tunnels = tunnels;
+        this.memory = memory;
+        this.egress = egress;
+        this.lifecycle = lifecycle;
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "TurboTunnel admin");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.server = HttpServer.create(address, 0);
+        this.server.setExecutor(this.executor);
+        Authenticator authenticator = token != null ? new TokenAuthenticator(token) : null;
+        this.server.createContext("/tunnels", this::handleTunnels).setAuthenticator(authenticator);
+        this.server.createContext("/stats", this::handleStats).setAuthenticator(authenticator);
+        this.server.createContext("/egress", this::handleEgress).setAuthenticator(authenticator);
+        this.server.start();
+
+        System.out.printf("Admin API listening on %s\n", this.server.getAddress());
+    }
+
+    private void handleTunnels(HttpExchange exchange) throws IOException {
+        try {
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            Predicate<Tunnel> filter = parseFilter(query);
+            Predicate<Tunnel> selector = filter != null ? filter : tunnel -> true;
+            switch (exchange.getRequestMethod() + ' ' + exchange.getRequestURI().getPath()) {
+                case "GET /tunnels": {
+                    int limit = query.containsKey("limit") ? Integer.parseInt(query.get("limit")) : Integer.MAX_VALUE;
+                    JsonArray array = new JsonArray();
+                    this.tunnels.find(selector).stream()
+                            .sorted(Comparator.comparingLong(Tunnel::id))
+                            .limit(limit)
+                            .forEach(tunnel -> array.add(toJson(tunnel)));
+                    respond(exchange, 200, array);
+                }
+                break;
+                case "GET /tunnels/top": {
+                    int n = query.containsKey("n") ? Integer.parseInt(query.get("n")) : 10;
+                    double window = query.containsKey("window") ? Double.parseDouble(query.get("window")) : 1.0d;
+                    checkArg(window >= 0.0d && window <= 60.0d, "window must be between 0 and 60 seconds");
+                    this.top(exchange, selector, n, window);
+                }
+                break;
+                case "POST /tunnels/close": {
+                    checkArg(filter != null, "at least one filter must be given");
+                    List<Tunnel> matched = this.tunnels.find(filter);
+                    matched.forEach(Tunnel::close);
+                    System.out.printf("Closed %d tunnels matching %s via admin API\n", matched.size(), query);
+
+                    JsonObject obj = new JsonObject();
+                    obj.addProperty("closed", matched.size());
+                    respond(exchange, 200, obj);
+                }
+                break;
+                default:
+                    respondError(exchange, 404, "not found");
+            }
+        } catch (IllegalArgumentException e) {
+            respondError(exchange, 400, e.getMessage());
+        } catch (Exception e) {
+            e.printStackTrace();
+            respondError(exchange, 500, String.valueOf(e));
+        }
+    }
+
+    /**
+     * Responds with the top tunnels. If a window is given, the second sample is taken by a scheduled task, so that the admin thread isn't blocked
+     * in the meantime.
+     */
+    private void top(HttpExchange exchange, Predicate<Tunnel> filter, int n, double window) throws IOException {
+        List<Tunnel> tunnels = this.tunnels.find(filter);
+        if (window > 0.0d) {
+            Map<Tunnel, Long> before = new HashMap<>();
+            tunnels.forEach(tunnel -> before.put(tunnel, tunnel.bytesFromClient() + tunnel.bytesToClient()));
+            this.executor.schedule(() -> {
+                try {
+                    respond(exchange, 200, rank(tunnels, tunnel -> tunnel.bytesFromClient() + tunnel.bytesToClient() - before.get(tunnel), n, window));
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    exchange.close();
+                }
+            }, (long) (window * 1000.0d), TimeUnit.MILLISECONDS);
+        } else {
+            respond(exchange, 200, rank(tunnels, tunnel -> tunnel.bytesFromClient() + tunnel.bytesToClient(), n, window));
+        }
+    }
+
+    private static JsonArray rank(List<Tunnel> tunnels, ToLongFunction<Tunnel> score, int n, double window) {
+        JsonArray array = new JsonArray();
+        tunnels.stream()
+                .collect(Collectors.toMap(tunnel -> tunnel, score::applyAsLong))
+                .entrySet().stream()
+                .sorted(Map.Entry.<Tunnel, Long>comparingByValue().reversed())
+                .limit(n)
+                .forEach(entry -> {
+                    JsonObject obj = toJson(entry.getKey());
+                    obj.addProperty("bytesPerSecond", window > 0.0d ? (long) (entry.getValue() / window) : entry.getValue() * 1000L / Math.max(System.currentTimeMillis() - entry.getKey().startTime(), 1L));
+                    array.add(obj);
+                });
+        return array;
+    }
+
+    private void handleStats(HttpExchange exchange) throws IOException {
+        JsonObject obj = new JsonObject();
+        obj.addProperty("connections", this.lifecycle.activeConnections());
+        obj.addProperty("tunnels", this.tunnels.size());
+        obj.addProperty("bytesInFlight", this.memory.used());
+        obj.addProperty("memory", this.memory.stats());
+        respond(exchange, 200, obj);
+    }
+
+    private void handleEgress(HttpExchange exchange) throws IOException {
+        if (this.egress == null) {
+            respondError(exchange, 404, "egress health tracking is not enabled");
+        } else {
+            respond(exchange, 200, this.egress.toJson());
+        }
+    }
+
+    /**
+     * @return a {@link Predicate} matching the tunnels selected by the filters in the query, or {@code null} if the query contains no filters
+     */
+    private static Predicate<Tunnel> parseFilter(Map<String, String> query) {
+        Predicate<Tunnel> filter = null;
+        if (query.containsKey("id")) {
+            long id = Long.parseLong(query.get("id"));
+            filter = and(filter, tunnel -> tunnel.id() == id);
+        }
+        if (query.containsKey("user")) {
+            String user = query.get("user");
+            filter = and(filter, tunnel -> user.equals(tunnel.user()));
+        }
+        if (query.containsKey("client")) {
+            DestinationMatcher<Boolean> matcher = parseMatcher(query.get("client"));
+            filter = and(filter, tunnel -> matcher.match(tunnel.clientAddress()) != null);
+        }
+        if (query.containsKey("destination")) {
+            DestinationMatcher<Boolean> matcher = parseMatcher(query.get("destination"));
+            filter = and(filter, tunnel -> matcher.match(tunnel.destination()) != null);
+        }
+        if (query.containsKey("source")) {
+            DestinationMatcher<Boolean> matcher = parseMatcher(query.get("source"));
+            filter = and(filter, tunnel -> tunnel.sourceAddress() != null && matcher.match(tunnel.sourceAddress()) != null);
+        }
+        return filter;
+    }
+
+    private static Predicate<Tunnel> and(Predicate<Tunnel> filter, Predicate<Tunnel> next) {
+        return filter != null ? filter.and(next) : next;
+    }
+
+    private static DestinationMatcher<Boolean> parseMatcher(String rules) {
+        DestinationMatcher<Boolean> matcher = new DestinationMatcher<>((a, b) -> a);
+        for (String rule : rules.split(",")) {
+            matcher.add(rule.trim(), Boolean.TRUE);
+        }
+        return matcher;
+    }
+
+    private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+        Map<String, String> map = new HashMap<>();
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                if (!pair.isEmpty()) {
+                    int i = pair.indexOf('=');
+                    map.put(URLDecoder.decode(i < 0 ? pair : pair.substring(0, i), "UTF-8"), i < 0 ? "" : URLDecoder.decode(pair.substring(i + 1), "UTF-8"));
+                }
+            }
+        }
+        return map;
+    }
+
+    private static JsonObject toJson(Tunnel tunnel) {
+        JsonObject obj = new JsonObject();
+        obj.addProperty("id", tunnel.id());
+        obj.addProperty("client", String.valueOf(tunnel.clientAddress()));
+        obj.addProperty("user", tunnel.user());
+        obj.addProperty("destination", tunnel.destination().getHostString() + ':' + tunnel.destination().getPort());
+        obj.addProperty("source", String.valueOf(tunnel.sourceAddress()));
+        obj.addProperty("remote", String.valueOf(tunnel.remoteAddress()));
+        obj.addProperty("startTime", tunnel.startTime());
+        obj.addProperty("durationMillis", System.currentTimeMillis() - tunnel.startTime());
+        obj.addProperty("bytesFromClient", tunnel.bytesFromClient());
+        obj.addProperty("bytesToClient", tunnel.bytesToClient());
+        return obj;
+    }
+
+    private static void respondError(HttpExchange exchange, int status, String message) throws IOException {
+        JsonObject obj = new JsonObject();
+        obj.addProperty("error", message);
+        respond(exchange, status, obj);
+    }
+
+    private static void respond(HttpExchange exchange, int status, JsonElement body) throws IOException {
+        byte[] data = GSON.toJson(body).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, data.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(data);
+        }
+    }
+
+    /**
+     * Only accepts requests carrying the configured token.
+     */
+    private static final class TokenAuthenticator extends Authenticator {
+        private final byte[] expected;
+
+        public TokenAuthenticator(@NonNull String token) {
+            this.expected = ("Bearer " + token).getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public Result authenticate(HttpExchange exchange) {
+            String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+            if (authorization != null && MessageDigest.isEqual(this.expected, authorization.getBytes(StandardCharsets.UTF_8))) {
+                return new Success(new HttpPrincipal("admin", "admin"));
+            }
+            exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+            return new Failure(401);
+        }
+    }
+
+    @Override
+    public void close() {
+        this.server.stop(0);
+        this.executor.shutdownNow();
+    }
+}
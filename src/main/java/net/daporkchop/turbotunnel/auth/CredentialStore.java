@@ -0,0 +1,230 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.auth;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import lombok.NonNull;
+import net.daporkchop.turbotunnel.loadbalance.Balancers;
+import net.daporkchop.turbotunnel.loadbalance.EgressHealth;
+import net.daporkchop.turbotunnel.util.RateLimiter;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+
+/**
+ * Stores the users which are allowed to use the proxy.
+ * <p>
+ * Passwords are stored as salted PBKDF2 hashes, which are deliberately expensive to compute. In order to avoid recomputing them for every new
+ * connection, a successful verification is remembered as a cheap keyed HMAC of the username and password (using a random key which never leaves this
+ * process), so that subsequent connections by the same user only have to compute the HMAC. Expensive verifications are never run on the calling
+ * thread, so an event loop is never blocked by them.
+ * <p>
+ * The file is a JSON object mapping usernames to objects of the following form:
+ * <pre>
+ * {
+ *     "password": "pbkdf2-sha256$&lt;iterations&gt;$&lt;base64 salt&gt;$&lt;base64 hash&gt;",
+ *     "v4": [...], "v6": [...], "prefer6": false, "sticky": "client", //optional, a dedicated source address pool for this user
+ *     "connectionsPerSecond": 10.0, "burst": 20.0, //optional, limits the rate at which the user may open new connections
+ *     "maxConnections": 100 //optional, limits the number of connections the user may have open at once
+ * }
+ * </pre>
+ *
+ * @author DaPorkchop_
+ */
+public final class CredentialStore {
+    public static final String HASH_ALGORITHM = "pbkdf2-sha256";
+    public static final int DEFAULT_ITERATIONS = 100_000;
+
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_LENGTH = 32;
+
+    /**
+     * Loads a {@link CredentialStore} from the given file.
+     *
+     * @param path    the file to load
+     * @param threads the number of threads to verify passwords on
+     * @param egress  the {@link EgressHealth} which users' dedicated source address pools should avoid unhealthy addresses in, or {@code null}
+     */
+    public static CredentialStore load(@NonNull Path path, int threads, EgressHealth egress) throws IOException {
+        JsonObject obj;
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            obj = new JsonParser().parse(reader).getAsJsonObject();
+        }
+
+        Map<String, User> users = new HashMap<>();
+        for (Map.Entry<String, JsonElement> entry : obj.entrySet()) {
+            String name = entry.getKey();
+            JsonObject userObj = entry.getValue().getAsJsonObject();
+
+            String[] split = userObj.get("password").getAsString().split("\\$");
+            checkArg(split.length == 4 && HASH_ALGORITHM.equals(split[0]), "invalid password hash for user \"%s\"", name);
+
+            users.put(name, new User(name,
+                    Base64.getDecoder().decode(split[2]),
+                    Integer.parseUnsignedInt(split[1]),
+                    Base64.getDecoder().decode(split[3]),
+                    userObj.has("v4") ? (egress != null ? egress.wrap(Balancers.fromJson(userObj)) : Balancers.fromJson(userObj)) : null,
+                    userObj.has("connectionsPerSecond")
+                            ? new RateLimiter(userObj.get("connectionsPerSecond").getAsDouble(), userObj.has("burst") ? userObj.get("burst").getAsDouble() : 1.0d)
+                            : null,
+                    userObj.has("maxConnections") ? userObj.get("maxConnections").getAsInt() : 0));
+        }
+        return new CredentialStore(users, threads);
+    }
+
+    /**
+     * Hashes a password for storage in a credentials file.
+     *
+     * @param password the password
+     * @return the encoded hash
+     */
+    public static String hash(@NonNull String password) throws GeneralSecurityException {
+        byte[] salt = new byte[SALT_LENGTH];
+        new SecureRandom().nextBytes(salt);
+        return HASH_ALGORITHM + '$' + DEFAULT_ITERATIONS
+               + '$' + Base64.getEncoder().encodeToString(salt)
+               + '$' + Base64.getEncoder().encodeToString(pbkdf2(password, salt, DEFAULT_ITERATIONS, HASH_LENGTH));
+    }
+
+    private static byte[] pbkdf2(@NonNull String password, @NonNull byte[] salt, int iterations, int length) throws GeneralSecurityException {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, length << 3);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    private final Map<String, User> users;
+    private final User dummy;
+
+    private final Map<String, byte[]> verified = new ConcurrentHashMap<>();
+    private final ThreadLocal<Mac> mac;
+
+    private final ExecutorService executor;
+
+    private CredentialStore(@NonNull Map<String, User> users, int threads) {
+        checkArg(threads > 0, "threads must be positive!");
+        this.users = users;
+
+        SecureRandom random = new SecureRandom();
+
+        //unknown usernames are checked against this user, so that they take just as long to reject as a wrong password would
+        byte[] dummySalt = new byte[SALT_LENGTH];
+        random.nextBytes(dummySalt);
+        this.dummy = new User("", dummySalt, DEFAULT_ITERATIONS, new byte[HASH_LENGTH], null, null, 0);
+
+        byte[] key = new byte[32];
+        random.nextBytes(key);
+        SecretKeySpec keySpec = new SecretKeySpec(key, "HmacSHA256");
+        this.mac = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(keySpec);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(1024), new DefaultThreadFactory("credential-verifier", true));
+    }
+
+    /**
+     * @return the number of users in this store
+     */
+    public int size() {
+        return this.users.size();
+    }
+
+    /**
+     * Checks whether or not the given credentials are valid.
+     *
+     * @param executor the executor which the returned {@link Future} will be notified on
+     * @param username the username
+     * @param password the password
+     * @return a {@link Future} which will be completed with the {@link User}, or with {@code null} if the credentials are invalid
+     */
+    public Future<User> verify(@NonNull EventExecutor executor, @NonNull String username, @NonNull String password) {
+        User user = this.users.get(username);
+        byte[] digest = this.cacheDigest(username, password);
+
+        byte[] cached = this.verified.get(username);
+        if (user != null && cached != null && MessageDigest.isEqual(cached, digest)) {
+            return executor.newSucceededFuture(user);
+        }
+
+        Promise<User> promise = executor.newPromise();
+        try {
+            this.executor.execute(() -> {
+                try {
+                    User u = user != null ? user : this.dummy;
+                    if (MessageDigest.isEqual(u.hash, pbkdf2(password, u.salt, u.iterations, u.hash.length)) && user != null) {
+                        this.verified.put(username, digest);
+                        promise.trySuccess(user);
+                    } else {
+                        promise.trySuccess(null);
+                    }
+                } catch (Throwable t) {
+                    promise.tryFailure(t);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            promise.tryFailure(e);
+        }
+        return promise;
+    }
+
+    private byte[] cacheDigest(@NonNull String username, @NonNull String password) {
+        Mac mac = this.mac.get();
+        mac.update(username.getBytes(StandardCharsets.UTF_8));
+        mac.update((byte) 0);
+        return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+    }
+}
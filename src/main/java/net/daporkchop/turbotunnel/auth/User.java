@@ -0,0 +1,105 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.auth;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.ToString;
+import lombok.experimental.Accessors;
+import net.daporkchop.turbotunnel.loadbalance.InetAddressBalancer;
+import net.daporkchop.turbotunnel.util.RateLimiter;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A user which may authenticate against a {@link CredentialStore}.
+ *
+ * @author DaPorkchop_
+ */
+@ToString(of = "name")
+@Getter
+@Accessors(fluent = true)
+public final class User {
+    private final String name;
+    final byte[] salt;
+    final int iterations;
+    final byte[] hash;
+
+    /**
+     * The balancer which should be used for connections made by this user, or {@code null} if the server's default balancer should be used.
+     */
+    private final InetAddressBalancer balancer;
+    /**
+     * Limits the rate at which this user may open new connections, or {@code null} if the user is not rate limited.
+     */
+    private final RateLimiter rateLimiter;
+    /**
+     * The maximum number of connections which this user may have open at once, or {@code 0} if unlimited.
+     */
+    private final int maxConnections;
+    private final AtomicInteger connections = new AtomicInteger();
+
+    User(@NonNull String name, @NonNull byte[] salt, int iterations, @NonNull byte[] hash, InetAddressBalancer balancer, RateLimiter rateLimiter, int maxConnections) {
+        this.name = name;
+        this.salt = salt;
+        this.iterations = iterations;
+        this.hash = hash;
+        this.balancer = balancer;
+        this.rateLimiter = rateLimiter;
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Attempts to open a new connection for this user.
+     * <p>
+     * If successful, {@link #disconnected()} must be called once the connection is closed.
+     *
+     * @return whether or not this user may open another connection right now
+     */
+    public boolean tryConnect() {
+        if (this.maxConnections > 0 && this.connections.incrementAndGet() > this.maxConnections) {
+            this.connections.decrementAndGet();
+            return false;
+        } else if (this.rateLimiter != null && !this.rateLimiter.tryAcquire()) {
+            if (this.maxConnections > 0) {
+                this.connections.decrementAndGet();
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Notifies this user that a connection previously opened by {@link #tryConnect()} has been closed.
+     */
+    public void disconnected() {
+        if (this.maxConnections > 0) {
+            this.connections.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return the number of connections currently open by this user, or {@code 0} if the user's connections are not being counted
+     */
+    public int connections() {
+        return this.connections.get();
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.capture;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.ToString;
+import lombok.experimental.Accessors;
+
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * A single tunnel, as recorded by a {@link TrafficCapture}.
+ * <p>
+ * All times are in microseconds.
+ *
+ * @author DaPorkchop_
+ */
+@AllArgsConstructor(access = AccessLevel.PACKAGE)
+@ToString(exclude = {"fromClient", "toClient"})
+@Getter
+@Accessors(fluent = true)
+public final class CaptureRecord {
+    /**
+     * The time at which the client connection was accepted, relative to the start of the capture.
+     */
+    private final long start;
+    /**
+     * The time between the client connection being accepted and the client's request being received.
+     */
+    private final long handshake;
+    /**
+     * The time between the client's request being received and data starting to be relayed, which is mostly spent opening the outbound connection.
+     */
+    private final long connect;
+    /**
+     * The time between data starting to be relayed and both channels being closed.
+     */
+    private final long duration;
+    /**
+     * The time between data starting to be relayed and the first data being sent to the client, or {@code -1} if no data was sent to the client.
+     */
+    private final long firstResponse;
+
+    /**
+     * The simple class name of the server which accepted the client connection.
+     */
+    @NonNull
+    private final String protocol;
+    /**
+     * The hostname (or IP address literal) requested by the client.
+     */
+    @NonNull
+    private final String host;
+    private final int port;
+    /**
+     * The name of the user which the client authenticated as, or {@code null} if the client did not authenticate.
+     */
+    private final String user;
+
+    private final long bytesFromClient;
+    private final long bytesToClient;
+    /**
+     * The first bytes sent by the client. Empty unless payloads are captured.
+     */
+    @NonNull
+    private final byte[] fromClient;
+    /**
+     * The first bytes sent to the client. Empty unless payloads are captured.
+     */
+    @NonNull
+    private final byte[] toClient;
+
+    /**
+     * Reads a record written by {@link #write(DataOutput)}.
+     *
+     * @param in the stream to read from
+     * @return the record, or {@code null} if the end of the stream has been reached
+     */
+    static CaptureRecord read(@NonNull DataInputStream in) throws IOException {
+        int first = in.read();
+        if (first < 0) {
+            return null;
+        }
+        long start = readVarLong(in, first);
+        long handshake = readVarLong(in, in.readUnsignedByte());
+        long connect = readVarLong(in, in.readUnsignedByte());
+        long duration = readVarLong(in, in.readUnsignedByte());
+        long firstResponse = readVarLong(in, in.readUnsignedByte()) - 1L;
+        String protocol = in.readUTF();
+        String host = in.readUTF();
+        int port = in.readUnsignedShort();
+        String user = in.readBoolean() ? in.readUTF() : null;
+        long bytesFromClient = readVarLong(in, in.readUnsignedByte());
+        long bytesToClient = readVarLong(in, in.readUnsignedByte());
+        byte[] fromClient = new byte[(int) readVarLong(in, in.readUnsignedByte())];
+        in.readFully(fromClient);
+        byte[] toClient = new byte[(int) readVarLong(in, in.readUnsignedByte())];
+        in.readFully(toClient);
+        return new CaptureRecord(start, handshake, connect, duration, firstResponse, protocol, host, port, user, bytesFromClient, bytesToClient, fromClient, toClient);
+    }
+
+    private static long readVarLong(DataInputStream in, int b) throws IOException {
+        long value = 0L;
+        for (int shift = 0; ; shift += 7) {
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            } else if (shift >= 63) {
+                throw new IOException("varint too long");
+            }
+            b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0L) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Writes this record. Times and sizes are encoded as variable-length integers, as almost all of them are small.
+     *
+     * @param out the stream to write to
+     */
+    void write(@NonNull DataOutput out) throws IOException {
+        writeVarLong(out, this.start);
+        writeVarLong(out, this.handshake);
+        writeVarLong(out, this.connect);
+        writeVarLong(out, this.duration);
+        writeVarLong(out, this.firstResponse + 1L);
+        out.writeUTF(this.protocol);
+        out.writeUTF(this.host);
+        out.writeShort(this.port);
+        out.writeBoolean(this.user != null);
+        if (this.user != null) {
+            out.writeUTF(this.user);
+        }
+        writeVarLong(out, this.bytesFromClient);
+        writeVarLong(out, this.bytesToClient);
+        writeVarLong(out, this.fromClient.length);
+        out.write(this.fromClient);
+        writeVarLong(out, this.toClient.length);
+        out.write(this.toClient);
+    }
+}
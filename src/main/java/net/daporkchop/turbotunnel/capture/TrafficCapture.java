@@ -0,0 +1,232 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.capture;
+
+import com.google.gson.JsonObject;
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+import io.netty.util.internal.PlatformDependent;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.experimental.Accessors;
+import net.daporkchop.turbotunnel.loadbalance.ConnectionContext;
+import net.daporkchop.turbotunnel.protocol.ProxyServer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+
+/**
+ * Records the handshake timing and traffic volume of every tunnel to a file, so that the same connection pattern can later be replayed by
+ * {@link TrafficReplay}. Optionally, the first bytes sent in each direction are recorded as well.
+ * <p>
+ * Tunnels are recorded once they have been closed. Finished records are handed to a dedicated writer thread through a bounded lock-free queue,
+ * so that the event loops never block on the file: if the writer can't keep up and the queue is full, records are dropped (and counted) instead.
+ * <p>
+ * Configured using a JSON object of the following form:
+ * <pre>
+ * {
+ *     "path": "capture.bin", //the file to write to. It is overwritten if it already exists
+ *     "payloadBytes": 0, //the number of bytes to record at the start of each direction of a tunnel
+ *     "bufferSize": 65536 //the maximum number of records waiting to be written
+ * }
+ * </pre>
+ * The file starts with a header (magic number, version and the start time in milliseconds since the epoch), followed by the records as written by
+ * {@link CaptureRecord#write(java.io.DataOutput)}.
+ *
+ * @author DaPorkchop_
+ */
+@Accessors(fluent = true)
+public final class TrafficCapture implements AutoCloseable {
+    private static final int MAGIC = 0x54544350; //"TTCP"
+    private static final int VERSION = 1;
+
+    /**
+     * The times at which a client connection was accepted, and at which its request was received.
+     */
+    private static final AttributeKey<long[]> TIMES_KEY = AttributeKey.newInstance("capture_times");
+
+    private static final long IDLE_PARK_TIME = TimeUnit.MILLISECONDS.toNanos(10L);
+
+    public static TrafficCapture fromJson(@NonNull JsonObject obj) throws IOException {
+        return new TrafficCapture(Paths.get(obj.has("path") ? obj.get("path").getAsString() : "capture.bin"),
+                obj.has("payloadBytes") ? obj.get("payloadBytes").getAsInt() : 0,
+                obj.has("bufferSize") ? obj.get("bufferSize").getAsInt() : 65536);
+    }
+
+    /**
+     * Marks the time at which the request of a client has been received. Does nothing if the client connection isn't being captured.
+     * <p>
+     * Must be called by the handshake handlers before opening the outbound connection.
+     *
+     * @param channel the client channel
+     */
+    public static void requested(@NonNull Channel channel) {
+        long[] times = channel.attr(TIMES_KEY).get();
+        if (times != null) {
+            times[1] = System.nanoTime();
+        }
+    }
+
+    /**
+     * Reads all records from a capture file.
+     *
+     * @param path the file
+     * @return the records, in the order in which the tunnels were closed
+     */
+    public static List<CaptureRecord> read(@NonNull Path path) throws IOException {
+        List<CaptureRecord> records = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            checkState(in.readInt() == MAGIC, "not a capture file");
+            checkState(in.readInt() == VERSION, "unsupported capture version");
+            in.readLong(); //start time
+
+            try {
+                for (CaptureRecord record; (record = CaptureRecord.read(in)) != null; ) {
+                    records.add(record);
+                }
+            } catch (EOFException e) { //the process was killed while writing
+                System.err.printf("Capture file %s is truncated, read %d records\n", path, records.size());
+            }
+        }
+        return records;
+    }
+
+    @Getter
+    private final int payloadBytes;
+    private final long startTime = System.nanoTime();
+
+    private final Queue<CaptureRecord> queue;
+    private final LongAdder dropped = new LongAdder();
+    private final DataOutputStream out;
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    public TrafficCapture(@NonNull Path path, int payloadBytes, int bufferSize) throws IOException {
+        checkArg(payloadBytes >= 0, "payloadBytes may not be negative!");
+        checkArg(bufferSize > 0, "bufferSize must be positive!");
+        this.payloadBytes = payloadBytes;
+        this.queue = PlatformDependent.newFixedMpscQueue(bufferSize);
+
+        this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16));
+        this.out.writeInt(MAGIC);
+        this.out.writeInt(VERSION);
+        this.out.writeLong(System.currentTimeMillis());
+
+        this.writer = new Thread(this::writeLoop, "Traffic capture writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+        System.out.printf("Capturing traffic to %s\n", path);
+    }
+
+    /**
+     * Marks the time at which a client connection has been accepted, so that it will be included in the capture.
+     *
+     * @param channel the client channel
+     */
+    public void accepted(@NonNull Channel channel) {
+        channel.attr(TIMES_KEY).set(new long[]{ System.nanoTime(), 0L });
+    }
+
+    /**
+     * Starts recording a tunnel.
+     *
+     * @param client  the client channel
+     * @param remote  the outbound channel
+     * @param server  the server which the client connected to
+     * @param context the connection requested by the client
+     * @return the {@link TunnelRecorder} which forwarded data must be passed to
+     */
+    public TunnelRecorder record(@NonNull Channel client, @NonNull Channel remote, @NonNull ProxyServer server, @NonNull ConnectionContext context) {
+        long now = System.nanoTime();
+        long[] times = client.attr(TIMES_KEY).get();
+        long acceptTime = times != null ? times[0] : now;
+        long requestTime = times != null && times[1] != 0L ? times[1] : acceptTime;
+        return new TunnelRecorder(this, client, remote, server.getClass().getSimpleName(), context, acceptTime, requestTime, now);
+    }
+
+    long micros(long nanoTime) {
+        return Math.max(TimeUnit.NANOSECONDS.toMicros(nanoTime - this.startTime), 0L);
+    }
+
+    void submit(CaptureRecord record) {
+        if (!this.running || !this.queue.offer(record)) {
+            this.dropped.increment();
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            while (this.running) {
+                CaptureRecord record = this.queue.poll();
+                if (record != null) {
+                    record.write(this.out);
+                } else { //nothing to do, write out what we have and wait for more. offering a record never has to wake us up this way
+                    this.out.flush();
+                    LockSupport.parkNanos(this, IDLE_PARK_TIME);
+                }
+            }
+            for (CaptureRecord record; (record = this.queue.poll()) != null; ) {
+                record.write(this.out);
+            }
+        } catch (IOException e) {
+            System.err.println("Unable to write traffic capture, stopping");
+            e.printStackTrace();
+            this.running = false;
+        } finally {
+            try {
+                this.out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        this.running = false;
+        LockSupport.unpark(this.writer);
+        try {
+            this.writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        long dropped = this.dropped.sum();
+        if (dropped > 0L) {
+            System.out.printf("Dropped %d capture records\n", dropped);
+        }
+    }
+}
@@ -0,0 +1,398 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.capture;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.ScheduledFuture;
+import lombok.NonNull;
+import lombok.experimental.UtilityClass;
+import net.daporkchop.turbotunnel.loadbalance.ConnectionContext;
+import net.daporkchop.turbotunnel.transport.TransportPool;
+import net.daporkchop.turbotunnel.transport.Transports;
+import net.daporkchop.turbotunnel.upstream.UpstreamGroup;
+import net.daporkchop.turbotunnel.upstream.UpstreamRouter;
+import net.daporkchop.turbotunnel.util.BiDirectionalSocketConnector;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+
+/**
+ * Replays the connection pattern recorded by a {@link TrafficCapture} through a running proxy, against a local stand-in origin.
+ * <p>
+ * Run with {@code --replay <capture file> <socks5|http|turbotunnel> <proxy host:port> [speed]}. Every recorded tunnel is opened through the proxy
+ * at its original start time (divided by the speed factor), using the same client implementations as upstream proxies. The requested destination
+ * is always the stand-in origin, which listens on the loopback interface, so the proxy must be running on the same machine and allow connecting to
+ * it. Each side then sends the recorded number of bytes, starting with the recorded payload prefix (if any) and padded with zeroes, and the tunnel is
+ * held open for its recorded (scaled) duration or until all data has arrived, whichever is later.
+ * <p>
+ * As the origin has to know which tunnel a connection belongs to, the client sends the index of the record as a 4-byte preamble before the
+ * recorded data. Only the volume of data in each direction is replayed, not how it was interleaved over the lifetime of the tunnel.
+ *
+ * @author DaPorkchop_
+ */
+@UtilityClass
+public class TrafficReplay {
+    private static final int CHUNK_SIZE = 1 << 16;
+    private static final long STALL_TIMEOUT = TimeUnit.SECONDS.toNanos(60L);
+
+    public void run(@NonNull String... args) throws Exception {
+        checkArg(args.length >= 3 && args.length <= 4, "usage: --replay <capture file> <socks5|http|turbotunnel> <proxy host:port> [speed]");
+        List<CaptureRecord> records = TrafficCapture.read(Paths.get(args[0]));
+        records.sort(Comparator.comparingLong(CaptureRecord::start));
+        CaptureRecord[] sorted = records.toArray(new CaptureRecord[0]);
+        double speed = args.length >= 4 ? Double.parseDouble(args[3]) : 1.0d;
+        checkArg(speed > 0.0d, "speed must be positive!");
+        if (sorted.length == 0) {
+            System.out.println("Capture file contains no records");
+            return;
+        }
+
+        int separator = args[2].lastIndexOf(':');
+        checkArg(separator > 0, "invalid proxy address: %s", args[2]);
+        JsonObject proxy = new JsonObject();
+        proxy.addProperty("type", args[1]);
+        proxy.addProperty("host", args[2].substring(0, separator));
+        proxy.addProperty("port", Integer.parseInt(args[2].substring(separator + 1)));
+        JsonObject proxies = new JsonObject();
+        proxies.add("replay", proxy);
+        JsonArray defaultRoute = new JsonArray();
+        defaultRoute.add("replay");
+        JsonObject upstreamConfig = new JsonObject();
+        upstreamConfig.add("proxies", proxies);
+        upstreamConfig.add("default", defaultRoute);
+
+        TransportPool transport = Transports.fromJson(new JsonObject());
+        EventLoopGroup group = transport.get();
+        try (UpstreamRouter router = UpstreamRouter.fromJson(upstreamConfig, transport)) {
+            Channel origin = transport.serverBootstrap(group)
+                    .childHandler(new ChannelInitializer<Channel>() {
+                        @Override
+                        protected void initChannel(Channel ch) throws Exception {
+                            ch.pipeline().addLast(new ChunkedWriteHandler(), new OriginHandler(sorted));
+                        }
+                    })
+                    .bind(InetAddress.getLoopbackAddress(), 0).syncUninterruptibly().channel();
+            InetSocketAddress target = (InetSocketAddress) origin.localAddress();
+            UpstreamGroup upstream = router.route(target);
+
+            Replay replay = new Replay(sorted, speed, upstream, target);
+            System.out.printf("Replaying %d tunnels at %.2fx speed, stand-in origin listening on %s\n", sorted.length, speed, target);
+            long startTime = System.nanoTime();
+            for (int i = 0; i < sorted.length; i++) {
+                int index = i;
+                group.next().schedule(() -> replay.start(group, index), replay.scale(sorted[i].start() - sorted[0].start()), TimeUnit.MICROSECONDS);
+            }
+            replay.done.await();
+            long elapsed = System.nanoTime() - startTime;
+            origin.close().syncUninterruptibly();
+
+            replay.printSummary(elapsed);
+        } finally {
+            transport.release(group);
+            transport.shutdown();
+        }
+    }
+
+    /**
+     * The state of a replay.
+     */
+    private static final class Replay {
+        private final CaptureRecord[] records;
+        private final double speed;
+        private final UpstreamGroup upstream;
+        private final InetSocketAddress target;
+        private final ConnectionContext context;
+
+        /**
+         * The time it took the proxy to open each tunnel in nanoseconds, or {@code -1} if it couldn't be opened.
+         */
+        private final long[] handshakeTimes;
+        private final AtomicInteger failed = new AtomicInteger();
+        private final AtomicInteger incomplete = new AtomicInteger();
+        private final CountDownLatch done;
+
+        public Replay(CaptureRecord[] records, double speed, UpstreamGroup upstream, InetSocketAddress target) {
+            this.records = records;
+            this.speed = speed;
+            this.upstream = upstream;
+            this.target = target;
+            this.context = new ConnectionContext(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), target, null, target);
+            this.handshakeTimes = new long[records.length];
+            this.done = new CountDownLatch(records.length);
+        }
+
+        public long scale(long micros) {
+            return (long) (micros / this.speed);
+        }
+
+        public void start(EventLoopGroup group, int index) {
+            long startTime = System.nanoTime();
+            this.upstream.connect(group.next(), this.context).addListener((GenericFutureListener<Future<Channel>>) f -> {
+                if (!f.isSuccess()) {
+                    System.err.printf("Unable to open tunnel %d: %s\n", index, f.cause());
+                    this.handshakeTimes[index] = -1L;
+                    this.failed.incrementAndGet();
+                    this.done.countDown();
+                    return;
+                }
+                this.handshakeTimes[index] = System.nanoTime() - startTime;
+
+                Channel channel = f.getNow();
+                ReplayClientHandler handler = new ReplayClientHandler(this, index);
+                channel.pipeline().addLast(new ChunkedWriteHandler(), handler);
+                channel.eventLoop().execute(() -> handler.begin(channel));
+            });
+        }
+
+        public void printSummary(long elapsed) {
+            long[] times = Arrays.stream(this.handshakeTimes).filter(time -> time >= 0L).sorted().toArray();
+            long bytesFromClient = 0L;
+            long bytesToClient = 0L;
+            for (CaptureRecord record : this.records) {
+                bytesFromClient += record.bytesFromClient();
+                bytesToClient += record.bytesToClient();
+            }
+
+            System.out.printf("Replayed %d tunnels in %.3fs (captured over %.3fs)\n", this.records.length, elapsed / 1e9d,
+                    (this.records[this.records.length - 1].start() - this.records[0].start()) / 1e6d);
+            System.out.printf("  failed to open: %d, incomplete: %d\n", this.failed.get(), this.incomplete.get());
+            System.out.printf("  data: %d bytes from clients, %d bytes to clients\n", bytesFromClient, bytesToClient);
+            if (times.length > 0) {
+                System.out.printf("  handshake time: p50 %.3fms, p90 %.3fms, p99 %.3fms, max %.3fms\n",
+                        percentile(times, 0.5d), percentile(times, 0.9d), percentile(times, 0.99d), times[times.length - 1] / 1e6d);
+            }
+        }
+
+        private static double percentile(long[] sorted, double percentile) {
+            return sorted[Math.min((int) (sorted.length * percentile), sorted.length - 1)] / 1e6d;
+        }
+    }
+
+    /**
+     * Sends the recorded client data through a tunnel, and closes it once the recorded duration has elapsed and all data has been sent and received.
+     */
+    private static final class ReplayClientHandler extends ChannelInboundHandlerAdapter {
+        private final Replay replay;
+        private final int index;
+        private final CaptureRecord record;
+
+        private long received;
+        private boolean sent;
+        private boolean expired;
+        private boolean finished;
+        private ScheduledFuture<?> stallTimeout;
+
+        public ReplayClientHandler(Replay replay, int index) {
+            this.replay = replay;
+            this.index = index;
+            this.record = replay.records[index];
+        }
+
+        public void begin(Channel channel) {
+            channel.closeFuture().addListener((ChannelFutureListener) f -> this.finish(channel));
+
+            //data which arrived together with the handshake reply was left for whoever uses the tunnel
+            ByteBuf pending = channel.attr(BiDirectionalSocketConnector.PENDING_DATA_KEY).getAndSet(null);
+            if (pending != null) {
+                this.received += pending.readableBytes();
+                pending.release();
+            }
+
+            channel.write(channel.alloc().ioBuffer(4, 4).writeInt(this.index));
+            channel.writeAndFlush(new RecordedDataInput(this.record.fromClient(), this.record.bytesFromClient())).addListener((ChannelFutureListener) f -> {
+                this.sent = f.isSuccess();
+                this.tryClose(channel);
+            });
+            channel.eventLoop().schedule(() -> {
+                this.expired = true;
+                this.tryClose(channel);
+            }, this.replay.scale(this.record.duration()), TimeUnit.MICROSECONDS);
+            this.stallTimeout = channel.eventLoop().schedule(() -> {
+                System.err.printf("Tunnel %d stalled after receiving %d/%d bytes\n", this.index, this.received, this.record.bytesToClient());
+                channel.close();
+            }, this.replay.scale(this.record.duration()) + TimeUnit.NANOSECONDS.toMicros(STALL_TIMEOUT), TimeUnit.MICROSECONDS);
+            channel.config().setAutoRead(true);
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (msg instanceof ByteBuf) {
+                this.received += ((ByteBuf) msg).readableBytes();
+            }
+            ReferenceCountUtil.release(msg);
+            this.tryClose(ctx.channel());
+        }
+
+        private void tryClose(Channel channel) {
+            if (this.sent && this.expired && this.received >= this.record.bytesToClient()) {
+                channel.close();
+            }
+        }
+
+        private void finish(Channel channel) {
+            if (this.finished) {
+                return;
+            }
+            this.finished = true;
+            if (this.stallTimeout != null) {
+                this.stallTimeout.cancel(false);
+            }
+            if (!this.sent || this.received < this.record.bytesToClient()) {
+                this.replay.incomplete.incrementAndGet();
+            }
+            this.replay.done.countDown();
+        }
+    }
+
+    /**
+     * Reads the index of the record from a connection to the stand-in origin, and then sends the recorded data to the client. Anything else
+     * received is discarded.
+     */
+    private static final class OriginHandler extends ChannelInboundHandlerAdapter {
+        private final CaptureRecord[] records;
+        private ByteBuf preamble;
+        private boolean started;
+
+        public OriginHandler(CaptureRecord[] records) {
+            this.records = records;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (this.started || !(msg instanceof ByteBuf)) {
+                ReferenceCountUtil.release(msg);
+                return;
+            }
+
+            ByteBuf data = (ByteBuf) msg;
+            try {
+                if (this.preamble == null) {
+                    this.preamble = ctx.alloc().heapBuffer(4, 4);
+                }
+                this.preamble.writeBytes(data, Math.min(data.readableBytes(), this.preamble.writableBytes()));
+            } finally {
+                data.release();
+            }
+
+            if (!this.preamble.isWritable()) {
+                int index = this.preamble.readInt();
+                this.preamble.release();
+                this.preamble = null;
+                this.started = true;
+
+                checkState(index >= 0 && index < this.records.length, "invalid record index: %d", index);
+                CaptureRecord record = this.records[index];
+                ctx.writeAndFlush(new RecordedDataInput(record.toClient(), record.bytesToClient()));
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            if (this.preamble != null) {
+                this.preamble.release();
+                this.preamble = null;
+            }
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            ctx.close();
+        }
+    }
+
+    /**
+     * Generates the recorded payload prefix, followed by zeroes up to the recorded length.
+     */
+    private static final class RecordedDataInput implements ChunkedInput<ByteBuf> {
+        private final byte[] prefix;
+        private final long length;
+        private long offset;
+
+        public RecordedDataInput(byte[] prefix, long length) {
+            this.prefix = prefix;
+            this.length = length;
+        }
+
+        @Override
+        public boolean isEndOfInput() {
+            return this.offset >= this.length;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Deprecated
+        @Override
+        public ByteBuf readChunk(ChannelHandlerContext ctx) {
+            return this.readChunk(ctx.alloc());
+        }
+
+        @Override
+        public ByteBuf readChunk(ByteBufAllocator allocator) {
+            if (this.isEndOfInput()) {
+                return null;
+            }
+            int size = (int) Math.min(this.length - this.offset, CHUNK_SIZE);
+            ByteBuf buf = allocator.ioBuffer(size, size);
+            if (this.offset < this.prefix.length) {
+                buf.writeBytes(this.prefix, (int) this.offset, (int) Math.min(this.prefix.length - this.offset, size));
+            }
+            buf.writeZero(buf.writableBytes());
+            this.offset += size;
+            return buf;
+        }
+
+        @Override
+        public long length() {
+            return this.length;
+        }
+
+        @Override
+        public long progress() {
+            return this.offset;
+        }
+    }
+}
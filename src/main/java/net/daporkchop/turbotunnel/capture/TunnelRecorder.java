@@ -0,0 +1,125 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.capture;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import lombok.NonNull;
+import net.daporkchop.turbotunnel.loadbalance.ConnectionContext;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records a single tunnel for a {@link TrafficCapture}. The record is submitted once both channels have been closed.
+ * <p>
+ * Each direction is only ever updated from the event loop of the channel the data was read from, so no synchronization is needed until the
+ * record is built.
+ *
+ * @author DaPorkchop_
+ */
+public final class TunnelRecorder {
+    private static final byte[] EMPTY = new byte[0];
+
+    private final TrafficCapture capture;
+    private final String protocol;
+    private final String host;
+    private final int port;
+    private final String user;
+    private final long start;
+    private final long handshake;
+    private final long connect;
+    private final long relayTime;
+
+    private long bytesFromClient;
+    private long bytesToClient;
+    private byte[] fromClient = EMPTY;
+    private byte[] toClient = EMPTY;
+    private long firstResponseTime = -1L;
+
+    private final AtomicInteger open = new AtomicInteger(2);
+
+    TunnelRecorder(@NonNull TrafficCapture capture, @NonNull Channel client, @NonNull Channel remote, @NonNull String protocol, @NonNull ConnectionContext context,
+                   long acceptTime, long requestTime, long relayTime) {
+        this.capture = capture;
+        this.protocol = protocol;
+        this.host = context.target().getHostString();
+        this.port = context.target().getPort();
+        this.user = context.user() != null ? context.user().name() : null;
+        this.start = capture.micros(acceptTime);
+        this.handshake = TimeUnit.NANOSECONDS.toMicros(requestTime - acceptTime);
+        this.connect = TimeUnit.NANOSECONDS.toMicros(relayTime - requestTime);
+        this.relayTime = relayTime;
+
+        ChannelFutureListener listener = f -> {
+            if (this.open.decrementAndGet() == 0) {
+                this.finish();
+            }
+        };
+        client.closeFuture().addListener(listener);
+        remote.closeFuture().addListener(listener);
+    }
+
+    /**
+     * Accounts for data which is being forwarded through the tunnel.
+     *
+     * @param fromClient whether the data was sent by the client
+     * @param data       the data. Its contents and indices are not modified
+     */
+    public void forwarded(boolean fromClient, @NonNull ByteBuf data) {
+        int size = data.readableBytes();
+        if (fromClient) {
+            this.fromClient = this.copyPrefix(this.fromClient, this.bytesFromClient, data);
+            this.bytesFromClient += size;
+        } else {
+            if (this.firstResponseTime < 0L && size > 0) {
+                this.firstResponseTime = System.nanoTime();
+            }
+            this.toClient = this.copyPrefix(this.toClient, this.bytesToClient, data);
+            this.bytesToClient += size;
+        }
+    }
+
+    private byte[] copyPrefix(byte[] prefix, long offset, ByteBuf data) {
+        int limit = this.capture.payloadBytes();
+        if (offset >= limit || !data.isReadable()) { //the common case: the prefix is already full, or payloads aren't captured at all
+            return prefix;
+        }
+        if (prefix.length < limit) {
+            prefix = Arrays.copyOf(prefix, limit);
+        }
+        data.getBytes(data.readerIndex(), prefix, (int) offset, (int) Math.min(data.readableBytes(), limit - offset));
+        return prefix;
+    }
+
+    private void finish() {
+        long duration = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - this.relayTime);
+        this.capture.submit(new CaptureRecord(
+                this.start, this.handshake, this.connect, duration,
+                this.firstResponseTime >= 0L ? TimeUnit.NANOSECONDS.toMicros(this.firstResponseTime - this.relayTime) : -1L,
+                this.protocol, this.host, this.port, this.user,
+                this.bytesFromClient, this.bytesToClient,
+                Arrays.copyOf(this.fromClient, (int) Math.min(this.fromClient.length, this.bytesFromClient)),
+                Arrays.copyOf(this.toClient, (int) Math.min(this.toClient.length, this.bytesToClient))));
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.dns;
+
+import com.google.gson.JsonObject;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.Accessors;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+
+/**
+ * Caches the addresses which hostnames resolve to.
+ * <p>
+ * The system resolver doesn't report the TTL of the records it returns, so every entry is kept for a fixed amount of time. Entries carry an
+ * absolute expiry time, which allows them to be persisted and restored across restarts (see {@link #fallback(Function)}).
+ * <p>
+ * Configured using a JSON object of the following form:
+ * <pre>
+ * {
+ *     "ttl": 60, //seconds, how long resolved addresses are kept
+ *     "maxEntries": 65536 //the maximum number of hostnames to cache
+ * }
+ * </pre>
+ *
+ * @author DaPorkchop_
+ */
+public final class DnsCache {
+    public static DnsCache fromJson(@NonNull JsonObject obj) {
+        return new DnsCache(
+                obj.has("ttl") ? obj.get("ttl").getAsLong() : 60L,
+                obj.has("maxEntries") ? obj.get("maxEntries").getAsInt() : 65536,
+                TimeUnit.SECONDS);
+    }
+
+    private final long ttl;
+    private final int maxEntries;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    /**
+     * Every entry which was added to the cache, oldest first. Once it is longer than the maximum number of entries, the oldest entry is evicted for
+     * every new one, so that eviction never has to scan the cache. Entries which have already been replaced are simply skipped.
+     */
+    private final Queue<Entry> order = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger orderSize = new AtomicInteger();
+    private volatile Function<String, Entry> fallback;
+
+    public DnsCache(long ttl, int maxEntries, @NonNull TimeUnit unit) {
+        checkArg(ttl > 0L, "ttl must be positive!");
+        checkArg(maxEntries > 0, "maxEntries must be positive!");
+        this.ttl = unit.toMillis(ttl);
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Resolves the given hostname, using a cached result if possible.
+     * <p>
+     * This method may block.
+     *
+     * @param hostname the hostname to resolve
+     * @return the addresses which the hostname resolves to
+     */
+    public InetAddress[] resolve(@NonNull String hostname) throws UnknownHostException {
+        String key = hostname.toLowerCase(Locale.ROOT);
+        long now = System.currentTimeMillis();
+
+        Entry entry = this.entries.get(key);
+        if (entry == null || entry.expires <= now) {
+            Function<String, Entry> fallback = this.fallback;
+            entry = fallback != null ? fallback.apply(key) : null;
+            if (entry == null || entry.expires <= now) {
+                entry = new Entry(key, InetAddress.getAllByName(hostname), now + this.ttl);
+            }
+
+            this.entries.put(key, entry);
+            this.order.add(entry);
+            if (this.orderSize.incrementAndGet() > this.maxEntries) {
+                Entry oldest = this.order.poll();
+                if (oldest != null) {
+                    this.orderSize.decrementAndGet();
+                    this.entries.remove(oldest.hostname, oldest);
+                }
+            }
+        }
+        return entry.addresses.clone();
+    }
+
+    /**
+     * Sets a function which is asked for entries which aren't in the cache (or have expired) before resolving them, or {@code null} to always
+     * resolve them.
+     * <p>
+     * Entries returned by the function are added to the cache, and are discarded if they have already expired.
+     */
+    public void fallback(Function<String, Entry> fallback) {
+        this.fallback = fallback;
+    }
+
+    /**
+     * @return all entries in the cache which haven't yet expired
+     */
+    public List<Entry> entries() {
+        long now = System.currentTimeMillis();
+        return this.entries.values().stream().filter(entry -> entry.expires > now).collect(Collectors.toList());
+    }
+
+    /**
+     * @return the number of entries in the cache, including expired entries which haven't been removed yet
+     */
+    public int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * A cached resolution result.
+     *
+     * @author DaPorkchop_
+     */
+    @RequiredArgsConstructor
+    @Getter
+    @Accessors(fluent = true)
+    public static final class Entry {
+        @NonNull
+        private final String hostname;
+        @NonNull
+        private final InetAddress[] addresses;
+        /**
+         * The time at which this entry expires, in milliseconds since the epoch.
+         */
+        private final long expires;
+    }
+}
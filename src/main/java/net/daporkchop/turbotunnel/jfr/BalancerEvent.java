@@ -0,0 +1,95 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import lombok.NonNull;
+import net.daporkchop.turbotunnel.loadbalance.InetAddressBalancer;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * The choice of a local address by an {@link InetAddressBalancer}.
+ *
+ * @author DaPorkchop_
+ */
+@Name("net.daporkchop.turbotunnel.Balancer")
+@Label("Balancer Decision")
+@Category("TurboTunnel")
+@Description("The choice of the local address which a direct connection is opened from")
+@StackTrace(false)
+public final class BalancerEvent extends Event {
+    private static final EventType TYPE = EventType.getEventType(BalancerEvent.class);
+
+    /**
+     * Begins a new event.
+     *
+     * @param balancer    the balancer which is choosing
+     * @param destination the destination requested by the client
+     * @param ipv4        whether the destination has IPv4 addresses
+     * @param ipv6        whether the destination has IPv6 addresses
+     * @return the event, or {@code null} if the event is disabled
+     */
+    public static BalancerEvent start(@NonNull InetAddressBalancer balancer, @NonNull InetSocketAddress destination, boolean ipv4, boolean ipv6) {
+        if (!TYPE.isEnabled()) {
+            return null;
+        }
+        BalancerEvent event = new BalancerEvent();
+        event.balancer = balancer.getClass().getSimpleName();
+        event.destination = destination.toString();
+        event.ipv4 = ipv4;
+        event.ipv6 = ipv6;
+        event.begin();
+        return event;
+    }
+
+    @Label("Balancer")
+    private String balancer;
+
+    @Label("Destination")
+    private String destination;
+
+    @Label("IPv4 Available")
+    private boolean ipv4;
+
+    @Label("IPv6 Available")
+    private boolean ipv6;
+
+    @Label("Local Address")
+    private String localAddress;
+
+    /**
+     * Ends this event and commits it.
+     *
+     * @param localAddress the local address which was chosen
+     */
+    public void finish(InetAddress localAddress) {
+        this.localAddress = localAddress != null ? localAddress.getHostAddress() : null;
+        this.commit();
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.jfr;
+
+import io.netty.channel.Channel;
+import io.netty.util.concurrent.Future;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import lombok.NonNull;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * An attempt to open an outbound connection for a client.
+ *
+ * @author DaPorkchop_
+ */
+@Name("net.daporkchop.turbotunnel.Connect")
+@Label("Outbound Connect")
+@Category("TurboTunnel")
+@Description("An attempt to open an outbound connection to a destination requested by a client")
+@StackTrace(false)
+public final class ConnectEvent extends Event {
+    public static final String DIRECT = "direct";
+    public static final String WARM = "warm";
+
+    private static final EventType TYPE = EventType.getEventType(ConnectEvent.class);
+
+    /**
+     * Begins a new event.
+     *
+     * @param destination the destination requested by the client
+     * @param route       how the destination is being connected to: {@link #DIRECT}, {@link #WARM}, or the upstream proxies which are being used
+     * @return the event, or {@code null} if the event is disabled
+     */
+    public static ConnectEvent start(@NonNull InetSocketAddress destination, @NonNull String route) {
+        if (!TYPE.isEnabled()) {
+            return null;
+        }
+        ConnectEvent event = new ConnectEvent();
+        event.destination = destination.toString();
+        event.route = route;
+        event.begin();
+        return event;
+    }
+
+    @Label("Destination")
+    private String destination;
+
+    @Label("Route")
+    private String route;
+
+    @Label("Source Address")
+    private String sourceAddress;
+
+    @Label("Remote Address")
+    private String remoteAddress;
+
+    @Label("Success")
+    private boolean success;
+
+    @Label("Failure")
+    private String failure;
+
+    /**
+     * Sets the addresses which are being connected from and to, so that they are known even if the connection fails.
+     *
+     * @param sourceAddress the local address
+     * @param remoteAddress the remote address
+     * @return this event
+     */
+    public ConnectEvent addresses(@NonNull InetAddress sourceAddress, @NonNull InetSocketAddress remoteAddress) {
+        this.sourceAddress = sourceAddress.getHostAddress();
+        this.remoteAddress = remoteAddress.toString();
+        return this;
+    }
+
+    /**
+     * Ends this event and commits it.
+     *
+     * @param future the completed connection attempt
+     */
+    public void finish(@NonNull Future<Channel> future) {
+        if (future.isSuccess()) {
+            Channel channel = future.getNow();
+            this.success = true;
+            this.sourceAddress = String.valueOf(channel.localAddress());
+            this.remoteAddress = String.valueOf(channel.remoteAddress());
+        } else {
+            this.failure = String.valueOf(future.cause());
+        }
+        this.commit();
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import lombok.NonNull;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+
+/**
+ * The resolution of a destination hostname. This blocks the event loop unless the hostname is cached.
+ *
+ * @author DaPorkchop_
+ */
+@Name("net.daporkchop.turbotunnel.DnsResolve")
+@Label("DNS Resolution")
+@Category("TurboTunnel")
+@Description("The resolution of a destination hostname on an event loop")
+@StackTrace(false)
+public final class DnsResolveEvent extends Event {
+    private static final EventType TYPE = EventType.getEventType(DnsResolveEvent.class);
+
+    /**
+     * Begins a new event.
+     *
+     * @param hostname the hostname which is being resolved
+     * @return the event, or {@code null} if the event is disabled
+     */
+    public static DnsResolveEvent start(@NonNull String hostname) {
+        if (!TYPE.isEnabled()) {
+            return null;
+        }
+        DnsResolveEvent event = new DnsResolveEvent();
+        event.hostname = hostname;
+        event.begin();
+        return event;
+    }
+
+    @Label("Hostname")
+    private String hostname;
+
+    @Label("Addresses")
+    private String addresses;
+
+    @Label("Success")
+    private boolean success;
+
+    /**
+     * Ends this event and commits it.
+     *
+     * @param addresses the addresses which the hostname resolved to, or {@code null} if it couldn't be resolved
+     */
+    public void finish(InetAddress[] addresses) {
+        this.success = addresses != null;
+        this.addresses = addresses != null ? Arrays.toString(addresses) : null;
+        this.commit();
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.jfr;
+
+import io.netty.util.concurrent.Future;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import lombok.NonNull;
+
+import java.net.InetSocketAddress;
+
+/**
+ * A phase of a client's handshake which has to wait for something other than the client, such as its credentials being verified or the
+ * connection to its destination being opened.
+ *
+ * @author DaPorkchop_
+ */
+@Name("net.daporkchop.turbotunnel.Handshake")
+@Label("Handshake Phase")
+@Category("TurboTunnel")
+@Description("A phase of a client handshake which waits for credential verification or for the outbound connection")
+@StackTrace(false)
+public final class HandshakeEvent extends Event {
+    public static final String AUTHENTICATE = "authenticate";
+    public static final String CONNECT = "connect";
+
+    private static final EventType TYPE = EventType.getEventType(HandshakeEvent.class);
+
+    /**
+     * Begins a new event.
+     *
+     * @param protocol      the protocol spoken by the client
+     * @param phase         the phase which is beginning
+     * @param clientAddress the address of the client
+     * @param destination   the destination requested by the client, or {@code null} if it isn't known yet
+     * @return the event, or {@code null} if the event is disabled
+     */
+    public static HandshakeEvent start(@NonNull String protocol, @NonNull String phase, InetSocketAddress clientAddress, InetSocketAddress destination) {
+        if (!TYPE.isEnabled()) {
+            return null;
+        }
+        HandshakeEvent event = new HandshakeEvent();
+        event.protocol = protocol;
+        event.phase = phase;
+        event.clientAddress = String.valueOf(clientAddress);
+        event.destination = destination != null ? destination.toString() : null;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Finishes the given event once the given future completes.
+     *
+     * @param event  the event, or {@code null} if it is disabled
+     * @param future the future which completes the phase
+     */
+    public static void track(HandshakeEvent event, @NonNull Future<?> future) {
+        if (event != null) {
+            future.addListener(f -> event.finish(f.isSuccess()));
+        }
+    }
+
+    @Label("Protocol")
+    private String protocol;
+
+    @Label("Phase")
+    private String phase;
+
+    @Label("Client Address")
+    private String clientAddress;
+
+    @Label("Destination")
+    private String destination;
+
+    @Label("Success")
+    private boolean success;
+
+    /**
+     * Ends this event and commits it.
+     *
+     * @param success whether the phase completed successfully
+     */
+    public void finish(boolean success) {
+        this.success = success;
+        this.commit();
+    }
+}
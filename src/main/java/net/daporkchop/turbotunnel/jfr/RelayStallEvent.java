@@ -0,0 +1,97 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.jfr;
+
+import io.netty.channel.Channel;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import lombok.NonNull;
+import net.daporkchop.turbotunnel.protocol.ProxyServer;
+
+/**
+ * A period during which a relay stopped reading from one side of a tunnel, because too much of the data read from it was still waiting to be
+ * written to the other side.
+ * <p>
+ * Short stalls are normal whenever one side is slower than the other, so only stalls which last longer than 1ms are recorded by default.
+ *
+ * @author DaPorkchop_
+ */
+@Name("net.daporkchop.turbotunnel.RelayStall")
+@Label("Relay Stall")
+@Category("TurboTunnel")
+@Description("A period during which a relay stopped reading from one side of a tunnel due to backpressure")
+@StackTrace(false)
+@Threshold("1 ms")
+public final class RelayStallEvent extends Event {
+    /**
+     * The data in flight in the tunnel exceeded the tunnel's budget, reading resumes once enough of it has been written.
+     */
+    public static final String TUNNEL_BUDGET = "tunnel budget";
+    /**
+     * The data in flight in the whole process exceeded the process' budget.
+     */
+    public static final String PROCESS_BUDGET = "process budget";
+
+    private static final EventType TYPE = EventType.getEventType(RelayStallEvent.class);
+
+    /**
+     * Begins a new event.
+     *
+     * @param client     the client channel
+     * @param fromClient whether reading from the client (rather than from the destination) stalled
+     * @param reason     why reading stalled
+     * @param inFlight   the number of bytes read from the stalled side which were still waiting to be written
+     * @return the event, or {@code null} if the event is disabled
+     */
+    public static RelayStallEvent start(@NonNull Channel client, boolean fromClient, @NonNull String reason, long inFlight) {
+        if (!TYPE.isEnabled()) {
+            return null;
+        }
+        RelayStallEvent event = new RelayStallEvent();
+        event.clientAddress = String.valueOf(ProxyServer.clientAddress(client));
+        event.fromClient = fromClient;
+        event.reason = reason;
+        event.inFlight = inFlight;
+        event.begin();
+        return event;
+    }
+
+    @Label("Client Address")
+    private String clientAddress;
+
+    @Label("From Client")
+    @Description("Whether reading from the client stalled, rather than reading from the destination")
+    private boolean fromClient;
+
+    @Label("Reason")
+    private String reason;
+
+    @Label("In Flight")
+    @DataAmount
+    private long inFlight;
+}
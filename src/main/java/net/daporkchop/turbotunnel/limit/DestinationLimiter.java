@@ -0,0 +1,254 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.limit;
+
+import com.google.gson.JsonObject;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+import lombok.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+
+/**
+ * Limits the number of connections which may be open to a single destination host at once.
+ * <p>
+ * A connection counts against its destination's limit from the moment it starts being opened until it is closed. Requests which would exceed the
+ * limit wait in a bounded FIFO queue until a connection to the same destination is closed, and fail with a {@link DestinationLimitException} if
+ * the queue is full or they have waited for too long.
+ * <p>
+ * The state of every destination is kept in a {@link ConcurrentHashMap}, and is only ever modified inside of the map's atomic operations, so that
+ * requests for different destinations don't contend with each other. Destinations without any open connections or queued requests are removed
+ * from the map.
+ * <p>
+ * Configured using a JSON object of the following form:
+ * <pre>
+ * {
+ *     "maxConnections": 256, //the maximum number of connections to a single destination
+ *     "queueSize": 1024, //the maximum number of requests which may wait for a connection to a single destination
+ *     "queueTimeout": 10 //seconds, how long a request may wait in the queue
+ * }
+ * </pre>
+ *
+ * @author DaPorkchop_
+ */
+public final class DestinationLimiter {
+    public static DestinationLimiter fromJson(@NonNull JsonObject obj) {
+        return new DestinationLimiter(
+                obj.has("maxConnections") ? obj.get("maxConnections").getAsInt() : 256,
+                obj.has("queueSize") ? obj.get("queueSize").getAsInt() : 1024,
+                obj.has("queueTimeout") ? obj.get("queueTimeout").getAsLong() : 10L,
+                TimeUnit.SECONDS);
+    }
+
+    private final int maxConnections;
+    private final int queueSize;
+    private final long queueTimeout;
+
+    private final Map<String, Destination> destinations = new ConcurrentHashMap<>();
+
+    public DestinationLimiter(int maxConnections, int queueSize, long queueTimeout, @NonNull TimeUnit unit) {
+        checkArg(maxConnections > 0, "maxConnections must be positive!");
+        checkArg(queueSize >= 0, "queueSize may not be negative!");
+        checkArg(queueTimeout > 0L, "queueTimeout must be positive!");
+
+        this.maxConnections = maxConnections;
+        this.queueSize = queueSize;
+        this.queueTimeout = unit.toNanos(queueTimeout);
+    }
+
+    /**
+     * Opens a connection to the given destination host once the limit allows it.
+     * <p>
+     * If the limit isn't reached, the connection is opened immediately, so the returned future may already be complete (e.g. if the connection was
+     * rejected by an access control list).
+     *
+     * @param host     the destination host
+     * @param src      the client channel which requested the connection. If it has been closed by the time a queued request may proceed, the
+     *                 connection isn't opened
+     * @param executor the executor to open the connection on, and which the returned future will be notified on
+     * @param connect  opens the connection
+     * @return a future which will be notified with the opened channel
+     */
+    public Future<Channel> connect(@NonNull String host, @NonNull Channel src, @NonNull EventExecutor executor, @NonNull Callable<Future<Channel>> connect) throws Exception {
+        String key = host.toLowerCase(Locale.ROOT);
+        Waiter waiter = new Waiter(key, src, executor, connect);
+
+        int[] result = new int[1]; //0 = permitted, 1 = queued, 2 = rejected
+        this.destinations.compute(key, (k, destination) -> {
+            if (destination == null) {
+                destination = new Destination();
+            }
+            if (destination.active < this.maxConnections) {
+                destination.active++;
+            } else if (destination.queue.size() < this.queueSize) {
+                destination.queue.add(waiter);
+                result[0] = 1;
+            } else {
+                result[0] = 2;
+            }
+            return destination;
+        });
+
+        switch (result[0]) {
+            case 0:
+                return this.run(waiter);
+            case 1:
+                //the waiter may already have been taken from the queue by release() on another thread, in which case the timeout is useless
+                waiter.timeout = executor.schedule(() -> this.timeout(waiter), this.queueTimeout, TimeUnit.NANOSECONDS);
+                if (waiter.dequeued) {
+                    waiter.timeout.cancel(false);
+                }
+                return waiter.promise;
+            default:
+                return executor.newFailedFuture(new DestinationLimitException("too many connections to " + key));
+        }
+    }
+
+    /**
+     * @return the number of destinations which currently have open connections or queued requests
+     */
+    public int destinations() {
+        return this.destinations.size();
+    }
+
+    /**
+     * Opens the connection for a request which holds a permit.
+     */
+    private Future<Channel> run(Waiter waiter) throws Exception {
+        Future<Channel> future;
+        try {
+            future = waiter.src.isActive()
+                    ? waiter.connect.call()
+                    : waiter.executor.newFailedFuture(new DestinationLimitException("client disconnected while waiting for a connection to " + waiter.key));
+        } catch (Exception e) {
+            this.release(waiter.key);
+            throw e;
+        }
+
+        future.addListener((GenericFutureListener<Future<Channel>>) f -> {
+            if (!f.isSuccess()) {
+                this.release(waiter.key);
+            } else {
+                f.getNow().closeFuture().addListener((ChannelFutureListener) cf -> this.release(waiter.key));
+                if (!waiter.src.isActive()) { //the client went away while the connection was being opened, nothing is going to use it
+                    f.getNow().close();
+                }
+            }
+        });
+        return future;
+    }
+
+    private void release(String key) {
+        Waiter[] next = new Waiter[1];
+        this.destinations.computeIfPresent(key, (k, destination) -> {
+            if ((next[0] = destination.queue.poll()) == null) {
+                destination.active--;
+            } //otherwise, the permit is handed over to the next request in the queue
+            return destination.isIdle() ? null : destination;
+        });
+
+        Waiter waiter = next[0];
+        if (waiter != null) {
+            waiter.dequeued = true;
+            ScheduledFuture<?> timeout = waiter.timeout;
+            if (timeout != null) { //otherwise connect() hasn't scheduled it yet, and will cancel it itself
+                timeout.cancel(false);
+            }
+            waiter.executor.execute(() -> {
+                try {
+                    this.run(waiter).addListener((GenericFutureListener<Future<Channel>>) f -> {
+                        if (f.isSuccess()) {
+                            waiter.promise.trySuccess(f.getNow());
+                        } else {
+                            waiter.promise.tryFailure(f.cause());
+                        }
+                    });
+                } catch (Throwable t) {
+                    waiter.promise.tryFailure(t);
+                }
+            });
+        }
+    }
+
+    private void timeout(Waiter waiter) {
+        boolean[] removed = new boolean[1];
+        this.destinations.computeIfPresent(waiter.key, (k, destination) -> {
+            removed[0] = destination.queue.remove(waiter);
+            return destination.isIdle() ? null : destination;
+        });
+
+        if (removed[0]) {
+            waiter.promise.tryFailure(new DestinationLimitException("timed out while waiting for a connection to " + waiter.key));
+        }
+    }
+
+    /**
+     * The state of a single destination. Only accessed from inside of the map's atomic operations.
+     *
+     * @author DaPorkchop_
+     */
+    private static final class Destination {
+        private final ArrayDeque<Waiter> queue = new ArrayDeque<>();
+        private int active;
+
+        public boolean isIdle() {
+            return this.active == 0 && this.queue.isEmpty();
+        }
+    }
+
+    /**
+     * A request for a connection.
+     *
+     * @author DaPorkchop_
+     */
+    private static final class Waiter {
+        private final String key;
+        private final Channel src;
+        private final EventExecutor executor;
+        private final Callable<Future<Channel>> connect;
+        private final Promise<Channel> promise;
+        private volatile ScheduledFuture<?> timeout;
+        /**
+         * Set once the waiter has been taken from the queue and holds a permit.
+         */
+        private volatile boolean dequeued;
+
+        public Waiter(String key, Channel src, EventExecutor executor, Callable<Future<Channel>> connect) {
+            this.key = key;
+            this.src = src;
+            this.executor = executor;
+            this.connect = connect;
+            this.promise = executor.newPromise();
+        }
+    }
+}
@@ -32,6 +32,7 @@ import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -49,7 +50,22 @@ public class AllInterfacesRandomBalancer implements InetAddressBalancer {
     }
 
     @Override
-    public InetAddress next(boolean v4Allowed, boolean v6Allowed) throws Exception {
+    public InetAddress next(ConnectionContext context, boolean v4Allowed, boolean v6Allowed) throws Exception {
+        List<InetAddress> list = this.addresses(v4Allowed, v6Allowed);
+        return list.get(ThreadLocalRandom.current().nextInt(list.size()));
+    }
+
+    @Override
+    public InetAddress next(ConnectionContext context, boolean v4Allowed, boolean v6Allowed, @NonNull Predicate<InetAddress> filter) throws Exception {
+        List<InetAddress> list = this.addresses(v4Allowed, v6Allowed);
+        List<InetAddress> accepted = list.stream().filter(filter).collect(Collectors.toList());
+        if (!accepted.isEmpty()) {
+            list = accepted;
+        }
+        return list.get(ThreadLocalRandom.current().nextInt(list.size()));
+    }
+
+    private List<InetAddress> addresses(boolean v4Allowed, boolean v6Allowed) throws Exception {
         List<InetAddress> list = new ArrayList<>();
 
         Matcher matcher = this.matcherCache.get();
@@ -76,6 +92,6 @@ public class AllInterfacesRandomBalancer implements InetAddressBalancer {
 
         checkState(!list.isEmpty(), "No addresses found?!?!");
         //System.out.println(list.stream().map(InetAddress::toString).collect(Collectors.joining("\n")));
-        return list.get(ThreadLocalRandom.current().nextInt(list.size()));
+        return list;
     }
 }
@@ -0,0 +1,89 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.loadbalance;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import lombok.NonNull;
+import lombok.experimental.UtilityClass;
+import net.daporkchop.lib.common.function.throwing.EFunction;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Helpers for creating {@link InetAddressBalancer}s from configuration.
+ *
+ * @author DaPorkchop_
+ */
+@UtilityClass
+public class Balancers {
+    /**
+     * Creates a new {@link InetAddressBalancer} from the given JSON object.
+     * <p>
+     * The local addresses are read from the {@code "v4"} and {@code "v6"} arrays. Each entry is either an address, or an object of the form
+     * {@code {"address": "10.0.0.1", "weight": 3}} for addresses whose share of connections should differ from the default weight of 1.
+     * <p>
+     * If the {@code "sticky"} property is set to the name of a {@link StickyKey}, a {@link ConsistentHashBalancer} (with {@code "virtualNodes"} points
+     * per unit of weight) is created. Otherwise, if the {@code "strategy"} property is set to the name of a {@link SelectionStrategy} or any address
+     * has a weight, a {@link WeightedBalancer} is created (using {@link SelectionStrategy#RANDOM} by default). If neither is the case, addresses are
+     * chosen randomly by a {@link FixedRandomBalancer}.
+     */
+    public InetAddressBalancer fromJson(@NonNull JsonObject obj) {
+        JsonArray v4Array = obj.getAsJsonArray("v4");
+        JsonArray v6Array = obj.getAsJsonArray("v6");
+        Inet4Address[] v4 = addresses(v4Array).map(Inet4Address.class::cast).toArray(Inet4Address[]::new);
+        Inet6Address[] v6 = addresses(v6Array).map(Inet6Address.class::cast).toArray(Inet6Address[]::new);
+        int[] v4Weights = weights(v4Array);
+        int[] v6Weights = weights(v6Array);
+        boolean prefer6 = obj.has("prefer6") && obj.get("prefer6").getAsBoolean();
+        boolean weighted = IntStream.concat(Arrays.stream(v4Weights), Arrays.stream(v6Weights)).anyMatch(weight -> weight != 1);
+
+        if (obj.has("sticky")) {
+            return new ConsistentHashBalancer(v4, v4Weights, v6, v6Weights, prefer6,
+                    StickyKey.valueOf(obj.get("sticky").getAsString().toUpperCase(Locale.ROOT)),
+                    obj.has("virtualNodes") ? obj.get("virtualNodes").getAsInt() : ConsistentHashBalancer.DEFAULT_VIRTUAL_NODES);
+        } else if (obj.has("strategy") || weighted) {
+            return new WeightedBalancer(v4, v4Weights, v6, v6Weights, prefer6,
+                    obj.has("strategy") ? SelectionStrategy.valueOf(obj.get("strategy").getAsString().toUpperCase(Locale.ROOT)) : SelectionStrategy.RANDOM);
+        } else {
+            return new FixedRandomBalancer(v4, v6, prefer6);
+        }
+    }
+
+    private Stream<InetAddress> addresses(JsonArray array) {
+        return StreamSupport.stream(array.spliterator(), false)
+                .map(element -> element.isJsonObject() ? element.getAsJsonObject().get("address").getAsString() : element.getAsString())
+                .map((EFunction<String, InetAddress>) InetAddress::getByName);
+    }
+
+    private int[] weights(JsonArray array) {
+        return StreamSupport.stream(array.spliterator(), false)
+                .mapToInt(element -> element.isJsonObject() && element.getAsJsonObject().has("weight") ? element.getAsJsonObject().get("weight").getAsInt() : 1)
+                .toArray();
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.loadbalance;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.ToString;
+import lombok.experimental.Accessors;
+import net.daporkchop.turbotunnel.auth.User;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Describes the connection which an {@link InetAddressBalancer} is choosing a local address for.
+ *
+ * @author DaPorkchop_
+ */
+@ToString
+@Getter
+@Accessors(fluent = true)
+public final class ConnectionContext {
+    /**
+     * The address of the client which requested the connection.
+     */
+    private final InetSocketAddress clientAddress;
+    /**
+     * The local address of the connection which the client made to this server.
+     */
+    private final InetSocketAddress serverAddress;
+    /**
+     * The user which the client authenticated as, or {@code null} if the client did not authenticate.
+     */
+    private final User user;
+    /**
+     * The address which the client wants to connect to. May be unresolved.
+     */
+    private final InetSocketAddress target;
+
+    public ConnectionContext(@NonNull InetSocketAddress clientAddress, @NonNull InetSocketAddress serverAddress, User user, @NonNull InetSocketAddress target) {
+        this.clientAddress = clientAddress;
+        this.serverAddress = serverAddress;
+        this.user = user;
+        this.target = target;
+    }
+}
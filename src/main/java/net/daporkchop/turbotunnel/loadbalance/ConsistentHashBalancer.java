@@ -0,0 +1,206 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.loadbalance;
+
+import lombok.NonNull;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+
+/**
+ * Chooses local addresses using consistent hashing, so that connections with the same {@link StickyKey} always use the same local address.
+ * <p>
+ * Each address is placed on a hash ring at a number of pseudo-random points (virtual nodes), and a connection is assigned to the first point
+ * following its key's hash. Adding or removing an address therefore only remaps the keys which fall next to that address' points, rather than
+ * reshuffling every key. The number of points for an address is proportional to its weight, so it receives a proportional share of the keys.
+ *
+ * @author DaPorkchop_
+ */
+public class ConsistentHashBalancer implements InetAddressBalancer {
+    public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    /**
+     * Computes a well-distributed 64-bit hash of the given data (FNV-1a, followed by the MurmurHash3 finalizer).
+     */
+    static long hash(@NonNull byte[] data) {
+        long h = 0xCBF29CE484222325L;
+        for (byte b : data) {
+            h = (h ^ (b & 0xFF)) * 0x100000001B3L;
+        }
+        return mix(h);
+    }
+
+    private static long mix(long h) {
+        h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+        h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+
+    private static int[] ones(int length) {
+        int[] weights = new int[length];
+        Arrays.fill(weights, 1);
+        return weights;
+    }
+
+    private final Ring v4;
+    private final Ring v6;
+    private final boolean prefer6;
+    private final StickyKey key;
+
+    public ConsistentHashBalancer(@NonNull Inet4Address[] v4, @NonNull Inet6Address[] v6, boolean prefer6, @NonNull StickyKey key, int virtualNodes) {
+        this(v4, ones(v4.length), v6, ones(v6.length), prefer6, key, virtualNodes);
+    }
+
+    public ConsistentHashBalancer(@NonNull Inet4Address[] v4, @NonNull int[] v4Weights, @NonNull Inet6Address[] v6, @NonNull int[] v6Weights, boolean prefer6, @NonNull StickyKey key, int virtualNodes) {
+        checkArg(virtualNodes > 0, "virtualNodes must be positive!");
+        this.v4 = new Ring(v4, v4Weights, virtualNodes);
+        this.v6 = new Ring(v6, v6Weights, virtualNodes);
+        this.prefer6 = prefer6;
+        this.key = key;
+    }
+
+    @Override
+    public InetAddress next(@NonNull ConnectionContext context, boolean v4Allowed, boolean v6Allowed) throws Exception {
+        v4Allowed &= !this.v4.isEmpty();
+        v6Allowed &= !this.v6.isEmpty();
+
+        if (this.prefer6) {
+            if (v6Allowed) {
+                return this.v6.get(this.key.hash(context));
+            } else if (v4Allowed) {
+                return this.v4.get(this.key.hash(context));
+            }
+        } else {
+            if (v4Allowed) {
+                return this.v4.get(this.key.hash(context));
+            } else if (v6Allowed) {
+                return this.v6.get(this.key.hash(context));
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    @Override
+    public InetAddress next(@NonNull ConnectionContext context, boolean v4Allowed, boolean v6Allowed, @NonNull Predicate<InetAddress> filter) throws Exception {
+        v4Allowed &= !this.v4.isEmpty();
+        v6Allowed &= !this.v6.isEmpty();
+
+        if (this.prefer6) {
+            if (v6Allowed) {
+                return this.v6.get(this.key.hash(context), filter);
+            } else if (v4Allowed) {
+                return this.v4.get(this.key.hash(context), filter);
+            }
+        } else {
+            if (v4Allowed) {
+                return this.v4.get(this.key.hash(context), filter);
+            } else if (v6Allowed) {
+                return this.v6.get(this.key.hash(context), filter);
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    /**
+     * A hash ring.
+     *
+     * @author DaPorkchop_
+     */
+    private static final class Ring {
+        private final long[] points;
+        private final InetAddress[] addresses;
+
+        public Ring(@NonNull InetAddress[] addresses, @NonNull int[] weights, int virtualNodes) {
+            checkArg(addresses.length == weights.length, "there must be exactly one weight per address!");
+            int count = 0;
+            for (int i = 0; i < addresses.length; i++) {
+                checkArg(weights[i] > 0, "weights must be positive!");
+                if (addresses[i] != null) {
+                    count = Math.addExact(count, Math.multiplyExact(weights[i], virtualNodes));
+                }
+            }
+
+            long[] points = new long[count];
+            int[] owners = new int[count];
+            for (int i = 0, k = 0; i < addresses.length; i++) {
+                if (addresses[i] == null) {
+                    continue;
+                }
+                long base = hash(addresses[i].getAddress());
+                for (int j = 0; j < weights[i] * virtualNodes; j++, k++) {
+                    points[k] = mix(base + j * 0x9E3779B97F4A7C15L);
+                    owners[k] = i;
+                }
+            }
+
+            //sort points, keeping track of which address each one belongs to
+            int[] order = IntStream.range(0, count).boxed()
+                    .sorted(Comparator.comparingLong(i -> points[i]))
+                    .mapToInt(Integer::intValue)
+                    .toArray();
+
+            this.points = new long[count];
+            this.addresses = new InetAddress[count];
+            for (int i = 0; i < count; i++) {
+                this.points[i] = points[order[i]];
+                this.addresses[i] = addresses[owners[order[i]]];
+            }
+        }
+
+        public boolean isEmpty() {
+            return this.points.length == 0;
+        }
+
+        public InetAddress get(long hash) {
+            return this.addresses[this.indexOf(hash)];
+        }
+
+        /**
+         * Gets the first address following the given hash which is accepted by the filter, so that keys whose address is rejected are spread over the
+         * remaining addresses in the same way as if it had been removed from the ring.
+         */
+        public InetAddress get(long hash, Predicate<InetAddress> filter) {
+            int start = this.indexOf(hash);
+            for (int i = 0; i < this.points.length; i++) {
+                InetAddress address = this.addresses[(start + i) % this.points.length];
+                if (filter.test(address)) {
+                    return address;
+                }
+            }
+            return this.addresses[start];
+        }
+
+        private int indexOf(long hash) {
+            int i = Arrays.binarySearch(this.points, hash);
+            if (i < 0) {
+                i = -i - 1;
+            }
+            return i == this.points.length ? 0 : i;
+        }
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.loadbalance;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import io.netty.channel.ConnectTimeoutException;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.Accessors;
+
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+
+/**
+ * Keeps track of the health of the local addresses which outbound connections are made from.
+ * <p>
+ * The number of successful and failed connection attempts and the number of bytes relayed are counted for every local address. An address whose
+ * failure rate within the current window reaches the threshold is quarantined: balancers wrapped using {@link #wrap(InetAddressBalancer)} avoid
+ * it for as long as any other address is available. Once its backoff has expired, a single connection is allowed to use it as a probe. If the
+ * probe succeeds the address is healthy again, otherwise it is quarantined for twice as long as before.
+ * <p>
+ * Connections which are refused by the destination are not counted as failures, as a refusal proves that the local address can reach it.
+ * <p>
+ * Configured using a JSON object of the following form:
+ * <pre>
+ * {
+ *     "threshold": 0.5, //the failure rate at which an address is quarantined
+ *     "minSamples": 10, //the minimum number of connection attempts within a window before an address may be quarantined
+ *     "window": 60, //seconds, how often the failure rate is reset
+ *     "initialBackoff": 5, //seconds, how long an address is quarantined for the first time
+ *     "maxBackoff": 600, //seconds, the maximum time an address is quarantined for
+ *     "probeTimeout": 30 //seconds, how long a probe may take before another one is allowed
+ * }
+ * </pre>
+ *
+ * @author DaPorkchop_
+ */
+public final class EgressHealth implements AutoCloseable {
+    public static EgressHealth fromJson(@NonNull JsonObject obj) {
+        return new EgressHealth(
+                obj.has("threshold") ? obj.get("threshold").getAsDouble() : 0.5d,
+                obj.has("minSamples") ? obj.get("minSamples").getAsInt() : 10,
+                obj.has("window") ? obj.get("window").getAsLong() : 60L,
+                obj.has("initialBackoff") ? obj.get("initialBackoff").getAsLong() : 5L,
+                obj.has("maxBackoff") ? obj.get("maxBackoff").getAsLong() : 600L,
+                obj.has("probeTimeout") ? obj.get("probeTimeout").getAsLong() : 30L,
+                TimeUnit.SECONDS);
+    }
+
+    private final double threshold;
+    private final int minSamples;
+    private final long initialBackoff;
+    private final long maxBackoff;
+    private final long probeTimeout;
+
+    private final Map<InetAddress, Stats> addresses = new ConcurrentHashMap<>();
+    private final ScheduledFuture<?> maintenance;
+
+    public EgressHealth(double threshold, int minSamples, long window, long initialBackoff, long maxBackoff, long probeTimeout, @NonNull TimeUnit unit) {
+        checkArg(threshold > 0.0d && threshold <= 1.0d, "threshold must be in range (0, 1]!");
+        checkArg(minSamples > 0, "minSamples must be positive!");
+        checkArg(window > 0L, "window must be positive!");
+        checkArg(initialBackoff > 0L, "initialBackoff must be positive!");
+        checkArg(maxBackoff >= initialBackoff, "maxBackoff must be at least initialBackoff!");
+        checkArg(probeTimeout > 0L, "probeTimeout must be positive!");
+
+        this.threshold = threshold;
+        this.minSamples = minSamples;
+        this.initialBackoff = unit.toNanos(initialBackoff);
+        this.maxBackoff = unit.toNanos(maxBackoff);
+        this.probeTimeout = unit.toNanos(probeTimeout);
+
+        this.maintenance = GlobalEventExecutor.INSTANCE.scheduleAtFixedRate(this::maintain, window, window, unit);
+    }
+
+    /**
+     * Wraps the given {@link InetAddressBalancer} so that it avoids quarantined addresses.
+     *
+     * @param balancer the balancer to wrap
+     * @return the wrapped balancer
+     */
+    public InetAddressBalancer wrap(@NonNull InetAddressBalancer balancer) {
+        return (context, v4Allowed, v6Allowed) -> {
+            InetAddress address = balancer.next(context, v4Allowed, v6Allowed, this::isUsable);
+            this.selected(address);
+            return address;
+        };
+    }
+
+    private Stats stats(InetAddress address) {
+        return this.addresses.computeIfAbsent(address, Stats::new);
+    }
+
+    /**
+     * @return whether or not the given local address may be used by a new connection
+     */
+    public boolean isUsable(@NonNull InetAddress address) {
+        Stats stats = this.addresses.get(address);
+        return stats == null || !stats.quarantined
+               || (!stats.probing && System.nanoTime() - stats.quarantinedUntil >= 0L);
+    }
+
+    private void selected(InetAddress address) {
+        Stats stats = this.addresses.get(address);
+        if (stats != null && stats.quarantined) {
+            synchronized (stats) {
+                long now = System.nanoTime();
+                if (stats.quarantined && !stats.probing && now - stats.quarantinedUntil >= 0L) {
+                    stats.probing = true;
+                    stats.probeTime = now;
+                }
+            }
+        }
+    }
+
+    /**
+     * Records that a connection from the given local address was established.
+     */
+    public void success(@NonNull InetAddress address) {
+        Stats stats = this.stats(address);
+        stats.successes.incrementAndGet();
+        stats.windowSuccesses.incrementAndGet();
+
+        if (stats.quarantined) {
+            synchronized (stats) {
+                if (stats.quarantined) {
+                    stats.quarantined = false;
+                    stats.probing = false;
+                    stats.backoff = 0L;
+                    stats.windowSuccesses.set(0L);
+                    stats.windowFailures.set(0L);
+                    System.out.printf("Local address %s has recovered, taking it out of quarantine\n", address.getHostAddress());
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks whether or not the given exception was caused by the destination actively refusing the connection ({@code ECONNREFUSED}).
+     * <p>
+     * Other errors, such as timeouts or {@code EHOSTUNREACH} and {@code EACCES}, may well be the local address's fault. The native transports
+     * report all of these as a plain {@link ConnectException} without exposing the errno, so the message is the only way to tell them apart (NIO
+     * uses {@code "Connection refused"}, the native transports use {@code "finishConnect(..) failed: Connection refused"}).
+     */
+    private static boolean isConnectionRefused(Throwable cause) {
+        for (; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConnectException && !(cause instanceof ConnectTimeoutException)
+                && cause.getMessage() != null && cause.getMessage().contains("Connection refused")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Records that a connection from the given local address could not be established.
+     */
+    public void failure(@NonNull InetAddress address, @NonNull Throwable cause) {
+        if (isConnectionRefused(cause)) {
+            return; //the destination is reachable, but isn't accepting connections
+        }
+
+        Stats stats = this.stats(address);
+        stats.failures.incrementAndGet();
+        long failures = stats.windowFailures.incrementAndGet();
+        long samples = failures + stats.windowSuccesses.get();
+
+        if (stats.quarantined || (samples >= this.minSamples && failures >= samples * this.threshold)) {
+            synchronized (stats) {
+                if (!stats.quarantined) {
+                    stats.backoff = this.initialBackoff;
+                } else if (stats.probing) { //the probe failed
+                    stats.backoff = Math.min(stats.backoff << 1L, this.maxBackoff);
+                } else { //a connection which was started before the address was quarantined
+                    return;
+                }
+                stats.quarantined = true;
+                stats.probing = false;
+                stats.quarantinedUntil = System.nanoTime() + stats.backoff;
+                stats.quarantines.incrementAndGet();
+                System.out.printf("Quarantining local address %s for %d seconds (%d/%d connection attempts failed, last error: %s)\n",
+                        address.getHostAddress(), TimeUnit.NANOSECONDS.toSeconds(stats.backoff), failures, samples, cause);
+            }
+        }
+    }
+
+    /**
+     * Records that the given number of bytes were relayed by a connection from the given local address.
+     */
+    public void bytes(@NonNull InetAddress address, long bytes) {
+        this.stats(address).bytes.addAndGet(bytes);
+    }
+
+    /**
+     * @return the current state of every local address which has been used
+     */
+    public JsonArray toJson() {
+        long now = System.nanoTime();
+        JsonArray array = new JsonArray();
+        this.addresses.values().stream()
+                .sorted(Comparator.comparing(stats -> stats.address.getHostAddress()))
+                .forEach(stats -> {
+                    JsonObject obj = new JsonObject();
+                    synchronized (stats) {
+                        obj.addProperty("address", stats.address.getHostAddress());
+                        obj.addProperty("state", stats.probing ? "probing" : stats.quarantined ? "quarantined" : "healthy");
+                        obj.addProperty("successes", stats.successes.get());
+                        obj.addProperty("failures", stats.failures.get());
+                        obj.addProperty("bytes", stats.bytes.get());
+                        long samples = stats.windowSuccesses.get() + stats.windowFailures.get();
+                        obj.addProperty("windowFailureRate", samples == 0L ? 0.0d : stats.windowFailures.get() / (double) samples);
+                        obj.addProperty("quarantines", stats.quarantines.get());
+                        if (stats.quarantined) {
+                            obj.addProperty("backoffMillis", TimeUnit.NANOSECONDS.toMillis(stats.backoff));
+                            obj.addProperty("nextProbeMillis", Math.max(TimeUnit.NANOSECONDS.toMillis(stats.quarantinedUntil - now), 0L));
+                        }
+                    }
+                    array.add(obj);
+                });
+        return array;
+    }
+
+    /**
+     * @return a copy of the state of every local address which has been used, which may later be given to {@link #restore(Record)}
+     */
+    public List<Record> records() {
+        long now = System.nanoTime();
+        return this.addresses.values().stream()
+                .map(stats -> {
+                    synchronized (stats) {
+                        return new Record(stats.address, stats.successes.get(), stats.failures.get(), stats.bytes.get(), stats.quarantines.get(),
+                                stats.quarantined, stats.backoff, stats.quarantined ? Math.max(stats.quarantinedUntil - now, 0L) : 0L);
+                    }
+                })
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Restores the state of a local address, e.g. after a restart.
+     * <p>
+     * Counters are added to the address' current counters, and its quarantine is only restored if it isn't already known.
+     */
+    public void restore(@NonNull Record record) {
+        Stats stats = this.stats(record.address);
+        synchronized (stats) {
+            stats.successes.addAndGet(record.successes);
+            stats.failures.addAndGet(record.failures);
+            stats.bytes.addAndGet(record.bytes);
+            stats.quarantines.addAndGet(record.quarantines);
+            if (record.quarantined && !stats.quarantined) {
+                stats.quarantined = true;
+                stats.backoff = Math.min(Math.max(record.backoff, this.initialBackoff), this.maxBackoff);
+                stats.quarantinedUntil = System.nanoTime() + Math.min(record.remaining, stats.backoff);
+            }
+        }
+    }
+
+    private void maintain() {
+        long now = System.nanoTime();
+        for (Stats stats : this.addresses.values()) {
+            stats.windowSuccesses.set(0L);
+            stats.windowFailures.set(0L);
+
+            if (stats.probing) {
+                synchronized (stats) {
+                    if (stats.probing && now - stats.probeTime >= this.probeTimeout) {
+                        //the probe never reported back, allow another one
+                        stats.probing = false;
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        this.maintenance.cancel(false);
+    }
+
+    /**
+     * A copy of the state of a single local address.
+     *
+     * @author DaPorkchop_
+     */
+    @RequiredArgsConstructor
+    @Getter
+    @Accessors(fluent = true)
+    public static final class Record {
+        @NonNull
+        private final InetAddress address;
+        private final long successes;
+        private final long failures;
+        private final long bytes;
+        private final long quarantines;
+        private final boolean quarantined;
+        /**
+         * The address' current backoff, in nanoseconds.
+         */
+        private final long backoff;
+        /**
+         * The time until the address may be probed, in nanoseconds.
+         */
+        private final long remaining;
+    }
+
+    /**
+     * The state of a single local address.
+     *
+     * @author DaPorkchop_
+     */
+    private static final class Stats {
+        private final InetAddress address;
+
+        private final AtomicLong successes = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong quarantines = new AtomicLong();
+
+        private final AtomicLong windowSuccesses = new AtomicLong();
+        private final AtomicLong windowFailures = new AtomicLong();
+
+        //the following fields may only be modified while holding this object's monitor
+        private volatile boolean quarantined;
+        private volatile boolean probing;
+        private volatile long quarantinedUntil;
+        private long probeTime;
+        private long backoff;
+
+        public Stats(@NonNull InetAddress address) {
+            this.address = address;
+        }
+    }
+}
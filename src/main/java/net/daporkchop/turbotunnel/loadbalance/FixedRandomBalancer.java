@@ -28,6 +28,7 @@ import java.net.InetAddress;
 import java.util.Arrays;
 import java.util.Objects;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
 
 /**
  * @author DaPorkchop_
@@ -44,7 +45,7 @@ public class FixedRandomBalancer implements InetAddressBalancer {
     }
 
     @Override
-    public InetAddress next(boolean v4Allowed, boolean v6Allowed) throws Exception {
+    public InetAddress next(ConnectionContext context, boolean v4Allowed, boolean v6Allowed) throws Exception {
         if (this.prefer6) {
             if (v6Allowed) {
                 return this.v6[ThreadLocalRandom.current().nextInt(this.v6.length)];
@@ -60,4 +61,37 @@ public class FixedRandomBalancer implements InetAddressBalancer {
         }
         throw new IllegalStateException();
     }
+
+    @Override
+    public InetAddress next(ConnectionContext context, boolean v4Allowed, boolean v6Allowed, @NonNull Predicate<InetAddress> filter) throws Exception {
+        if (this.prefer6) {
+            if (v6Allowed) {
+                return pick(this.v6, filter);
+            } else if (v4Allowed) {
+                return pick(this.v4, filter);
+            }
+        } else {
+            if (v4Allowed) {
+                return pick(this.v4, filter);
+            } else if (v6Allowed) {
+                return pick(this.v6, filter);
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    /**
+     * Picks a random address which is accepted by the filter by scanning the array starting at a random index, or returns the address at that index
+     * if none of them are accepted.
+     */
+    private static InetAddress pick(InetAddress[] addresses, Predicate<InetAddress> filter) {
+        int start = ThreadLocalRandom.current().nextInt(addresses.length);
+        for (int i = 0; i < addresses.length; i++) {
+            InetAddress address = addresses[(start + i) % addresses.length];
+            if (filter.test(address)) {
+                return address;
+            }
+        }
+        return addresses[start];
+    }
 }
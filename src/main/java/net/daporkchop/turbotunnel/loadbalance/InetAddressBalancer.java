@@ -21,6 +21,7 @@
 package net.daporkchop.turbotunnel.loadbalance;
 
 import java.net.InetAddress;
+import java.util.function.Predicate;
 
 /**
  * Provides {@link InetAddress}es to be used for load balancing between multiple ones.
@@ -29,5 +30,23 @@ import java.net.InetAddress;
  */
 @FunctionalInterface
 public interface InetAddressBalancer {
-    InetAddress next(boolean v4Allowed, boolean v6Allowed) throws Exception;
+    /**
+     * Gets the local address which the next connection should use, which must be of one of the allowed families.
+     */
+    InetAddress next(ConnectionContext context, boolean v4Allowed, boolean v6Allowed) throws Exception;
+
+    /**
+     * Like {@link #next(ConnectionContext, boolean, boolean)}, but avoids local addresses which are not accepted by the given filter.
+     * <p>
+     * If none of the candidate addresses are accepted, an address which isn't accepted is returned rather than failing the connection.
+     * <p>
+     * The default implementation simply asks {@link #next(ConnectionContext, boolean, boolean)} a few times.
+     */
+    default InetAddress next(ConnectionContext context, boolean v4Allowed, boolean v6Allowed, Predicate<InetAddress> filter) throws Exception {
+        InetAddress address = this.next(context, v4Allowed, v6Allowed);
+        for (int i = 0; i < 8 && !filter.test(address); i++) {
+            address = this.next(context, v4Allowed, v6Allowed);
+        }
+        return address;
+    }
 }
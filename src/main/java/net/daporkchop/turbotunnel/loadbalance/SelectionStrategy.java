@@ -0,0 +1,217 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.loadbalance;
+
+import io.netty.util.concurrent.FastThreadLocal;
+import lombok.NonNull;
+
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+
+/**
+ * The different ways in which a {@link WeightedBalancer} may choose between its local addresses.
+ * <p>
+ * Each address has a positive weight, and is chosen in proportion to it. Choosing an address never allocates or takes a lock: all mutable state
+ * is kept separately for each thread, which in practice means for each event loop.
+ *
+ * @author DaPorkchop_
+ */
+public enum SelectionStrategy {
+    /**
+     * Smooth weighted round-robin, as used by nginx.
+     * <p>
+     * Every address is chosen exactly in proportion to its weight over each cycle, and the choices of an address are spread evenly over the cycle
+     * rather than being made in a burst (e.g. weights {@code 5, 1, 1} give {@code a a b a c a a} rather than {@code a a a a a b c}). Each event loop
+     * runs its own cycle.
+     */
+    ROUND_ROBIN {
+        @Override
+        public Selector newSelector(@NonNull InetAddress[] addresses, @NonNull int[] weights) {
+            return new RoundRobinSelector(addresses, weights);
+        }
+    },
+    /**
+     * Weighted random choice using the alias method, which takes constant time regardless of the number of addresses.
+     */
+    RANDOM {
+        @Override
+        public Selector newSelector(@NonNull InetAddress[] addresses, @NonNull int[] weights) {
+            return new RandomSelector(addresses, weights);
+        }
+    };
+
+    /**
+     * Creates a new {@link Selector} which chooses between the given addresses.
+     *
+     * @param addresses the addresses
+     * @param weights   the weight of each address
+     */
+    public abstract Selector newSelector(@NonNull InetAddress[] addresses, @NonNull int[] weights);
+
+    /**
+     * Chooses between a fixed set of addresses.
+     *
+     * @author DaPorkchop_
+     */
+    public static abstract class Selector {
+        protected final InetAddress[] addresses;
+
+        protected Selector(@NonNull InetAddress[] addresses, @NonNull int[] weights) {
+            checkArg(addresses.length == weights.length, "there must be exactly one weight per address!");
+            for (int weight : weights) {
+                checkArg(weight > 0, "weights must be positive!");
+            }
+            this.addresses = addresses;
+        }
+
+        public boolean isEmpty() {
+            return this.addresses.length == 0;
+        }
+
+        /**
+         * @return the index of the next address
+         */
+        protected abstract int nextIndex();
+
+        /**
+         * @return the next address
+         */
+        public InetAddress next() {
+            return this.addresses[this.nextIndex()];
+        }
+
+        /**
+         * Gets the next address which is accepted by the filter.
+         * <p>
+         * Rejected addresses are skipped by choosing again, so that their share is spread over the remaining addresses in proportion to their weights.
+         * If that doesn't find an accepted address quickly, the addresses are scanned starting at the first choice. If none of them are accepted, the
+         * first choice is returned.
+         */
+        public InetAddress next(@NonNull Predicate<InetAddress> filter) {
+            int start = this.nextIndex();
+            if (filter.test(this.addresses[start])) {
+                return this.addresses[start];
+            }
+            for (int i = 0; i < 8; i++) {
+                InetAddress address = this.addresses[this.nextIndex()];
+                if (filter.test(address)) {
+                    return address;
+                }
+            }
+            for (int i = 1; i < this.addresses.length; i++) {
+                InetAddress address = this.addresses[(start + i) % this.addresses.length];
+                if (filter.test(address)) {
+                    return address;
+                }
+            }
+            return this.addresses[start];
+        }
+    }
+
+    private static final class RoundRobinSelector extends Selector {
+        private final int[] weights;
+        private final long totalWeight;
+
+        /**
+         * The current weight of each address in this thread's cycle.
+         */
+        private final FastThreadLocal<long[]> current = new FastThreadLocal<long[]>() {
+            @Override
+            protected long[] initialValue() throws Exception {
+                return new long[RoundRobinSelector.this.weights.length];
+            }
+        };
+
+        public RoundRobinSelector(InetAddress[] addresses, int[] weights) {
+            super(addresses, weights);
+            this.weights = weights.clone();
+            this.totalWeight = Arrays.stream(weights).asLongStream().sum();
+        }
+
+        @Override
+        protected int nextIndex() {
+            long[] current = this.current.get();
+            int best = 0;
+            for (int i = 0; i < current.length; i++) {
+                if ((current[i] += this.weights[i]) > current[best]) {
+                    best = i;
+                }
+            }
+            current[best] -= this.totalWeight;
+            return best;
+        }
+    }
+
+    private static final class RandomSelector extends Selector {
+        /**
+         * The probability of choosing each index rather than its alias, scaled to {@code [0, 2^32]}.
+         */
+        private final long[] probabilities;
+        private final int[] aliases;
+
+        public RandomSelector(InetAddress[] addresses, int[] weights) {
+            super(addresses, weights);
+            int n = weights.length;
+            this.probabilities = new long[n];
+            this.aliases = new int[n];
+
+            //Vose's alias method
+            long totalWeight = Arrays.stream(weights).asLongStream().sum();
+            double[] scaled = new double[n];
+            Deque<Integer> small = new ArrayDeque<>();
+            Deque<Integer> large = new ArrayDeque<>();
+            for (int i = 0; i < n; i++) {
+                scaled[i] = weights[i] * (double) n / totalWeight;
+                (scaled[i] < 1.0d ? small : large).push(i);
+            }
+            while (!small.isEmpty() && !large.isEmpty()) {
+                int s = small.pop();
+                int l = large.pop();
+                this.probabilities[s] = (long) (scaled[s] * (1L << 32));
+                this.aliases[s] = l;
+                scaled[l] -= 1.0d - scaled[s];
+                (scaled[l] < 1.0d ? small : large).push(l);
+            }
+            while (!large.isEmpty()) { //only left over due to rounding errors
+                this.probabilities[large.peek()] = 1L << 32;
+                this.aliases[large.pop()] = 0;
+            }
+            while (!small.isEmpty()) {
+                this.probabilities[small.peek()] = 1L << 32;
+                this.aliases[small.pop()] = 0;
+            }
+        }
+
+        @Override
+        protected int nextIndex() {
+            //a single random value provides both the index (high half) and the coin flip (low half)
+            long r = ThreadLocalRandom.current().nextLong();
+            int i = (int) (((r >>> 32) * this.aliases.length) >>> 32);
+            return (r & 0xFFFFFFFFL) < this.probabilities[i] ? i : this.aliases[i];
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.loadbalance;
+
+import lombok.NonNull;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * The different properties of a connection which a {@link ConsistentHashBalancer} can use to choose a local address.
+ *
+ * @author DaPorkchop_
+ */
+public enum StickyKey {
+    /**
+     * All connections from the same client IP address use the same local address.
+     */
+    CLIENT {
+        @Override
+        public long hash(@NonNull ConnectionContext context) {
+            return hashAddress(context.clientAddress());
+        }
+    },
+    /**
+     * All connections made by the same user use the same local address. Unauthenticated connections fall back to {@link #CLIENT}.
+     */
+    USER {
+        @Override
+        public long hash(@NonNull ConnectionContext context) {
+            return context.user() != null ? hashString(context.user().name()) : CLIENT.hash(context);
+        }
+    },
+    /**
+     * All connections to the same destination host use the same local address.
+     */
+    DESTINATION {
+        @Override
+        public long hash(@NonNull ConnectionContext context) {
+            InetSocketAddress target = context.target();
+            return target.isUnresolved() ? hashString(target.getHostString().toLowerCase(Locale.ROOT)) : hashAddress(target);
+        }
+    };
+
+    private static long hashAddress(InetSocketAddress address) {
+        InetAddress inetAddress = address.getAddress();
+        return inetAddress != null ? ConsistentHashBalancer.hash(inetAddress.getAddress()) : hashString(address.getHostString());
+    }
+
+    private static long hashString(String s) {
+        return ConsistentHashBalancer.hash(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Computes the hash of the given connection's key.
+     *
+     * @param context the connection
+     * @return the hash
+     */
+    public abstract long hash(@NonNull ConnectionContext context);
+}
@@ -0,0 +1,71 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.loadbalance;
+
+import lombok.NonNull;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.function.Predicate;
+
+/**
+ * Chooses local addresses in proportion to their weights, so that addresses with more capacity are given more connections.
+ * <p>
+ * How addresses are chosen is decided by a {@link SelectionStrategy}.
+ *
+ * @author DaPorkchop_
+ */
+public class WeightedBalancer implements InetAddressBalancer {
+    /**
+     * The selector for the preferred address family, which is tried first.
+     */
+    private final SelectionStrategy.Selector primary;
+    private final SelectionStrategy.Selector secondary;
+    private final boolean prefer6;
+
+    public WeightedBalancer(@NonNull Inet4Address[] v4, @NonNull int[] v4Weights, @NonNull Inet6Address[] v6, @NonNull int[] v6Weights, boolean prefer6, @NonNull SelectionStrategy strategy) {
+        SelectionStrategy.Selector selector4 = strategy.newSelector(v4.clone(), v4Weights.clone());
+        SelectionStrategy.Selector selector6 = strategy.newSelector(v6.clone(), v6Weights.clone());
+        this.primary = prefer6 ? selector6 : selector4;
+        this.secondary = prefer6 ? selector4 : selector6;
+        this.prefer6 = prefer6;
+    }
+
+    private SelectionStrategy.Selector selector(boolean v4Allowed, boolean v6Allowed) {
+        if ((this.prefer6 ? v6Allowed : v4Allowed) && !this.primary.isEmpty()) {
+            return this.primary;
+        } else if ((this.prefer6 ? v4Allowed : v6Allowed) && !this.secondary.isEmpty()) {
+            return this.secondary;
+        }
+        throw new IllegalStateException();
+    }
+
+    @Override
+    public InetAddress next(ConnectionContext context, boolean v4Allowed, boolean v6Allowed) throws Exception {
+        return this.selector(v4Allowed, v6Allowed).next();
+    }
+
+    @Override
+    public InetAddress next(ConnectionContext context, boolean v4Allowed, boolean v6Allowed, @NonNull Predicate<InetAddress> filter) throws Exception {
+        return this.selector(v4Allowed, v6Allowed).next(filter);
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.memory;
+
+import com.google.gson.JsonObject;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufAllocatorMetric;
+import io.netty.buffer.ByteBufAllocatorMetricProvider;
+import io.netty.buffer.PooledByteBufAllocatorMetric;
+import io.netty.channel.AdaptiveRecvByteBufAllocator;
+import io.netty.channel.RecvByteBufAllocator;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+import io.netty.util.internal.PlatformDependent;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.experimental.Accessors;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+
+/**
+ * Limits the amount of memory used by tunnels.
+ * <p>
+ * Every byte which has been read from one side of a tunnel but not yet written to the other side is accounted for, both against the tunnel it
+ * belongs to and against the process as a whole. Once either limit is reached, the tunnel stops reading until enough data has been written.
+ * <p>
+ * Additionally, the sizes of receive buffers are tuned separately for the handshake phase (where only a few small messages are exchanged) and the
+ * relay phase.
+ * <p>
+ * Configured using a JSON object of the following form (all sizes are in bytes):
+ * <pre>
+ * {
+ *     "handshakeBuffer": {"min": 512, "initial": 1024, "max": 4096},
+ *     "relayBuffer": {"min": 64, "initial": 2048, "max": 65536},
+ *     "tunnelBudget": 131072, //the maximum amount of data in flight in each direction of a single tunnel
+ *     "globalBudget": 268435456, //the maximum amount of data in flight in all tunnels combined, defaults to half of the maximum direct memory
+ *     "statsInterval": 60 //seconds, how often to print allocator statistics. 0 to disable
+ * }
+ * </pre>
+ *
+ * @author DaPorkchop_
+ */
+@Accessors(fluent = true)
+public final class MemoryBudget implements AutoCloseable {
+    public static MemoryBudget fromJson(@NonNull JsonObject obj) {
+        return new MemoryBudget(
+                obj.has("handshakeBuffer") ? parseAllocator(obj.getAsJsonObject("handshakeBuffer"), 512, 1024, 4096) : new AdaptiveRecvByteBufAllocator(512, 1024, 4096),
+                obj.has("relayBuffer") ? parseAllocator(obj.getAsJsonObject("relayBuffer"), 64, 2048, 65536) : new AdaptiveRecvByteBufAllocator(),
+                obj.has("tunnelBudget") ? obj.get("tunnelBudget").getAsLong() : 131072L,
+                obj.has("globalBudget") ? obj.get("globalBudget").getAsLong() : PlatformDependent.maxDirectMemory() >> 1L,
+                obj.has("statsInterval") ? obj.get("statsInterval").getAsLong() : 0L, TimeUnit.SECONDS);
+    }
+
+    private static RecvByteBufAllocator parseAllocator(@NonNull JsonObject obj, int min, int initial, int max) {
+        return new AdaptiveRecvByteBufAllocator(
+                obj.has("min") ? obj.get("min").getAsInt() : min,
+                obj.has("initial") ? obj.get("initial").getAsInt() : initial,
+                obj.has("max") ? obj.get("max").getAsInt() : max);
+    }
+
+    /**
+     * The allocator used for receive buffers while a connection is still performing its handshake.
+     */
+    @Getter
+    private final RecvByteBufAllocator handshakeAllocator;
+    /**
+     * The allocator used for receive buffers once a tunnel has been established.
+     */
+    @Getter
+    private final RecvByteBufAllocator relayAllocator;
+    /**
+     * The maximum number of bytes which may be in flight in each direction of a single tunnel.
+     */
+    @Getter
+    private final long tunnelLimit;
+    /**
+     * The maximum number of bytes which may be in flight in all tunnels combined.
+     */
+    @Getter
+    private final long globalLimit;
+
+    private final AtomicLong used = new AtomicLong();
+    private final Queue<Runnable> paused = new ConcurrentLinkedQueue<>();
+    private final ScheduledFuture<?> statsTask;
+
+    public MemoryBudget(@NonNull RecvByteBufAllocator handshakeAllocator, @NonNull RecvByteBufAllocator relayAllocator, long tunnelLimit, long globalLimit, long statsInterval, @NonNull TimeUnit unit) {
+        checkArg(tunnelLimit > 0L, "tunnelLimit must be positive!");
+        checkArg(globalLimit > 0L, "globalLimit must be positive!");
+        checkArg(statsInterval >= 0L, "statsInterval may not be negative!");
+
+        this.handshakeAllocator = handshakeAllocator;
+        this.relayAllocator = relayAllocator;
+        this.tunnelLimit = tunnelLimit;
+        this.globalLimit = globalLimit;
+        this.statsTask = statsInterval > 0L
+                ? GlobalEventExecutor.INSTANCE.scheduleAtFixedRate(() -> System.out.println(this.stats()), statsInterval, statsInterval, unit)
+                : null;
+    }
+
+    /**
+     * @return the number of bytes currently in flight in all tunnels combined
+     */
+    public long used() {
+        return this.used.get();
+    }
+
+    /**
+     * @return whether or not tunnels may currently read more data
+     */
+    public boolean hasCapacity() {
+        return this.used.get() < this.globalLimit;
+    }
+
+    /**
+     * Accounts for data which has been read and is about to be written.
+     *
+     * @param bytes the number of bytes
+     */
+    public void acquire(long bytes) {
+        this.used.addAndGet(bytes);
+    }
+
+    /**
+     * Accounts for data which was previously acquired and has now been written (or discarded).
+     *
+     * @param bytes the number of bytes
+     */
+    public void release(long bytes) {
+        if (this.used.addAndGet(-bytes) < this.globalLimit) {
+            this.resume();
+        }
+    }
+
+    /**
+     * Runs the given task once there is capacity again.
+     *
+     * @param task the task which will resume reading
+     */
+    public void pause(@NonNull Runnable task) {
+        this.paused.add(task);
+        if (this.hasCapacity()) { //capacity may have been released after checking, but before the task was added
+            this.resume();
+        }
+    }
+
+    private void resume() {
+        for (Runnable task; this.hasCapacity() && (task = this.paused.poll()) != null; ) {
+            task.run();
+        }
+    }
+
+    /**
+     * @return a human-readable summary of the memory usage of tunnels and of the buffer allocator
+     */
+    public String stats() {
+        StringBuilder builder = new StringBuilder()
+                .append("Memory: ").append(this.used.get()).append('/').append(this.globalLimit).append(" bytes in flight, ")
+                .append(this.paused.size()).append(" reads paused");
+
+        ByteBufAllocator allocator = ByteBufAllocator.DEFAULT;
+        if (allocator instanceof ByteBufAllocatorMetricProvider) {
+            ByteBufAllocatorMetric metric = ((ByteBufAllocatorMetricProvider) allocator).metric();
+            builder.append(", allocator: ").append(metric.usedDirectMemory()).append(" bytes direct, ").append(metric.usedHeapMemory()).append(" bytes heap");
+            if (metric instanceof PooledByteBufAllocatorMetric) {
+                PooledByteBufAllocatorMetric pooled = (PooledByteBufAllocatorMetric) metric;
+                builder.append(" (").append(pooled.numDirectArenas()).append(" direct arenas, ").append(pooled.numHeapArenas()).append(" heap arenas, ")
+                        .append(pooled.numThreadLocalCaches()).append(" thread caches, chunk size ").append(pooled.chunkSize()).append(')');
+            }
+        }
+        return builder.append(", max direct memory: ").append(PlatformDependent.maxDirectMemory()).toString();
+    }
+
+    @Override
+    public void close() {
+        if (this.statsTask != null) {
+            this.statsTask.cancel(false);
+        }
+    }
+}
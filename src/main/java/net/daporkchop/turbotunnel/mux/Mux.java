@@ -0,0 +1,179 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.mux;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ConnectTimeoutException;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import lombok.NonNull;
+import lombok.experimental.UtilityClass;
+import net.daporkchop.turbotunnel.acl.DestinationDeniedException;
+import net.daporkchop.turbotunnel.protocol.socks.SOCKS5Status;
+import net.daporkchop.turbotunnel.upstream.UpstreamRequestException;
+
+import java.net.ConnectException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+import static net.daporkchop.turbotunnel.protocol.socks.SOCKS5.*;
+
+/**
+ * Constants and helpers for the protocol spoken between TurboTunnel nodes, which multiplexes many tunnels over a single TCP connection (a link).
+ * <p>
+ * Every frame starts with a 9-byte header: the frame type (1 byte), the stream ID (4 bytes) and the length of the payload (4 bytes). Frames which
+ * don't belong to a stream use stream ID 0.
+ * <p>
+ * A link is set up as follows: the server sends {@link #HELLO} containing the protocol version and a random nonce, and the client responds with
+ * {@link #AUTH} containing the HMAC-SHA256 of the nonce, keyed with the shared secret, as well as the compression algorithm chosen from those offered
+ * by the server. The client may send further frames immediately afterwards.
+ * <p>
+ * A stream is opened by the client with {@link #OPEN}, and the server replies with {@link #OPEN_OK} once it has connected to the destination, or
+ * with {@link #OPEN_FAIL}. Each side may only send as many bytes of {@link #DATA} as the other side has allowed it to: the initial window is sent in
+ * {@code OPEN} and {@code OPEN_OK}, and is extended with {@link #WINDOW} frames as the receiver consumes the data. {@link #FIN} half-closes a
+ * stream, and {@link #RST} closes it immediately.
+ * <p>
+ * Both sides must use the same {@link MuxSettings#maxFrameSize()}, as frames which are larger than the receiver's maximum are rejected.
+ *
+ * @author DaPorkchop_
+ */
+@UtilityClass
+public class Mux {
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 9;
+    public static final int NONCE_SIZE = 16;
+
+    /**
+     * Server to client. Payload: version (1 byte), nonce ({@link #NONCE_SIZE} bytes), the {@link MuxCompression} algorithms which the server is
+     * willing to use (1 byte, a bitmask indexed by {@link MuxCompression#ordinal()}).
+     */
+    public static final int HELLO = 0;
+    /**
+     * Client to server. Payload: the {@link MuxCompression} algorithm to use for the link (1 byte), HMAC-SHA256 of the nonce (32 bytes).
+     */
+    public static final int AUTH = 1;
+    /**
+     * Client to server. Payload: initial window (4 bytes), destination address, client address.
+     */
+    public static final int OPEN = 2;
+    /**
+     * Server to client. Payload: initial window (4 bytes).
+     */
+    public static final int OPEN_OK = 3;
+    /**
+     * Server to client. Payload: the {@link SOCKS5Status} which best describes the failure (1 byte).
+     */
+    public static final int OPEN_FAIL = 4;
+    /**
+     * Payload: the data.
+     */
+    public static final int DATA = 5;
+    /**
+     * Payload: the number of bytes to extend the window by (4 bytes).
+     */
+    public static final int WINDOW = 6;
+    /**
+     * The sender won't send any more data on the stream. No payload.
+     */
+    public static final int FIN = 7;
+    /**
+     * The stream is closed. No payload.
+     */
+    public static final int RST = 8;
+    /**
+     * Server to client. The server won't accept any new streams on this link, and will close it once all existing streams have been closed. No
+     * payload.
+     */
+    public static final int GOAWAY = 9;
+    /**
+     * Payload: the length of the data before compression (4 bytes), the data compressed with the algorithm negotiated for the link. May only be
+     * sent if compression is enabled on the link, and counts against the window with its uncompressed length.
+     */
+    public static final int DATA_COMPRESSED = 10;
+
+    /**
+     * Creates a decoder which splits the data received on a link into frames, each containing the header and the payload.
+     *
+     * @param settings the settings of the link
+     */
+    public LengthFieldBasedFrameDecoder frameDecoder(@NonNull MuxSettings settings) {
+        //control frames may be slightly larger than the maximum size of a data frame
+        return new LengthFieldBasedFrameDecoder(HEADER_SIZE + Math.max(settings.maxFrameSize(), 1024), 5, 4);
+    }
+
+    /**
+     * Writes an address in the same format as is used by SOCKS5 (an address type, the address and the port). Unresolved addresses are written as
+     * domain names.
+     */
+    public void writeAddress(@NonNull ByteBuf buf, @NonNull InetSocketAddress address) {
+        if (address.isUnresolved()) {
+            byte[] host = address.getHostString().getBytes(StandardCharsets.US_ASCII);
+            checkArg(host.length <= 255, "hostname too long: %s", address.getHostString());
+            buf.writeByte(TYPE_DOMAIN).writeByte(host.length).writeBytes(host);
+        } else {
+            buf.writeByte(address.getAddress() instanceof Inet4Address ? TYPE_IPV4 : TYPE_IPV6).writeBytes(address.getAddress().getAddress());
+        }
+        buf.writeShort(address.getPort());
+    }
+
+    /**
+     * Reads an address written by {@link #writeAddress(ByteBuf, InetSocketAddress)}.
+     */
+    public InetSocketAddress readAddress(@NonNull ByteBuf buf) throws UnknownHostException {
+        int type = buf.readUnsignedByte();
+        switch (type) {
+            case TYPE_IPV4:
+            case TYPE_IPV6: {
+                byte[] address = new byte[type == TYPE_IPV4 ? 4 : 16];
+                buf.readBytes(address);
+                return new InetSocketAddress(InetAddress.getByAddress(address), buf.readUnsignedShort());
+            }
+            case TYPE_DOMAIN: {
+                String host = buf.readCharSequence(buf.readUnsignedByte(), StandardCharsets.US_ASCII).toString();
+                return InetSocketAddress.createUnresolved(host, buf.readUnsignedShort());
+            }
+            default:
+                throw new IllegalArgumentException("invalid address type: " + type);
+        }
+    }
+
+    /**
+     * Chooses the {@link SOCKS5Status} to report to the client when a stream could not be opened.
+     */
+    public SOCKS5Status statusFor(@NonNull Throwable cause) {
+        if (cause instanceof DestinationDeniedException) {
+            return SOCKS5Status.CONNECTION_NOT_ALLOWED;
+        } else if (cause instanceof UpstreamRequestException) {
+            return ((UpstreamRequestException) cause).status();
+        } else if (cause instanceof ConnectTimeoutException) {
+            return SOCKS5Status.TTL_EXPIRED;
+        } else if (cause instanceof UnknownHostException) {
+            return SOCKS5Status.HOST_UNREACHABLE;
+        } else if (cause instanceof ConnectException) {
+            return SOCKS5Status.CONNECTION_REFUSED;
+        } else {
+            return SOCKS5Status.GENERAL_FAILURE;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.mux;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import io.netty.util.concurrent.Promise;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.experimental.Accessors;
+import net.daporkchop.turbotunnel.loadbalance.ConnectionContext;
+import net.daporkchop.turbotunnel.util.CloseChannelOnExceptionHandler;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps a number of links open to another TurboTunnel node, and opens streams over them.
+ * <p>
+ * New streams are opened on the link with the fewest streams. Links which are closed are replaced in the background by {@link #maintain()}, or on
+ * demand if no link is available when a stream is opened. Streams which find no usable link all wait for the same new link, rather than each
+ * opening one of their own.
+ *
+ * @author DaPorkchop_
+ */
+@Accessors(fluent = true)
+public final class MuxClient {
+    private final InetSocketAddress address;
+    @Getter
+    private final MuxSettings settings;
+    private final Bootstrap bootstrap;
+
+    private final List<MuxConnection> links = new CopyOnWriteArrayList<>();
+    private final AtomicInteger connecting = new AtomicInteger();
+    private final AtomicReference<Future<MuxConnection>> pending = new AtomicReference<>(); //a link being opened which streams can wait for
+
+    public MuxClient(@NonNull InetSocketAddress address, @NonNull MuxSettings settings, @NonNull Bootstrap bootstrap) {
+        this.address = address;
+        this.settings = settings;
+        this.bootstrap = bootstrap.clone()
+                .option(ChannelOption.AUTO_READ, true)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) throws Exception {
+                        ch.pipeline()
+                                .addLast("frames", Mux.frameDecoder(settings))
+                                .addLast("mux", new MuxConnection(settings, null))
+                                .addLast("exception", CloseChannelOnExceptionHandler.INSTANCE);
+                    }
+                });
+    }
+
+    /**
+     * @return the number of links which are currently open
+     */
+    public int links() {
+        return this.links.size();
+    }
+
+    /**
+     * Opens a stream to the given destination.
+     *
+     * @param executor the executor which the returned {@link Future} will be notified on
+     * @param context  the connection requested by the client
+     * @return a {@link Future} which will be completed with the stream's channel
+     */
+    public Future<Channel> open(@NonNull EventExecutor executor, @NonNull ConnectionContext context) {
+        Promise<Channel> promise = executor.newPromise();
+
+        MuxConnection best = null;
+        for (MuxConnection link : this.links) {
+            if (link.usable() && (best == null || link.streamCount() < best.streamCount())) {
+                best = link;
+            }
+        }
+
+        Future<MuxConnection> future = best != null ? ImmediateEventExecutor.INSTANCE.newSucceededFuture(best) : this.pendingLink();
+        future.addListener((GenericFutureListener<Future<MuxConnection>>) f -> {
+            if (!f.isSuccess()) {
+                promise.tryFailure(f.cause());
+                return;
+            }
+            f.getNow().open(context).addListener((GenericFutureListener<Future<Channel>>) of -> {
+                if (of.isSuccess()) {
+                    if (!promise.trySuccess(of.getNow())) {
+                        of.getNow().close();
+                    }
+                } else {
+                    promise.tryFailure(of.cause());
+                }
+            });
+        });
+        return promise;
+    }
+
+    /**
+     * @return a {@link Future} which will be completed with the link which is currently being opened, opening a new one if there is none
+     */
+    private Future<MuxConnection> pendingLink() {
+        Promise<MuxConnection> promise = ImmediateEventExecutor.INSTANCE.newPromise();
+        do {
+            Future<MuxConnection> pending = this.pending.get();
+            if (pending != null) {
+                return pending;
+            }
+        } while (!this.pending.compareAndSet(null, promise));
+        this.connect(promise);
+        return promise;
+    }
+
+    /**
+     * Opens a new link and adds it to the pool once it has been authenticated.
+     *
+     * @param promise the promise to complete with the link once it has been added to the pool
+     */
+    private void connect(Promise<MuxConnection> promise) {
+        this.connecting.incrementAndGet();
+        ChannelFuture future = this.bootstrap.connect(this.address);
+        Channel channel = future.channel();
+        future.addListener((ChannelFutureListener) f -> {
+            if (f.isSuccess()) {
+                MuxConnection connection = channel.pipeline().get(MuxConnection.class);
+                connection.ready().addListener((GenericFutureListener<Future<MuxConnection>>) rf -> {
+                    if (rf.isSuccess()) {
+                        this.links.add(connection);
+                        channel.closeFuture().addListener(cf -> this.links.remove(connection));
+                        promise.trySuccess(connection);
+                    } else {
+                        promise.tryFailure(rf.cause());
+                    }
+                });
+            } else {
+                promise.tryFailure(f.cause());
+            }
+        });
+        promise.addListener(f -> {
+            this.pending.compareAndSet(promise, null);
+            this.connecting.decrementAndGet();
+            if (!f.isSuccess()) {
+                channel.close();
+            }
+        });
+    }
+
+    /**
+     * Removes links which can no longer be used, and opens new ones until there are as many as configured.
+     *
+     * @return a {@link Future} which will be completed once the new links have been opened, or failed if any of them couldn't be opened
+     */
+    public Future<?> maintain() {
+        this.links.removeIf(link -> !link.usable() && link.streamCount() == 0);
+
+        Future<?> last = ImmediateEventExecutor.INSTANCE.newSucceededFuture(null);
+        for (int i = this.settings.links() - this.usableLinks() - this.connecting.get(); i > 0; i--) {
+            Promise<MuxConnection> promise = ImmediateEventExecutor.INSTANCE.newPromise();
+            this.pending.compareAndSet(null, promise); //streams which find no usable link can wait for this one
+            this.connect(promise);
+            last = promise;
+        }
+        return last;
+    }
+
+    private int usableLinks() {
+        int count = 0;
+        for (MuxConnection link : this.links) {
+            if (link.usable()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Closes all links.
+     */
+    public void close() {
+        for (MuxConnection link : this.links) {
+            link.channel().close();
+        }
+    }
+}
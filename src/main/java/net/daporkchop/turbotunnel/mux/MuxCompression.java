@@ -0,0 +1,237 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.mux;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdCompressCtx;
+import com.github.luben.zstd.ZstdDecompressCtx;
+import lombok.NonNull;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+
+import java.nio.ByteBuffer;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+
+/**
+ * The algorithms which data sent over a link between TurboTunnel nodes can be compressed with.
+ * <p>
+ * Every data frame is compressed on its own, so that it can be decompressed as soon as it has been received. Frames which don't get noticeably
+ * smaller are sent uncompressed.
+ *
+ * @author DaPorkchop_
+ */
+public enum MuxCompression {
+    NONE {
+        @Override
+        public int defaultLevel() {
+            return 0;
+        }
+
+        @Override
+        public void checkLevel(int level) {
+            //the level is ignored
+        }
+
+        @Override
+        public Codec newCodec(int level) {
+            return null;
+        }
+    },
+    /**
+     * LZ4. Level {@code 0} uses the fast compressor, levels {@code 1-17} use the high compression compressor.
+     */
+    LZ4 {
+        @Override
+        public int defaultLevel() {
+            return 0;
+        }
+
+        @Override
+        public void checkLevel(int level) {
+            checkArg(level >= 0 && level <= 17, "invalid LZ4 level: %d", level);
+        }
+
+        @Override
+        public Codec newCodec(int level) {
+            this.checkLevel(level);
+            return new Lz4Codec(level);
+        }
+    },
+    /**
+     * Zstandard, at any level supported by the native library.
+     */
+    ZSTD {
+        @Override
+        public int defaultLevel() {
+            return 3;
+        }
+
+        @Override
+        public void checkLevel(int level) {
+            checkArg(level >= Zstd.minCompressionLevel() && level <= Zstd.maxCompressionLevel(), "invalid zstd level: %d", level);
+        }
+
+        @Override
+        public Codec newCodec(int level) {
+            this.checkLevel(level);
+            return new ZstdCodec(level);
+        }
+    };
+
+    private static final MuxCompression[] VALUES = values();
+
+    /**
+     * Frames smaller than this are never compressed, as the savings would be negligible.
+     */
+    public static final int MIN_LENGTH = 128;
+
+    /**
+     * A bitmask of all algorithms which can be used, indexed by {@link #ordinal()}.
+     */
+    public static final int SUPPORTED_MASK = (1 << VALUES.length) - 1;
+
+    public static MuxCompression fromIndex(int index) {
+        checkArg(index >= 0 && index < VALUES.length, "invalid compression algorithm: %d", index);
+        return VALUES[index];
+    }
+
+    /**
+     * Checks whether or not sending a frame compressed is worthwhile, i.e. whether the compressed frame saves at least 1/8 of the original size.
+     *
+     * @param length           the original length of the frame
+     * @param compressedLength the length of the frame after compression
+     */
+    public static boolean worthwhile(int length, int compressedLength) {
+        return compressedLength <= length - (length >> 3);
+    }
+
+    /**
+     * @return the level to use if none is configured
+     */
+    public abstract int defaultLevel();
+
+    /**
+     * Checks whether or not the given compression level is supported by this algorithm.
+     *
+     * @param level the compression level
+     * @throws IllegalArgumentException if the level isn't supported
+     */
+    public abstract void checkLevel(int level);
+
+    /**
+     * Creates a new {@link Codec} for this algorithm.
+     *
+     * @param level the compression level
+     * @return the codec, or {@code null} for {@link #NONE}
+     */
+    public abstract Codec newCodec(int level);
+
+    /**
+     * Compresses and decompresses frames. Both buffers passed to each method must be direct, and an instance may only be used by one thread at a
+     * time.
+     * <p>
+     * Codecs may hold native resources, and must be closed when no longer needed.
+     */
+    public static abstract class Codec implements AutoCloseable {
+        /**
+         * @return the maximum size of the compressed form of {@code length} bytes
+         */
+        public abstract int maxCompressedLength(int length);
+
+        /**
+         * Compresses all data remaining in {@code src} into {@code dst}. The positions of the buffers are not modified.
+         *
+         * @return the number of bytes written to {@code dst}
+         */
+        public abstract int compress(@NonNull ByteBuffer src, @NonNull ByteBuffer dst);
+
+        /**
+         * Decompresses all data remaining in {@code src} into {@code dst}. The positions of the buffers are not modified.
+         *
+         * @return the number of bytes written to {@code dst}
+         */
+        public abstract int decompress(@NonNull ByteBuffer src, @NonNull ByteBuffer dst);
+
+        @Override
+        public void close() {
+            //no-op
+        }
+    }
+
+    private static final class Lz4Codec extends Codec {
+        private final LZ4Compressor compressor;
+        private final LZ4SafeDecompressor decompressor;
+
+        public Lz4Codec(int level) {
+            LZ4Factory factory = LZ4Factory.fastestInstance();
+            this.compressor = level == 0 ? factory.fastCompressor() : factory.highCompressor(level);
+            this.decompressor = factory.safeDecompressor();
+        }
+
+        @Override
+        public int maxCompressedLength(int length) {
+            return this.compressor.maxCompressedLength(length);
+        }
+
+        @Override
+        public int compress(@NonNull ByteBuffer src, @NonNull ByteBuffer dst) {
+            return this.compressor.compress(src, src.position(), src.remaining(), dst, dst.position(), dst.remaining());
+        }
+
+        @Override
+        public int decompress(@NonNull ByteBuffer src, @NonNull ByteBuffer dst) {
+            return this.decompressor.decompress(src, src.position(), src.remaining(), dst, dst.position(), dst.remaining());
+        }
+    }
+
+    private static final class ZstdCodec extends Codec {
+        //contexts keep their working memory between calls, which is much cheaper than allocating it for every frame
+        private final ZstdCompressCtx compressor = new ZstdCompressCtx();
+        private final ZstdDecompressCtx decompressor = new ZstdDecompressCtx();
+
+        public ZstdCodec(int level) {
+            this.compressor.setLevel(level);
+        }
+
+        @Override
+        public int maxCompressedLength(int length) {
+            return (int) Zstd.compressBound(length);
+        }
+
+        @Override
+        public int compress(@NonNull ByteBuffer src, @NonNull ByteBuffer dst) {
+            return this.compressor.compressDirectByteBuffer(dst, dst.position(), dst.remaining(), src, src.position(), src.remaining());
+        }
+
+        @Override
+        public int decompress(@NonNull ByteBuffer src, @NonNull ByteBuffer dst) {
+            return this.decompressor.decompressDirectByteBuffer(dst, dst.position(), dst.remaining(), src, src.position(), src.remaining());
+        }
+
+        @Override
+        public void close() {
+            this.compressor.close();
+            this.decompressor.close();
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.mux;
+
+import lombok.NonNull;
+import lombok.experimental.UtilityClass;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how much CPU time each {@link MuxCompression} algorithm costs, and how much bandwidth it saves in return.
+ * <p>
+ * Run with {@code --benchmark-compression [file...]}. Each sample is split into frames of the default maximum frame size, which are compressed and
+ * decompressed exactly like on a link: frames which don't compress well are counted with their original size. Besides the given files, a
+ * text-heavy sample (JSON API responses) and an incompressible sample (random data, as seen in TLS tunnels) are always included.
+ *
+ * @author DaPorkchop_
+ */
+@UtilityClass
+public class MuxCompressionBenchmark {
+    private static final int FRAME_SIZE = 16384;
+    private static final int SAMPLE_SIZE = 8 << 20;
+    private static final long DURATION = TimeUnit.SECONDS.toNanos(2L);
+
+    private static final Object[][] CONFIGURATIONS = {
+            { MuxCompression.LZ4, 0 },
+            { MuxCompression.LZ4, 9 },
+            { MuxCompression.ZSTD, 1 },
+            { MuxCompression.ZSTD, 3 },
+            { MuxCompression.ZSTD, 9 },
+    };
+
+    public void run(@NonNull String... files) throws IOException {
+        List<String> names = new ArrayList<>();
+        List<byte[]> samples = new ArrayList<>();
+        names.add("json");
+        samples.add(json());
+        names.add("random");
+        samples.add(random());
+        for (String file : files) {
+            names.add(Paths.get(file).getFileName().toString());
+            samples.add(Files.readAllBytes(Paths.get(file)));
+        }
+
+        System.out.printf("%-16s %-6s %5s %8s %12s %12s %16s\n", "sample", "algo", "level", "ratio", "compress", "decompress", "saved per core");
+        for (int i = 0; i < samples.size(); i++) {
+            for (Object[] configuration : CONFIGURATIONS) {
+                try (MuxCompression.Codec codec = ((MuxCompression) configuration[0]).newCodec((Integer) configuration[1])) {
+                    Result result = benchmark(codec, samples.get(i));
+                    System.out.printf("%-16s %-6s %5d %7.1f%% %7.1f MB/s %12s %11.1f MB/s\n",
+                            names.get(i), configuration[0], configuration[1], result.ratio * 100.0d, result.compressSpeed,
+                            result.decompressSpeed >= 0.0d ? String.format("%.1f MB/s", result.decompressSpeed) : "-",
+                            (1.0d - result.ratio) * result.compressSpeed);
+                }
+            }
+        }
+        System.out.println("ratio: size on the link relative to the original");
+        System.out.println("decompress: speed at which the frames that were sent compressed are decompressed");
+        System.out.println("saved per core: bandwidth saved by each core spent compressing");
+        System.out.println("note: on a link, streams which don't compress well are only probed occasionally, so they cost far less CPU than shown");
+    }
+
+    private Result benchmark(MuxCompression.Codec codec, byte[] sample) {
+        int frames = (sample.length + FRAME_SIZE - 1) / FRAME_SIZE;
+        ByteBuffer src = ByteBuffer.allocateDirect(sample.length);
+        src.put(sample).clear();
+        ByteBuffer compressed = ByteBuffer.allocateDirect(frames * codec.maxCompressedLength(FRAME_SIZE));
+        ByteBuffer dst = ByteBuffer.allocateDirect(FRAME_SIZE);
+        int[] offsets = new int[frames];
+        int[] lengths = new int[frames];
+
+        long totalLength = 0L;
+        long decompressedLength = 0L;
+        long start = System.nanoTime();
+        long rounds = 0L;
+        do {
+            totalLength = 0L;
+            decompressedLength = 0L;
+            int offset = 0;
+            for (int frame = 0; frame < frames; frame++) {
+                int length = Math.min(FRAME_SIZE, sample.length - frame * FRAME_SIZE);
+                src.limit(frame * FRAME_SIZE + length).position(frame * FRAME_SIZE);
+                compressed.limit(offset + codec.maxCompressedLength(length)).position(offset);
+                int compressedLength = codec.compress(src, compressed);
+                if (MuxCompression.worthwhile(length, compressedLength)) {
+                    offsets[frame] = offset;
+                    lengths[frame] = compressedLength;
+                    offset += compressedLength;
+                    totalLength += compressedLength;
+                    decompressedLength += length;
+                } else { //sent as-is
+                    lengths[frame] = -1;
+                    totalLength += length;
+                }
+            }
+            rounds++;
+        } while (System.nanoTime() - start < DURATION);
+        double compressSpeed = megabytesPerSecond(sample.length * rounds, System.nanoTime() - start);
+        if (decompressedLength == 0L) { //nothing to decompress
+            return new Result((double) totalLength / sample.length, compressSpeed, -1.0d);
+        }
+
+        start = System.nanoTime();
+        rounds = 0L;
+        do {
+            for (int frame = 0; frame < frames; frame++) {
+                if (lengths[frame] >= 0) {
+                    compressed.limit(offsets[frame] + lengths[frame]).position(offsets[frame]);
+                    dst.clear();
+                    codec.decompress(compressed, dst);
+                }
+            }
+            rounds++;
+        } while (System.nanoTime() - start < DURATION);
+        double decompressSpeed = megabytesPerSecond(decompressedLength * rounds, System.nanoTime() - start);
+
+        return new Result((double) totalLength / sample.length, compressSpeed, decompressSpeed);
+    }
+
+    private double megabytesPerSecond(long bytes, long nanos) {
+        return bytes / (double) (1 << 20) / (nanos / (double) TimeUnit.SECONDS.toNanos(1L));
+    }
+
+    private byte[] json() {
+        Random random = new Random(0L);
+        String[] words = { "id", "name", "status", "active", "created", "updated", "owner", "region", "eu-west-1", "us-east-2", "tags", "value" };
+        StringBuilder builder = new StringBuilder(SAMPLE_SIZE + 1024);
+        while (builder.length() < SAMPLE_SIZE) {
+            builder.append("{\"id\":").append(random.nextInt(1000000)).append(",\"items\":[");
+            for (int i = random.nextInt(8); i >= 0; i--) {
+                builder.append("{\"").append(words[random.nextInt(words.length)]).append("\":\"").append(words[random.nextInt(words.length)])
+                        .append("\",\"count\":").append(random.nextInt(100)).append(",\"score\":").append(random.nextDouble()).append("},");
+            }
+            builder.append("{}]}\n");
+        }
+        return builder.substring(0, SAMPLE_SIZE).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private byte[] random() {
+        byte[] data = new byte[SAMPLE_SIZE];
+        new Random(0L).nextBytes(data);
+        return data;
+    }
+
+    private static final class Result {
+        private final double ratio;
+        private final double compressSpeed;
+        private final double decompressSpeed;
+
+        public Result(double ratio, double compressSpeed, double decompressSpeed) {
+            this.ratio = ratio;
+            this.compressSpeed = compressSpeed;
+            this.decompressSpeed = decompressSpeed;
+        }
+    }
+}
@@ -0,0 +1,565 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.mux;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.Promise;
+import lombok.NonNull;
+import net.daporkchop.turbotunnel.acl.DestinationDeniedException;
+import net.daporkchop.turbotunnel.capture.TrafficCapture;
+import net.daporkchop.turbotunnel.loadbalance.ConnectionContext;
+import net.daporkchop.turbotunnel.protocol.ProxyServer;
+import net.daporkchop.turbotunnel.protocol.socks.SOCKS5Status;
+import net.daporkchop.turbotunnel.upstream.UpstreamRequestException;
+import net.daporkchop.turbotunnel.util.ProxyCommon;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+import static net.daporkchop.turbotunnel.mux.Mux.*;
+
+/**
+ * Handles a single link between TurboTunnel nodes, on either side.
+ * <p>
+ * On the client side, streams are opened with {@link #open(ConnectionContext)}. On the server side, a connection to the destination of each
+ * stream is opened in exactly the same way as for any other {@link ProxyServer}, and data is then relayed between the stream and that connection.
+ * <p>
+ * If compression was negotiated, data frames are compressed using a single direct buffer which is kept for the lifetime of the link, and only
+ * the compressed bytes are copied into a buffer of their own.
+ * <p>
+ * All state is only accessed from the link's event loop.
+ *
+ * @author DaPorkchop_
+ */
+final class MuxConnection extends ChannelInboundHandlerAdapter {
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    /**
+     * Nonces must be unpredictable, otherwise a previously captured AUTH frame could be replayed.
+     */
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final MuxSettings settings;
+    /**
+     * The server which accepted this link, or {@code null} on the client side.
+     */
+    private final MuxServer server;
+
+    private final IntObjectMap<MuxStreamChannel> streams = new IntObjectHashMap<>();
+    private volatile int streamCount;
+    private int nextStreamId = 1;
+
+    private Channel channel;
+    /**
+     * Completed once the link has been authenticated (client side only).
+     */
+    private Promise<MuxConnection> ready;
+    private byte[] nonce;
+    private boolean authenticated;
+
+    private MuxCompression.Codec codec;
+    /**
+     * Direct memory which data is compressed into (and copied into first if it isn't direct), or {@code null} if none has been needed yet.
+     */
+    private ByteBuf scratch;
+    private volatile boolean draining;
+
+    MuxConnection(@NonNull MuxSettings settings, MuxServer server) {
+        this.settings = settings;
+        this.server = server;
+    }
+
+    Channel channel() {
+        return this.channel;
+    }
+
+    MuxSettings settings() {
+        return this.settings;
+    }
+
+    /**
+     * @return the number of streams which are currently open or being opened on this link
+     */
+    int streamCount() {
+        return this.streamCount;
+    }
+
+    /**
+     * @return whether or not new streams may be opened on this link
+     */
+    boolean usable() {
+        return this.channel.isActive() && !this.draining;
+    }
+
+    /**
+     * @return a {@link Future} which will be completed once the link has been authenticated (client side only)
+     */
+    Future<MuxConnection> ready() {
+        return this.ready;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        this.channel = ctx.channel();
+        if (this.server == null) {
+            this.ready = ctx.executor().newPromise();
+        } else if (this.channel.isActive()) {
+            this.sendHello();
+        }
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        if (this.server != null && this.nonce == null) {
+            this.sendHello();
+        }
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (this.ready != null) {
+            this.ready.tryFailure(new ClosedChannelException());
+        }
+        for (MuxStreamChannel stream : new ArrayList<>(this.streams.values())) {
+            if (stream.openPromise != null) {
+                stream.openPromise.tryFailure(new ClosedChannelException());
+            }
+            stream.abort();
+        }
+
+        if (this.codec != null) {
+            this.codec.close();
+            this.codec = null;
+        }
+        if (this.scratch != null) {
+            this.scratch.release();
+            this.scratch = null;
+        }
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        ByteBuf frame = (ByteBuf) msg;
+        try {
+            int type = frame.readUnsignedByte();
+            int streamId = frame.readInt();
+            frame.skipBytes(4); //length, already checked by the frame decoder
+
+            if (this.server != null && !this.authenticated) {
+                checkState(type == AUTH, "expected AUTH, got %d", type);
+                this.authenticate(frame);
+                return;
+            }
+
+            switch (type) {
+                case HELLO:
+                    checkState(this.server == null, "unexpected HELLO");
+                    this.handleHello(frame);
+                    break;
+                case OPEN:
+                    checkState(this.server != null, "unexpected OPEN");
+                    this.handleOpen(streamId, frame);
+                    break;
+                case OPEN_OK:
+                case OPEN_FAIL: {
+                    MuxStreamChannel stream = this.streams.get(streamId);
+                    checkState(stream != null && stream.openPromise != null, "unexpected reply for stream %d", streamId);
+                    this.handleReply(stream, type == OPEN_OK, frame);
+                    break;
+                }
+                case DATA: {
+                    MuxStreamChannel stream = this.streams.get(streamId);
+                    if (stream != null) { //the stream may already have been closed locally
+                        stream.onData(frame.retain());
+                    }
+                    break;
+                }
+                case DATA_COMPRESSED: {
+                    checkState(this.codec != null, "compression is disabled");
+                    int length = frame.readInt();
+                    checkState(length > 0 && length <= this.settings.maxFrameSize(), "invalid uncompressed length: %d", length);
+                    MuxStreamChannel stream = this.streams.get(streamId);
+                    if (stream != null) {
+                        stream.onData(this.decompress(frame, length));
+                    }
+                    break;
+                }
+                case WINDOW: {
+                    MuxStreamChannel stream = this.streams.get(streamId);
+                    if (stream != null) {
+                        stream.onWindow(frame.readInt());
+                    }
+                    break;
+                }
+                case FIN: {
+                    MuxStreamChannel stream = this.streams.get(streamId);
+                    if (stream != null) {
+                        stream.onFin();
+                    }
+                    break;
+                }
+                case RST: {
+                    MuxStreamChannel stream = this.streams.get(streamId);
+                    if (stream != null) {
+                        if (stream.openPromise != null) {
+                            stream.openPromise.tryFailure(new ClosedChannelException());
+                        }
+                        stream.abort();
+                    }
+                    break;
+                }
+                case GOAWAY:
+                    checkState(this.server == null, "unexpected GOAWAY");
+                    this.draining = true;
+                    break;
+                default:
+                    throw new IllegalStateException("invalid frame type: " + type);
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    private void sendHello() {
+        this.nonce = new byte[NONCE_SIZE];
+        RANDOM.nextBytes(this.nonce);
+
+        ByteBuf buf = this.header(HELLO, 0, 1 + NONCE_SIZE + 1);
+        buf.writeByte(VERSION).writeBytes(this.nonce).writeByte(this.compressionMask());
+        this.channel.writeAndFlush(buf);
+    }
+
+    private void handleHello(ByteBuf payload) throws GeneralSecurityException {
+        checkState(!this.ready.isDone(), "duplicate HELLO");
+        int version = payload.readUnsignedByte();
+        checkState(version == VERSION, "unsupported protocol version: %d", version);
+        byte[] nonce = new byte[NONCE_SIZE];
+        payload.readBytes(nonce);
+        int mask = payload.readUnsignedByte();
+        MuxCompression compression = (mask & (1 << this.settings.compression().ordinal())) != 0 ? this.settings.compression() : MuxCompression.NONE;
+
+        byte[] mac = this.mac(nonce);
+        ByteBuf buf = this.header(AUTH, 0, 1 + mac.length);
+        buf.writeByte(compression.ordinal()).writeBytes(mac);
+        this.channel.writeAndFlush(buf);
+        this.codec = this.settings.newCodec(compression);
+        this.ready.trySuccess(this);
+    }
+
+    private void authenticate(ByteBuf payload) throws GeneralSecurityException {
+        checkState(this.nonce != null, "AUTH sent before HELLO");
+        MuxCompression compression = MuxCompression.fromIndex(payload.readUnsignedByte());
+        checkState(compression == MuxCompression.NONE || (this.compressionMask() & (1 << compression.ordinal())) != 0, "compression not allowed: %s", compression);
+        byte[] mac = new byte[payload.readableBytes()];
+        payload.readBytes(mac);
+        if (!MessageDigest.isEqual(mac, this.mac(this.nonce))) {
+            System.out.printf("Link from %s failed to authenticate\n", ProxyServer.clientAddress(this.channel));
+            this.channel.close();
+            return;
+        }
+        this.authenticated = true;
+        this.codec = this.settings.newCodec(compression);
+        System.out.printf("Link from %s authenticated (compression: %s)\n", ProxyServer.clientAddress(this.channel), compression);
+    }
+
+    /**
+     * @return the {@link MuxCompression} algorithms which the server is willing to use
+     */
+    private int compressionMask() {
+        return this.settings.compression() != MuxCompression.NONE ? MuxCompression.SUPPORTED_MASK : 0;
+    }
+
+    private byte[] mac(byte[] nonce) throws GeneralSecurityException {
+        if (this.settings.secret() == null) {
+            return new byte[0];
+        }
+        Mac mac = Mac.getInstance(MAC_ALGORITHM);
+        mac.init(new SecretKeySpec(this.settings.secret(), MAC_ALGORITHM));
+        return mac.doFinal(nonce);
+    }
+
+    /**
+     * Opens a new stream on this link (client side only).
+     *
+     * @param context the connection requested by the client
+     * @return a {@link Future} which will be completed with the stream once the server has connected to the destination
+     */
+    Future<Channel> open(@NonNull ConnectionContext context) {
+        Promise<Channel> promise = this.channel.eventLoop().newPromise();
+        this.channel.eventLoop().execute(() -> {
+            if (!this.usable() || this.nextStreamId < 0) { //stream IDs have been exhausted, a new link has to be used
+                this.draining = true;
+                promise.tryFailure(new ClosedChannelException());
+                return;
+            }
+
+            int streamId = this.nextStreamId;
+            this.nextStreamId += 2;
+            MuxStreamChannel stream = new MuxStreamChannel(this, streamId, this.settings.window());
+            stream.openPromise = promise;
+            this.addStream(stream);
+
+            ByteBuf buf = this.channel.alloc().ioBuffer();
+            buf.writeByte(OPEN).writeInt(streamId).writeInt(0);
+            buf.writeInt(this.settings.window());
+            writeAddress(buf, context.target());
+            writeAddress(buf, context.clientAddress());
+            buf.setInt(5, buf.readableBytes() - HEADER_SIZE);
+            this.channel.writeAndFlush(buf);
+        });
+        return promise;
+    }
+
+    private void handleReply(MuxStreamChannel stream, boolean success, ByteBuf payload) {
+        Promise<Channel> promise = stream.openPromise;
+        stream.openPromise = null;
+        if (success) {
+            stream.activate(payload.readInt());
+            if (!promise.trySuccess(stream)) { //the request was cancelled
+                stream.close();
+            }
+        } else {
+            SOCKS5Status status = SOCKS5Status.values()[payload.readUnsignedByte()];
+            stream.abort();
+            promise.tryFailure(new UpstreamRequestException("stream was refused: " + status, status));
+        }
+    }
+
+    private void handleOpen(int streamId, ByteBuf payload) throws Exception {
+        checkState((streamId & 1) != 0 && !this.streams.containsKey(streamId), "invalid stream ID: %d", streamId);
+        int window = payload.readInt();
+        InetSocketAddress target = readAddress(payload);
+        InetSocketAddress clientAddress = payload.isReadable() ? readAddress(payload) : null;
+        if (clientAddress == null || clientAddress.isUnresolved()) {
+            clientAddress = ProxyServer.clientAddress(this.channel);
+        }
+
+        MuxStreamChannel stream = new MuxStreamChannel(this, streamId, this.settings.window());
+        if (this.draining || !this.server.lifecycle().accept(stream)) {
+            this.writeOpenFail(streamId, SOCKS5Status.GENERAL_FAILURE);
+            return;
+        }
+        this.addStream(stream);
+        TrafficCapture capture = this.server.options().capture();
+        if (capture != null) {
+            capture.accepted(stream);
+        }
+        //register the stream immediately, so that it is closed (and removed from the lifecycle) even if the connection fails
+        stream.activate(window);
+
+        ConnectionContext context = new ConnectionContext(clientAddress, (InetSocketAddress) this.channel.localAddress(), null, target);
+        Future<Channel> future;
+        try {
+            future = ProxyCommon.openConnectionTo(this.channel, this.server, context, this.server.balancer());
+        } catch (Exception e) {
+            future = this.channel.eventLoop().newFailedFuture(e);
+        }
+
+        InetSocketAddress finalClientAddress = clientAddress;
+        future.addListener((GenericFutureListener<Future<Channel>>) f -> {
+            if (!f.isSuccess()) {
+                if (f.cause() instanceof DestinationDeniedException) {
+                    System.out.printf("Denied stream from %s: %s\n", finalClientAddress, target);
+                } else {
+                    System.out.printf("Failed to open stream from %s to %s: %s\n", finalClientAddress, target, f.cause());
+                }
+                if (stream.isOpen()) {
+                    this.writeOpenFail(streamId, statusFor(f.cause()));
+                    stream.abort();
+                }
+                return;
+            }
+
+            Channel channel = f.getNow();
+            if (!stream.isOpen()) { //the stream was reset or the link was closed in the meantime
+                channel.close();
+                return;
+            }
+
+            ByteBuf buf = this.header(OPEN_OK, streamId, 4);
+            buf.writeInt(this.settings.window());
+            this.channel.writeAndFlush(buf);
+            ProxyCommon.relay(stream, channel, this.server, context);
+
+            System.out.printf("Stream from %s: %s (handled with local address: %s)\n", finalClientAddress, target, channel.localAddress());
+        });
+    }
+
+    /**
+     * Stops accepting new streams, and closes the link as soon as all existing streams have been closed (server side only).
+     */
+    void drain() {
+        this.channel.eventLoop().execute(() -> {
+            if (this.draining || !this.channel.isActive()) {
+                return;
+            }
+            this.draining = true;
+            if (this.streams.isEmpty()) {
+                this.channel.close();
+            } else {
+                this.channel.writeAndFlush(this.header(GOAWAY, 0, 0));
+            }
+        });
+    }
+
+    private void addStream(MuxStreamChannel stream) {
+        this.streams.put(stream.streamId(), stream);
+        this.streamCount = this.streams.size();
+    }
+
+    /**
+     * Called when a stream has been closed.
+     *
+     * @param stream the stream
+     */
+    void streamClosed(MuxStreamChannel stream) {
+        if (this.streams.remove(stream.streamId()) == null) {
+            return;
+        }
+        this.streamCount = this.streams.size();
+
+        if (this.draining && this.server != null && this.streams.isEmpty()) {
+            this.channel.close();
+        }
+    }
+
+    private ByteBuf header(int type, int streamId, int length) {
+        return this.channel.alloc().ioBuffer(HEADER_SIZE + length).writeByte(type).writeInt(streamId).writeInt(length);
+    }
+
+    /**
+     * Writes a data frame, compressing it if possible, without flushing.
+     */
+    void writeData(MuxStreamChannel stream, ByteBuf data) {
+        int length = data.readableBytes();
+        if (this.codec != null && length >= MuxCompression.MIN_LENGTH && stream.tryCompress()) {
+            ByteBuf compressed = this.compress(data);
+            stream.compressed(compressed != null);
+            if (compressed != null) {
+                data.release();
+                this.channel.write(this.header(DATA_COMPRESSED, stream.streamId(), 4 + compressed.readableBytes()).writeInt(length));
+                this.channel.write(compressed);
+                return;
+            }
+        }
+
+        this.channel.write(this.header(DATA, stream.streamId(), length));
+        this.channel.write(data);
+    }
+
+    /**
+     * @return the compressed data, or {@code null} if compressing it isn't worthwhile
+     */
+    private ByteBuf compress(ByteBuf data) {
+        int length = data.readableBytes();
+        int maxLength = this.codec.maxCompressedLength(length);
+        ByteBuf scratch = this.scratch(maxLength + length);
+
+        ByteBuffer src;
+        if (data.isDirect() && data.nioBufferCount() == 1) {
+            src = data.nioBuffer();
+        } else { //the codecs only work on direct memory
+            scratch.setBytes(maxLength, data, data.readerIndex(), length);
+            src = scratch.nioBuffer(maxLength, length);
+        }
+
+        int compressedLength = this.codec.compress(src, scratch.nioBuffer(0, maxLength));
+        if (!MuxCompression.worthwhile(length, compressedLength)) {
+            return null;
+        }
+        return this.channel.alloc().ioBuffer(compressedLength).writeBytes(scratch, 0, compressedLength);
+    }
+
+    private ByteBuf decompress(ByteBuf payload, int length) {
+        int compressedLength = payload.readableBytes();
+        ByteBuffer src;
+        if (payload.isDirect() && payload.nioBufferCount() == 1) {
+            src = payload.nioBuffer();
+        } else {
+            ByteBuf scratch = this.scratch(compressedLength);
+            scratch.setBytes(0, payload, payload.readerIndex(), compressedLength);
+            src = scratch.nioBuffer(0, compressedLength);
+        }
+
+        ByteBuf data = this.channel.alloc().directBuffer(length);
+        try {
+            int decompressedLength = this.codec.decompress(src, data.nioBuffer(0, length));
+            checkState(decompressedLength == length, "expected %d bytes, decompressed %d", length, decompressedLength);
+            return data.writerIndex(length);
+        } catch (RuntimeException e) {
+            data.release();
+            throw e;
+        }
+    }
+
+    private ByteBuf scratch(int capacity) {
+        if (this.scratch == null || this.scratch.capacity() < capacity) {
+            if (this.scratch != null) {
+                this.scratch.release();
+            }
+            this.scratch = this.channel.alloc().directBuffer(capacity);
+        }
+        return this.scratch;
+    }
+
+    void writeWindow(int streamId, int increment) {
+        this.channel.writeAndFlush(this.header(WINDOW, streamId, 4).writeInt(increment));
+    }
+
+    /**
+     * Writes a FIN frame, without flushing.
+     */
+    void writeFin(int streamId) {
+        if (this.channel.isActive()) {
+            this.channel.write(this.header(FIN, streamId, 0));
+        }
+    }
+
+    void writeReset(int streamId) {
+        if (this.channel.isActive()) {
+            this.channel.writeAndFlush(this.header(RST, streamId, 0));
+        }
+    }
+
+    private void writeOpenFail(int streamId, SOCKS5Status status) {
+        this.channel.writeAndFlush(this.header(OPEN_FAIL, streamId, 1).writeByte(status.ordinal()));
+    }
+
+    void flush() {
+        this.channel.flush();
+    }
+}
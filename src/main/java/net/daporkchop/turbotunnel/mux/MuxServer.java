@@ -0,0 +1,75 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.mux;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import lombok.NonNull;
+import net.daporkchop.turbotunnel.Lifecycle;
+import net.daporkchop.turbotunnel.loadbalance.InetAddressBalancer;
+import net.daporkchop.turbotunnel.protocol.ProxyServer;
+import net.daporkchop.turbotunnel.protocol.ServerOptions;
+import net.daporkchop.turbotunnel.transport.TransportPool;
+import net.daporkchop.turbotunnel.util.CloseChannelOnExceptionHandler;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+
+/**
+ * Accepts links from other TurboTunnel nodes, which use this node as their egress for the streams multiplexed over them.
+ * <p>
+ * Once the server is closed, every link is told not to open any new streams, and is closed as soon as its last stream has been closed.
+ *
+ * @author DaPorkchop_
+ */
+public class MuxServer extends ProxyServer {
+    /**
+     * Checks the options before the server is bound.
+     */
+    private static ServerOptions validate(ServerOptions options) {
+        checkArg(options.mux() != null, "mux settings must be set!");
+        checkArg(options.mux().secret() != null || options.mux().insecure(), "mux server requires a secret (or \"insecure\": true to accept links from anyone)!");
+        return options;
+    }
+
+    public MuxServer(@NonNull TransportPool loopGroupPool, @NonNull InetAddressBalancer balancer, @NonNull Lifecycle lifecycle, @NonNull ServerOptions options) {
+        super(loopGroupPool, balancer, lifecycle, validate(options));
+        if (options.mux().secret() == null) {
+            System.err.printf("Mux server on port %d accepts links from anyone, as no secret is set!\n", options.port());
+        }
+    }
+
+    @Override
+    protected void initClientChannel(Channel ch) throws Exception {
+        //links are read from continuously, the amount of data buffered for each stream is limited by its window instead
+        ch.config().setAutoRead(true);
+        ch.config().setRecvByteBufAllocator(this.options.memory().relayAllocator());
+
+        MuxConnection connection = new MuxConnection(this.options.mux(), this);
+        ch.pipeline()
+                .addLast("frames", Mux.frameDecoder(this.options.mux()))
+                .addLast("mux", connection)
+                .addLast("exception", CloseChannelOnExceptionHandler.INSTANCE);
+
+        ChannelFutureListener drain = f -> connection.drain();
+        this.serverChannel.closeFuture().addListener(drain);
+        ch.closeFuture().addListener(f -> this.serverChannel.closeFuture().removeListener(drain));
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.mux;
+
+import com.google.gson.JsonObject;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.ToString;
+import lombok.experimental.Accessors;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+
+/**
+ * Settings for the links between TurboTunnel nodes, shared by both sides.
+ * <p>
+ * Read from a JSON object of the following form:
+ * <pre>
+ * {
+ *     "secret": "...", //the shared secret which the client has to prove that it knows. required by the server unless "insecure" is set
+ *     "insecure": false, //server only, whether to accept links from anyone if no secret is set. this makes the server an open relay!
+ *     "window": 262144, //the number of bytes which may be in flight on a single stream in each direction
+ *     "maxFrameSize": 16384, //the maximum number of bytes sent in a single data frame
+ *     "links": 2, //client only, the number of links to keep open to the server
+ *     "compression": "lz4", //optional, "none", "lz4" or "zstd"
+ *     "compressionLevel": 0 //optional, defaults to 0 for lz4 and 3 for zstd
+ * }
+ * </pre>
+ * Compression is negotiated when a link is set up: the client asks for its configured algorithm, and it is used in both directions unless the
+ * server has compression disabled. If the server is configured with a different algorithm, it uses that algorithm's default level.
+ *
+ * @author DaPorkchop_
+ */
+@ToString(exclude = "secret")
+@Getter
+@Accessors(fluent = true)
+public final class MuxSettings {
+    public static MuxSettings fromJson(@NonNull JsonObject obj) {
+        MuxCompression compression = obj.has("compression") ? MuxCompression.valueOf(obj.get("compression").getAsString().toUpperCase(Locale.ROOT)) : MuxCompression.NONE;
+        return new MuxSettings(
+                obj.has("secret") ? obj.get("secret").getAsString().getBytes(StandardCharsets.UTF_8) : null,
+                obj.has("insecure") && obj.get("insecure").getAsBoolean(),
+                obj.has("window") ? obj.get("window").getAsInt() : 262144,
+                obj.has("maxFrameSize") ? obj.get("maxFrameSize").getAsInt() : 16384,
+                obj.has("links") ? obj.get("links").getAsInt() : 2,
+                compression,
+                obj.has("compressionLevel") ? obj.get("compressionLevel").getAsInt() : compression.defaultLevel());
+    }
+
+    /**
+     * The shared secret, or {@code null} if links aren't authenticated.
+     */
+    private final byte[] secret;
+    /**
+     * Whether the server may accept unauthenticated links if no secret is set.
+     */
+    private final boolean insecure;
+    private final int window;
+    private final int maxFrameSize;
+    private final int links;
+    private final MuxCompression compression;
+    private final int compressionLevel;
+
+    public MuxSettings(byte[] secret, boolean insecure, int window, int maxFrameSize, int links, @NonNull MuxCompression compression, int compressionLevel) {
+        checkArg(window > 0, "window must be positive!");
+        checkArg(maxFrameSize > 0, "maxFrameSize must be positive!");
+        checkArg(links > 0, "links must be positive!");
+        compression.checkLevel(compressionLevel);
+        this.secret = secret;
+        this.insecure = insecure;
+        this.window = window;
+        this.maxFrameSize = maxFrameSize;
+        this.links = links;
+        this.compression = compression;
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * Creates a {@link MuxCompression.Codec} for the algorithm which was negotiated for a link.
+     *
+     * @param compression the algorithm
+     * @return the codec, or {@code null} if data won't be compressed
+     */
+    public MuxCompression.Codec newCodec(@NonNull MuxCompression compression) {
+        return compression.newCodec(compression == this.compression ? this.compressionLevel : compression.defaultLevel());
+    }
+}
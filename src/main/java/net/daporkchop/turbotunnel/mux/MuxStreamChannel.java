@@ -0,0 +1,413 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.mux;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.AbstractChannel;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelConfig;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelMetadata;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.DefaultChannelConfig;
+import io.netty.channel.EventLoop;
+import io.netty.channel.socket.ChannelInputShutdownEvent;
+import io.netty.channel.socket.ChannelOutputShutdownException;
+import io.netty.channel.socket.DuplexChannel;
+import io.netty.util.concurrent.Promise;
+
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A single tunnel multiplexed over a link between TurboTunnel nodes.
+ * <p>
+ * Streams behave like TCP channels with {@code AUTO_READ} disabled: received data is buffered until {@link #read()} is called, and the peer may only
+ * send as much data as has been read plus the window size. Writes are split into frames and sent as far as the peer's window allows, the rest is
+ * kept in the outbound buffer until the window is extended. Shutting down the output sends {@link Mux#FIN}, which is delivered to the peer as a
+ * {@link ChannelInputShutdownEvent} once all data before it has been read.
+ * <p>
+ * Closing a stream after the peer has sent {@link Mux#FIN} sends {@code FIN} as well (if it hasn't been sent yet), so that the peer still receives all
+ * data which was sent before. Otherwise, {@link Mux#RST} is sent and any data which the peer hasn't read yet is discarded.
+ * <p>
+ * A stream is registered to the event loop of its link, and all state may only be accessed from there.
+ *
+ * @author DaPorkchop_
+ */
+public final class MuxStreamChannel extends AbstractChannel implements DuplexChannel {
+    private static final ChannelMetadata METADATA = new ChannelMetadata(false);
+
+    private final MuxConnection connection;
+    private final int streamId;
+    private final ChannelConfig config;
+
+    private final Deque<ByteBuf> inbound = new ArrayDeque<>();
+    private final int window;
+    private int receiveWindow;
+    private int unacknowledged;
+    private int sendWindow;
+
+    /**
+     * The promise to complete once the server has opened the stream, or {@code null}.
+     */
+    Promise<Channel> openPromise;
+
+    private boolean open = true;
+    private boolean active;
+    private boolean readPending;
+    private boolean finReceived;
+    private boolean inputShutdown;
+    private boolean outputShutdown;
+    private boolean reset;
+
+    /**
+     * The number of consecutive data frames which didn't compress well, and the number of frames to send without trying to compress them. Streams
+     * which carry data that is already compressed or encrypted quickly stop being compressed, but are probed again with exponentially increasing
+     * intervals in case the data changes.
+     */
+    private int compressionMisses;
+    private int compressionSkip;
+
+    MuxStreamChannel(MuxConnection connection, int streamId, int window) {
+        super(connection.channel());
+        this.connection = connection;
+        this.streamId = streamId;
+        this.window = this.receiveWindow = window;
+        this.config = new DefaultChannelConfig(this).setAutoRead(false);
+    }
+
+    int streamId() {
+        return this.streamId;
+    }
+
+    /**
+     * Registers this stream once it is known to be open on both sides.
+     *
+     * @param sendWindow the initial window of the peer
+     */
+    void activate(int sendWindow) {
+        this.sendWindow = sendWindow;
+        this.active = true;
+        this.connection.channel().eventLoop().register(this);
+    }
+
+    /**
+     * Closes this stream without notifying the peer, e.g. because the peer has reset it or the link has been closed.
+     */
+    void abort() {
+        this.reset = true;
+        if (this.isRegistered()) {
+            this.close();
+        } else {
+            this.doClose();
+        }
+    }
+
+    void onData(ByteBuf data) {
+        this.receiveWindow -= data.readableBytes();
+        if (this.receiveWindow < 0) { //the peer isn't respecting the window
+            data.release();
+            this.connection.writeReset(this.streamId);
+            this.abort();
+        } else if (!this.open || this.inputShutdown) {
+            this.acknowledge(data.readableBytes());
+            data.release();
+        } else {
+            this.inbound.add(data);
+            if (this.readPending) {
+                this.deliver();
+            }
+        }
+    }
+
+    void onWindow(int increment) {
+        this.sendWindow += increment;
+        if (this.active && this.unsafe().outboundBuffer() != null && !this.unsafe().outboundBuffer().isEmpty()) {
+            this.unsafe().flush();
+        }
+    }
+
+    void onFin() {
+        this.finReceived = true;
+        if (this.readPending) {
+            this.deliver();
+        }
+    }
+
+
+    /**
+     * @return whether or not the next data frame should be compressed
+     */
+    boolean tryCompress() {
+        if (this.compressionSkip > 0) {
+            this.compressionSkip--;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Called after trying to compress a data frame.
+     *
+     * @param worthwhile whether or not the frame was compressed well enough to be sent compressed
+     */
+    void compressed(boolean worthwhile) {
+        if (worthwhile) {
+            this.compressionMisses = 0;
+        } else if (++this.compressionMisses >= 4) {
+            this.compressionSkip = 16 << Math.min(this.compressionMisses - 4, 6);
+        }
+    }
+
+    private void deliver() {
+        if (!this.readPending || !this.open || (this.inbound.isEmpty() && (!this.finReceived || this.inputShutdown))) {
+            return; //keep the read pending until there is something to deliver
+        }
+        this.readPending = false;
+
+        boolean read = false;
+        for (ByteBuf data; (data = this.inbound.poll()) != null; read = true) {
+            this.acknowledge(data.readableBytes());
+            this.pipeline().fireChannelRead(data);
+        }
+        if (read) {
+            this.pipeline().fireChannelReadComplete();
+        }
+
+        if (this.finReceived && !this.inputShutdown && this.inbound.isEmpty()) {
+            this.inputShutdown = true;
+            this.pipeline().fireUserEventTriggered(ChannelInputShutdownEvent.INSTANCE);
+        }
+    }
+
+    private void acknowledge(int bytes) {
+        this.unacknowledged += bytes;
+        if (this.unacknowledged >= this.window >> 2 && !this.reset) {
+            this.receiveWindow += this.unacknowledged;
+            this.connection.writeWindow(this.streamId, this.unacknowledged);
+            this.unacknowledged = 0;
+        }
+    }
+
+    @Override
+    protected AbstractUnsafe newUnsafe() {
+        return new AbstractUnsafe() {
+            @Override
+            public void connect(SocketAddress remoteAddress, SocketAddress localAddress, ChannelPromise promise) {
+                promise.setFailure(new UnsupportedOperationException());
+            }
+        };
+    }
+
+    @Override
+    protected boolean isCompatible(EventLoop loop) {
+        return loop == this.connection.channel().eventLoop();
+    }
+
+    @Override
+    protected SocketAddress localAddress0() {
+        return this.connection.channel().localAddress();
+    }
+
+    @Override
+    protected SocketAddress remoteAddress0() {
+        return this.connection.channel().remoteAddress();
+    }
+
+    @Override
+    protected void doRegister() throws Exception {
+        //no-op
+    }
+
+    @Override
+    protected void doBind(SocketAddress localAddress) throws Exception {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    protected void doDisconnect() throws Exception {
+        this.doClose();
+    }
+
+    @Override
+    protected void doClose() {
+        if (!this.open) {
+            return;
+        }
+        this.open = false;
+        for (ByteBuf data; (data = this.inbound.poll()) != null; ) {
+            data.release();
+        }
+
+        if (this.reset) { //the peer already knows
+        } else if (this.finReceived) { //the peer has finished sending, so the stream can be closed gracefully without discarding any data sent by us
+            if (!this.outputShutdown) {
+                this.connection.writeFin(this.streamId);
+                this.connection.flush();
+            }
+        } else {
+            this.connection.writeReset(this.streamId);
+        }
+        this.connection.streamClosed(this);
+    }
+
+    @Override
+    protected void doBeginRead() throws Exception {
+        if (!this.open) {
+            return;
+        }
+        this.readPending = true;
+        if (!this.inbound.isEmpty() || (this.finReceived && !this.inputShutdown)) {
+            //deliver later rather than from inside the call to read(), which may be made from a handler of this stream
+            this.eventLoop().execute(this::deliver);
+        }
+    }
+
+    @Override
+    protected void doWrite(ChannelOutboundBuffer in) throws Exception {
+        boolean written = false;
+        for (Object msg; (msg = in.current()) != null; ) {
+            if (!(msg instanceof ByteBuf)) {
+                in.remove(new UnsupportedOperationException("unsupported message type: " + msg.getClass()));
+                continue;
+            }
+
+            ByteBuf buf = (ByteBuf) msg;
+            if (!buf.isReadable()) {
+                in.remove();
+                continue;
+            } else if (this.outputShutdown) {
+                in.remove(new ChannelOutputShutdownException("output has been shut down"));
+                continue;
+            }
+
+            int length = Math.min(buf.readableBytes(), Math.min(this.sendWindow, this.connection.settings().maxFrameSize()));
+            if (length <= 0) { //wait for the peer to extend the window
+                break;
+            }
+
+            this.connection.writeData(this, buf.readRetainedSlice(length));
+            this.sendWindow -= length;
+            written = true;
+            in.progress(length);
+            if (!buf.isReadable()) {
+                in.remove();
+            }
+        }
+
+        if (written) {
+            this.connection.flush();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return this.open;
+    }
+
+    @Override
+    public boolean isActive() {
+        return this.open && this.active;
+    }
+
+    @Override
+    public ChannelConfig config() {
+        return this.config;
+    }
+
+    @Override
+    public ChannelMetadata metadata() {
+        return METADATA;
+    }
+
+    @Override
+    public boolean isInputShutdown() {
+        return this.inputShutdown;
+    }
+
+    @Override
+    public ChannelFuture shutdownInput() {
+        return this.shutdownInput(this.newPromise());
+    }
+
+    @Override
+    public ChannelFuture shutdownInput(ChannelPromise promise) {
+        if (this.eventLoop().inEventLoop()) {
+            this.inputShutdown = true;
+            for (ByteBuf data; (data = this.inbound.poll()) != null; ) {
+                this.acknowledge(data.readableBytes());
+                data.release();
+            }
+            promise.trySuccess();
+        } else {
+            this.eventLoop().execute(() -> this.shutdownInput(promise));
+        }
+        return promise;
+    }
+
+    @Override
+    public boolean isOutputShutdown() {
+        return this.outputShutdown;
+    }
+
+    @Override
+    public ChannelFuture shutdownOutput() {
+        return this.shutdownOutput(this.newPromise());
+    }
+
+    @Override
+    public ChannelFuture shutdownOutput(ChannelPromise promise) {
+        if (this.eventLoop().inEventLoop()) {
+            if (!this.outputShutdown && this.open) {
+                this.outputShutdown = true;
+                this.connection.writeFin(this.streamId);
+                this.connection.flush();
+            }
+            promise.trySuccess();
+        } else {
+            this.eventLoop().execute(() -> this.shutdownOutput(promise));
+        }
+        return promise;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return this.inputShutdown && this.outputShutdown;
+    }
+
+    @Override
+    public ChannelFuture shutdown() {
+        return this.shutdown(this.newPromise());
+    }
+
+    @Override
+    public ChannelFuture shutdown(ChannelPromise promise) {
+        this.shutdownOutput().addListener(f -> this.shutdownInput(promise));
+        return promise;
+    }
+
+    @Override
+    public String toString() {
+        return "MuxStreamChannel(" + this.streamId + " on " + this.connection.channel() + ')';
+    }
+}
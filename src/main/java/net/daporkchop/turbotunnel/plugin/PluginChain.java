@@ -0,0 +1,313 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.plugin;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+import lombok.NonNull;
+import net.daporkchop.turbotunnel.acl.DestinationDeniedException;
+import net.daporkchop.turbotunnel.loadbalance.ConnectionContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+
+/**
+ * Runs the configured {@link RequestPlugin}s for every requested connection, in order.
+ * <p>
+ * Plugins are called on a virtual thread per decision if the JVM supports virtual threads (Java 21+), and on a bounded pool of platform threads
+ * otherwise. The request is always resumed on the client's event loop once the decision has been made. While a plugin is deciding, concurrent
+ * requests with the same cache key wait for the same decision rather than calling the plugin again.
+ * <p>
+ * Configured using a JSON array of the following form:
+ * <pre>
+ * [
+ *     {
+ *         "class": "com.example.DatabaseAcl", //the plugin implementation
+ *         "config": {}, //optional, passed to RequestPlugin#init
+ *         "timeout": 1000, //milliseconds, how long a request waits for the decision
+ *         "failOpen": false, //whether to allow the connection if the plugin times out or fails, rather than denying it
+ *         "cacheTtl": 60, //seconds, how long decisions are cached. 0 disables caching
+ *         "maxEntries": 65536 //the maximum number of cached decisions
+ *     }
+ * ]
+ * </pre>
+ * The number of platform threads used when virtual threads aren't available is set with the root config object's {@code "pluginThreads"}
+ * property.
+ *
+ * @author DaPorkchop_
+ */
+public final class PluginChain implements AutoCloseable {
+    public static PluginChain fromJson(@NonNull JsonArray arr, int threads) throws Exception {
+        List<Slot> slots = new ArrayList<>();
+        try {
+            for (JsonElement element : arr) {
+                JsonObject obj = element.getAsJsonObject();
+                RequestPlugin plugin = (RequestPlugin) Class.forName(obj.get("class").getAsString()).getConstructor().newInstance();
+                plugin.init(obj.has("config") ? obj.getAsJsonObject("config") : new JsonObject());
+                slots.add(new Slot(plugin,
+                        obj.has("timeout") ? obj.get("timeout").getAsLong() : 1000L,
+                        obj.has("failOpen") && obj.get("failOpen").getAsBoolean(),
+                        obj.has("cacheTtl") ? obj.get("cacheTtl").getAsLong() : 60L,
+                        obj.has("maxEntries") ? obj.get("maxEntries").getAsInt() : 65536));
+            }
+        } catch (Exception e) {
+            for (Slot slot : slots) {
+                slot.plugin.close();
+            }
+            throw e;
+        }
+        return new PluginChain(slots.toArray(new Slot[0]), threads);
+    }
+
+    /**
+     * Creates an executor which runs every task on a new virtual thread, or a bounded pool of platform threads if virtual threads aren't supported.
+     */
+    private static ExecutorService newExecutor(int threads) {
+        try {
+            ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            System.out.println("Running plugins on virtual threads");
+            return executor;
+        } catch (NoSuchMethodException e) {
+            //not supported by this JVM
+        } catch (ReflectiveOperationException e) {
+            System.err.println("Unable to create virtual thread executor, falling back to platform threads");
+            e.printStackTrace();
+        }
+
+        System.out.printf("Running plugins on %d platform threads\n", threads);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(1024), new DefaultThreadFactory("request-plugin", true));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private final Slot[] slots;
+    private final ExecutorService executor;
+
+    private PluginChain(@NonNull Slot[] slots, int threads) {
+        checkArg(threads > 0, "threads must be positive!");
+        this.slots = slots;
+        this.executor = newExecutor(threads);
+    }
+
+    /**
+     * Asks every plugin to decide about the given connection.
+     *
+     * @param executor the executor which the returned {@link Future} will be notified on, and which the plugins' decisions are handled on
+     * @param context  the requested connection
+     * @return a {@link Future} which will be completed with the connection which should be opened, or failed with a {@link DestinationDeniedException}
+     * if the connection was denied
+     */
+    public Future<ConnectionContext> apply(@NonNull EventExecutor executor, @NonNull ConnectionContext context) {
+        Promise<ConnectionContext> promise = executor.newPromise();
+        this.step(executor, context, 0, promise);
+        return promise;
+    }
+
+    private void step(EventExecutor executor, ConnectionContext context, int index, Promise<ConnectionContext> promise) {
+        if (index == this.slots.length) {
+            promise.trySuccess(context);
+            return;
+        }
+
+        Slot slot = this.slots[index];
+        CompletableFuture<PluginDecision> future = slot.decide(this.executor, context);
+        if (future.isDone()) { //cached, no need to wait
+            this.handle(executor, context, index, promise, future.getNow(null), future.isCompletedExceptionally() ? failure(future) : null);
+            return;
+        }
+
+        //both the timeout and the decision are handled on the event loop, so whichever comes first can cancel the other
+        ScheduledFuture<?> timeout = executor.schedule(
+                () -> this.handle(executor, context, index, promise, null, new TimeoutException("no decision after " + slot.timeout + "ms")),
+                slot.timeout, TimeUnit.MILLISECONDS);
+        future.whenComplete((decision, cause) -> executor.execute(() -> {
+            if (timeout.cancel(false)) {
+                this.handle(executor, context, index, promise, decision, cause);
+            }
+        }));
+    }
+
+    private void handle(EventExecutor executor, ConnectionContext context, int index, Promise<ConnectionContext> promise, PluginDecision decision, Throwable cause) {
+        RequestPlugin plugin = this.slots[index].plugin;
+        if (cause != null) {
+            System.out.printf("Plugin %s failed for %s: %s\n", plugin.getClass().getSimpleName(), context, cause);
+            if (this.slots[index].failOpen) {
+                this.step(executor, context, index + 1, promise);
+            } else {
+                promise.tryFailure(new DestinationDeniedException(context.target().getHostString()));
+            }
+        } else if (decision.denied()) {
+            System.out.printf("Plugin %s denied %s: %s\n", plugin.getClass().getSimpleName(), context, decision.denyReason());
+            promise.tryFailure(new DestinationDeniedException(context.target().getHostString()));
+        } else if (decision.target() != null) {
+            this.step(executor, new ConnectionContext(context.clientAddress(), context.serverAddress(), context.user(), decision.target()), index + 1, promise);
+        } else {
+            this.step(executor, context, index + 1, promise);
+        }
+    }
+
+    private static Throwable failure(CompletableFuture<?> future) {
+        try {
+            future.join();
+            throw new IllegalStateException();
+        } catch (Exception e) {
+            return e.getCause() != null ? e.getCause() : e;
+        }
+    }
+
+    @Override
+    public void close() throws Exception {
+        this.executor.shutdownNow();
+        for (Slot slot : this.slots) {
+            slot.plugin.close();
+        }
+    }
+
+    /**
+     * A single plugin in the chain, along with its settings and its cache.
+     */
+    private static final class Slot {
+        private final RequestPlugin plugin;
+        private final long timeout;
+        private final boolean failOpen;
+        private final long cacheTtl;
+        private final int maxEntries;
+
+        private final Map<Object, Entry> cache = new ConcurrentHashMap<>();
+        /**
+         * Every entry which was added to the cache, oldest first. Once it is longer than the maximum number of entries, the oldest entry is evicted
+         * for every new one, so that eviction never has to scan the cache. Entries which have already been replaced or removed are simply skipped.
+         */
+        private final Queue<Entry> order = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger orderSize = new AtomicInteger();
+
+        public Slot(@NonNull RequestPlugin plugin, long timeout, boolean failOpen, long cacheTtl, int maxEntries) {
+            checkArg(timeout > 0L, "timeout must be positive!");
+            checkArg(cacheTtl >= 0L, "cacheTtl may not be negative!");
+            checkArg(maxEntries > 0, "maxEntries must be positive!");
+            this.plugin = plugin;
+            this.timeout = timeout;
+            this.failOpen = failOpen;
+            this.cacheTtl = TimeUnit.SECONDS.toMillis(cacheTtl);
+            this.maxEntries = maxEntries;
+        }
+
+        public CompletableFuture<PluginDecision> decide(ExecutorService executor, ConnectionContext context) {
+            Object key = this.cacheTtl > 0L ? this.plugin.cacheKey(context) : null;
+            if (key == null) {
+                return this.submit(executor, context);
+            }
+
+            long now = System.currentTimeMillis();
+            Entry entry = this.cache.get(key);
+            if (entry != null && entry.valid(now)) {
+                return entry.future;
+            }
+
+            //only one request submits a decision for each key, all others which arrive in the meantime wait for it. if the decision takes longer
+            // than the timeout, the pending entry expires so that a plugin call which hangs doesn't hold up later requests.
+            Entry created = new Entry(key, now + this.timeout);
+            entry = this.cache.compute(key, (k, e) -> e != null && e.valid(now) ? e : created);
+            if (entry == created) {
+                this.added(created);
+                this.submit(executor, context).whenComplete((decision, cause) -> {
+                    if (cause == null) {
+                        created.expires = System.currentTimeMillis() + this.cacheTtl;
+                        created.future.complete(decision);
+                    } else { //don't cache failures
+                        this.cache.remove(key, created);
+                        created.future.completeExceptionally(cause);
+                    }
+                });
+            }
+            return entry.future;
+        }
+
+        private void added(Entry entry) {
+            this.order.add(entry);
+            if (this.orderSize.incrementAndGet() > this.maxEntries) {
+                Entry oldest = this.order.poll();
+                if (oldest != null) {
+                    this.orderSize.decrementAndGet();
+                    this.cache.remove(oldest.key, oldest);
+                }
+            }
+        }
+
+        private CompletableFuture<PluginDecision> submit(ExecutorService executor, ConnectionContext context) {
+            CompletableFuture<PluginDecision> future = new CompletableFuture<>();
+            try {
+                executor.execute(() -> {
+                    try {
+                        PluginDecision decision = this.plugin.decide(context);
+                        checkState(decision != null, "plugin returned null decision");
+                        future.complete(decision);
+                    } catch (Throwable t) {
+                        future.completeExceptionally(t);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                future.completeExceptionally(e);
+            }
+            return future;
+        }
+    }
+
+    /**
+     * A cached decision. Entries whose decision is still pending are valid until the request which created them times out.
+     */
+    private static final class Entry {
+        private final Object key;
+        private final CompletableFuture<PluginDecision> future = new CompletableFuture<>();
+        private volatile long expires;
+
+        public Entry(Object key, long expires) {
+            this.key = key;
+            this.expires = expires;
+        }
+
+        public boolean valid(long now) {
+            return this.expires > now;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.plugin;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+import lombok.experimental.Accessors;
+
+import java.net.InetSocketAddress;
+
+/**
+ * The decision made by a {@link RequestPlugin} about a requested connection.
+ *
+ * @author DaPorkchop_
+ */
+@RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+@ToString
+@Getter
+@Accessors(fluent = true)
+public final class PluginDecision {
+    /**
+     * The connection is allowed, and the next plugin decides.
+     */
+    public static final PluginDecision ALLOW = new PluginDecision(null, null);
+
+    /**
+     * The connection is denied. The client receives the same reply as if the destination had been denied by the access control list.
+     *
+     * @param reason the reason, which is logged
+     */
+    public static PluginDecision deny(@NonNull String reason) {
+        return new PluginDecision(reason, null);
+    }
+
+    /**
+     * The connection is made to a different destination instead, and the next plugin decides. The new destination is still subject to the access
+     * control list.
+     *
+     * @param target the new destination. May be unresolved
+     */
+    public static PluginDecision redirect(@NonNull InetSocketAddress target) {
+        return new PluginDecision(null, target);
+    }
+
+    /**
+     * The reason why the connection was denied, or {@code null} if it wasn't.
+     */
+    private final String denyReason;
+    /**
+     * The destination which the connection is redirected to, or {@code null} if it isn't.
+     */
+    private final InetSocketAddress target;
+
+    public boolean denied() {
+        return this.denyReason != null;
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.plugin;
+
+import com.google.gson.JsonObject;
+import lombok.NonNull;
+import net.daporkchop.turbotunnel.loadbalance.ConnectionContext;
+
+import java.util.Arrays;
+
+/**
+ * A plugin which makes a decision about every connection requested by a client, before the connection is opened.
+ * <p>
+ * Unlike everything else which runs while handling a request, {@link #decide(ConnectionContext)} is allowed to block (e.g. to query a database), as
+ * it is always called from a {@link PluginChain}'s executor rather than from an event loop.
+ * <p>
+ * Implementations must be public and have a public no-args constructor.
+ *
+ * @author DaPorkchop_
+ */
+public interface RequestPlugin extends AutoCloseable {
+    /**
+     * Configures this plugin. Called once, before any decisions are requested.
+     *
+     * @param config the plugin's {@code "config"} object, or an empty object if there is none
+     */
+    default void init(@NonNull JsonObject config) throws Exception {
+    }
+
+    /**
+     * Decides what to do with a requested connection. May block.
+     *
+     * @param context the requested connection. If a previous plugin redirected the connection, the target is the new destination
+     * @return the decision
+     */
+    PluginDecision decide(@NonNull ConnectionContext context) throws Exception;
+
+    /**
+     * Gets the key which the decision for the given connection is cached under. Connections with equal keys must always be given the same
+     * decision.
+     * <p>
+     * By default, decisions are cached by the user, the destination's hostname (or IP address literal) and its port.
+     *
+     * @param context the requested connection
+     * @return the key, or {@code null} if the decision for this connection must not be cached
+     */
+    default Object cacheKey(@NonNull ConnectionContext context) {
+        return Arrays.asList(context.user() != null ? context.user().name() : null, context.target().getHostString(), context.target().getPort());
+    }
+
+    /**
+     * Releases any resources held by this plugin. Called once all connections have been closed.
+     */
+    @Override
+    default void close() throws Exception {
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.protocol;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.haproxy.HAProxyCommand;
+import io.netty.handler.codec.haproxy.HAProxyMessage;
+import io.netty.handler.codec.haproxy.HAProxyMessageDecoder;
+import io.netty.handler.codec.haproxy.HAProxyProxiedProtocol;
+import io.netty.util.NetUtil;
+import io.netty.util.ReferenceCountUtil;
+import lombok.NonNull;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Reads the PROXY protocol header sent by a load balancer in front of a {@link ProxyServer}, and initializes the client channel once it has been
+ * received.
+ * <p>
+ * The header itself is parsed by a {@link HAProxyMessageDecoder} placed in front of this handler, which supports both version 1 and 2 and reads
+ * directly from the received buffer. Any data which was received together with the header is passed on to the handlers which are added once the
+ * client channel has been initialized (starting with the TLS handler, if TLS is enabled).
+ *
+ * @author DaPorkchop_
+ */
+final class ProxyProtocolHandler extends ChannelInboundHandlerAdapter {
+    private final ProxyServer server;
+
+    public ProxyProtocolHandler(@NonNull ProxyServer server) {
+        this.server = server;
+    }
+
+    @Override
+    public void channelRegistered(ChannelHandlerContext ctx) throws Exception {
+        ctx.channel().read();
+        super.channelRegistered(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (!(msg instanceof HAProxyMessage)) {
+            ReferenceCountUtil.release(msg);
+            throw new IllegalStateException("invalid message");
+        }
+
+        HAProxyMessage message = (HAProxyMessage) msg;
+        try {
+            //LOCAL connections (e.g. health checks from the load balancer itself) keep the address they were actually made from
+            if (message.command() == HAProxyCommand.PROXY
+                && (message.proxiedProtocol() == HAProxyProxiedProtocol.TCP4 || message.proxiedProtocol() == HAProxyProxiedProtocol.TCP6)) {
+                ctx.channel().attr(ProxyServer.CLIENT_ADDRESS_KEY).set(new InetSocketAddress(
+                        NetUtil.createInetAddressFromIpAddressString(message.sourceAddress()), message.sourcePort()));
+            }
+        } finally {
+            message.release();
+        }
+
+        ctx.pipeline().remove(this);
+        this.server.initClient(ctx.channel());
+        ctx.channel().read();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        System.out.printf("Invalid PROXY protocol header from %s: %s\n", ctx.channel().remoteAddress(), cause);
+        ctx.channel().close();
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.protocol;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.incubator.channel.uring.IOUringChannelOption;
+import io.netty.handler.codec.haproxy.HAProxyMessageDecoder;
+import io.netty.incubator.channel.uring.IOUringEventLoopGroup;
+import lombok.Getter;
+import lombok.NonNull;
+import io.netty.util.AttributeKey;
+import lombok.experimental.Accessors;
+import net.daporkchop.turbotunnel.Lifecycle;
+import net.daporkchop.turbotunnel.capture.TrafficCapture;
+import net.daporkchop.turbotunnel.loadbalance.InetAddressBalancer;
+import net.daporkchop.turbotunnel.tls.TlsContext;
+import net.daporkchop.turbotunnel.transport.TransportPool;
+import net.daporkchop.turbotunnel.util.NoopChannelInitializer;
+
+import java.net.InetSocketAddress;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+
+/**
+ * Base implementation of a listener which accepts incoming proxy connections.
+ * <p>
+ * Subclasses must not declare any instance fields of their own, as the server channel is bound (and may therefore begin calling
+ * {@link #initChannel(Channel)}) before the subclass constructor has run. Per-server configuration belongs in {@link ServerOptions}.
+ *
+ * @author DaPorkchop_
+ */
+@Accessors(fluent = true)
+public abstract class ProxyServer extends ChannelInitializer<Channel> implements AutoCloseable {
+    /**
+     * The real address of a client, as reported by a PROXY protocol header.
+     */
+    static final AttributeKey<InetSocketAddress> CLIENT_ADDRESS_KEY = AttributeKey.newInstance("client_address");
+
+    /**
+     * Gets the real address of the client connected to the given channel.
+     *
+     * @param channel the client channel
+     * @return the address sent in the channel's PROXY protocol header, or the channel's remote address if there was none
+     */
+    public static InetSocketAddress clientAddress(@NonNull Channel channel) {
+        InetSocketAddress address = channel.attr(CLIENT_ADDRESS_KEY).get();
+        return address != null ? address : (InetSocketAddress) channel.remoteAddress();
+    }
+
+    @Getter
+    protected final TransportPool loopGroupPool;
+    protected final EventLoopGroup loopGroup;
+    protected final Channel serverChannel;
+    protected final Bootstrap clientBootstrap;
+    @Getter
+    protected final InetAddressBalancer balancer;
+    @Getter
+    protected final Lifecycle lifecycle;
+    @Getter
+    protected final ServerOptions options;
+
+    public ProxyServer(@NonNull TransportPool loopGroupPool, @NonNull InetAddressBalancer balancer, @NonNull Lifecycle lifecycle, @NonNull ServerOptions options) {
+        this.loopGroupPool = loopGroupPool;
+        this.balancer = balancer;
+        this.lifecycle = lifecycle;
+        this.options = options;
+        checkArg(options.memory() != null, "a memory budget must be set!");
+        this.loopGroup = loopGroupPool.get();
+
+        ServerBootstrap serverBootstrap = loopGroupPool.serverBootstrap(this.loopGroup)
+                .childHandler(this)
+                .childOption(ChannelOption.SO_KEEPALIVE, true)
+                .childOption(ChannelOption.AUTO_READ, false)
+                .childOption(ChannelOption.RCVBUF_ALLOCATOR, options.memory().handshakeAllocator());
+        if (options.reusePort() && this.loopGroup instanceof EpollEventLoopGroup) {
+            serverBootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+        } else if (options.reusePort() && this.loopGroup instanceof IOUringEventLoopGroup) {
+            serverBootstrap.option(IOUringChannelOption.SO_REUSEPORT, true);
+        }
+        this.serverChannel = serverBootstrap.bind(options.port()).syncUninterruptibly().channel();
+        this.serverChannel.closeFuture().addListener(f -> this.loopGroupPool.release(this.loopGroup));
+
+        this.clientBootstrap = loopGroupPool.clientBootstrap(this.loopGroup)
+                .option(ChannelOption.SO_KEEPALIVE, true)
+                .option(ChannelOption.AUTO_READ, false)
+                .option(ChannelOption.RCVBUF_ALLOCATOR, options.memory().handshakeAllocator())
+                .handler(NoopChannelInitializer.INSTANCE);
+
+        try {
+            lifecycle.addServer(this);
+        } catch (IllegalStateException e) { //the lifecycle started shutting down in the meantime, nothing would ever close the server
+            this.serverChannel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    protected void initChannel(Channel ch) throws Exception {
+        if (!this.lifecycle.accept(ch)) {
+            ch.close();
+            return;
+        }
+
+        TrafficCapture capture = this.options.capture();
+        if (capture != null) {
+            capture.accepted(ch);
+        }
+
+        if (this.options.proxyProtocol()) { //the client channel will be initialized once the header has been received
+            ch.pipeline()
+                    .addLast("haproxy", new HAProxyMessageDecoder())
+                    .addLast("proxy_protocol", new ProxyProtocolHandler(this));
+        } else {
+            this.initClient(ch);
+        }
+    }
+
+    /**
+     * Adds the TLS handler to a newly accepted client channel (if TLS is enabled), and then initializes it.
+     *
+     * @param ch the channel
+     */
+    void initClient(Channel ch) throws Exception {
+        TlsContext tls = this.options.tls();
+        if (tls != null) {
+            ch.pipeline().addLast(TlsContext.HANDLER_NAME, tls.newHandler(ch.alloc()));
+        }
+        this.initClientChannel(ch);
+    }
+
+    /**
+     * Initializes a newly accepted client channel.
+     * <p>
+     * If the PROXY protocol is enabled, this is only called once the header has been received, at which point {@link #clientAddress(Channel)}
+     * will return the real address of the client. If TLS is enabled, the TLS handler has already been added, and the handlers added by this method
+     * will only see decrypted data.
+     *
+     * @param ch the channel
+     */
+    protected abstract void initClientChannel(Channel ch) throws Exception;
+
+    /**
+     * Stops accepting new connections. Connections which have already been accepted are not affected.
+     */
+    @Override
+    public void close() {
+        this.serverChannel.close().syncUninterruptibly();
+    }
+
+    public Bootstrap getClientBootstrap() {
+        return this.clientBootstrap.clone();
+    }
+}
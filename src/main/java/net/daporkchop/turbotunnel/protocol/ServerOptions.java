@@ -0,0 +1,136 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.protocol;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+import lombok.experimental.Accessors;
+import net.daporkchop.turbotunnel.acl.AccessControlList;
+import net.daporkchop.turbotunnel.auth.CredentialStore;
+import net.daporkchop.turbotunnel.capture.TrafficCapture;
+import net.daporkchop.turbotunnel.dns.DnsCache;
+import net.daporkchop.turbotunnel.limit.DestinationLimiter;
+import net.daporkchop.turbotunnel.loadbalance.EgressHealth;
+import net.daporkchop.turbotunnel.memory.MemoryBudget;
+import net.daporkchop.turbotunnel.mux.MuxSettings;
+import net.daporkchop.turbotunnel.plugin.PluginChain;
+import net.daporkchop.turbotunnel.tls.TlsContext;
+import net.daporkchop.turbotunnel.tunnel.TunnelRegistry;
+import net.daporkchop.turbotunnel.upstream.UpstreamRouter;
+import net.daporkchop.turbotunnel.warm.WarmPool;
+
+/**
+ * Options used to configure a single {@link ProxyServer}.
+ *
+ * @author DaPorkchop_
+ */
+@ToString
+@Getter
+@Setter
+@Accessors(fluent = true)
+public final class ServerOptions {
+    private int port;
+
+    /**
+     * Whether or not to bind the listener with {@code SO_REUSEPORT}, allowing a newly started process to bind the same port while this one is still
+     * draining. Only has an effect on the epoll and io_uring transports.
+     */
+    private boolean reusePort;
+
+    /**
+     * Whether or not every client connection starts with a PROXY protocol (version 1 or 2) header, which is sent by a load balancer and contains
+     * the real address of the client.
+     */
+    private boolean proxyProtocol;
+
+    /**
+     * Whether or not to tell clients that their connection has been established as soon as the request has been accepted, rather than waiting for
+     * the outbound connection to be opened. This saves clients a round trip before they can start sending data, but if the connection can't be
+     * opened, the client connection is simply closed instead of receiving an error status.
+     */
+    private boolean optimisticReply;
+
+    /**
+     * The context used to terminate TLS on client connections, or {@code null} if clients connect in plaintext.
+     */
+    private TlsContext tls;
+
+    /**
+     * The store which clients must authenticate against, or {@code null} if authentication is not required.
+     */
+    private CredentialStore credentials;
+
+    /**
+     * The rules which decide which destinations clients may connect to, or {@code null} if all destinations are allowed.
+     */
+    private AccessControlList acl;
+
+    /**
+     * The plugins which decide about every requested connection before it is opened, or {@code null} if there are none.
+     */
+    private PluginChain plugins;
+
+    /**
+     * Limits the number of connections which may be open to a single destination at once, or {@code null} if there is no limit.
+     */
+    private DestinationLimiter destinationLimiter;
+
+    /**
+     * Decides which destinations are connected to through upstream proxies, or {@code null} if all destinations are connected to directly.
+     */
+    private UpstreamRouter upstream;
+
+    /**
+     * Keeps idle connections to frequently requested destinations, or {@code null} if every direct connection should be opened on demand.
+     */
+    private WarmPool warmPool;
+
+    /**
+     * The budget which limits the memory used by connections. Must be set.
+     */
+    private MemoryBudget memory;
+
+    /**
+     * The registry which established tunnels are added to, or {@code null} if tunnels should not be tracked.
+     */
+    private TunnelRegistry tunnels;
+
+    /**
+     * Keeps track of the health of local addresses which direct connections are made from, or {@code null} if it should not be tracked.
+     */
+    private EgressHealth egress;
+
+    /**
+     * Caches the addresses which destination hostnames resolve to, or {@code null} if they should be resolved every time.
+     */
+    private DnsCache dns;
+
+    /**
+     * Records the tunnels opened by clients, or {@code null} if traffic should not be captured.
+     */
+    private TrafficCapture capture;
+
+    /**
+     * The settings for links accepted from other TurboTunnel nodes. Only used by {@link net.daporkchop.turbotunnel.mux.MuxServer}.
+     */
+    private MuxSettings mux;
+}
@@ -37,4 +37,7 @@ public class HTTP {
     public static final int TYPE_IPV4 = 0x01;
     public static final int TYPE_DOMAIN = 0x03;
     public static final int TYPE_IPV6 = 0x04;
+
+    public static final String AUTH_REALM = "TurboTunnel";
+    public static final int MAX_AUTH_ATTEMPTS = 3;
 }
@@ -21,28 +21,45 @@
 package net.daporkchop.turbotunnel.protocol.http;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.Promise;
 import lombok.AccessLevel;
 import lombok.NoArgsConstructor;
 import net.daporkchop.lib.common.ref.Ref;
 import net.daporkchop.lib.common.ref.ThreadRef;
+import net.daporkchop.turbotunnel.acl.DestinationDeniedException;
+import net.daporkchop.turbotunnel.auth.CredentialStore;
+import net.daporkchop.turbotunnel.auth.User;
+import net.daporkchop.turbotunnel.capture.TrafficCapture;
+import net.daporkchop.turbotunnel.jfr.HandshakeEvent;
+import net.daporkchop.turbotunnel.limit.DestinationLimitException;
+import net.daporkchop.turbotunnel.upstream.UpstreamRequestException;
 import net.daporkchop.turbotunnel.util.BiDirectionalSocketConnector;
 import net.daporkchop.turbotunnel.util.ProxyCommon;
 
 import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
+import java.util.Base64;
 import java.util.NoSuchElementException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import static net.daporkchop.lib.common.util.PValidation.*;
+import static net.daporkchop.turbotunnel.protocol.http.HTTP.*;
 import static net.daporkchop.turbotunnel.protocol.socks.SOCKS5Server.*;
 
 /**
+ * Handles HTTP {@code CONNECT} requests.
+ * <p>
+ * Any bytes which the client sends after the request headers without waiting for a response (e.g. a TLS ClientHello) are kept, and written to
+ * the destination as soon as the connection to it has been opened.
+ *
  * @author DaPorkchop_
  */
 @NoArgsConstructor(access = AccessLevel.PRIVATE)
@@ -53,6 +70,8 @@ public final class HTTPRequestHandler extends ChannelInboundHandlerAdapter {
     public static final Ref<Matcher> REQUEST_MATCHER_CACHE = ThreadRef.regex(Pattern.compile("^([A-Z]+) ([^ ]+) (HTTP/1\\.[01])\r\n"));
     public static final Ref<Matcher> HEADER_MATCHER_CACHE = ThreadRef.regex(Pattern.compile("^([^:]+):(?> ?)(.+)$"));
 
+    private static final ByteBuf HEADERS_END = Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer("\r\n\r\n".getBytes(StandardCharsets.US_ASCII)));
+
     @Override
     public void channelRegistered(ChannelHandlerContext ctx) throws Exception {
         ctx.channel().read();
@@ -66,9 +85,20 @@ public final class HTTPRequestHandler extends ChannelInboundHandlerAdapter {
 
         HTTPServerState state = ctx.channel().attr(HTTPServer.STATE_KEY).get();
 
-        String request = data.toString(StandardCharsets.US_ASCII);
+        String request;
+        try {
+            int end = ByteBufUtil.indexOf(HEADERS_END, data);
+            checkState(end >= 0, "incomplete request");
+            end += HEADERS_END.readableBytes();
+            request = data.toString(data.readerIndex(), end - data.readerIndex(), StandardCharsets.US_ASCII);
+            data.readerIndex(end);
+
+            //anything after the headers was sent by the client without waiting for a response
+            BiDirectionalSocketConnector.setPendingData(ctx.channel(), data.isReadable() ? data.readRetainedSlice(data.readableBytes()) : null);
+        } finally {
+            data.release();
+        }
         //System.out.println(request);
-        checkState(request.endsWith("\r\n\r\n"));
         Matcher requestMatcher = REQUEST_MATCHER_CACHE.get().reset(request);
         checkState(requestMatcher.find());
 
@@ -76,6 +106,7 @@ public final class HTTPRequestHandler extends ChannelInboundHandlerAdapter {
 
         //find headers
         {
+            state.headers().clear(); //the connection may be re-used after an authentication challenge
             String[] splitHeaders = request.split("\r\n");
             Matcher headerMatcher = HEADER_MATCHER_CACHE.get();
             for (int i = 1; i < splitHeaders.length; i++) {
@@ -85,37 +116,87 @@ public final class HTTPRequestHandler extends ChannelInboundHandlerAdapter {
             //System.out.println("Headers: " + state.headers());
         }
 
-        switch (requestMatcher.group(1)) {
+        String method = requestMatcher.group(1);
+        String target = requestMatcher.group(2);
+
+        CredentialStore credentials = state.server().options().credentials();
+        if (credentials == null) {
+            this.handleRequest(ctx, state, method, target);
+            return;
+        }
+
+        String authorization = state.headers().remove("Proxy-Authorization");
+        if (authorization == null) {
+            this.challenge(ctx, state);
+            return;
+        }
+
+        String[] userPass = decodeBasicCredentials(authorization);
+        if (userPass == null) {
+            this.challenge(ctx, state);
+            return;
+        }
+
+        HandshakeEvent event = HandshakeEvent.start("HTTP", HandshakeEvent.AUTHENTICATE, state.clientAddress(), null);
+        credentials.verify(ctx.channel().eventLoop(), userPass[0], userPass[1])
+                .addListener((GenericFutureListener<Future<User>>) f -> {
+                    if (event != null) {
+                        event.finish(f.isSuccess() && f.getNow() != null);
+                    }
+                    if (f.isSuccess() && f.getNow() != null) {
+                        state.user(f.getNow());
+                        try {
+                            this.handleRequest(ctx, state, method, target);
+                        } catch (Exception e) {
+                            ctx.fireExceptionCaught(e);
+                        }
+                    } else {
+                        if (!f.isSuccess()) {
+                            f.cause().printStackTrace();
+                        }
+                        System.out.printf("Authentication failed for %s (username: %s)\n", state.clientAddress(), userPass[0]);
+                        this.challenge(ctx, state);
+                    }
+                });
+    }
+
+    private void handleRequest(ChannelHandlerContext ctx, HTTPServerState state, String method, String target) throws Exception {
+        switch (method) {
             case "CONNECT": {
-                String[] split = requestMatcher.group(2).split(":");
+                String[] split = target.split(":");
                 state.address(InetSocketAddress.createUnresolved(split[0], Integer.parseUnsignedInt(split[1])));
 
-                ProxyCommon.openConnectionTo(ctx.channel(), state.server()::getClientBootstrap, state.address(), state.server().balancer())
-                        .addListener((GenericFutureListener<Future<Channel>>) f -> {
-                            ByteBuf buf = ctx.alloc().ioBuffer();
-                            buf.writeCharSequence(state.httpVersion(), StandardCharsets.US_ASCII);
-                            buf.writeByte(' ');
-                            if (f.isSuccess()) {
-                                buf.writeCharSequence("200 OK\r\n\r\n", StandardCharsets.US_ASCII);
-                                ctx.channel().writeAndFlush(buf);
+                User user = state.user();
+                if (user != null) {
+                    if (!user.tryConnect()) {
+                        System.out.printf("Connection limit exceeded for %s (user: %s)\n", state.clientAddress(), user.name());
+                        respond(ctx, state, "429 Too Many Requests");
+                        return;
+                    }
+                    ctx.channel().closeFuture().addListener(f -> user.disconnected());
+                }
 
-                                try {
-                                    ctx.channel().pipeline().remove(this);
-                                } catch (NoSuchElementException e) {
-                                    //removed
-                                    return;
-                                }
-                                new BiDirectionalSocketConnector(ctx.channel(), f.getNow());
+                TrafficCapture.requested(ctx.channel());
+                HandshakeEvent event = HandshakeEvent.start("HTTP", HandshakeEvent.CONNECT, state.clientAddress(), state.address());
+                Promise<Void> admitted = state.server().options().optimisticReply() ? ctx.channel().eventLoop().newPromise() : null;
+                Future<Channel> future = ProxyCommon.openConnectionTo(ctx.channel(), state.server(), state.context(ctx.channel()), state.balancer(), admitted);
+                HandshakeEvent.track(event, future);
 
-                                System.out.printf("Tunnel request from %s: %s (handled with local address: %s)\n", ctx.channel().remoteAddress(), state, f.getNow().localAddress());
-                            } else {
-                                f.cause().printStackTrace();
+                if (admitted == null) {
+                    future.addListener((GenericFutureListener<Future<Channel>>) f -> this.handleConnected(ctx, state, f, false));
+                    return;
+                }
 
-                                buf.writeCharSequence("500 Internal Server Error\r\n\r\n", StandardCharsets.US_ASCII);
-                                ctx.channel().writeAndFlush(buf);
-                                ctx.channel().close();
-                            }
-                        });
+                //once the request has been admitted, tell the client that the tunnel is open before it actually is, so that it can send its first bytes
+                // without waiting for the connection to be opened. the client can only find out about a failure to connect by the connection being
+                // closed.
+                admitted.addListener(a -> {
+                    boolean optimistic = !future.isDone() && ctx.channel().isActive();
+                    if (optimistic) {
+                        writeStatus(ctx, state, "200 OK");
+                    }
+                    future.addListener((GenericFutureListener<Future<Channel>>) f -> this.handleConnected(ctx, state, f, optimistic));
+                });
             }
             break;
             case "GET": {
@@ -152,9 +233,9 @@ public final class HTTPRequestHandler extends ChannelInboundHandlerAdapter {
                                     //removed
                                     return;
                                 }
-                                new BiDirectionalSocketConnector(ctx.channel(), f.getNow());
+                                ProxyCommon.relay(ctx.channel(), f.getNow(), state.server(), state.context(ctx.channel()));
 
-                                System.out.printf("Proxy request from %s: %s (handled with local address: %s)\n", ctx.channel().remoteAddress(), state, f.getNow().localAddress());
+                                System.out.printf("Proxy request from %s: %s (handled with local address: %s)\n", state.clientAddress(), state, f.getNow().localAddress());
                             } else {
                                 f.cause().printStackTrace();
 
@@ -168,12 +249,101 @@ public final class HTTPRequestHandler extends ChannelInboundHandlerAdapter {
             }
             break;
             default:
-                ByteBuf buf = ctx.alloc().ioBuffer();
-                buf.writeCharSequence(state.httpVersion(), StandardCharsets.US_ASCII);
-                buf.writeByte(' ');
-                buf.writeCharSequence("405 Method Not Allowed\r\n\r\n", StandardCharsets.US_ASCII);
-                ctx.channel().writeAndFlush(buf);
-                ctx.channel().close();
+                respond(ctx, state, "405 Method Not Allowed");
+        }
+    }
+
+    private void handleConnected(ChannelHandlerContext ctx, HTTPServerState state, Future<Channel> f, boolean optimistic) {
+        if (f.isSuccess()) {
+            if (!optimistic) {
+                writeStatus(ctx, state, "200 OK");
+            }
+
+            try {
+                ctx.channel().pipeline().remove(this);
+            } catch (NoSuchElementException e) {
+                //removed
+                return;
+            }
+            ProxyCommon.relay(ctx.channel(), f.getNow(), state.server(), state.context(ctx.channel()));
+
+            System.out.printf("Tunnel request from %s: %s (handled with local address: %s)\n", state.clientAddress(), state, f.getNow().localAddress());
+        } else if (optimistic) {
+            System.out.printf("Optimistic tunnel request from %s failed: %s (%s)\n", state.clientAddress(), state, f.cause());
+            ctx.channel().close();
+        } else if (f.cause() instanceof DestinationDeniedException) {
+            System.out.printf("Denied tunnel request from %s: %s\n", state.clientAddress(), state);
+            respond(ctx, state, "403 Forbidden");
+        } else if (f.cause() instanceof UpstreamRequestException) {
+            System.out.printf("Upstream refused tunnel request from %s: %s (%s)\n", state.clientAddress(), state, f.cause().getMessage());
+            respond(ctx, state, "502 Bad Gateway");
+        } else if (f.cause() instanceof DestinationLimitException) {
+            System.out.printf("Rejected tunnel request from %s: %s (%s)\n", state.clientAddress(), state, f.cause().getMessage());
+            respond(ctx, state, "503 Service Unavailable");
+        } else {
+            f.cause().printStackTrace();
+            respond(ctx, state, "500 Internal Server Error");
+        }
+    }
+
+    /**
+     * Asks the client to (re-)send its request with valid credentials, keeping the connection open for it to do so.
+     */
+    private void challenge(ChannelHandlerContext ctx, HTTPServerState state) {
+        BiDirectionalSocketConnector.setPendingData(ctx.channel(), null); //the client has to re-send its request, along with any data following it
+        state.user(null);
+        if (state.authAttempts(state.authAttempts() + 1).authAttempts() > MAX_AUTH_ATTEMPTS) {
+            respond(ctx, state, "403 Forbidden");
+            return;
         }
+
+        ByteBuf buf = ctx.alloc().ioBuffer();
+        buf.writeCharSequence(state.httpVersion(), StandardCharsets.US_ASCII);
+        buf.writeCharSequence(" 407 Proxy Authentication Required\r\n"
+                              + "Proxy-Authenticate: Basic realm=\"" + AUTH_REALM + "\"\r\n"
+                              + "Content-Length: 0\r\n\r\n", StandardCharsets.US_ASCII);
+        ctx.channel().writeAndFlush(buf);
+        ctx.channel().read();
+    }
+
+    /**
+     * Sends a response with an empty body and closes the connection.
+     */
+    private static void respond(ChannelHandlerContext ctx, HTTPServerState state, String status) {
+        writeStatus(ctx, state, status);
+        ctx.channel().close();
+    }
+
+    /**
+     * Sends a response with an empty body.
+     */
+    private static void writeStatus(ChannelHandlerContext ctx, HTTPServerState state, String status) {
+        ByteBuf buf = ctx.alloc().ioBuffer();
+        buf.writeCharSequence(state.httpVersion(), StandardCharsets.US_ASCII);
+        buf.writeByte(' ');
+        buf.writeCharSequence(status, StandardCharsets.US_ASCII);
+        buf.writeCharSequence("\r\n\r\n", StandardCharsets.US_ASCII);
+        ctx.channel().writeAndFlush(buf);
+    }
+
+    /**
+     * Decodes the value of a {@code Proxy-Authorization} header using the {@code Basic} scheme.
+     *
+     * @return the username and password, or {@code null} if the header is malformed or uses a different scheme
+     */
+    private static String[] decodeBasicCredentials(String authorization) {
+        if (!authorization.regionMatches(true, 0, "Basic ", 0, 6)) {
+            return null;
+        }
+
+        String decoded;
+        try {
+            decoded = new String(Base64.getDecoder().decode(authorization.substring(6).trim()), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+
+        int i = decoded.indexOf(':');
+        return i < 0 ? null : new String[]{decoded.substring(0, i), decoded.substring(i + 1)};
     }
 }
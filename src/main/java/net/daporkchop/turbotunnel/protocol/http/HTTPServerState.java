@@ -20,11 +20,15 @@
 
 package net.daporkchop.turbotunnel.protocol.http;
 
+import io.netty.channel.Channel;
 import lombok.Getter;
 import lombok.NonNull;
 import lombok.Setter;
 import lombok.ToString;
 import lombok.experimental.Accessors;
+import net.daporkchop.turbotunnel.auth.User;
+import net.daporkchop.turbotunnel.loadbalance.ConnectionContext;
+import net.daporkchop.turbotunnel.loadbalance.InetAddressBalancer;
 
 import java.net.InetSocketAddress;
 import java.util.Map;
@@ -39,13 +43,35 @@ import java.util.TreeMap;
 @Accessors(fluent = true)
 public final class HTTPServerState {
     private final HTTPServer server;
+    /**
+     * The real address of the client, which may differ from the channel's remote address if the PROXY protocol is used.
+     */
+    private final InetSocketAddress clientAddress;
     private final Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
     @NonNull
     private String httpVersion;
     @NonNull
     private InetSocketAddress address;
+    private User user;
+    private int authAttempts;
 
-    public HTTPServerState(@NonNull HTTPServer server) {
+    public HTTPServerState(@NonNull HTTPServer server, @NonNull InetSocketAddress clientAddress) {
         this.server = server;
+        this.clientAddress = clientAddress;
+    }
+
+    /**
+     * @return the balancer to use for connections made by this client
+     */
+    public InetAddressBalancer balancer() {
+        return this.user != null && this.user.balancer() != null ? this.user.balancer() : this.server.balancer();
+    }
+
+    /**
+     * @param channel the client's channel
+     * @return a {@link ConnectionContext} describing the connection requested by this client
+     */
+    public ConnectionContext context(@NonNull Channel channel) {
+        return new ConnectionContext(this.clientAddress, (InetSocketAddress) channel.localAddress(), this.user, this.address);
     }
 }
@@ -0,0 +1,57 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.protocol.socks;
+
+import lombok.experimental.UtilityClass;
+
+/**
+ * Various constant values used by the SOCKS4 and SOCKS4a protocols.
+ *
+ * @author DaPorkchop_
+ */
+@UtilityClass
+public class SOCKS4 {
+    public static final int VERSION = 0x04;
+
+    /**
+     * The version byte sent in replies, which is {@code 0} rather than {@link #VERSION}.
+     */
+    public static final int REPLY_VERSION = 0x00;
+
+    public static final int REQUEST_GRANTED = 0x5A;
+    public static final int REQUEST_REJECTED = 0x5B;
+
+    /**
+     * The maximum length of the null-terminated user ID and hostname fields.
+     */
+    public static final int MAX_STRING_LENGTH = 255;
+
+    /**
+     * Checks whether the given destination IP address indicates a SOCKS4a request (i.e. {@code 0.0.0.x} with {@code x != 0}), in which case the
+     * destination hostname follows the user ID.
+     *
+     * @param ip the destination IP address
+     * @return whether or not the request is a SOCKS4a request
+     */
+    public static boolean isSOCKS4a(int ip) {
+        return (ip & 0xFFFFFF00) == 0 && ip != 0;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.protocol.socks;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+import net.daporkchop.turbotunnel.acl.DestinationDeniedException;
+import net.daporkchop.turbotunnel.jfr.HandshakeEvent;
+import net.daporkchop.turbotunnel.util.BiDirectionalSocketConnector;
+import net.daporkchop.turbotunnel.util.ProxyCommon;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.NoSuchElementException;
+
+import static java.lang.Math.*;
+import static net.daporkchop.lib.common.util.PValidation.*;
+import static net.daporkchop.turbotunnel.protocol.socks.SOCKS4.*;
+import static net.daporkchop.turbotunnel.protocol.socks.SOCKS5Server.*;
+
+/**
+ * Handles a SOCKS4 or SOCKS4a request.
+ * <p>
+ * SOCKS4 clients send their request immediately, without a greeting, so this is installed by {@link SOCKS5GreetingHandler} in its place if the
+ * first byte received from the client is {@link SOCKS4#VERSION}. The request is handled using the same {@link SOCKS5ServerState} and
+ * {@link SOCKS5Command}s as a SOCKS5 request.
+ * <p>
+ * SOCKS4 has no way of transmitting a password, so requests are always rejected if the server requires clients to authenticate.
+ *
+ * @author DaPorkchop_
+ */
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+@ChannelHandler.Sharable
+public final class SOCKS4RequestHandler extends ChannelInboundHandlerAdapter {
+    public static final SOCKS4RequestHandler INSTANCE = new SOCKS4RequestHandler();
+
+    private static String readString(ByteBuf data) {
+        int end = data.indexOf(data.readerIndex(), min(data.writerIndex(), data.readerIndex() + MAX_STRING_LENGTH + 1), (byte) 0);
+        checkState(end >= 0, "unterminated string");
+        String s = data.readCharSequence(end - data.readerIndex(), StandardCharsets.US_ASCII).toString();
+        data.skipBytes(1); //null terminator
+        return s;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        checkState(msg instanceof ByteBuf, "invalid message");
+        ByteBuf data = (ByteBuf) msg;
+        try {
+            this.handleRequest(ctx, data);
+        } finally {
+            data.release();
+        }
+    }
+
+    private void handleRequest(ChannelHandlerContext ctx, ByteBuf data) throws Exception {
+        checkState(data.readableBytes() >= 9);
+
+        checkState(data.readByte() == VERSION, "Invalid version!");
+
+        SOCKS5ServerState state = ctx.channel().attr(STATE_KEY).get();
+
+        SOCKS5Command command = SOCKS5Command.fromIndex(data.readByte() & 0xFF); //SOCKS4 uses the same command numbers as SOCKS5
+        int port = data.readUnsignedShort();
+        int ip = data.readInt();
+        String userId = readString(data);
+
+        if (isSOCKS4a(ip)) {
+            state.address(InetSocketAddress.createUnresolved(readString(data), port));
+        } else {
+            state.address(new InetSocketAddress(InetAddress.getByAddress(new byte[]{
+                    (byte) (ip >>> 24), (byte) (ip >>> 16), (byte) (ip >>> 8), (byte) ip
+            }), port));
+        }
+
+        if (command == null) {
+            writeFailure(ctx);
+            return;
+        } else if (state.server().options().credentials() != null) {
+            System.out.printf("Rejected SOCKS4 request from %s (user ID: %s): authentication is required\n", state.clientAddress(), userId);
+            writeFailure(ctx);
+            return;
+        }
+
+        state.auth(SOCKS5Authentication.NO_AUTHENTICATION);
+        state.command(command);
+
+        if (data.isReadable()) { //the client sent some data together with the request, forward it once the connection is open
+            BiDirectionalSocketConnector.setPendingData(ctx.channel(), data.readRetainedSlice(data.readableBytes()));
+        }
+
+        HandshakeEvent event = HandshakeEvent.start("SOCKS4", HandshakeEvent.CONNECT, state.clientAddress(), state.address());
+        Future<Channel> future = state.command().handle(ctx.channel(), state, null);
+        HandshakeEvent.track(event, future);
+        future.addListener((GenericFutureListener<Future<Channel>>) f -> {
+                    if (!f.isSuccess()) {
+                        if (f.cause() instanceof DestinationDeniedException) {
+                            System.out.printf("Denied SOCKS4 request from %s: %s\n", state.clientAddress(), state);
+                        } else {
+                            f.cause().printStackTrace();
+                        }
+                        writeFailure(ctx);
+                        return;
+                    }
+
+                    Channel channel = f.getNow();
+
+                    //clients ignore the address in a CONNECT reply, but send the local address anyway for consistency with SOCKS5
+                    InetSocketAddress address = (InetSocketAddress) channel.localAddress();
+                    ctx.channel().writeAndFlush(ctx.alloc().ioBuffer(8, 8)
+                            .writeByte(REPLY_VERSION)
+                            .writeByte(REQUEST_GRANTED)
+                            .writeShort(address.getPort())
+                            .writeBytes(address.getAddress() instanceof Inet4Address ? address.getAddress().getAddress() : new byte[4]));
+                    try {
+                        ctx.channel().pipeline().remove(this);
+                    } catch (NoSuchElementException e) {
+                        //removed
+                        return;
+                    }
+                    ProxyCommon.relay(ctx.channel(), channel, state.server(), state.context(ctx.channel()));
+
+                    System.out.printf("SOCKS4 request from %s: %s (handled with local address: %s)\n", state.clientAddress(), state, channel.localAddress());
+                });
+    }
+
+    private static void writeFailure(ChannelHandlerContext ctx) {
+        ctx.channel().writeAndFlush(ctx.alloc().ioBuffer(8, 8)
+                .writeByte(REPLY_VERSION)
+                .writeByte(REQUEST_REJECTED)
+                .writeShort(0)
+                .writeInt(0))
+                .addListener(ChannelFutureListener.CLOSE);
+    }
+}
@@ -34,6 +34,12 @@ import java.net.InetSocketAddress;
 public class SOCKS5 {
     public static final int VERSION = 0x05;
 
+    public static final int NO_ACCEPTABLE_AUTHENTICATION = 0xFF;
+
+    public static final int USERNAME_PASSWORD_VERSION = 0x01;
+    public static final int USERNAME_PASSWORD_SUCCESS = 0x00;
+    public static final int USERNAME_PASSWORD_FAILURE = 0x01;
+
     public static final int TYPE_IPV4 = 0x01;
     public static final int TYPE_DOMAIN = 0x03;
     public static final int TYPE_IPV6 = 0x04;
@@ -35,7 +35,7 @@ import lombok.experimental.Accessors;
 public enum SOCKS5Authentication {
     NO_AUTHENTICATION(true),
     GSSAPI(false),
-    USERNAME_PASSWORD(false),
+    USERNAME_PASSWORD(true),
     CHALLENGE_HANDSHAKE(false),
     UNASSIGNED(false),
     CHALLENGE_RESPONSE(false),
@@ -22,7 +22,9 @@ package net.daporkchop.turbotunnel.protocol.socks;
 
 import io.netty.channel.Channel;
 import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
 import lombok.NonNull;
+import net.daporkchop.turbotunnel.capture.TrafficCapture;
 import net.daporkchop.turbotunnel.util.ProxyCommon;
 
 /**
@@ -33,19 +35,20 @@ import net.daporkchop.turbotunnel.util.ProxyCommon;
 public enum SOCKS5Command {
     TCP_CONNECT {
         @Override
-        public Future<Channel> handle(@NonNull Channel channel, @NonNull SOCKS5ServerState state) throws Exception {
-            return ProxyCommon.openConnectionTo(channel, state.server()::getClientBootstrap, state.address(), state.server().balancer());
+        public Future<Channel> handle(@NonNull Channel channel, @NonNull SOCKS5ServerState state, Promise<Void> admitted) throws Exception {
+            TrafficCapture.requested(channel);
+            return ProxyCommon.openConnectionTo(channel, state.server(), state.context(channel), state.balancer(), admitted);
         }
     },
     TCP_BIND {
         @Override
-        public Future<Channel> handle(@NonNull Channel channel, @NonNull SOCKS5ServerState state) throws Exception {
+        public Future<Channel> handle(@NonNull Channel channel, @NonNull SOCKS5ServerState state, Promise<Void> admitted) throws Exception {
             return channel.eventLoop().newFailedFuture(new UnsupportedOperationException("TCP_BIND"));
         }
     },
     UDP_ASSOCIATE {
         @Override
-        public Future<Channel> handle(@NonNull Channel channel, @NonNull SOCKS5ServerState state) throws Exception {
+        public Future<Channel> handle(@NonNull Channel channel, @NonNull SOCKS5ServerState state, Promise<Void> admitted) throws Exception {
             return channel.eventLoop().newFailedFuture(new UnsupportedOperationException("UDP_ASSOCIATE"));
         }
     };
@@ -57,5 +60,14 @@ public enum SOCKS5Command {
         return index >= 0 && index < VALUES.length ? VALUES[index] : null;
     }
 
-    public abstract Future<Channel> handle(@NonNull Channel channel, @NonNull SOCKS5ServerState state) throws Exception;
+    /**
+     * Handles the command.
+     *
+     * @param channel  the client channel
+     * @param state    the state of the client
+     * @param admitted a {@link Promise} to complete once the request has been admitted, or {@code null} (see {@link ProxyCommon#openConnectionTo}).
+     *                 Commands which fail straight away may leave it incomplete
+     * @return a {@link Future} which will be notified with the channel to relay the client's data to
+     */
+    public abstract Future<Channel> handle(@NonNull Channel channel, @NonNull SOCKS5ServerState state, Promise<Void> admitted) throws Exception;
 }
@@ -0,0 +1,80 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.protocol.socks;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.socket.ChannelInputShutdownEvent;
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+import net.daporkchop.turbotunnel.util.BiDirectionalSocketConnector;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+import static net.daporkchop.turbotunnel.protocol.socks.SOCKS5Server.*;
+
+/**
+ * Buffers data sent by a client which has received an optimistic reply while the connection to its destination is still being opened.
+ * <p>
+ * The data is stored in {@link BiDirectionalSocketConnector#PENDING_DATA_KEY}, so that it is forwarded as soon as the connection has been opened.
+ * Reading stops once the amount of buffered data reaches the per-tunnel memory limit.
+ *
+ * @author DaPorkchop_
+ */
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+@ChannelHandler.Sharable
+final class SOCKS5EarlyDataHandler extends ChannelInboundHandlerAdapter {
+    public static final SOCKS5EarlyDataHandler INSTANCE = new SOCKS5EarlyDataHandler();
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        checkState(msg instanceof ByteBuf, "invalid message");
+        ByteBuf data = (ByteBuf) msg;
+
+        ByteBuf pending = ctx.channel().attr(BiDirectionalSocketConnector.PENDING_DATA_KEY).get();
+        if (pending == null) {
+            ctx.channel().attr(BiDirectionalSocketConnector.PENDING_DATA_KEY).set(pending = data);
+        } else {
+            ctx.channel().attr(BiDirectionalSocketConnector.PENDING_DATA_KEY).set(pending = ctx.alloc().compositeBuffer().addComponents(true, pending, data));
+        }
+
+        if (pending.readableBytes() < ctx.channel().attr(STATE_KEY).get().server().options().memory().tunnelLimit()) {
+            ctx.read();
+        }
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (!(evt instanceof ChannelInputShutdownEvent)) { //the client has finished sending, this will be re-fired once the relay has been set up
+            super.userEventTriggered(ctx, evt);
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        ByteBuf pending = ctx.channel().attr(BiDirectionalSocketConnector.PENDING_DATA_KEY).getAndSet(null);
+        if (pending != null) {
+            pending.release();
+        }
+        super.channelInactive(ctx);
+    }
+}
@@ -21,14 +21,13 @@
 package net.daporkchop.turbotunnel.protocol.socks;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import lombok.AccessLevel;
 import lombok.NoArgsConstructor;
 
-import java.util.Arrays;
-import java.util.Objects;
 import java.util.stream.IntStream;
 
 import static net.daporkchop.lib.common.util.PValidation.*;
@@ -55,28 +54,44 @@ public final class SOCKS5GreetingHandler extends ChannelInboundHandlerAdapter {
         ByteBuf data = (ByteBuf) msg;
 
         checkState(data.readableBytes() >= 2);
+        if (data.getByte(data.readerIndex()) == SOCKS4.VERSION) { //SOCKS4 clients send their request without a greeting
+            ctx.pipeline().replace(this, "socks5", SOCKS4RequestHandler.INSTANCE);
+            ctx.fireChannelRead(data);
+            return;
+        }
         checkState(data.readByte() == VERSION, "Invalid version!");
         int nauth = data.readByte() & 0xFF;
         checkState(data.readableBytes() >= nauth);
 
-        SOCKS5Authentication[] supportedAuth = IntStream.range(0, nauth)
+        //clients must authenticate if the server has a credential store
+        SOCKS5Authentication auth = ctx.channel().attr(STATE_KEY).get().server().options().credentials() != null
+                ? SOCKS5Authentication.USERNAME_PASSWORD
+                : SOCKS5Authentication.NO_AUTHENTICATION;
+        boolean offered = IntStream.range(0, nauth)
                 .map(i -> data.readByte() & 0xFF)
-                .mapToObj(SOCKS5Authentication::fromIndex)
-                .filter(Objects::nonNull)
-                .filter(SOCKS5Authentication::supported)
-                .toArray(SOCKS5Authentication[]::new);
-        checkState(supportedAuth.length > 0, "No supported authentication modes given!");
+                .anyMatch(i -> i == auth.ordinal());
 
-        ctx.channel().attr(STATE_KEY).get().auth(supportedAuth[0]);
+        if (!offered) {
+            ctx.writeAndFlush(
+                    ctx.alloc().ioBuffer(2, 2)
+                            .writeByte(VERSION) //VER
+                            .writeByte(NO_ACCEPTABLE_AUTHENTICATION)) //CAUTH
+                    .addListener(ChannelFutureListener.CLOSE);
+            return;
+        }
 
-        //System.out.printf("Supported authentication methods: %s\n", Arrays.toString(supportedAuth));
+        ctx.channel().attr(STATE_KEY).get().auth(auth);
 
-        ctx.pipeline().replace(this, "socks5", SOCKS5RequestHandler.INSTANCE);
+        if (auth == SOCKS5Authentication.USERNAME_PASSWORD) {
+            ctx.pipeline().replace(this, "socks5", SOCKS5PasswordAuthHandler.INSTANCE);
+        } else {
+            ctx.pipeline().replace(this, "socks5", SOCKS5RequestHandler.INSTANCE);
+        }
 
         ctx.writeAndFlush(
                 ctx.alloc().ioBuffer(2, 2) //respond with server choice
                         .writeByte(VERSION) //VER
-                        .writeByte(supportedAuth[0].ordinal()), //CAUTH
+                        .writeByte(auth.ordinal()), //CAUTH
                 ctx.voidPromise());
         ctx.read();
     }
@@ -0,0 +1,103 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.protocol.socks;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+import net.daporkchop.turbotunnel.auth.User;
+import net.daporkchop.turbotunnel.jfr.HandshakeEvent;
+
+import java.nio.charset.StandardCharsets;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+import static net.daporkchop.turbotunnel.protocol.socks.SOCKS5.*;
+import static net.daporkchop.turbotunnel.protocol.socks.SOCKS5Server.*;
+
+/**
+ * Handles username/password authentication sub-negotiation as specified by RFC 1929.
+ *
+ * @author DaPorkchop_
+ */
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+@ChannelHandler.Sharable
+public final class SOCKS5PasswordAuthHandler extends ChannelInboundHandlerAdapter {
+    public static final SOCKS5PasswordAuthHandler INSTANCE = new SOCKS5PasswordAuthHandler();
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        checkState(msg instanceof ByteBuf, "invalid message");
+        ByteBuf data = (ByteBuf) msg;
+
+        String username;
+        String password;
+        try {
+            checkState(data.readableBytes() >= 2);
+            checkState(data.readByte() == USERNAME_PASSWORD_VERSION, "Invalid version!");
+            int ulen = data.readByte() & 0xFF;
+            checkState(data.readableBytes() >= ulen + 1);
+            username = data.readCharSequence(ulen, StandardCharsets.UTF_8).toString();
+            int plen = data.readByte() & 0xFF;
+            checkState(data.readableBytes() >= plen);
+            password = data.readCharSequence(plen, StandardCharsets.UTF_8).toString();
+        } finally {
+            data.release();
+        }
+
+        SOCKS5ServerState state = ctx.channel().attr(STATE_KEY).get();
+        HandshakeEvent event = HandshakeEvent.start("SOCKS5", HandshakeEvent.AUTHENTICATE, state.clientAddress(), null);
+        state.server().options().credentials().verify(ctx.channel().eventLoop(), username, password)
+                .addListener((GenericFutureListener<Future<User>>) f -> {
+                    if (event != null) {
+                        event.finish(f.isSuccess() && f.getNow() != null);
+                    }
+                    if (!f.isSuccess() || f.getNow() == null) {
+                        if (!f.isSuccess()) {
+                            f.cause().printStackTrace();
+                        }
+                        System.out.printf("Authentication failed for %s (username: %s)\n", state.clientAddress(), username);
+
+                        ctx.writeAndFlush(
+                                ctx.alloc().ioBuffer(2, 2)
+                                        .writeByte(USERNAME_PASSWORD_VERSION) //VER
+                                        .writeByte(USERNAME_PASSWORD_FAILURE)) //STATUS
+                                .addListener(ChannelFutureListener.CLOSE);
+                        return;
+                    }
+
+                    state.user(f.getNow());
+                    ctx.pipeline().replace(this, "socks5", SOCKS5RequestHandler.INSTANCE);
+
+                    ctx.writeAndFlush(
+                            ctx.alloc().ioBuffer(2, 2)
+                                    .writeByte(USERNAME_PASSWORD_VERSION) //VER
+                                    .writeByte(USERNAME_PASSWORD_SUCCESS), //STATUS
+                            ctx.voidPromise());
+                    ctx.channel().read();
+                });
+    }
+}
@@ -25,12 +25,22 @@ import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.ConnectTimeoutException;
+import io.netty.channel.socket.ChannelInputShutdownEvent;
+import io.netty.channel.socket.DuplexChannel;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.Promise;
 import lombok.AccessLevel;
 import lombok.NoArgsConstructor;
+import net.daporkchop.turbotunnel.acl.DestinationDeniedException;
+import net.daporkchop.turbotunnel.auth.User;
+import net.daporkchop.turbotunnel.jfr.HandshakeEvent;
+import net.daporkchop.turbotunnel.limit.DestinationLimitException;
+import net.daporkchop.turbotunnel.upstream.UpstreamRequestException;
 import net.daporkchop.turbotunnel.util.BiDirectionalSocketConnector;
+import net.daporkchop.turbotunnel.util.ProxyCommon;
 
 import java.net.Inet4Address;
 import java.net.Inet6Address;
@@ -44,6 +54,12 @@ import static net.daporkchop.turbotunnel.protocol.socks.SOCKS5.*;
 import static net.daporkchop.turbotunnel.protocol.socks.SOCKS5Server.*;
 
 /**
+ * Handles a SOCKS5 request.
+ * <p>
+ * If {@link net.daporkchop.turbotunnel.protocol.ServerOptions#optimisticReply()} is enabled, the request is granted as soon as it has passed the
+ * plugins, the access control list and the destination limiter, before the connection to the destination has been opened, and any data sent by the
+ * client in the meantime is buffered by {@link SOCKS5EarlyDataHandler}.
+ *
  * @author DaPorkchop_
  */
 @NoArgsConstructor(access = AccessLevel.PRIVATE)
@@ -61,7 +77,14 @@ public final class SOCKS5RequestHandler extends ChannelInboundHandlerAdapter {
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
         checkState(msg instanceof ByteBuf, "invalid message");
         ByteBuf data = (ByteBuf) msg;
+        try {
+            this.handleRequest(ctx, data);
+        } finally {
+            data.release();
+        }
+    }
 
+    private void handleRequest(ChannelHandlerContext ctx, ByteBuf data) throws Exception {
         checkState(data.readableBytes() >= 4);
 
         checkState(data.readByte() == VERSION, "Invalid version!");
@@ -97,59 +120,129 @@ public final class SOCKS5RequestHandler extends ChannelInboundHandlerAdapter {
                 throw new IllegalStateException();
         }
 
-        state.command().handle(ctx.channel(), state)
-                .addListener((GenericFutureListener<Future<Channel>>) f -> {
-                    SOCKS5Status status;
-                    if (f.isSuccess()) {
-                        status = SOCKS5Status.REQUEST_GRANTED;
-                    } else {
-                        Throwable cause = f.cause();
-                        cause.printStackTrace();
-                        if (cause instanceof ConnectTimeoutException) {
-                            status = SOCKS5Status.TTL_EXPIRED;
-                        } else {
-                            status = SOCKS5Status.GENERAL_FAILURE;
-                        }
-                    }
-
-                    ByteBuf buf = ctx.alloc().ioBuffer();
-                    buf.writeByte(VERSION);
-                    buf.writeByte(status.ordinal());
-                    buf.writeByte(0);
-
-                    if (f.isSuccess()) {
-                        Channel channel = f.getNow();
-
-                        InetSocketAddress address = (InetSocketAddress) channel.localAddress();
-                        if (address.getAddress() instanceof Inet4Address) {
-                            buf.writeByte(TYPE_IPV4);
-                            buf.writeBytes(address.getAddress().getAddress());
-                        } else if (address.getAddress() instanceof Inet6Address) {
-                            buf.writeByte(TYPE_IPV6);
-                            buf.writeBytes(address.getAddress().getAddress());
-                        } else {
-                            throw new UnsupportedOperationException(String.valueOf(address.getAddress()));
-                        }
-                        buf.writeShort(address.getPort());
-
-                        ctx.channel().writeAndFlush(buf);
-                        try {
-                            ctx.channel().pipeline().remove(this);
-                        } catch (NoSuchElementException e) {
-                            //removed
-                            return;
-                        }
-                        new BiDirectionalSocketConnector(ctx.channel(), channel);
-
-                        System.out.printf("Request from %s: %s (handled with local address: %s)\n", ctx.channel().remoteAddress(), state, channel.localAddress());
-                    } else {
-                        buf.writeByte(TYPE_IPV4);
-                        buf.writeInt(0);
-                        buf.writeShort(0);
-
-                        ctx.channel().writeAndFlush(buf);
-                        ctx.channel().close();
-                    }
-                });
+        User user = state.user();
+        if (user != null) {
+            if (!user.tryConnect()) {
+                System.out.printf("Connection limit exceeded for %s (user: %s)\n", state.clientAddress(), user.name());
+                writeFailure(ctx, SOCKS5Status.CONNECTION_NOT_ALLOWED);
+                return;
+            }
+            ctx.channel().closeFuture().addListener(f -> user.disconnected());
+        }
+
+        if (data.isReadable()) { //the client sent some data together with the request, forward it once the connection is open
+            BiDirectionalSocketConnector.setPendingData(ctx.channel(), data.readRetainedSlice(data.readableBytes()));
+        }
+
+        HandshakeEvent event = HandshakeEvent.start("SOCKS5", HandshakeEvent.CONNECT, state.clientAddress(), state.address());
+        Promise<Void> admitted = state.server().options().optimisticReply() ? ctx.channel().eventLoop().newPromise() : null;
+        Future<Channel> future = state.command().handle(ctx.channel(), state, admitted);
+        HandshakeEvent.track(event, future);
+
+        if (admitted == null) {
+            future.addListener((GenericFutureListener<Future<Channel>>) f -> this.handleConnected(ctx, state, f, false));
+            return;
+        }
+
+        //once the request has been admitted, grant it before the connection has actually been opened so that the client can start sending without
+        // waiting for it. the client can only find out about a failure to connect by the connection being closed.
+        future.addListener(f -> admitted.trySuccess(null)); //the command may not complete it if it fails
+        admitted.addListener(a -> {
+            boolean optimistic = !future.isDone() && ctx.channel().isActive();
+            if (optimistic) {
+                writeReply(ctx, SOCKS5Status.REQUEST_GRANTED, null);
+                ctx.channel().config().setOption(ChannelOption.ALLOW_HALF_CLOSURE, true);
+                ctx.pipeline().replace(this, "socks5", SOCKS5EarlyDataHandler.INSTANCE);
+                ctx.channel().read();
+            }
+            future.addListener((GenericFutureListener<Future<Channel>>) f -> this.handleConnected(ctx, state, f, optimistic));
+        });
+    }
+
+    private void handleConnected(ChannelHandlerContext ctx, SOCKS5ServerState state, Future<Channel> f, boolean optimistic) {
+        if (!f.isSuccess() && optimistic) {
+            System.out.printf("Optimistic request from %s failed: %s (%s)\n", state.clientAddress(), state, f.cause());
+            ctx.channel().close();
+            return;
+        } else if (f.cause() instanceof DestinationDeniedException) {
+            System.out.printf("Denied request from %s: %s\n", state.clientAddress(), state);
+            writeFailure(ctx, statusFor(f.cause()));
+            return;
+        } else if (f.cause() instanceof DestinationLimitException) {
+            System.out.printf("Rejected request from %s: %s (%s)\n", state.clientAddress(), state, f.cause().getMessage());
+            writeFailure(ctx, statusFor(f.cause()));
+            return;
+        } else if (!f.isSuccess()) {
+            f.cause().printStackTrace();
+            writeFailure(ctx, statusFor(f.cause()));
+            return;
+        }
+
+        Channel channel = f.getNow();
+
+        if (!optimistic) {
+            writeReply(ctx, SOCKS5Status.REQUEST_GRANTED, (InetSocketAddress) channel.localAddress());
+        }
+        try {
+            ctx.channel().pipeline().remove(optimistic ? SOCKS5EarlyDataHandler.INSTANCE : this);
+        } catch (NoSuchElementException e) {
+            //removed
+            return;
+        }
+        ProxyCommon.relay(ctx.channel(), channel, state.server(), state.context(ctx.channel()));
+
+        if (optimistic && ctx.channel() instanceof DuplexChannel && ((DuplexChannel) ctx.channel()).isInputShutdown()) {
+            //the client finished sending before the connection was opened. this is queued behind forwarding the buffered data, so that the
+            // buffered data is written before the output is shut down.
+            ctx.channel().eventLoop().execute(() -> ctx.channel().pipeline().fireUserEventTriggered(ChannelInputShutdownEvent.INSTANCE));
+        }
+
+        System.out.printf("Request from %s: %s (handled with local address: %s)\n", state.clientAddress(), state, channel.localAddress());
+    }
+
+    private static SOCKS5Status statusFor(Throwable cause) {
+        if (cause instanceof ConnectTimeoutException) {
+            return SOCKS5Status.TTL_EXPIRED;
+        } else if (cause instanceof DestinationDeniedException) {
+            return SOCKS5Status.CONNECTION_NOT_ALLOWED;
+        } else if (cause instanceof UpstreamRequestException) {
+            return ((UpstreamRequestException) cause).status();
+        } else {
+            return SOCKS5Status.GENERAL_FAILURE;
+        }
+    }
+
+    private static void writeFailure(ChannelHandlerContext ctx, SOCKS5Status status) {
+        writeReply(ctx, status, null);
+        ctx.channel().close();
+    }
+
+    /**
+     * @param address the address to send as the bound address, or {@code null} if it isn't known
+     */
+    private static void writeReply(ChannelHandlerContext ctx, SOCKS5Status status, InetSocketAddress address) {
+        ByteBuf buf = ctx.alloc().ioBuffer();
+        buf.writeByte(VERSION);
+        buf.writeByte(status.ordinal());
+        buf.writeByte(0);
+
+        if (address == null) {
+            buf.writeByte(TYPE_IPV4);
+            buf.writeInt(0);
+            buf.writeShort(0);
+        } else {
+            if (address.getAddress() instanceof Inet4Address) {
+                buf.writeByte(TYPE_IPV4);
+                buf.writeBytes(address.getAddress().getAddress());
+            } else if (address.getAddress() instanceof Inet6Address) {
+                buf.writeByte(TYPE_IPV6);
+                buf.writeBytes(address.getAddress().getAddress());
+            } else {
+                throw new UnsupportedOperationException(String.valueOf(address.getAddress()));
+            }
+            buf.writeShort(address.getPort());
+        }
+
+        ctx.channel().writeAndFlush(buf);
     }
 }
@@ -20,74 +20,32 @@
 
 package net.daporkchop.turbotunnel.protocol.socks;
 
-import io.netty.bootstrap.Bootstrap;
-import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
-import io.netty.channel.ChannelInitializer;
-import io.netty.channel.ChannelOption;
-import io.netty.channel.EventLoopGroup;
 import io.netty.util.AttributeKey;
-import lombok.Getter;
 import lombok.NonNull;
-import lombok.experimental.Accessors;
-import net.daporkchop.lib.network.nettycommon.eventloopgroup.pool.EventLoopGroupPool;
+import net.daporkchop.turbotunnel.Lifecycle;
 import net.daporkchop.turbotunnel.loadbalance.InetAddressBalancer;
+import net.daporkchop.turbotunnel.protocol.ProxyServer;
+import net.daporkchop.turbotunnel.protocol.ServerOptions;
+import net.daporkchop.turbotunnel.transport.TransportPool;
 import net.daporkchop.turbotunnel.util.CloseChannelOnExceptionHandler;
-import net.daporkchop.turbotunnel.util.NoopChannelInitializer;
 
 /**
  * @author DaPorkchop_
  */
-@Accessors(fluent = true)
-public class SOCKS5Server extends ChannelInitializer<Channel> implements AutoCloseable {
+public class SOCKS5Server extends ProxyServer {
     static final AttributeKey<SOCKS5ServerState> STATE_KEY = AttributeKey.newInstance("socks5_state");
 
-    @Getter
-    private final EventLoopGroupPool loopGroupPool;
-    private final EventLoopGroup loopGroup;
-    private final Channel serverChannel;
-    private final Bootstrap clientBootstrap;
-    @Getter
-    private final InetAddressBalancer balancer;
-
-    public SOCKS5Server(@NonNull EventLoopGroupPool loopGroupPool, @NonNull InetAddressBalancer balancer, int port) {
-        this.loopGroupPool = loopGroupPool;
-        this.balancer = balancer;
-        this.loopGroup = loopGroupPool.get();
-
-        this.serverChannel = new ServerBootstrap()
-                .channelFactory(loopGroupPool.transport().channelFactorySocketServer())
-                .group(this.loopGroup)
-                .childHandler(this)
-                .childOption(ChannelOption.SO_KEEPALIVE, true)
-                .childOption(ChannelOption.AUTO_READ, false)
-                .bind(port).syncUninterruptibly().channel();
-        this.serverChannel.closeFuture().addListener(f -> this.loopGroupPool.release(this.loopGroup));
-
-        this.clientBootstrap = new Bootstrap()
-                .channelFactory(loopGroupPool.transport().channelFactorySocketClient())
-                .group(this.loopGroup)
-                .option(ChannelOption.SO_KEEPALIVE, true)
-                .option(ChannelOption.AUTO_READ, false)
-                .handler(NoopChannelInitializer.INSTANCE);
+    public SOCKS5Server(@NonNull TransportPool loopGroupPool, @NonNull InetAddressBalancer balancer, @NonNull Lifecycle lifecycle, @NonNull ServerOptions options) {
+        super(loopGroupPool, balancer, lifecycle, options);
     }
 
     @Override
-    protected void initChannel(Channel ch) throws Exception {
-        //System.out.println(this.serverChannel);
-        ch.attr(STATE_KEY).set(new SOCKS5ServerState(this));
+    protected void initClientChannel(Channel ch) throws Exception {
+        ch.attr(STATE_KEY).set(new SOCKS5ServerState(this, clientAddress(ch)));
 
         ch.pipeline()
                 .addLast("socks5", SOCKS5GreetingHandler.INSTANCE)
                 .addLast("exception", CloseChannelOnExceptionHandler.INSTANCE);
     }
-
-    @Override
-    public void close() {
-        this.serverChannel.close().syncUninterruptibly();
-    }
-
-    public Bootstrap getClientBootstrap() {
-        return this.clientBootstrap.clone();
-    }
 }
@@ -20,11 +20,15 @@
 
 package net.daporkchop.turbotunnel.protocol.socks;
 
+import io.netty.channel.Channel;
 import lombok.Getter;
 import lombok.NonNull;
 import lombok.Setter;
 import lombok.ToString;
 import lombok.experimental.Accessors;
+import net.daporkchop.turbotunnel.auth.User;
+import net.daporkchop.turbotunnel.loadbalance.ConnectionContext;
+import net.daporkchop.turbotunnel.loadbalance.InetAddressBalancer;
 
 import java.net.InetSocketAddress;
 
@@ -37,14 +41,35 @@ import java.net.InetSocketAddress;
 @Accessors(fluent = true)
 public final class SOCKS5ServerState {
     private final SOCKS5Server server;
+    /**
+     * The real address of the client, which may differ from the channel's remote address if the PROXY protocol is used.
+     */
+    private final InetSocketAddress clientAddress;
     @NonNull
     private SOCKS5Authentication auth;
     @NonNull
     private SOCKS5Command command;
     @NonNull
     private InetSocketAddress address;
+    private User user;
 
-    public SOCKS5ServerState(@NonNull SOCKS5Server server) {
+    public SOCKS5ServerState(@NonNull SOCKS5Server server, @NonNull InetSocketAddress clientAddress) {
         this.server = server;
+        this.clientAddress = clientAddress;
+    }
+
+    /**
+     * @return the balancer to use for connections made by this client
+     */
+    public InetAddressBalancer balancer() {
+        return this.user != null && this.user.balancer() != null ? this.user.balancer() : this.server.balancer();
+    }
+
+    /**
+     * @param channel the client's channel
+     * @return a {@link ConnectionContext} describing the connection requested by this client
+     */
+    public ConnectionContext context(@NonNull Channel channel) {
+        return new ConnectionContext(this.clientAddress, (InetSocketAddress) channel.localAddress(), this.user, this.address);
     }
 }
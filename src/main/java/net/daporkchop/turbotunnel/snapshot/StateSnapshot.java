@@ -0,0 +1,272 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.snapshot;
+
+import com.google.gson.JsonObject;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+import lombok.NonNull;
+import net.daporkchop.turbotunnel.dns.DnsCache;
+import net.daporkchop.turbotunnel.loadbalance.EgressHealth;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+
+/**
+ * Periodically persists the contents of a {@link DnsCache} and the state of an {@link EgressHealth} to a file, and restores them after a restart so
+ * that the proxy doesn't start cold.
+ * <p>
+ * The file is written through a memory mapping to a temporary file, which then atomically replaces the previous snapshot. When loading, the file is
+ * mapped and only the hostnames of the cached entries are read: the addresses of an entry are decoded the first time the hostname is requested.
+ * Entries which have expired are discarded, and the state of the local addresses is only restored if the snapshot isn't older than the maximum age.
+ * <p>
+ * Configured using a JSON object of the following form:
+ * <pre>
+ * {
+ *     "path": "state.bin", //the file to store the snapshot in
+ *     "interval": 60, //seconds, how often a snapshot is written. A snapshot is always written when shutting down
+ *     "maxAge": 3600 //seconds, the maximum age of a snapshot for the local address state to be restored from it
+ * }
+ * </pre>
+ *
+ * @author DaPorkchop_
+ */
+public final class StateSnapshot implements AutoCloseable {
+    private static final int MAGIC = 0x54545353; //"TTSS"
+    private static final int VERSION = 1;
+
+    public static StateSnapshot fromJson(@NonNull JsonObject obj, DnsCache dns, EgressHealth egress) {
+        return new StateSnapshot(Paths.get(obj.has("path") ? obj.get("path").getAsString() : "state.bin"), dns, egress,
+                obj.has("interval") ? obj.get("interval").getAsLong() : 60L,
+                obj.has("maxAge") ? obj.get("maxAge").getAsLong() : 3600L,
+                TimeUnit.SECONDS);
+    }
+
+    private final Path path;
+    private final DnsCache dns;
+    private final EgressHealth egress;
+
+    /**
+     * The offsets of the DNS cache entries in the loaded snapshot which haven't been requested yet.
+     */
+    private final Map<String, Integer> index = new ConcurrentHashMap<>();
+    private volatile ByteBuffer loaded;
+
+    private final ScheduledFuture<?> task;
+
+    public StateSnapshot(@NonNull Path path, DnsCache dns, EgressHealth egress, long interval, long maxAge, @NonNull TimeUnit unit) {
+        checkArg(dns != null || egress != null, "there is nothing to persist!");
+        checkArg(interval > 0L, "interval must be positive!");
+
+        this.path = path;
+        this.dns = dns;
+        this.egress = egress;
+
+        if (Files.exists(path)) {
+            try {
+                this.load(unit.toMillis(maxAge));
+            } catch (Exception e) {
+                System.err.printf("Unable to load state snapshot from %s, starting cold\n", path);
+                e.printStackTrace();
+                this.index.clear();
+                this.loaded = null;
+            }
+        }
+        if (dns != null && !this.index.isEmpty()) {
+            dns.fallback(this::lookup);
+        }
+
+        this.task = GlobalEventExecutor.INSTANCE.scheduleAtFixedRate(() -> {
+            try {
+                this.save();
+            } catch (Exception e) {
+                System.err.printf("Unable to write state snapshot to %s\n", path);
+                e.printStackTrace();
+            }
+        }, interval, interval, unit);
+    }
+
+    private void load(long maxAge) throws IOException {
+        ByteBuffer buf;
+        try (FileChannel channel = FileChannel.open(this.path, StandardOpenOption.READ)) {
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size());
+        }
+
+        checkState(buf.getInt() == MAGIC, "not a state snapshot");
+        checkState(buf.getInt() == VERSION, "unsupported snapshot version");
+        long timestamp = buf.getLong();
+        int dnsCount = buf.getInt();
+        int egressCount = buf.getInt();
+        long now = System.currentTimeMillis();
+
+        for (int i = 0; i < dnsCount; i++) {
+            int offset = buf.position();
+            byte[] hostname = new byte[buf.getShort() & 0xFFFF];
+            buf.get(hostname);
+            long expires = buf.getLong();
+            for (int j = buf.get() & 0xFF; j > 0; j--) { //skip addresses
+                int length = buf.get() & 0xFF;
+                buf.position(buf.position() + length);
+            }
+            if (this.dns != null && expires > now) {
+                this.index.put(new String(hostname, StandardCharsets.UTF_8), offset);
+            }
+        }
+        this.loaded = this.index.isEmpty() ? null : buf;
+
+        int restored = 0;
+        if (this.egress != null && now - timestamp <= maxAge) {
+            long elapsed = TimeUnit.MILLISECONDS.toNanos(Math.max(now - timestamp, 0L));
+            for (int i = 0; i < egressCount; i++, restored++) {
+                this.egress.restore(new EgressHealth.Record(readAddress(buf, null),
+                        buf.getLong(), buf.getLong(), buf.getLong(), buf.getLong(), buf.get() != 0, buf.getLong(), Math.max(buf.getLong() - elapsed, 0L)));
+            }
+        }
+
+        System.out.printf("Loaded state snapshot from %s: %d cached hostnames, %d local addresses\n", this.path, this.index.size(), restored);
+    }
+
+    private DnsCache.Entry lookup(String hostname) {
+        Integer offset = this.index.remove(hostname);
+        ByteBuffer loaded = this.loaded;
+        if (offset == null || loaded == null) {
+            return null;
+        }
+
+        try {
+            return readEntry((ByteBuffer) loaded.duplicate().position(offset));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (this.index.isEmpty()) { //everything has been consumed, allow the mapping to be released
+                this.dns.fallback(null);
+                this.loaded = null;
+            }
+        }
+    }
+
+    /**
+     * Writes a snapshot of the current state.
+     */
+    public synchronized void save() throws IOException {
+        long now = System.currentTimeMillis();
+
+        List<DnsCache.Entry> entries = new ArrayList<>();
+        if (this.dns != null) {
+            entries.addAll(this.dns.entries());
+
+            //entries from the previous snapshot which haven't been requested yet are still valid
+            ByteBuffer loaded = this.loaded;
+            if (loaded != null) {
+                for (Map.Entry<String, Integer> e : this.index.entrySet()) {
+                    DnsCache.Entry entry = readEntry((ByteBuffer) loaded.duplicate().position(e.getValue()));
+                    if (entry.expires() > now) {
+                        entries.add(entry);
+                    }
+                }
+            }
+        }
+        List<EgressHealth.Record> records = this.egress != null ? this.egress.records() : Collections.emptyList();
+
+        long size = 4L + 4L + 8L + 4L + 4L;
+        for (DnsCache.Entry entry : entries) {
+            size += 2L + entry.hostname().getBytes(StandardCharsets.UTF_8).length + 8L + 1L;
+            for (int i = 0; i < Math.min(entry.addresses().length, 255); i++) {
+                size += 1L + entry.addresses()[i].getAddress().length;
+            }
+        }
+        for (EgressHealth.Record record : records) {
+            size += 1L + record.address().getAddress().length + 4L * 8L + 1L + 2L * 8L;
+        }
+
+        Path tmp = this.path.resolveSibling(this.path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, 0L, size);
+            buf.putInt(MAGIC).putInt(VERSION).putLong(now).putInt(entries.size()).putInt(records.size());
+            for (DnsCache.Entry entry : entries) {
+                byte[] hostname = entry.hostname().getBytes(StandardCharsets.UTF_8);
+                int count = Math.min(entry.addresses().length, 255);
+                buf.putShort((short) hostname.length).put(hostname).putLong(entry.expires()).put((byte) count);
+                for (int i = 0; i < count; i++) {
+                    writeAddress(buf, entry.addresses()[i]);
+                }
+            }
+            for (EgressHealth.Record record : records) {
+                writeAddress(buf, record.address());
+                buf.putLong(record.successes()).putLong(record.failures()).putLong(record.bytes()).putLong(record.quarantines())
+                        .put((byte) (record.quarantined() ? 1 : 0)).putLong(record.backoff()).putLong(record.remaining());
+            }
+            checkState(!buf.hasRemaining(), "snapshot size mismatch");
+            buf.force();
+        }
+        Files.move(tmp, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static DnsCache.Entry readEntry(ByteBuffer buf) throws IOException {
+        byte[] hostnameBytes = new byte[buf.getShort() & 0xFFFF];
+        buf.get(hostnameBytes);
+        String hostname = new String(hostnameBytes, StandardCharsets.UTF_8);
+        long expires = buf.getLong();
+        InetAddress[] addresses = new InetAddress[buf.get() & 0xFF];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = readAddress(buf, hostname);
+        }
+        return new DnsCache.Entry(hostname, addresses, expires);
+    }
+
+    private static InetAddress readAddress(ByteBuffer buf, String hostname) throws IOException {
+        byte[] address = new byte[buf.get() & 0xFF];
+        buf.get(address);
+        return InetAddress.getByAddress(hostname, address);
+    }
+
+    private static void writeAddress(ByteBuffer buf, InetAddress address) {
+        byte[] bytes = address.getAddress();
+        buf.put((byte) bytes.length).put(bytes);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.task.cancel(false);
+        this.save();
+        if (this.dns != null) {
+            this.dns.fallback(null);
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.tls;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.OpenSslSessionContext;
+import io.netty.handler.ssl.OpenSslSessionTicketKey;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.experimental.Accessors;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+
+/**
+ * Terminates TLS on client connections.
+ * <p>
+ * OpenSSL (through netty-tcnative) is used if it is available, as it is considerably faster than the JDK's implementation. Sessions may be resumed
+ * using either the session cache or session tickets. The same context is shared by every server which has TLS enabled, and the ticket keys are kept
+ * when the certificate is reloaded, so clients can resume their sessions on any listener and across certificate changes. If a ticket key file is
+ * given, multiple processes (e.g. the old and new process during a restart) can resume each other's sessions as well.
+ * <p>
+ * The certificate and key files are checked for modifications periodically, and are reloaded if they have changed. Existing connections are not
+ * affected by a reload.
+ * <p>
+ * Configured using a JSON object of the following form:
+ * <pre>
+ * {
+ *     "cert": "cert.pem", //the certificate chain, in PEM format
+ *     "key": "key.pem", //the private key, in PKCS#8 PEM format
+ *     "keyPassword": null, //optional, the password of the private key
+ *     "provider": "openssl", //optional, "openssl" or "jdk". By default OpenSSL is used if available
+ *     "protocols": ["TLSv1.3", "TLSv1.2"], //optional, the protocols to enable
+ *     "ciphers": [...], //optional, the cipher suites to enable
+ *     "alpn": ["http/1.1"], //optional, the application protocols to advertise using ALPN
+ *     "sessionCacheSize": 20480, //the maximum number of sessions to cache
+ *     "sessionTimeout": 300, //seconds, how long cached sessions may be resumed for
+ *     "ticketKeys": "tickets.bin", //optional, a file containing one or more 48-byte session ticket keys. The first one is used to issue tickets
+ *     "handshakeTimeout": 10, //seconds, the time a client has to complete the handshake
+ *     "reloadInterval": 60 //seconds, how often to check the certificate for modifications. 0 disables reloading
+ * }
+ * </pre>
+ *
+ * @author DaPorkchop_
+ */
+@Accessors(fluent = true)
+public final class TlsContext implements AutoCloseable {
+    /**
+     * The name of the {@link SslHandler} in a client channel's pipeline.
+     */
+    public static final String HANDLER_NAME = "tls";
+
+    public static TlsContext fromJson(@NonNull JsonObject obj) throws IOException {
+        SslProvider provider;
+        if (obj.has("provider")) {
+            provider = SslProvider.valueOf(obj.get("provider").getAsString().toUpperCase(Locale.ROOT));
+        } else if (OpenSsl.isAvailable()) {
+            provider = SslProvider.OPENSSL;
+        } else {
+            System.out.printf("OpenSSL is not available (%s), falling back to the JDK TLS implementation\n", OpenSsl.unavailabilityCause());
+            provider = SslProvider.JDK;
+        }
+
+        return new TlsContext(
+                Paths.get(obj.get("cert").getAsString()),
+                Paths.get(obj.get("key").getAsString()),
+                obj.has("keyPassword") && !obj.get("keyPassword").isJsonNull() ? obj.get("keyPassword").getAsString() : null,
+                provider,
+                obj.has("protocols") ? strings(obj.getAsJsonArray("protocols")) : null,
+                obj.has("ciphers") ? strings(obj.getAsJsonArray("ciphers")) : null,
+                obj.has("alpn") ? strings(obj.getAsJsonArray("alpn")) : null,
+                obj.has("sessionCacheSize") ? obj.get("sessionCacheSize").getAsLong() : 20480L,
+                obj.has("sessionTimeout") ? obj.get("sessionTimeout").getAsLong() : 300L,
+                obj.has("ticketKeys") ? readTicketKeys(Paths.get(obj.get("ticketKeys").getAsString())) : null,
+                obj.has("handshakeTimeout") ? obj.get("handshakeTimeout").getAsLong() : 10L,
+                obj.has("reloadInterval") ? obj.get("reloadInterval").getAsLong() : 60L,
+                TimeUnit.SECONDS);
+    }
+
+    private static List<String> strings(JsonArray array) {
+        return StreamSupport.stream(array.spliterator(), false).map(JsonElement::getAsString).collect(Collectors.toList());
+    }
+
+    private static byte[] readTicketKeys(Path path) throws IOException {
+        byte[] data = Files.readAllBytes(path);
+        checkArg(data.length > 0 && data.length % 48 == 0, "ticket key file %s must contain a multiple of 48 bytes", path);
+        return data;
+    }
+
+    private final Path certFile;
+    private final Path keyFile;
+    private final String keyPassword;
+    @Getter
+    private final SslProvider provider;
+    private final List<String> protocols;
+    private final List<String> ciphers;
+    private final List<String> alpn;
+    private final long sessionCacheSize;
+    private final long sessionTimeout;
+    private final OpenSslSessionTicketKey[] ticketKeys;
+    private final long handshakeTimeout;
+
+    private volatile SslContext context;
+    private FileTime certModified;
+    private FileTime keyModified;
+    private final ScheduledFuture<?> reload;
+
+    /**
+     * @param ticketKeys the session ticket keys, as a sequence of 48-byte keys, or {@code null} to generate a random one. Only used with OpenSSL
+     */
+    public TlsContext(@NonNull Path certFile, @NonNull Path keyFile, String keyPassword, @NonNull SslProvider provider, List<String> protocols, List<String> ciphers,
+                      List<String> alpn, long sessionCacheSize, long sessionTimeout, byte[] ticketKeys, long handshakeTimeout, long reloadInterval, @NonNull TimeUnit unit) throws IOException {
+        checkArg(sessionCacheSize >= 0L, "sessionCacheSize may not be negative!");
+        checkArg(sessionTimeout >= 0L, "sessionTimeout may not be negative!");
+        checkArg(handshakeTimeout > 0L, "handshakeTimeout must be positive!");
+        checkArg(reloadInterval >= 0L, "reloadInterval may not be negative!");
+
+        this.certFile = certFile;
+        this.keyFile = keyFile;
+        this.keyPassword = keyPassword;
+        this.provider = provider;
+        this.protocols = protocols;
+        this.ciphers = ciphers;
+        this.sessionCacheSize = sessionCacheSize;
+        this.sessionTimeout = unit.toSeconds(sessionTimeout);
+        this.handshakeTimeout = unit.toMillis(handshakeTimeout);
+
+        if (alpn != null && !alpn.isEmpty() && !SslProvider.isAlpnSupported(provider)) {
+            System.out.printf("ALPN is not supported by the %s TLS implementation, not advertising %s\n", provider, alpn);
+            alpn = null;
+        }
+        this.alpn = alpn;
+
+        if (ticketKeys == null) {
+            ticketKeys = new byte[48];
+            new SecureRandom().nextBytes(ticketKeys);
+        }
+        this.ticketKeys = new OpenSslSessionTicketKey[ticketKeys.length / 48];
+        for (int i = 0; i < this.ticketKeys.length; i++) {
+            this.ticketKeys[i] = new OpenSslSessionTicketKey(
+                    Arrays.copyOfRange(ticketKeys, i * 48, i * 48 + 16),
+                    Arrays.copyOfRange(ticketKeys, i * 48 + 16, i * 48 + 32),
+                    Arrays.copyOfRange(ticketKeys, i * 48 + 32, i * 48 + 48));
+        }
+
+        this.certModified = Files.getLastModifiedTime(certFile);
+        this.keyModified = Files.getLastModifiedTime(keyFile);
+        this.context = this.build();
+
+        this.reload = reloadInterval > 0L
+                ? GlobalEventExecutor.INSTANCE.scheduleWithFixedDelay(this::reloadIfModified, reloadInterval, reloadInterval, unit)
+                : null;
+    }
+
+    private SslContext build() throws IOException {
+        SslContextBuilder builder = SslContextBuilder.forServer(this.certFile.toFile(), this.keyFile.toFile(), this.keyPassword)
+                .sslProvider(this.provider)
+                .sessionCacheSize(this.sessionCacheSize)
+                .sessionTimeout(this.sessionTimeout);
+        if (this.protocols != null) {
+            builder.protocols(this.protocols);
+        }
+        if (this.ciphers != null) {
+            builder.ciphers(this.ciphers);
+        }
+        if (this.alpn != null && !this.alpn.isEmpty()) {
+            builder.applicationProtocolConfig(new ApplicationProtocolConfig(
+                    ApplicationProtocolConfig.Protocol.ALPN,
+                    ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                    ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+                    this.alpn));
+        }
+
+        SslContext context = builder.build();
+        if (context.sessionContext() instanceof OpenSslSessionContext) {
+            ((OpenSslSessionContext) context.sessionContext()).setTicketKeys(this.ticketKeys);
+        }
+        return context;
+    }
+
+    private synchronized void reloadIfModified() {
+        try {
+            FileTime certModified = Files.getLastModifiedTime(this.certFile);
+            FileTime keyModified = Files.getLastModifiedTime(this.keyFile);
+            if (certModified.equals(this.certModified) && keyModified.equals(this.keyModified)) {
+                return;
+            }
+
+            this.context = this.build();
+            this.certModified = certModified;
+            this.keyModified = keyModified;
+            System.out.printf("Reloaded TLS certificate from %s\n", this.certFile);
+        } catch (Exception e) {
+            System.err.printf("Unable to reload TLS certificate from %s, continuing to use the previous one\n", this.certFile);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Creates a new {@link SslHandler} for a client connection, using the current certificate.
+     *
+     * @param alloc the channel's allocator
+     */
+    public SslHandler newHandler(@NonNull ByteBufAllocator alloc) {
+        SslHandler handler = this.context.newHandler(alloc);
+        handler.setHandshakeTimeoutMillis(this.handshakeTimeout);
+        return handler;
+    }
+
+    @Override
+    public void close() {
+        if (this.reload != null) {
+            this.reload.cancel(false);
+        }
+    }
+}
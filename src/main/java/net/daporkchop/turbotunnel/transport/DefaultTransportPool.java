@@ -0,0 +1,75 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.transport;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import lombok.NonNull;
+import net.daporkchop.lib.network.nettycommon.eventloopgroup.pool.EventLoopGroupPool;
+
+/**
+ * A {@link TransportPool} backed by one of porklib's {@link EventLoopGroupPool}s, which uses epoll if it is available and NIO otherwise.
+ *
+ * @author DaPorkchop_
+ */
+public final class DefaultTransportPool implements TransportPool {
+    private final EventLoopGroupPool delegate;
+
+    public DefaultTransportPool(@NonNull EventLoopGroupPool delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public String name() {
+        return Epoll.isAvailable() ? "epoll" : "nio";
+    }
+
+    @Override
+    public EventLoopGroup get() {
+        return this.delegate.get();
+    }
+
+    @Override
+    public void release(@NonNull EventLoopGroup group) {
+        this.delegate.release(group);
+    }
+
+    @Override
+    public ServerBootstrap serverBootstrap(@NonNull EventLoopGroup group) {
+        return new ServerBootstrap()
+                .channelFactory(this.delegate.transport().channelFactorySocketServer())
+                .group(group);
+    }
+
+    @Override
+    public Bootstrap clientBootstrap(@NonNull EventLoopGroup group) {
+        return new Bootstrap()
+                .channelFactory(this.delegate.transport().channelFactorySocketClient())
+                .group(group);
+    }
+
+    @Override
+    public void shutdown() {
+        this.delegate.shutdown().syncUninterruptibly();
+    }
+}
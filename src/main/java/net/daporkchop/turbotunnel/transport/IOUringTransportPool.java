@@ -0,0 +1,87 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.transport;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.EventLoopGroup;
+import io.netty.incubator.channel.uring.IOUring;
+import io.netty.incubator.channel.uring.IOUringEventLoopGroup;
+import io.netty.incubator.channel.uring.IOUringServerSocketChannel;
+import io.netty.incubator.channel.uring.IOUringSocketChannel;
+import lombok.NonNull;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+
+/**
+ * A {@link TransportPool} which uses Linux's io_uring interface.
+ * <p>
+ * All users share a single event loop group, so that accepted connections and the outbound connections they are relayed to are served by the
+ * same rings.
+ *
+ * @author DaPorkchop_
+ */
+public final class IOUringTransportPool implements TransportPool {
+    private final IOUringEventLoopGroup group;
+
+    /**
+     * @param threads the number of event loop threads, or {@code 0} to use Netty's default
+     */
+    public IOUringTransportPool(int threads) {
+        checkState(IOUring.isAvailable(), "io_uring is not available!");
+        checkArg(threads >= 0, "threads may not be negative!");
+        this.group = new IOUringEventLoopGroup(threads);
+    }
+
+    @Override
+    public String name() {
+        return "io_uring";
+    }
+
+    @Override
+    public EventLoopGroup get() {
+        return this.group;
+    }
+
+    @Override
+    public void release(@NonNull EventLoopGroup group) {
+        checkArg(group == this.group, "group does not belong to this pool!");
+    }
+
+    @Override
+    public ServerBootstrap serverBootstrap(@NonNull EventLoopGroup group) {
+        return new ServerBootstrap()
+                .channel(IOUringServerSocketChannel.class)
+                .group(group);
+    }
+
+    @Override
+    public Bootstrap clientBootstrap(@NonNull EventLoopGroup group) {
+        return new Bootstrap()
+                .channel(IOUringSocketChannel.class)
+                .group(group);
+    }
+
+    @Override
+    public void shutdown() {
+        this.group.shutdownGracefully().syncUninterruptibly();
+    }
+}
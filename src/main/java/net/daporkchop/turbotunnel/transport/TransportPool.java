@@ -0,0 +1,71 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.transport;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.EventLoopGroup;
+
+/**
+ * Provides event loop groups and channels for a single network transport.
+ *
+ * @author DaPorkchop_
+ * @see Transports
+ */
+public interface TransportPool {
+    /**
+     * @return a human-readable name for this transport
+     */
+    String name();
+
+    /**
+     * Gets an event loop group. It must be released using {@link #release(EventLoopGroup)} once it is no longer used.
+     *
+     * @return an event loop group
+     */
+    EventLoopGroup get();
+
+    /**
+     * Releases an event loop group previously returned by {@link #get()}.
+     *
+     * @param group the event loop group
+     */
+    void release(EventLoopGroup group);
+
+    /**
+     * Creates a new {@link ServerBootstrap} which will accept connections using this transport.
+     *
+     * @param group the event loop group to use, which must have been returned by {@link #get()}
+     */
+    ServerBootstrap serverBootstrap(EventLoopGroup group);
+
+    /**
+     * Creates a new {@link Bootstrap} which will open connections using this transport.
+     *
+     * @param group the event loop group to use, which must have been returned by {@link #get()}
+     */
+    Bootstrap clientBootstrap(EventLoopGroup group);
+
+    /**
+     * Shuts down all event loop groups, blocking until complete.
+     */
+    void shutdown();
+}
@@ -0,0 +1,61 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.transport;
+
+import com.google.gson.JsonObject;
+import io.netty.incubator.channel.uring.IOUring;
+import lombok.NonNull;
+import lombok.experimental.UtilityClass;
+import net.daporkchop.lib.network.nettycommon.PorkNettyHelper;
+
+import java.util.Locale;
+
+/**
+ * Selects the {@link TransportPool} to use.
+ * <p>
+ * The transport is configured using the root config object's {@code "transport"} property:
+ * <ul>
+ *     <li>{@code "default"} (or absent): epoll if it is available, otherwise NIO</li>
+ *     <li>{@code "io_uring"}: io_uring if the kernel supports it, otherwise falls back to the default. The number of threads can be set with
+ *     {@code "ioThreads"}</li>
+ * </ul>
+ *
+ * @author DaPorkchop_
+ */
+@UtilityClass
+public class Transports {
+    public TransportPool fromJson(@NonNull JsonObject obj) {
+        String name = obj.has("transport") ? obj.get("transport").getAsString().toLowerCase(Locale.ROOT) : "default";
+        switch (name) {
+            case "io_uring":
+            case "iouring":
+                if (IOUring.isAvailable()) {
+                    return new IOUringTransportPool(obj.has("ioThreads") ? obj.get("ioThreads").getAsInt() : 0);
+                }
+                System.out.printf("io_uring is not available, falling back to default transport: %s\n", IOUring.unavailabilityCause());
+                //fall through
+            case "default":
+                return new DefaultTransportPool(PorkNettyHelper.getPoolTCP());
+            default:
+                throw new IllegalArgumentException("unknown transport: " + name);
+        }
+    }
+}
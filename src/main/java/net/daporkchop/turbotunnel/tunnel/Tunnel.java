@@ -0,0 +1,111 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.tunnel;
+
+import io.netty.channel.Channel;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.ToString;
+import lombok.experimental.Accessors;
+import net.daporkchop.turbotunnel.loadbalance.ConnectionContext;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * An established tunnel between a client and a destination, as tracked by a {@link TunnelRegistry}.
+ *
+ * @author DaPorkchop_
+ */
+@ToString(exclude = {"client", "remote"})
+@Getter
+@Accessors(fluent = true)
+public final class Tunnel {
+    private static final AtomicLongFieldUpdater<Tunnel> BYTES_FROM_CLIENT = AtomicLongFieldUpdater.newUpdater(Tunnel.class, "bytesFromClient");
+    private static final AtomicLongFieldUpdater<Tunnel> BYTES_TO_CLIENT = AtomicLongFieldUpdater.newUpdater(Tunnel.class, "bytesToClient");
+
+    private final long id;
+    private final Channel client;
+    private final Channel remote;
+
+    /**
+     * The real address of the client.
+     */
+    private final InetSocketAddress clientAddress;
+    /**
+     * The name of the user which the client authenticated as, or {@code null} if the client did not authenticate.
+     */
+    private final String user;
+    /**
+     * The destination requested by the client. May be unresolved.
+     */
+    private final InetSocketAddress destination;
+    /**
+     * The local address of the outbound connection.
+     */
+    private final InetSocketAddress sourceAddress;
+    /**
+     * The remote address of the outbound connection. This is the upstream proxy's address if the tunnel goes through one.
+     */
+    private final InetSocketAddress remoteAddress;
+    /**
+     * The time at which the tunnel was established, in milliseconds since the epoch.
+     */
+    private final long startTime;
+
+    //each counter is only ever written by the event loop of the channel the data was read from, so no atomic updates are needed
+    private volatile long bytesFromClient;
+    private volatile long bytesToClient;
+
+    Tunnel(long id, @NonNull Channel client, @NonNull Channel remote, @NonNull ConnectionContext context) {
+        this.id = id;
+        this.client = client;
+        this.remote = remote;
+        this.clientAddress = context.clientAddress();
+        this.user = context.user() != null ? context.user().name() : null;
+        this.destination = context.target();
+        this.sourceAddress = (InetSocketAddress) remote.localAddress();
+        this.remoteAddress = (InetSocketAddress) remote.remoteAddress();
+        this.startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Accounts for data which has been forwarded from the client to the destination.
+     */
+    public void sentFromClient(long bytes) {
+        BYTES_FROM_CLIENT.lazySet(this, this.bytesFromClient + bytes);
+    }
+
+    /**
+     * Accounts for data which has been forwarded from the destination to the client.
+     */
+    public void sentToClient(long bytes) {
+        BYTES_TO_CLIENT.lazySet(this, this.bytesToClient + bytes);
+    }
+
+    /**
+     * Closes this tunnel.
+     */
+    public void close() {
+        this.client.close();
+        this.remote.close();
+    }
+}
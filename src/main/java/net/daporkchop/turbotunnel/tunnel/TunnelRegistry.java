@@ -0,0 +1,139 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.tunnel;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import lombok.NonNull;
+import net.daporkchop.turbotunnel.loadbalance.ConnectionContext;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Keeps track of all established tunnels.
+ * <p>
+ * Tunnels are stored in a number of independently locked stripes, chosen by the event loop of the client channel. As a tunnel is both registered
+ * and unregistered from that event loop, the lock of a stripe is almost never contended, except while the registry is being inspected.
+ *
+ * @author DaPorkchop_
+ */
+public final class TunnelRegistry {
+    private final Stripe[] stripes;
+    private final int mask;
+    private final AtomicLong nextId = new AtomicLong();
+
+    public TunnelRegistry() {
+        //twice as many stripes as netty's default number of event loop threads, rounded up to a power of two
+        int count = Integer.highestOneBit(Math.max(Runtime.getRuntime().availableProcessors() << 2, 2) - 1) << 1;
+        this.stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            this.stripes[i] = new Stripe();
+        }
+        this.mask = count - 1;
+    }
+
+    /**
+     * Registers a newly established tunnel. It will be unregistered automatically once the client channel is closed.
+     *
+     * @param client  the client channel
+     * @param remote  the outbound channel
+     * @param context the connection requested by the client
+     * @return the registered {@link Tunnel}
+     */
+    public Tunnel register(@NonNull Channel client, @NonNull Channel remote, @NonNull ConnectionContext context) {
+        Tunnel tunnel = new Tunnel(this.nextId.incrementAndGet(), client, remote, context);
+        Stripe stripe = this.stripe(client);
+        synchronized (stripe) {
+            stripe.tunnels.put(tunnel.id(), tunnel);
+        }
+        client.closeFuture().addListener((ChannelFutureListener) f -> {
+            synchronized (stripe) {
+                stripe.tunnels.remove(tunnel.id());
+            }
+        });
+        return tunnel;
+    }
+
+    private Stripe stripe(Channel channel) {
+        int hash = System.identityHashCode(channel.eventLoop());
+        return this.stripes[(hash ^ (hash >>> 16)) & this.mask];
+    }
+
+    /**
+     * @return the number of currently open tunnels
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : this.stripes) {
+            synchronized (stripe) {
+                size += stripe.tunnels.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Gets a tunnel by its ID.
+     *
+     * @param id the ID
+     * @return the tunnel, or {@code null} if no tunnel with the given ID is open
+     */
+    public Tunnel get(long id) {
+        for (Stripe stripe : this.stripes) {
+            synchronized (stripe) {
+                Tunnel tunnel = stripe.tunnels.get(id);
+                if (tunnel != null) {
+                    return tunnel;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets a snapshot of all open tunnels matching the given filter.
+     *
+     * @param filter the filter
+     * @return the matching tunnels
+     */
+    public List<Tunnel> find(@NonNull Predicate<Tunnel> filter) {
+        List<Tunnel> result = new ArrayList<>();
+        for (Stripe stripe : this.stripes) {
+            synchronized (stripe) {
+                for (Tunnel tunnel : stripe.tunnels.values()) {
+                    if (filter.test(tunnel)) {
+                        result.add(tunnel);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private static final class Stripe {
+        private final Map<Long, Tunnel> tunnels = new HashMap<>();
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.upstream;
+
+import io.netty.channel.Channel;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.Promise;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.ToString;
+import lombok.experimental.Accessors;
+import net.daporkchop.turbotunnel.loadbalance.ConnectionContext;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+
+/**
+ * A group of {@link UpstreamProxy}s which share the load of the destinations routed to the group.
+ * <p>
+ * New tunnels go through the healthy upstream proxy with the fewest open tunnels. If connecting to the chosen upstream proxy fails, one other upstream
+ * proxy is tried before giving up.
+ *
+ * @author DaPorkchop_
+ */
+@ToString(of = "proxies")
+@Getter
+@Accessors(fluent = true)
+public final class UpstreamGroup {
+    /**
+     * A placeholder group for destinations which should be connected to directly.
+     */
+    static final UpstreamGroup DIRECT = new UpstreamGroup();
+
+    private final List<UpstreamProxy> proxies;
+    private final AtomicInteger offset = new AtomicInteger();
+
+    private UpstreamGroup() {
+        this.proxies = Collections.emptyList();
+    }
+
+    public UpstreamGroup(@NonNull List<UpstreamProxy> proxies) {
+        checkArg(!proxies.isEmpty(), "an upstream group must contain at least one proxy!");
+        this.proxies = proxies;
+    }
+
+    /**
+     * Opens a tunnel to the given destination through one of the upstream proxies in this group.
+     *
+     * @param executor the executor which the returned {@link Future} will be notified on
+     * @param context  the connection requested by the client
+     * @return a {@link Future} which will be completed with the tunnel's channel
+     */
+    public Future<Channel> connect(@NonNull EventExecutor executor, @NonNull ConnectionContext context) {
+        UpstreamProxy first = this.choose(null);
+        Promise<Channel> promise = executor.newPromise();
+        first.connect(executor, context).addListener((GenericFutureListener<Future<Channel>>) f -> {
+            if (f.isSuccess()) {
+                promise.trySuccess(f.getNow());
+            } else if (f.cause() instanceof UpstreamRequestException || this.proxies.size() == 1) {
+                promise.tryFailure(f.cause());
+            } else { //the upstream proxy itself failed, fail over to a different one
+                this.choose(first).connect(executor, context).addListener((GenericFutureListener<Future<Channel>>) f2 -> {
+                    if (f2.isSuccess()) {
+                        promise.trySuccess(f2.getNow());
+                    } else {
+                        promise.tryFailure(f2.cause());
+                    }
+                });
+            }
+        });
+        return promise;
+    }
+
+    private UpstreamProxy choose(UpstreamProxy exclude) {
+        int size = this.proxies.size();
+        int offset = (this.offset.getAndIncrement() & Integer.MAX_VALUE) % size; //rotate the starting point so that ties are spread evenly
+
+        UpstreamProxy best = null;
+        UpstreamProxy fallback = null;
+        for (int i = 0; i < size; i++) {
+            UpstreamProxy proxy = this.proxies.get((offset + i) % size);
+            if (proxy == exclude) {
+                continue;
+            } else if (fallback == null) {
+                fallback = proxy;
+            }
+            if (proxy.healthy() && (best == null || proxy.active() < best.active())) {
+                best = proxy;
+            }
+        }
+
+        //if nothing is healthy, try anyway rather than failing outright
+        return best != null ? best : fallback != null ? fallback : exclude;
+    }
+}
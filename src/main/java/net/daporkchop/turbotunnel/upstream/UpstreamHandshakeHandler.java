@@ -0,0 +1,354 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.upstream;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.haproxy.HAProxyMessage;
+import io.netty.util.NetUtil;
+import io.netty.util.concurrent.Promise;
+import lombok.NonNull;
+import net.daporkchop.turbotunnel.protocol.socks.SOCKS5Authentication;
+import net.daporkchop.turbotunnel.protocol.socks.SOCKS5Status;
+import net.daporkchop.turbotunnel.util.BiDirectionalSocketConnector;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+import static net.daporkchop.turbotunnel.protocol.socks.SOCKS5.*;
+
+/**
+ * Performs the client side of a handshake with an {@link UpstreamProxy}.
+ * <p>
+ * The handshake happens in two steps: {@link #prepare(Promise)} connects and authenticates, leaving the connection idle and ready to be used. Later,
+ * {@link #request(InetSocketAddress, Promise)} asks the upstream proxy to connect to a destination, after which this handler removes itself from
+ * the pipeline. This allows connections to be prepared ahead of time, so that only the final request round trip remains when a client needs one.
+ * <p>
+ * All methods must be called from the channel's event loop.
+ *
+ * @author DaPorkchop_
+ */
+final class UpstreamHandshakeHandler extends ChannelInboundHandlerAdapter {
+    private static final ByteBuf HTTP_HEADERS_END = Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer("\r\n\r\n".getBytes(StandardCharsets.US_ASCII)));
+
+    private final UpstreamProxy proxy;
+
+    private ChannelHandlerContext ctx;
+    private ByteBuf cumulation;
+    private Stage stage = Stage.CONNECTING;
+    private Promise<Channel> promise;
+
+    public UpstreamHandshakeHandler(@NonNull UpstreamProxy proxy) {
+        this.proxy = proxy;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+        this.cumulation = ctx.alloc().buffer();
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        if (this.cumulation != null) {
+            this.cumulation.release();
+            this.cumulation = null;
+        }
+    }
+
+    /**
+     * Starts authenticating with the upstream proxy, once the TCP connection has been established.
+     *
+     * @param header  the PROXY protocol header to send first, or {@code null} if none should be sent
+     * @param promise a promise which will be completed with the channel once it is ready to be used
+     */
+    public void prepare(HAProxyMessage header, @NonNull Promise<Channel> promise) {
+        checkState(this.stage == Stage.CONNECTING, this.stage);
+        this.promise = promise;
+
+        if (header != null) { //the header is encoded by the encoder in front of this handler, which isn't needed any more afterwards. it will
+            // be flushed together with the first handshake message
+            this.ctx.write(header);
+            this.ctx.pipeline().remove("haproxy");
+        }
+
+        switch (this.proxy.type()) {
+            case SOCKS5: {
+                this.stage = Stage.GREETING;
+                ByteBuf buf = this.ctx.alloc().ioBuffer();
+                buf.writeByte(VERSION);
+                if (this.proxy.username() != null) {
+                    buf.writeByte(2);
+                    buf.writeByte(SOCKS5Authentication.NO_AUTHENTICATION.ordinal());
+                    buf.writeByte(SOCKS5Authentication.USERNAME_PASSWORD.ordinal());
+                } else {
+                    buf.writeByte(1);
+                    buf.writeByte(SOCKS5Authentication.NO_AUTHENTICATION.ordinal());
+                }
+                this.ctx.writeAndFlush(buf);
+                this.ctx.read();
+            }
+            break;
+            case HTTP: //credentials are sent along with the CONNECT request
+                this.ready();
+                break;
+            default:
+                throw new IllegalStateException(String.valueOf(this.proxy.type()));
+        }
+    }
+
+    /**
+     * Asks the upstream proxy to connect to the given destination.
+     *
+     * @param target  the destination
+     * @param promise a promise which will be completed with the channel once the upstream proxy has connected to the destination
+     */
+    public void request(@NonNull InetSocketAddress target, @NonNull Promise<Channel> promise) {
+        if (!this.ctx.channel().isActive()) {
+            promise.tryFailure(new ClosedChannelException());
+            return;
+        }
+        try {
+            checkTarget(target);
+        } catch (IllegalArgumentException e) {
+            promise.tryFailure(e);
+            return;
+        }
+        checkState(this.stage == Stage.READY, this.stage);
+        this.promise = promise;
+        this.stage = Stage.REQUEST;
+
+        ByteBuf buf = this.ctx.alloc().ioBuffer();
+        switch (this.proxy.type()) {
+            case SOCKS5: {
+                buf.writeByte(VERSION).writeByte(1).writeByte(0); //VER, CMD = TCP_CONNECT, RSV
+                if (target.isUnresolved()) {
+                    byte[] hostname = target.getHostString().getBytes(StandardCharsets.US_ASCII); //checkTarget ensures that this is printable ASCII
+                    buf.writeByte(TYPE_DOMAIN).writeByte(hostname.length).writeBytes(hostname);
+                } else {
+                    buf.writeByte(target.getAddress() instanceof Inet4Address ? TYPE_IPV4 : TYPE_IPV6).writeBytes(target.getAddress().getAddress());
+                }
+                buf.writeShort(target.getPort());
+            }
+            break;
+            case HTTP: {
+                String hostPort = NetUtil.toSocketAddressString(target.isUnresolved() ? target.getHostString() : target.getAddress().getHostAddress(), target.getPort());
+                buf.writeCharSequence("CONNECT " + hostPort + " HTTP/1.1\r\nHost: " + hostPort + "\r\n", StandardCharsets.US_ASCII);
+                if (this.proxy.username() != null) {
+                    String credentials = this.proxy.username() + ':' + this.proxy.password();
+                    buf.writeCharSequence("Proxy-Authorization: Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8)) + "\r\n", StandardCharsets.US_ASCII);
+                }
+                buf.writeCharSequence("\r\n", StandardCharsets.US_ASCII);
+            }
+            break;
+            default:
+                throw new IllegalStateException(String.valueOf(this.proxy.type()));
+        }
+        this.ctx.writeAndFlush(buf);
+        this.ctx.read();
+    }
+
+    /**
+     * Checks that the given destination may be sent to an upstream proxy.
+     * <p>
+     * Hostnames are sent to the upstream proxy as-is, so they must not contain anything which could be used to inject extra headers into an HTTP
+     * {@code CONNECT} request, and must fit into a SOCKS5 request.
+     *
+     * @param target the destination
+     * @throws IllegalArgumentException if the destination's hostname is too long or contains whitespace or non-printable characters
+     */
+    static void checkTarget(@NonNull InetSocketAddress target) {
+        if (target.isUnresolved()) {
+            String hostname = target.getHostString();
+            checkArg(!hostname.isEmpty() && hostname.length() <= 255, "invalid hostname length: %s", hostname.length());
+            for (int i = 0; i < hostname.length(); i++) {
+                char c = hostname.charAt(i);
+                checkArg(c > ' ' && c < 0x7F, "invalid character in hostname: 0x%02x", (int) c);
+            }
+        }
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        checkState(msg instanceof ByteBuf, "invalid message");
+        try {
+            this.cumulation.writeBytes((ByteBuf) msg);
+        } finally {
+            ((ByteBuf) msg).release();
+        }
+
+        if (!this.process()) { //we need more data
+            ctx.read();
+        }
+    }
+
+    /**
+     * @return whether or not the current stage has been completed
+     */
+    private boolean process() throws Exception {
+        ByteBuf buf = this.cumulation;
+        switch (this.stage) {
+            case GREETING: {
+                if (buf.readableBytes() < 2) {
+                    return false;
+                }
+                checkState(buf.readByte() == VERSION, "Invalid version!");
+                int auth = buf.readByte() & 0xFF;
+                if (auth == SOCKS5Authentication.NO_AUTHENTICATION.ordinal()) {
+                    this.ready();
+                } else if (auth == SOCKS5Authentication.USERNAME_PASSWORD.ordinal() && this.proxy.username() != null) {
+                    this.stage = Stage.AUTHENTICATING;
+                    byte[] username = this.proxy.username().getBytes(StandardCharsets.UTF_8);
+                    byte[] password = this.proxy.password().getBytes(StandardCharsets.UTF_8);
+                    this.ctx.writeAndFlush(this.ctx.alloc().ioBuffer(3 + username.length + password.length)
+                            .writeByte(USERNAME_PASSWORD_VERSION)
+                            .writeByte(username.length).writeBytes(username)
+                            .writeByte(password.length).writeBytes(password));
+                    return false;
+                } else {
+                    throw new IOException("upstream proxy " + this.proxy.name() + " rejected all authentication methods");
+                }
+            }
+            return true;
+            case AUTHENTICATING: {
+                if (buf.readableBytes() < 2) {
+                    return false;
+                }
+                buf.skipBytes(1);
+                if (buf.readByte() != USERNAME_PASSWORD_SUCCESS) {
+                    throw new IOException("upstream proxy " + this.proxy.name() + " rejected our credentials");
+                }
+                this.ready();
+            }
+            return true;
+            case REQUEST:
+                return this.proxy.type() == UpstreamType.SOCKS5 ? this.processSOCKS5Reply(buf) : this.processHTTPReply(buf);
+            default: //the upstream proxy isn't supposed to be sending anything right now
+                throw new IOException("unexpected data from upstream proxy " + this.proxy.name() + " during " + this.stage);
+        }
+    }
+
+    private boolean processSOCKS5Reply(ByteBuf buf) throws Exception {
+        if (buf.readableBytes() < 5) {
+            return false;
+        }
+
+        int addressLength;
+        switch (buf.getByte(buf.readerIndex() + 3) & 0xFF) {
+            case TYPE_IPV4:
+                addressLength = 4;
+                break;
+            case TYPE_IPV6:
+                addressLength = 16;
+                break;
+            case TYPE_DOMAIN:
+                addressLength = 1 + (buf.getByte(buf.readerIndex() + 4) & 0xFF);
+                break;
+            default:
+                throw new IOException("invalid address type from upstream proxy " + this.proxy.name());
+        }
+        if (buf.readableBytes() < 4 + addressLength + 2) {
+            return false;
+        }
+
+        checkState(buf.readByte() == VERSION, "Invalid version!");
+        int reply = buf.readByte() & 0xFF;
+        buf.skipBytes(2 + addressLength + 2);
+
+        if (reply != SOCKS5Status.REQUEST_GRANTED.ordinal()) {
+            SOCKS5Status status = SOCKS5Status.fromIndex(reply);
+            throw new UpstreamRequestException("upstream proxy " + this.proxy.name() + " replied " + status, status != null ? status : SOCKS5Status.GENERAL_FAILURE);
+        }
+        this.complete();
+        return true;
+    }
+
+    private boolean processHTTPReply(ByteBuf buf) throws Exception {
+        int end = ByteBufUtil.indexOf(HTTP_HEADERS_END, buf);
+        if (end < 0) {
+            return false;
+        }
+
+        String response = buf.readCharSequence(end + HTTP_HEADERS_END.readableBytes() - buf.readerIndex(), StandardCharsets.US_ASCII).toString();
+        String status = response.substring(0, response.indexOf('\r'));
+        String[] split = status.split(" ", 3);
+        if (split.length < 2 || !split[0].startsWith("HTTP/1.") || !"200".equals(split[1])) {
+            throw new UpstreamRequestException("upstream proxy " + this.proxy.name() + " replied " + status,
+                    split.length >= 2 && "403".equals(split[1]) ? SOCKS5Status.CONNECTION_NOT_ALLOWED : SOCKS5Status.GENERAL_FAILURE);
+        }
+        this.complete();
+        return true;
+    }
+
+    private void ready() {
+        this.stage = Stage.READY;
+        Promise<Channel> promise = this.promise;
+        this.promise = null;
+        promise.trySuccess(this.ctx.channel());
+    }
+
+    private void complete() {
+        this.stage = Stage.COMPLETE;
+        Channel channel = this.ctx.channel();
+        if (this.cumulation.isReadable()) { //the destination already started sending data, it is released if the channel is closed before being relayed
+            BiDirectionalSocketConnector.setPendingData(channel, this.cumulation.readRetainedSlice(this.cumulation.readableBytes()));
+        }
+        channel.pipeline().remove(this);
+
+        Promise<Channel> promise = this.promise;
+        this.promise = null;
+        promise.trySuccess(channel);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (this.promise != null) {
+            this.promise.tryFailure(new ClosedChannelException());
+        }
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        if (this.promise == null || !this.promise.tryFailure(cause)) {
+            cause.printStackTrace();
+        }
+        ctx.close();
+    }
+
+    private enum Stage {
+        CONNECTING,
+        GREETING,
+        AUTHENTICATING,
+        READY,
+        REQUEST,
+        COMPLETE;
+    }
+}
@@ -0,0 +1,397 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.upstream;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelInitializer;
+import io.netty.handler.codec.haproxy.HAProxyCommand;
+import io.netty.handler.codec.haproxy.HAProxyMessage;
+import io.netty.handler.codec.haproxy.HAProxyMessageEncoder;
+import io.netty.handler.codec.haproxy.HAProxyProtocolVersion;
+import io.netty.handler.codec.haproxy.HAProxyProxiedProtocol;
+import io.netty.util.NetUtil;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import io.netty.util.concurrent.Promise;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.ToString;
+import lombok.experimental.Accessors;
+import net.daporkchop.turbotunnel.loadbalance.ConnectionContext;
+import net.daporkchop.turbotunnel.mux.MuxClient;
+import net.daporkchop.turbotunnel.mux.MuxSettings;
+
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+
+/**
+ * A parent proxy which connections can be routed through.
+ * <p>
+ * Each upstream proxy keeps a small pool of warm connections, which have already been connected and authenticated and are only waiting for a
+ * destination. The pool is refilled in the background whenever a connection is taken from it.
+ * <p>
+ * An upstream proxy is considered unhealthy after {@link #MAX_FAILURES} consecutive connection or handshake failures, and will be avoided by its
+ * {@link UpstreamGroup} until a health check succeeds.
+ * <p>
+ * If configured to, a PROXY protocol header containing the real address of the client is sent at the start of every connection. As the header
+ * has to be sent before the handshake, such upstream proxies don't keep any warm connections.
+ * <p>
+ * Tunnels through another TurboTunnel node are multiplexed over a few long-lived links by a {@link MuxClient} instead, so there are no warm
+ * connections either.
+ *
+ * @author DaPorkchop_
+ */
+@ToString(of = {"name", "type", "address"})
+@Accessors(fluent = true)
+public final class UpstreamProxy {
+    public static final int MAX_FAILURES = 3;
+
+    @Getter
+    private final String name;
+    @Getter
+    private final UpstreamType type;
+    @Getter
+    private final InetSocketAddress address;
+    @Getter
+    private final String username;
+    @Getter
+    private final String password;
+    /**
+     * The version of the PROXY protocol header to send, or {@code null} if none should be sent.
+     */
+    @Getter
+    private final HAProxyProtocolVersion proxyProtocol;
+
+    private final Bootstrap bootstrap;
+    /**
+     * The client which opens tunnels through another TurboTunnel node, or {@code null} if this is a regular proxy.
+     */
+    private final MuxClient mux;
+    private final int warmTarget;
+    private final long maxIdle;
+
+    private final Deque<WarmConnection> warm = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger warming = new AtomicInteger();
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private volatile boolean healthy = true;
+
+    UpstreamProxy(@NonNull String name, @NonNull UpstreamType type, @NonNull InetSocketAddress address, String username, String password,
+                  HAProxyProtocolVersion proxyProtocol, MuxSettings mux, @NonNull Bootstrap bootstrap, int warmTarget, long maxIdle, @NonNull TimeUnit unit) {
+        checkArg(type != UpstreamType.TURBOTUNNEL || proxyProtocol == null, "the PROXY protocol can't be used with TurboTunnel upstreams!");
+        checkArg((type == UpstreamType.TURBOTUNNEL) == (mux != null), "mux settings must be given for TurboTunnel upstreams only!");
+        this.name = name;
+        this.type = type;
+        this.address = address;
+        this.username = username;
+        this.password = password;
+        this.proxyProtocol = proxyProtocol;
+        this.mux = mux != null ? new MuxClient(address, mux, bootstrap) : null;
+        this.warmTarget = proxyProtocol == null && mux == null ? warmTarget : 0;
+        this.maxIdle = unit.toNanos(maxIdle);
+
+        this.bootstrap = bootstrap.clone()
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) throws Exception {
+                        if (proxyProtocol != null) {
+                            ch.pipeline().addLast("haproxy", HAProxyMessageEncoder.INSTANCE);
+                        }
+                        ch.pipeline().addLast("upstream", new UpstreamHandshakeHandler(UpstreamProxy.this));
+                    }
+                });
+    }
+
+    /**
+     * @return whether or not this upstream proxy is currently healthy
+     */
+    public boolean healthy() {
+        return this.healthy;
+    }
+
+    /**
+     * @return the number of tunnels currently open through this upstream proxy
+     */
+    public int active() {
+        return this.active.get();
+    }
+
+    /**
+     * @return the number of warm connections which are currently ready to be used
+     */
+    public int warm() {
+        return this.warm.size();
+    }
+
+    /**
+     * @return the number of links which are currently open to this upstream, or {@code 0} if it isn't a TurboTunnel node
+     */
+    public int links() {
+        return this.mux != null ? this.mux.links() : 0;
+    }
+
+    /**
+     * Opens a tunnel to the given destination through this upstream proxy.
+     *
+     * @param executor the executor which the returned {@link Future} will be notified on
+     * @param context  the connection requested by the client
+     * @return a {@link Future} which will be completed with the tunnel's channel
+     */
+    public Future<Channel> connect(@NonNull EventExecutor executor, @NonNull ConnectionContext context) {
+        Promise<Channel> promise = executor.newPromise();
+        if (this.mux != null) {
+            this.mux.open(executor, context).addListener((GenericFutureListener<Future<Channel>>) f -> {
+                if (f.isSuccess()) {
+                    this.success();
+                    this.countActive(f.getNow());
+                    if (!promise.trySuccess(f.getNow())) {
+                        f.getNow().close();
+                    }
+                } else {
+                    if (!(f.cause() instanceof UpstreamRequestException)) { //the destination was refused, but the node itself is fine
+                        this.failure(f.cause());
+                    }
+                    promise.tryFailure(f.cause());
+                }
+            });
+            return promise;
+        }
+
+        InetSocketAddress target = context.target();
+        try {
+            UpstreamHandshakeHandler.checkTarget(target); //check before taking a warm connection, which would be wasted
+        } catch (IllegalArgumentException e) {
+            return executor.newFailedFuture(e);
+        }
+
+        WarmConnection connection;
+        do {
+            connection = this.warm.poll();
+        } while (connection != null && !connection.channel.isActive());
+
+        if (connection != null) {
+            this.request(connection.channel, context, promise, true);
+            this.refill();
+        } else {
+            this.open(context).addListener((GenericFutureListener<Future<Channel>>) f -> {
+                if (f.isSuccess()) {
+                    this.request(f.getNow(), context, promise, false);
+                } else {
+                    promise.tryFailure(f.cause());
+                }
+            });
+        }
+
+        promise.addListener((GenericFutureListener<Future<Channel>>) f -> {
+            if (f.isSuccess()) {
+                this.countActive(f.getNow());
+            }
+        });
+        return promise;
+    }
+
+    private void countActive(Channel channel) {
+        this.active.incrementAndGet();
+        channel.closeFuture().addListener(cf -> this.active.decrementAndGet());
+    }
+
+    private void request(Channel channel, ConnectionContext context, Promise<Channel> promise, boolean fromPool) {
+        Promise<Channel> requestPromise = channel.eventLoop().newPromise();
+        requestPromise.addListener((GenericFutureListener<Future<Channel>>) f -> {
+            if (f.isSuccess()) {
+                promise.trySuccess(f.getNow());
+            } else if (fromPool && f.cause() instanceof ClosedChannelException) {
+                //the upstream proxy closed the idle connection before we could use it, try again with a fresh one
+                this.open(context).addListener((GenericFutureListener<Future<Channel>>) of -> {
+                    if (of.isSuccess()) {
+                        this.request(of.getNow(), context, promise, false);
+                    } else {
+                        promise.tryFailure(of.cause());
+                    }
+                });
+            } else {
+                channel.close();
+                promise.tryFailure(f.cause());
+            }
+        });
+        channel.eventLoop().execute(() -> channel.pipeline().get(UpstreamHandshakeHandler.class).request(context.target(), requestPromise));
+    }
+
+    /**
+     * Opens a new connection to this upstream proxy and authenticates with it.
+     *
+     * @param context the connection which the new connection will be used for, or {@code null} if it isn't known yet
+     * @return a {@link Future} which will be completed with the channel once it is ready to be used
+     */
+    private Future<Channel> open(ConnectionContext context) {
+        Promise<Channel> promise = ImmediateEventExecutor.INSTANCE.newPromise();
+        ChannelFuture future = this.bootstrap.connect(this.address);
+        Channel channel = future.channel();
+        future.addListener((ChannelFutureListener) f -> {
+            if (f.isSuccess()) {
+                channel.pipeline().get(UpstreamHandshakeHandler.class).prepare(this.proxyProtocol != null ? this.header(context) : null, promise);
+            } else {
+                promise.tryFailure(f.cause());
+            }
+        });
+        promise.addListener(f -> {
+            if (f.isSuccess()) {
+                this.success();
+            } else {
+                channel.close();
+                this.failure(f.cause());
+            }
+        });
+        return promise;
+    }
+
+    /**
+     * Builds the PROXY protocol header to send for the given connection.
+     *
+     * @param context the connection, or {@code null} if it isn't known
+     */
+    private HAProxyMessage header(ConnectionContext context) {
+        if (context != null && context.clientAddress().getAddress().getClass() == context.serverAddress().getAddress().getClass()) {
+            return new HAProxyMessage(this.proxyProtocol, HAProxyCommand.PROXY,
+                    context.clientAddress().getAddress() instanceof Inet4Address ? HAProxyProxiedProtocol.TCP4 : HAProxyProxiedProtocol.TCP6,
+                    NetUtil.toAddressString(context.clientAddress().getAddress()), NetUtil.toAddressString(context.serverAddress().getAddress()),
+                    context.clientAddress().getPort(), context.serverAddress().getPort());
+        } else { //the addresses can't be represented (e.g. health checks), tell the upstream proxy to use the connection's own address
+            return new HAProxyMessage(this.proxyProtocol, this.proxyProtocol == HAProxyProtocolVersion.V1 ? HAProxyCommand.PROXY : HAProxyCommand.LOCAL,
+                    HAProxyProxiedProtocol.UNKNOWN, null, null, 0, 0);
+        }
+    }
+
+    private void success() {
+        this.failures.set(0);
+        if (!this.healthy) {
+            this.healthy = true;
+            System.out.printf("Upstream proxy %s is healthy again\n", this);
+        }
+    }
+
+    private void failure(Throwable cause) {
+        if (this.failures.incrementAndGet() >= MAX_FAILURES && this.healthy) {
+            this.healthy = false;
+            System.out.printf("Upstream proxy %s marked unhealthy: %s\n", this, cause);
+        }
+    }
+
+    /**
+     * Opens new warm connections until the pool is full.
+     */
+    void refill() {
+        if (!this.healthy) {
+            return;
+        }
+
+        while (true) {
+            int warming = this.warming.get();
+            if (this.warm.size() + warming >= this.warmTarget) {
+                return;
+            } else if (this.warming.compareAndSet(warming, warming + 1)) {
+                this.open(null).addListener((GenericFutureListener<Future<Channel>>) f -> {
+                    this.warming.decrementAndGet();
+                    if (f.isSuccess()) {
+                        this.warm.add(new WarmConnection(f.getNow(), System.nanoTime()));
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Closes expired warm connections, checks the health of this upstream proxy if it is unhealthy and refills the pool.
+     */
+    void maintain() {
+        if (this.mux != null) {
+            this.mux.maintain().addListener(f -> {
+                if (f.isSuccess()) {
+                    this.success();
+                } else {
+                    this.failure(f.cause());
+                }
+            });
+            return;
+        }
+
+        long now = System.nanoTime();
+        this.warm.removeIf(connection -> {
+            if (!connection.channel.isActive()) {
+                return true;
+            } else if (now - connection.created >= this.maxIdle) {
+                connection.channel.close();
+                return true;
+            } else {
+                return false;
+            }
+        });
+
+        if (this.healthy) {
+            this.refill();
+        } else if (this.warming.compareAndSet(0, 1)) { //probe the upstream proxy with a single connection
+            this.open(null).addListener((GenericFutureListener<Future<Channel>>) f -> {
+                this.warming.decrementAndGet();
+                if (f.isSuccess()) {
+                    if (this.warmTarget > 0) {
+                        this.warm.add(new WarmConnection(f.getNow(), System.nanoTime()));
+                    } else {
+                        f.getNow().close();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Closes all warm connections.
+     */
+    void close() {
+        if (this.mux != null) {
+            this.mux.close();
+        }
+        for (WarmConnection connection; (connection = this.warm.poll()) != null; ) {
+            connection.channel.close();
+        }
+    }
+
+    private static final class WarmConnection {
+        private final Channel channel;
+        private final long created;
+
+        public WarmConnection(@NonNull Channel channel, long created) {
+            this.channel = channel;
+            this.created = created;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.upstream;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.handler.codec.haproxy.HAProxyProtocolVersion;
+import io.netty.util.concurrent.ScheduledFuture;
+import lombok.NonNull;
+import net.daporkchop.turbotunnel.mux.MuxSettings;
+import net.daporkchop.turbotunnel.transport.TransportPool;
+import net.daporkchop.turbotunnel.util.DestinationMatcher;
+import net.daporkchop.turbotunnel.util.NoopChannelInitializer;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+
+/**
+ * Decides which destinations should be reached through upstream proxies rather than being connected to directly.
+ * <p>
+ * Configured using a JSON object of the following form:
+ * <pre>
+ * {
+ *     "proxies": {
+ *         "eu1": {"type": "socks5", "host": "10.0.0.1", "port": 1080, "username": "...", "password": "...", "warm": 4},
+ *         "eu2": {"type": "http", "host": "10.0.0.2", "port": 3128, "proxyProtocol": "v2"}, //optional, "v1" or "v2"
+ *         "edge": {"type": "turbotunnel", "host": "10.0.0.3", "port": 7000, "secret": "...", "links": 2} //see MuxSettings
+ *     },
+ *     "routes": [
+ *         {"match": ["example.com", "192.0.2.0/24"], "via": ["eu1", "eu2"]},
+ *         {"match": ["internal.example.com"], "via": "direct"}
+ *     ],
+ *     "default": ["eu1"], //optional, destinations which don't match any route are connected to directly if absent
+ *     "healthCheckInterval": 10, //seconds
+ *     "maxIdle": 60 //seconds, warm connections which have been idle for longer than this are closed
+ * }
+ * </pre>
+ * Routes are matched by a {@link DestinationMatcher}, so the most specific matching rule wins. If the same rule appears in multiple routes, the
+ * first one wins. Only the hostname (or IP address literal) requested by the client is matched, destinations are never resolved locally in order
+ * to be routed.
+ *
+ * @author DaPorkchop_
+ */
+public final class UpstreamRouter implements AutoCloseable {
+    public static UpstreamRouter fromJson(@NonNull JsonObject obj, @NonNull TransportPool loopGroupPool) {
+        return new UpstreamRouter(obj, loopGroupPool);
+    }
+
+    private final TransportPool loopGroupPool;
+    private final EventLoopGroup loopGroup;
+    private final Map<String, UpstreamProxy> proxies = new HashMap<>();
+    private final DestinationMatcher<UpstreamGroup> routes = new DestinationMatcher<>((a, b) -> a);
+    private final UpstreamGroup defaultRoute;
+    private final ScheduledFuture<?> maintenance;
+
+    private UpstreamRouter(@NonNull JsonObject obj, @NonNull TransportPool loopGroupPool) {
+        this.loopGroupPool = loopGroupPool;
+        this.loopGroup = loopGroupPool.get();
+
+        Bootstrap bootstrap = loopGroupPool.clientBootstrap(this.loopGroup)
+                .option(ChannelOption.SO_KEEPALIVE, true)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.AUTO_READ, false)
+                .handler(NoopChannelInitializer.INSTANCE);
+        long maxIdle = obj.has("maxIdle") ? obj.get("maxIdle").getAsLong() : 60L;
+
+        for (Map.Entry<String, JsonElement> entry : obj.getAsJsonObject("proxies").entrySet()) {
+            JsonObject proxyObj = entry.getValue().getAsJsonObject();
+            UpstreamType type = UpstreamType.valueOf(proxyObj.get("type").getAsString().toUpperCase(Locale.ROOT));
+            this.proxies.put(entry.getKey(), new UpstreamProxy(
+                    entry.getKey(),
+                    type,
+                    InetSocketAddress.createUnresolved(proxyObj.get("host").getAsString(), proxyObj.get("port").getAsInt()),
+                    proxyObj.has("username") ? proxyObj.get("username").getAsString() : null,
+                    proxyObj.has("password") ? proxyObj.get("password").getAsString() : null,
+                    proxyObj.has("proxyProtocol") ? HAProxyProtocolVersion.valueOf(proxyObj.get("proxyProtocol").getAsString().toUpperCase(Locale.ROOT)) : null,
+                    type == UpstreamType.TURBOTUNNEL ? MuxSettings.fromJson(proxyObj) : null,
+                    bootstrap,
+                    proxyObj.has("warm") ? proxyObj.get("warm").getAsInt() : 0,
+                    maxIdle, TimeUnit.SECONDS));
+        }
+
+        if (obj.has("routes")) {
+            for (JsonElement element : obj.getAsJsonArray("routes")) {
+                JsonObject routeObj = element.getAsJsonObject();
+                UpstreamGroup group = this.parseGroup(routeObj.get("via"));
+                for (JsonElement rule : routeObj.getAsJsonArray("match")) {
+                    this.routes.add(rule.getAsString(), group);
+                }
+            }
+        }
+        this.defaultRoute = obj.has("default") ? this.parseGroup(obj.get("default")) : UpstreamGroup.DIRECT;
+
+        long interval = obj.has("healthCheckInterval") ? obj.get("healthCheckInterval").getAsLong() : 10L;
+        this.maintenance = this.loopGroup.next().scheduleAtFixedRate(() -> this.proxies.values().forEach(UpstreamProxy::maintain), 0L, interval, TimeUnit.SECONDS);
+    }
+
+    private UpstreamGroup parseGroup(@NonNull JsonElement element) {
+        if (element.isJsonPrimitive() && "direct".equals(element.getAsString())) {
+            return UpstreamGroup.DIRECT;
+        }
+
+        List<UpstreamProxy> proxies = new ArrayList<>();
+        for (JsonElement name : element.isJsonArray() ? element.getAsJsonArray() : Collections.singletonList(element)) {
+            UpstreamProxy proxy = this.proxies.get(name.getAsString());
+            checkArg(proxy != null, "unknown upstream proxy: %s", name.getAsString());
+            proxies.add(proxy);
+        }
+        return new UpstreamGroup(proxies);
+    }
+
+    /**
+     * Finds the group of upstream proxies which should be used to connect to the given destination.
+     *
+     * @param target the destination
+     * @return the {@link UpstreamGroup}, or {@code null} if the destination should be connected to directly
+     */
+    public UpstreamGroup route(@NonNull InetSocketAddress target) {
+        UpstreamGroup group = this.routes.match(target);
+        if (group == null) {
+            group = this.defaultRoute;
+        }
+        return group != UpstreamGroup.DIRECT ? group : null;
+    }
+
+    @Override
+    public void close() {
+        this.maintenance.cancel(false);
+        this.proxies.values().forEach(UpstreamProxy::close);
+        this.loopGroupPool.release(this.loopGroup);
+    }
+}
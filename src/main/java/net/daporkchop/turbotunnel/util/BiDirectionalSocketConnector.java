@@ -20,51 +20,281 @@
 
 package net.daporkchop.turbotunnel.util;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.socket.ChannelInputShutdownEvent;
+import io.netty.channel.socket.DuplexChannel;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.AttributeKey;
 import lombok.NonNull;
+import net.daporkchop.turbotunnel.capture.TunnelRecorder;
+import net.daporkchop.turbotunnel.jfr.RelayStallEvent;
+import net.daporkchop.turbotunnel.memory.MemoryBudget;
+import net.daporkchop.turbotunnel.tls.TlsContext;
+import net.daporkchop.turbotunnel.tunnel.Tunnel;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import static net.daporkchop.lib.common.util.PValidation.*;
 
 /**
+ * Relays data between two channels.
+ * <p>
+ * Half-closes are propagated: once one side stops sending (shuts down its output), the output of the other channel is shut down as soon as all
+ * data received up to that point has been written. Both channels are closed once both directions have finished, or as soon as either channel
+ * is closed completely.
+ * <p>
+ * Data in flight is accounted for in a {@link MemoryBudget}: a channel is only read from while the amount of data which has been read from it
+ * but not yet written to the other channel is within both the tunnel's and the process' budget.
+ *
  * @author DaPorkchop_
  */
 @ChannelHandler.Sharable
 public class BiDirectionalSocketConnector extends ChannelInboundHandlerAdapter {
+    /**
+     * Data which has already been read from a channel before it was connected (e.g. bytes which arrived together with a handshake reply). If set, it
+     * will be forwarded to the other channel as soon as the channels are connected.
+     * <p>
+     * May only be accessed from the channel's event loop.
+     */
+    public static final AttributeKey<ByteBuf> PENDING_DATA_KEY = AttributeKey.newInstance("pending_data");
+
+    protected static final AtomicReferenceFieldUpdater<BiDirectionalSocketConnector, RelayStallEvent> STALL_A
+            = AtomicReferenceFieldUpdater.newUpdater(BiDirectionalSocketConnector.class, RelayStallEvent.class, "stallA");
+    protected static final AtomicReferenceFieldUpdater<BiDirectionalSocketConnector, RelayStallEvent> STALL_B
+            = AtomicReferenceFieldUpdater.newUpdater(BiDirectionalSocketConnector.class, RelayStallEvent.class, "stallB");
+
+    protected static final int A_FINISHED = 1 << 0;
+    protected static final int B_FINISHED = 1 << 1;
+
     protected final Channel a;
     protected final Channel b;
+    protected final MemoryBudget budget;
+    protected final Tunnel tunnel;
+    protected final TunnelRecorder recorder;
+
+    /**
+     * The number of bytes which have been read from each channel, but not yet written to the other one.
+     */
+    protected final AtomicLong inFlightA = new AtomicLong();
+    protected final AtomicLong inFlightB = new AtomicLong();
+    /**
+     * The total number of bytes which have been forwarded in both directions.
+     */
+    protected final AtomicLong forwarded = new AtomicLong();
 
-    public BiDirectionalSocketConnector(@NonNull Channel a, @NonNull Channel b) {
+    /**
+     * The {@link RelayStallEvent}s for the channels which are currently not being read from because the data in flight exceeds the tunnel's
+     * budget. Only set while the event is enabled.
+     */
+    protected volatile RelayStallEvent stallA;
+    protected volatile RelayStallEvent stallB;
+
+    /**
+     * A bitmask of the directions which have finished, indexed by the channel which was sending.
+     */
+    protected final AtomicInteger finished = new AtomicInteger();
+
+    /**
+     * @param a        the client channel
+     * @param b        the outbound channel
+     * @param budget   the {@link MemoryBudget} to account data in flight against
+     * @param tunnel   the {@link Tunnel} to count forwarded data in, or {@code null}
+     * @param recorder the {@link TunnelRecorder} to pass forwarded data to, or {@code null}
+     */
+    public BiDirectionalSocketConnector(@NonNull Channel a, @NonNull Channel b, @NonNull MemoryBudget budget, Tunnel tunnel, TunnelRecorder recorder) {
         checkArg(a != b, "channels must be distinct!");
         this.a = a;
         this.b = b;
+        this.budget = budget;
+        this.tunnel = tunnel;
+        this.recorder = recorder;
         a.config().setAutoRead(false);
         b.config().setAutoRead(false);
-        a.pipeline().addFirst("forward", this);
-        b.pipeline().addFirst("forward", this);
+        a.config().setRecvByteBufAllocator(budget.relayAllocator());
+        b.config().setRecvByteBufAllocator(budget.relayAllocator());
+        a.config().setOption(ChannelOption.ALLOW_HALF_CLOSURE, true);
+        b.config().setOption(ChannelOption.ALLOW_HALF_CLOSURE, true);
+        addForwardHandler(a.pipeline(), this);
+        addForwardHandler(b.pipeline(), this);
         a.closeFuture().addListener((ChannelFutureListener) f -> b.close());
         b.closeFuture().addListener((ChannelFutureListener) f -> a.close());
-        a.read();
-        b.read();
+        this.forwardPending(a, b);
+        this.forwardPending(b, a);
+    }
+
+    /**
+     * Sets the data which will be forwarded from the given channel once it is connected, releasing any previously set data.
+     * <p>
+     * The data is released if the channel is closed before it could be forwarded. May only be called from the channel's event loop.
+     *
+     * @param channel the channel
+     * @param data    the data, or {@code null} to only release the previously set data
+     */
+    public static void setPendingData(@NonNull Channel channel, ByteBuf data) {
+        ByteBuf previous = channel.attr(PENDING_DATA_KEY).getAndSet(data);
+        if (previous != null) {
+            previous.release();
+        }
+        if (data != null) {
+            channel.closeFuture().addListener((ChannelFutureListener) f -> setPendingData(channel, null));
+        }
+    }
+
+    /**
+     * @return the total number of bytes which have been forwarded in both directions
+     */
+    public long forwarded() {
+        return this.forwarded.get();
+    }
+
+    /**
+     * Adds the handler at the front of the pipeline, but behind the TLS handler (if any) so that it only sees decrypted data.
+     */
+    protected static void addForwardHandler(ChannelPipeline pipeline, ChannelHandler handler) {
+        if (pipeline.get(TlsContext.HANDLER_NAME) != null) {
+            pipeline.addAfter(TlsContext.HANDLER_NAME, "forward", handler);
+        } else {
+            pipeline.addFirst("forward", handler);
+        }
+    }
+
+    protected void forwardPending(Channel src, Channel dst) {
+        //pending data may be appended to from src's event loop until this handler has been added, so it has to be taken from there as well
+        src.eventLoop().execute(() -> {
+            ByteBuf pending = src.attr(PENDING_DATA_KEY).getAndSet(null);
+            if (pending != null) {
+                this.forward(src, dst, pending);
+            } else {
+                this.readIfPossible(src);
+            }
+        });
     }
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
         if (ctx.channel() == this.a)    {
             //System.out.printf("Forwarding message (%s) from %s to %s\n", msg, ctx.channel().remoteAddress(), this.b.remoteAddress());
-            this.b.writeAndFlush(msg).addListener(f -> this.a.read());
+            this.forward(this.a, this.b, msg);
         } else if (ctx.channel() == this.b) {
             //System.out.printf("Forwarding message (%s) from %s to %s\n", msg, ctx.channel().remoteAddress(), this.a.remoteAddress());
-            this.a.writeAndFlush(msg).addListener(f -> this.b.read());
+            this.forward(this.b, this.a, msg);
         } else {
             System.err.println(String.valueOf(ctx.channel()));
             throw new IllegalStateException();
         }
     }
 
+    protected AtomicLong inFlight(Channel src) {
+        return src == this.a ? this.inFlightA : this.inFlightB;
+    }
+
+    protected void forward(Channel src, Channel dst, Object msg) {
+        AtomicLong inFlight = this.inFlight(src);
+        long size = msg instanceof ByteBuf ? ((ByteBuf) msg).readableBytes() : 0L;
+
+        long total = inFlight.addAndGet(size);
+        if (total >= this.budget.tunnelLimit() && total - size < this.budget.tunnelLimit()) {
+            //this message will stop reading from src until enough has been written. the event has to be set before writing, as the write may
+            // complete at any time afterwards.
+            this.stall(src, RelayStallEvent.start(this.a, src == this.a, RelayStallEvent.TUNNEL_BUDGET, total));
+        }
+        this.budget.acquire(size);
+        this.forwarded.addAndGet(size);
+        if (this.tunnel != null) {
+            if (src == this.a) {
+                this.tunnel.sentFromClient(size);
+            } else {
+                this.tunnel.sentToClient(size);
+            }
+        }
+        if (this.recorder != null && msg instanceof ByteBuf) {
+            this.recorder.forwarded(src == this.a, (ByteBuf) msg);
+        }
+        dst.writeAndFlush(msg).addListener((ChannelFutureListener) f -> {
+            long remaining = inFlight.addAndGet(-size);
+            this.budget.release(size);
+            if (!f.isSuccess()) {
+                src.close();
+            } else if (remaining < this.budget.tunnelLimit() && remaining + size >= this.budget.tunnelLimit()) {
+                //this write brought the tunnel back within its budget, resume reading
+                RelayStallEvent event = this.stall(src, null);
+                if (event != null) {
+                    event.commit();
+                }
+                this.readIfPossible(src);
+            }
+        });
+
+        if (total < this.budget.tunnelLimit()) {
+            this.readIfPossible(src);
+        }
+    }
+
+    /**
+     * Replaces the {@link RelayStallEvent} of the given channel.
+     *
+     * @return the previous event
+     */
+    protected RelayStallEvent stall(Channel src, RelayStallEvent event) {
+        return (src == this.a ? STALL_A : STALL_B).getAndSet(this, event);
+    }
+
+    protected void readIfPossible(Channel src) {
+        if (this.budget.hasCapacity()) {
+            src.read();
+            return;
+        }
+
+        RelayStallEvent event = RelayStallEvent.start(this.a, src == this.a, RelayStallEvent.PROCESS_BUDGET, this.inFlight(src).get());
+        if (event != null) {
+            this.budget.pause(() -> {
+                event.commit();
+                src.read();
+            });
+        } else {
+            this.budget.pause(src::read);
+        }
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof ChannelInputShutdownEvent) {
+            Channel src = ctx.channel();
+            Channel dst = src == this.a ? this.b : this.a;
+            int flag = src == this.a ? A_FINISHED : B_FINISHED;
+
+            boolean done = (this.finished.getAndUpdate(i -> i | flag) | flag) == (A_FINISHED | B_FINISHED);
+
+            //wait for all data which has been forwarded so far to be written before touching the other channel, as any writes which are still
+            // pending when its output is shut down or it is closed are discarded
+            dst.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener((ChannelFutureListener) f -> {
+                if (f.isSuccess() && !done && dst instanceof DuplexChannel) {
+                    SslHandler tls = (SslHandler) dst.pipeline().get(TlsContext.HANDLER_NAME);
+                    if (tls != null) { //send close_notify before the FIN, so that the peer knows the data wasn't truncated
+                        tls.closeOutbound().addListener((ChannelFutureListener) f2 -> ((DuplexChannel) dst).shutdownOutput());
+                    } else {
+                        ((DuplexChannel) dst).shutdownOutput();
+                    }
+                } else { //both directions are finished, or the output can't be shut down on its own
+                    this.a.close();
+                    this.b.close();
+                }
+            });
+        } else {
+            super.userEventTriggered(ctx, evt);
+        }
+    }
+
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         this.a.close();
@@ -0,0 +1,113 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.util;
+
+import lombok.NonNull;
+
+import java.util.Arrays;
+import java.util.function.BinaryOperator;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+
+/**
+ * A binary trie which maps IP address prefixes to values.
+ * <p>
+ * Nodes are stored in flat arrays rather than as individual objects, which keeps tens of thousands of prefixes compact and cache-friendly. A lookup
+ * visits at most one node per address bit, regardless of the number of prefixes.
+ *
+ * @author DaPorkchop_
+ */
+public final class CidrTrie<V> {
+    private final int bits;
+    private final BinaryOperator<V> merge;
+
+    //the children of node n are stored at indices (n << 1) and (n << 1) + 1, 0 means no child (the root can never be a child)
+    private int[] children = new int[32];
+    private Object[] values = new Object[16];
+    private int size = 1;
+
+    /**
+     * @param bits  the number of bits in an address
+     * @param merge a function which decides which value to keep if the same prefix is inserted more than once. The existing value is given as
+     *              the first argument.
+     */
+    public CidrTrie(int bits, @NonNull BinaryOperator<V> merge) {
+        this.bits = bits;
+        this.merge = merge;
+    }
+
+    /**
+     * Maps the given prefix to a value.
+     *
+     * @param address      the address bytes
+     * @param prefixLength the number of leading bits of the address which make up the prefix
+     * @param value        the value
+     */
+    @SuppressWarnings("unchecked")
+    public void insert(@NonNull byte[] address, int prefixLength, @NonNull V value) {
+        checkArg(address.length << 3 == this.bits, "address must be %d bits long!", this.bits);
+        checkArg(prefixLength >= 0 && prefixLength <= this.bits, "invalid prefix length: %d", prefixLength);
+
+        int node = 0;
+        for (int i = 0; i < prefixLength; i++) {
+            int index = (node << 1) | bit(address, i);
+            int child = this.children[index];
+            if (child == 0) {
+                child = this.allocate(); //may grow the children array, so it has to happen before the store
+                this.children[index] = child;
+            }
+            node = child;
+        }
+        this.values[node] = this.values[node] == null ? value : this.merge.apply((V) this.values[node], value);
+    }
+
+    /**
+     * Finds the value of the longest prefix matching the given address.
+     *
+     * @param address the address bytes
+     * @return the value, or {@code null} if no prefix matches
+     */
+    @SuppressWarnings("unchecked")
+    public V lookup(@NonNull byte[] address) {
+        int node = 0;
+        Object result = this.values[0];
+        for (int i = 0; i < this.bits; i++) {
+            if ((node = this.children[(node << 1) | bit(address, i)]) == 0) {
+                break;
+            } else if (this.values[node] != null) {
+                result = this.values[node];
+            }
+        }
+        return (V) result;
+    }
+
+    private static int bit(byte[] address, int i) {
+        return (address[i >>> 3] >>> (7 - (i & 7))) & 1;
+    }
+
+    private int allocate() {
+        if (this.size == this.values.length) {
+            this.values = Arrays.copyOf(this.values, this.size << 1);
+            this.children = Arrays.copyOf(this.children, this.size << 2);
+        }
+        return this.size++;
+    }
+}
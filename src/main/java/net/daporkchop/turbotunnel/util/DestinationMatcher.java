@@ -0,0 +1,140 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.util;
+
+import io.netty.util.NetUtil;
+import lombok.NonNull;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.function.BinaryOperator;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+
+/**
+ * Maps destinations to values based on rules, which are either IP prefixes in CIDR notation (a plain address is treated as a single-address
+ * prefix) or domain names (optionally prefixed with {@code *.}), which also match all of their subdomains. When multiple rules match, the most
+ * specific one wins.
+ * <p>
+ * IPv4-mapped IPv6 addresses ({@code ::ffff:a.b.c.d}) are treated as the IPv4 address which they map to, both in rules and in destinations, so that
+ * they can't be used to get around IPv4 rules.
+ *
+ * @author DaPorkchop_
+ */
+public final class DestinationMatcher<V> {
+    private final CidrTrie<V> v4;
+    private final CidrTrie<V> v6;
+    private final DomainTrie<V> domains;
+
+    /**
+     * @param merge a function which decides which value to keep if the same rule is added more than once. The existing value is given as the first
+     *              argument.
+     */
+    public DestinationMatcher(@NonNull BinaryOperator<V> merge) {
+        this.v4 = new CidrTrie<>(32, merge);
+        this.v6 = new CidrTrie<>(128, merge);
+        this.domains = new DomainTrie<>(merge);
+    }
+
+    /**
+     * Adds a new rule.
+     * <p>
+     * This method is not thread-safe, all rules must be added before the matcher is shared with other threads.
+     *
+     * @param rule  the rule, either an IP prefix or a domain
+     * @param value the value for destinations matching the rule
+     */
+    public DestinationMatcher<V> add(@NonNull String rule, @NonNull V value) {
+        int slash = rule.indexOf('/');
+        byte[] address = NetUtil.createByteArrayFromIpAddressString(slash < 0 ? rule : rule.substring(0, slash));
+        if (address != null) {
+            int prefixLength = slash < 0 ? address.length << 3 : Integer.parseInt(rule.substring(slash + 1));
+            if (isIPv4Mapped(address) && prefixLength >= 96) {
+                address = Arrays.copyOfRange(address, 12, 16);
+                prefixLength -= 96;
+            }
+            (address.length == 4 ? this.v4 : this.v6).insert(address, prefixLength, value);
+        } else {
+            checkArg(slash < 0, "invalid rule: %s", rule);
+            String domain = DomainTrie.normalize(rule.startsWith("*.") ? rule.substring(2) : rule);
+            checkArg(!domain.isEmpty(), "invalid rule: %s", rule);
+            this.domains.insert(domain, value);
+        }
+        return this;
+    }
+
+    /**
+     * @return the value of the most specific IP rule matching the given address, or {@code null} if none match
+     */
+    public V matchAddress(@NonNull InetAddress address) {
+        return this.lookup(address.getAddress());
+    }
+
+    /**
+     * @return the value of the most specific domain rule matching the given hostname, or {@code null} if none match
+     */
+    public V matchHostname(@NonNull String hostname) {
+        return this.domains.lookup(DomainTrie.normalize(hostname));
+    }
+
+    /**
+     * Matches the given destination without resolving it. Unresolved destinations are matched against the domain rules, or against the IP rules if
+     * the hostname is an IP address literal.
+     *
+     * @return the value of the most specific rule matching the given destination, or {@code null} if none match
+     */
+    public V match(@NonNull InetSocketAddress destination) {
+        if (!destination.isUnresolved()) {
+            return this.matchAddress(destination.getAddress());
+        }
+
+        String hostname = destination.getHostString();
+        byte[] address = NetUtil.createByteArrayFromIpAddressString(hostname);
+        if (address != null) {
+            return this.lookup(address);
+        } else {
+            return this.matchHostname(hostname);
+        }
+    }
+
+    private V lookup(byte[] address) {
+        if (address.length == 4) {
+            return this.v4.lookup(address);
+        } else if (isIPv4Mapped(address)) {
+            return this.v4.lookup(Arrays.copyOfRange(address, 12, 16));
+        } else {
+            return this.v6.lookup(address);
+        }
+    }
+
+    private static boolean isIPv4Mapped(byte[] address) {
+        if (address.length != 16 || address[10] != (byte) 0xFF || address[11] != (byte) 0xFF) {
+            return false;
+        }
+        for (int i = 0; i < 10; i++) {
+            if (address[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.util;
+
+import lombok.NonNull;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.BinaryOperator;
+
+/**
+ * A trie which maps domain suffixes to values, keyed on the domain's labels in reverse order (so {@code www.example.com} is stored under
+ * {@code com -> example -> www}).
+ * <p>
+ * A value mapped to a domain also applies to all of its subdomains. A lookup visits at most one node per label of the queried name, regardless of
+ * the number of domains.
+ *
+ * @author DaPorkchop_
+ */
+public final class DomainTrie<V> {
+    /**
+     * Normalizes a domain name for use as a key in a {@link DomainTrie}.
+     */
+    public static String normalize(@NonNull String domain) {
+        domain = domain.toLowerCase(Locale.ROOT);
+        return domain.endsWith(".") ? domain.substring(0, domain.length() - 1) : domain;
+    }
+
+    private final Node<V> root = new Node<>();
+    private final BinaryOperator<V> merge;
+
+    /**
+     * @param merge a function which decides which value to keep if the same domain is inserted more than once. The existing value is given as
+     *              the first argument.
+     */
+    public DomainTrie(@NonNull BinaryOperator<V> merge) {
+        this.merge = merge;
+    }
+
+    /**
+     * Maps the given domain to a value.
+     *
+     * @param domain the domain, which must already be normalized
+     * @param value  the value
+     */
+    public void insert(@NonNull String domain, @NonNull V value) {
+        Node<V> node = this.root;
+        for (int end = domain.length(); end > 0; ) {
+            int start = domain.lastIndexOf('.', end - 1);
+            node = node.children.computeIfAbsent(domain.substring(start + 1, end), label -> new Node<>());
+            end = start;
+        }
+        node.value = node.value == null ? value : this.merge.apply(node.value, value);
+    }
+
+    /**
+     * Finds the value of the longest suffix matching the given domain.
+     *
+     * @param domain the domain, which must already be normalized
+     * @return the value, or {@code null} if no suffix matches
+     */
+    public V lookup(@NonNull String domain) {
+        Node<V> node = this.root;
+        V result = node.value;
+        for (int end = domain.length(); end > 0; ) {
+            int start = domain.lastIndexOf('.', end - 1);
+            if ((node = node.children.get(domain.substring(start + 1, end))) == null) {
+                break;
+            } else if (node.value != null) {
+                result = node.value;
+            }
+            end = start;
+        }
+        return result;
+    }
+
+    private static final class Node<V> {
+        private final Map<String, Node<V>> children = new HashMap<>();
+        private V value;
+    }
+}
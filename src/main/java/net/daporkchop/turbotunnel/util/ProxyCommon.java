@@ -20,16 +20,33 @@
 
 package net.daporkchop.turbotunnel.util;
 
-import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelOption;
 import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
 import io.netty.util.concurrent.Promise;
 import lombok.NonNull;
 import lombok.experimental.UtilityClass;
+import net.daporkchop.turbotunnel.acl.AccessControlList;
+import net.daporkchop.turbotunnel.acl.DestinationDeniedException;
+import net.daporkchop.turbotunnel.capture.TrafficCapture;
+import net.daporkchop.turbotunnel.dns.DnsCache;
+import net.daporkchop.turbotunnel.jfr.BalancerEvent;
+import net.daporkchop.turbotunnel.jfr.ConnectEvent;
+import net.daporkchop.turbotunnel.jfr.DnsResolveEvent;
+import net.daporkchop.turbotunnel.limit.DestinationLimiter;
+import net.daporkchop.turbotunnel.loadbalance.ConnectionContext;
+import net.daporkchop.turbotunnel.loadbalance.EgressHealth;
 import net.daporkchop.turbotunnel.loadbalance.InetAddressBalancer;
+import net.daporkchop.turbotunnel.plugin.PluginChain;
+import net.daporkchop.turbotunnel.protocol.ProxyServer;
+import net.daporkchop.turbotunnel.tunnel.Tunnel;
+import net.daporkchop.turbotunnel.tunnel.TunnelRegistry;
+import net.daporkchop.turbotunnel.upstream.UpstreamGroup;
+import net.daporkchop.turbotunnel.upstream.UpstreamRouter;
+import net.daporkchop.turbotunnel.warm.WarmPool;
 
 import java.net.Inet4Address;
 import java.net.Inet6Address;
@@ -37,7 +54,6 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.util.Arrays;
 import java.util.concurrent.ThreadLocalRandom;
-import java.util.function.Supplier;
 
 import static net.daporkchop.lib.common.util.PValidation.checkState;
 
@@ -46,52 +62,236 @@ import static net.daporkchop.lib.common.util.PValidation.checkState;
  */
 @UtilityClass
 public class ProxyCommon {
-    public Future<Channel> openConnectionTo(@NonNull Channel src, @NonNull Supplier<Bootstrap> bootstrapFactory, @NonNull InetSocketAddress address, @NonNull InetAddressBalancer balancer) throws Exception  {
+    public Future<Channel> openConnectionTo(@NonNull Channel src, @NonNull ProxyServer server, @NonNull ConnectionContext context, @NonNull InetAddressBalancer balancer) throws Exception  {
+        return openConnectionTo(src, server, context, balancer, null);
+    }
+
+    /**
+     * Opens a connection for a client.
+     * <p>
+     * Before the connection is opened, the request is checked by the plugins, the access control list and the destination limiter, and the
+     * destination is resolved. {@code admitted} is completed as soon as all of that has passed and only the connection itself remains to be opened,
+     * or once the returned {@link Future} is completed if that happens first (i.e. the request was rejected). This allows protocols to reply to the
+     * client before the connection has been opened without hiding the reason why a request was rejected.
+     *
+     * @param src      the client channel
+     * @param server   the server which the client connected to
+     * @param context  the connection requested by the client
+     * @param balancer the {@link InetAddressBalancer} to choose the local address with
+     * @param admitted the {@link Promise} to complete once the request has been admitted, or {@code null}
+     * @return a {@link Future} which will be notified with the opened channel
+     */
+    public Future<Channel> openConnectionTo(@NonNull Channel src, @NonNull ProxyServer server, @NonNull ConnectionContext context, @NonNull InetAddressBalancer balancer, Promise<Void> admitted) throws Exception  {
+        PluginChain plugins = server.options().plugins();
+        Future<Channel> future = plugins != null
+                ? pluginConnectionTo(src, server, context, balancer, admitted, plugins)
+                : limitConnectionTo(src, server, context, balancer, admitted);
+        if (admitted != null) {
+            future.addListener(f -> admitted.trySuccess(null));
+        }
+        return future;
+    }
+
+    private Future<Channel> pluginConnectionTo(Channel src, ProxyServer server, ConnectionContext context, InetAddressBalancer balancer, Promise<Void> admitted, PluginChain plugins) {
+        //the plugins may change the destination, so the limit is applied to the destination they decided on
+        Promise<Channel> promise = src.eventLoop().newPromise();
+        plugins.apply(src.eventLoop(), context).addListener((GenericFutureListener<Future<ConnectionContext>>) f -> {
+            if (!f.isSuccess()) {
+                promise.tryFailure(f.cause());
+                return;
+            }
+            try {
+                limitConnectionTo(src, server, f.getNow(), balancer, admitted).addListener((GenericFutureListener<Future<Channel>>) cf -> {
+                    if (cf.isSuccess()) {
+                        promise.trySuccess(cf.getNow());
+                    } else {
+                        promise.tryFailure(cf.cause());
+                    }
+                });
+            } catch (Exception e) {
+                promise.tryFailure(e);
+            }
+        });
+        return promise;
+    }
+
+    private Future<Channel> limitConnectionTo(Channel src, ProxyServer server, ConnectionContext context, InetAddressBalancer balancer, Promise<Void> admitted) throws Exception {
+        DestinationLimiter limiter = server.options().destinationLimiter();
+        if (limiter != null) {
+            return limiter.connect(context.target().getHostString(), src, src.eventLoop(), () -> openConnectionTo0(src, server, context, balancer, admitted));
+        } else {
+            return openConnectionTo0(src, server, context, balancer, admitted);
+        }
+    }
+
+    private Future<Channel> openConnectionTo0(Channel src, ProxyServer server, ConnectionContext context, InetAddressBalancer balancer, Promise<Void> admitted) throws Exception {
+        InetSocketAddress address = context.target();
+        AccessControlList acl = server.options().acl();
         InetAddress remoteAddress = address.getAddress();
         //System.out.printf("Choosing binding for remote address: %s\n", state.address());
-        InetAddress[] v4Addresses;
-        InetAddress[] v6Addresses;
+        InetAddress[] allAddresses = null;
         if (remoteAddress == null) {
-            String hostname = address.getHostName();
-            InetAddress[] allAddresses = InetAddress.getAllByName(hostname);
-            System.out.println("Resolved addresses: " + Arrays.toString(allAddresses));
-            v4Addresses = Arrays.stream(allAddresses).filter(Inet4Address.class::isInstance).toArray(InetAddress[]::new);
-            v6Addresses = Arrays.stream(allAddresses).filter(Inet6Address.class::isInstance).toArray(InetAddress[]::new);
-            checkState(v4Addresses.length > 0 || v6Addresses.length > 0, "no remote addresses found...");
-        } else if (remoteAddress instanceof Inet4Address) {
-            v4Addresses = new InetAddress[]{remoteAddress};
-            v6Addresses = new InetAddress[0];
-        } else if (remoteAddress instanceof Inet6Address) {
-            v4Addresses = new InetAddress[0];
-            v6Addresses = new InetAddress[]{remoteAddress};
-        } else {
-            throw new IllegalArgumentException(String.valueOf(remoteAddress));
+            String hostname = address.getHostString();
+            Boolean hostnameAllowed = acl != null ? acl.checkHostname(hostname) : Boolean.TRUE;
+            if (hostnameAllowed == Boolean.FALSE) {
+                return src.eventLoop().newFailedFuture(new DestinationDeniedException(hostname));
+            } else if (acl != null && (hostnameAllowed == null || !acl.domainsOverrideAddresses())) {
+                //only use the resolved addresses which are allowed, so that an allowed hostname can't be used to reach a denied address
+                allAddresses = Arrays.stream(resolve(server.options().dns(), hostname)).filter(a -> acl.isAllowed(a, hostnameAllowed)).toArray(InetAddress[]::new);
+                if (allAddresses.length == 0) {
+                    return src.eventLoop().newFailedFuture(new DestinationDeniedException(hostname));
+                }
+            }
+        } else if (acl != null && !acl.isAllowed(remoteAddress)) {
+            return src.eventLoop().newFailedFuture(new DestinationDeniedException(remoteAddress.getHostAddress()));
+        }
+
+        UpstreamRouter router = server.options().upstream();
+        UpstreamGroup upstream = router != null ? router.route(address) : null;
+        if (upstream != null) {
+            if (allAddresses != null) { //the upstream would resolve the hostname again, possibly to an address which wasn't checked
+                context = new ConnectionContext(context.clientAddress(), context.serverAddress(), context.user(),
+                        new InetSocketAddress(allAddresses[ThreadLocalRandom.current().nextInt(allAddresses.length)], address.getPort()));
+            }
+            System.out.printf("Connecting to %s via %s\n", context.target(), upstream);
+            admit(admitted);
+            return track(upstream.connect(src.eventLoop(), context), ConnectEvent.start(address, upstream.toString()));
+        }
+
+        if (allAddresses == null) {
+            allAddresses = remoteAddress != null ? new InetAddress[]{remoteAddress} : resolve(server.options().dns(), address.getHostString());
         }
+        int v4Count = 0;
+        for (InetAddress candidate : allAddresses) {
+            if (candidate instanceof Inet4Address) {
+                v4Count++;
+            }
+        }
+        int v6Count = allAddresses.length - v4Count;
 
-        InetAddress localAddress = balancer.next(v4Addresses.length > 0, v6Addresses.length > 0);
+        BalancerEvent balancerEvent = BalancerEvent.start(balancer, address, v4Count > 0, v6Count > 0);
+        InetAddress localAddress = balancer.next(context, v4Count > 0, v6Count > 0);
+        if (balancerEvent != null) {
+            balancerEvent.finish(localAddress);
+        }
         if (localAddress instanceof Inet4Address)   {
-            remoteAddress = v4Addresses[ThreadLocalRandom.current().nextInt(v4Addresses.length)];
+            remoteAddress = pick(allAddresses, Inet4Address.class, ThreadLocalRandom.current().nextInt(v4Count));
         } else if (localAddress instanceof Inet6Address)   {
-            remoteAddress = v6Addresses[ThreadLocalRandom.current().nextInt(v6Addresses.length)];
+            remoteAddress = pick(allAddresses, Inet6Address.class, ThreadLocalRandom.current().nextInt(v6Count));
         } else {
             throw new IllegalArgumentException(String.valueOf(localAddress));
         }
 
+        admit(admitted);
+        EgressHealth egress = server.options().egress();
+        WarmPool warmPool = server.options().warmPool();
+        if (warmPool != null) {
+            InetSocketAddress resolvedAddress = new InetSocketAddress(remoteAddress, address.getPort());
+            warmPool.record(localAddress, resolvedAddress);
+            Channel channel = warmPool.poll(localAddress, resolvedAddress);
+            if (channel != null) {
+                System.out.printf("Using warm connection to %s from %s\n", remoteAddress, localAddress);
+                if (egress != null) {
+                    egress.success(localAddress);
+                }
+                return track(src.eventLoop().newSucceededFuture(channel), ConnectEvent.start(address, ConnectEvent.WARM));
+            }
+        }
+
         Promise<Channel> promise = src.eventLoop().newPromise();
+        ConnectEvent event = ConnectEvent.start(address, ConnectEvent.DIRECT);
+        if (event != null) {
+            track(promise, event.addresses(localAddress, new InetSocketAddress(remoteAddress, address.getPort())));
+        }
 
         System.out.printf("Connecting to %s from %s\n", remoteAddress, localAddress);
 
-        ChannelFuture future = bootstrapFactory.get()
+        ChannelFuture future = server.getClientBootstrap()
                 .localAddress(localAddress, 0)
                 .option(ChannelOption.AUTO_READ, false)
                 .connect(remoteAddress, address.getPort())
                 .addListener((ChannelFutureListener) f -> {
                     if (f.isSuccess()) {
+                        if (egress != null) {
+                            egress.success(localAddress);
+                        }
                         promise.trySuccess(f.channel());
                     } else {
+                        if (egress != null) {
+                            egress.failure(localAddress, f.cause());
+                        }
                         promise.tryFailure(f.cause());
                     }
                 });
         return promise;
     }
+
+    private void admit(Promise<Void> admitted) {
+        if (admitted != null) {
+            admitted.trySuccess(null);
+        }
+    }
+
+    /**
+     * Finishes the given event once the connection attempt completes.
+     *
+     * @param future the connection attempt
+     * @param event  the event, or {@code null} if it is disabled
+     * @return the connection attempt
+     */
+    private Future<Channel> track(Future<Channel> future, ConnectEvent event) {
+        if (event != null) {
+            future.addListener((GenericFutureListener<Future<Channel>>) event::finish);
+        }
+        return future;
+    }
+
+    /**
+     * @return the {@code index}-th address of the given family
+     */
+    private InetAddress pick(InetAddress[] addresses, Class<? extends InetAddress> family, int index) {
+        for (InetAddress address : addresses) {
+            if (family.isInstance(address) && index-- == 0) {
+                return address;
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    /**
+     * Starts relaying data between a client and the channel which was opened for it, and registers the tunnel.
+     *
+     * @param client  the client channel
+     * @param remote  the outbound channel
+     * @param server  the server which the client connected to
+     * @param context the connection requested by the client
+     */
+    public void relay(@NonNull Channel client, @NonNull Channel remote, @NonNull ProxyServer server, @NonNull ConnectionContext context) {
+        TunnelRegistry tunnels = server.options().tunnels();
+        Tunnel tunnel = tunnels != null ? tunnels.register(client, remote, context) : null;
+        TrafficCapture capture = server.options().capture();
+        BiDirectionalSocketConnector connector = new BiDirectionalSocketConnector(client, remote, server.options().memory(), tunnel, capture != null ? capture.record(client, remote, server, context) : null);
+        WarmPool.detach(remote);
+
+        EgressHealth egress = server.options().egress();
+        if (egress != null && remote.localAddress() instanceof InetSocketAddress) {
+            InetAddress sourceAddress = ((InetSocketAddress) remote.localAddress()).getAddress();
+            remote.closeFuture().addListener((ChannelFutureListener) f -> egress.bytes(sourceAddress, connector.forwarded()));
+        }
+    }
+
+    private InetAddress[] resolve(DnsCache dns, @NonNull String hostname) throws Exception {
+        DnsResolveEvent event = DnsResolveEvent.start(hostname);
+        InetAddress[] allAddresses = null;
+        try {
+            allAddresses = dns != null ? dns.resolve(hostname) : InetAddress.getAllByName(hostname);
+        } finally {
+            if (event != null) {
+                event.finish(allAddresses);
+            }
+        }
+        System.out.println("Resolved addresses: " + Arrays.toString(allAddresses));
+        checkState(allAddresses.length > 0, "no remote addresses found...");
+        return allAddresses;
+    }
 }
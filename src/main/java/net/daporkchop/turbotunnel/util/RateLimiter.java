@@ -0,0 +1,65 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.util;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+
+/**
+ * A simple token bucket rate limiter.
+ *
+ * @author DaPorkchop_
+ */
+public final class RateLimiter {
+    private final double ratePerNano;
+    private final double burst;
+
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    /**
+     * @param ratePerSecond the number of permits which are added to the bucket every second
+     * @param burst         the maximum number of permits which may be stored in the bucket
+     */
+    public RateLimiter(double ratePerSecond, double burst) {
+        checkArg(ratePerSecond > 0.0d, "ratePerSecond must be positive!");
+        checkArg(burst >= 1.0d, "burst must be at least 1!");
+        this.ratePerNano = ratePerSecond / 1_000_000_000.0d;
+        this.burst = burst;
+        this.tokens = burst;
+    }
+
+    /**
+     * Attempts to take a single permit from the bucket.
+     *
+     * @return whether or not a permit was available
+     */
+    public synchronized boolean tryAcquire() {
+        long now = System.nanoTime();
+        this.tokens = Math.min(this.burst, this.tokens + (now - this.lastRefill) * this.ratePerNano);
+        this.lastRefill = now;
+        if (this.tokens >= 1.0d) {
+            this.tokens -= 1.0d;
+            return true;
+        } else {
+            return false;
+        }
+    }
+}
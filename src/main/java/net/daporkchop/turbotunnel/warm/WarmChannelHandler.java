@@ -0,0 +1,100 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.warm;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.socket.ChannelInputShutdownEvent;
+import lombok.NonNull;
+import net.daporkchop.turbotunnel.util.BiDirectionalSocketConnector;
+
+import java.util.Deque;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+
+/**
+ * Watches a channel while it is idle in a {@link WarmPool}.
+ * <p>
+ * Removes the channel from the pool as soon as the remote peer closes it, and buffers any data which the remote peer sends before the channel
+ * is used (such as a protocol banner) so that it can be forwarded to the client later.
+ *
+ * @author DaPorkchop_
+ */
+final class WarmChannelHandler extends ChannelInboundHandlerAdapter {
+    private final Deque<WarmPool.IdleChannel> pool;
+    private volatile boolean released;
+
+    public WarmChannelHandler(@NonNull Deque<WarmPool.IdleChannel> pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Notifies this handler that the channel has been taken out of the pool. It keeps buffering received data until it is removed from the
+     * pipeline by {@link WarmPool#detach(io.netty.channel.Channel)}.
+     */
+    public void release() {
+        this.released = true;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        checkState(msg instanceof ByteBuf, "invalid message");
+        ByteBuf data = (ByteBuf) msg;
+
+        //stop reading until the channel is connected to a client, the data will be forwarded then
+        ByteBuf pending = ctx.channel().attr(BiDirectionalSocketConnector.PENDING_DATA_KEY).get();
+        if (pending == null) {
+            ctx.channel().attr(BiDirectionalSocketConnector.PENDING_DATA_KEY).set(data);
+        } else {
+            ctx.channel().attr(BiDirectionalSocketConnector.PENDING_DATA_KEY).set(ctx.alloc().compositeBuffer().addComponents(true, pending, data));
+        }
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof ChannelInputShutdownEvent && !this.released) {
+            ctx.channel().close();
+        }
+        super.userEventTriggered(ctx, evt);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (!this.released) { //otherwise the channel was already taken out of the pool
+            this.pool.removeIf(idle -> idle.channel == ctx.channel());
+        }
+        ByteBuf pending = ctx.channel().attr(BiDirectionalSocketConnector.PENDING_DATA_KEY).getAndSet(null);
+        if (pending != null) {
+            pending.release();
+        }
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        if (!this.released) {
+            ctx.channel().close();
+        } else {
+            super.exceptionCaught(ctx, cause);
+        }
+    }
+}
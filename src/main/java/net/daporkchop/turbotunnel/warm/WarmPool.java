@@ -0,0 +1,309 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.warm;
+
+import com.google.gson.JsonObject;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.DuplexChannel;
+import io.netty.util.concurrent.ScheduledFuture;
+import lombok.NonNull;
+import net.daporkchop.turbotunnel.transport.TransportPool;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+
+/**
+ * Keeps idle, already connected outbound channels for the most frequently requested destinations, so that requests for them don't have to wait
+ * for a TCP handshake.
+ * <p>
+ * Every direct connection is recorded by its (local address, remote address) pair. Periodically, the recorded counts are folded into a decaying
+ * score, and the highest scoring pairs are kept warm with a fixed number of idle channels each. Pairs which are no longer hot have their idle
+ * channels closed.
+ * <p>
+ * Configured using a JSON object of the following form:
+ * <pre>
+ * {
+ *     "destinations": 16, //the maximum number of (local address, destination) pairs to keep warm
+ *     "connections": 2, //the number of idle channels to keep for each warm pair
+ *     "minHits": 4, //the minimum score a pair needs to be kept warm
+ *     "maxAge": 30, //seconds, idle channels which are older than this are closed
+ *     "interval": 5 //seconds, how often scores are updated and the pool is refilled
+ * }
+ * </pre>
+ *
+ * @author DaPorkchop_
+ */
+public final class WarmPool implements AutoCloseable {
+    /**
+     * The factor which a pair's score is multiplied by every interval.
+     */
+    public static final double DECAY = 0.5d;
+
+    public static WarmPool fromJson(@NonNull JsonObject obj, @NonNull TransportPool loopGroupPool) {
+        return new WarmPool(loopGroupPool,
+                obj.has("destinations") ? obj.get("destinations").getAsInt() : 16,
+                obj.has("connections") ? obj.get("connections").getAsInt() : 2,
+                obj.has("minHits") ? obj.get("minHits").getAsDouble() : 4.0d,
+                obj.has("maxAge") ? obj.get("maxAge").getAsLong() : 30L,
+                obj.has("interval") ? obj.get("interval").getAsLong() : 5L,
+                TimeUnit.SECONDS);
+    }
+
+    private final TransportPool loopGroupPool;
+    private final EventLoopGroup loopGroup;
+    private final Bootstrap bootstrap;
+
+    private final int destinations;
+    private final int connections;
+    private final double minHits;
+    private final long maxAge;
+    private final int maxTracked;
+
+    private final Map<Key, Destination> tracked = new ConcurrentHashMap<>();
+    private final ScheduledFuture<?> maintenance;
+
+    public WarmPool(@NonNull TransportPool loopGroupPool, int destinations, int connections, double minHits, long maxAge, long interval, @NonNull TimeUnit unit) {
+        checkArg(destinations > 0, "destinations must be positive!");
+        checkArg(connections > 0, "connections must be positive!");
+        checkArg(maxAge > 0L, "maxAge must be positive!");
+        checkArg(interval > 0L, "interval must be positive!");
+
+        this.loopGroupPool = loopGroupPool;
+        this.loopGroup = loopGroupPool.get();
+        this.destinations = destinations;
+        this.connections = connections;
+        this.minHits = minHits;
+        this.maxAge = unit.toNanos(maxAge);
+        this.maxTracked = destinations << 6;
+
+        this.bootstrap = loopGroupPool.clientBootstrap(this.loopGroup)
+                .option(ChannelOption.SO_KEEPALIVE, true)
+                .option(ChannelOption.AUTO_READ, false);
+
+        this.maintenance = this.loopGroup.next().scheduleAtFixedRate(this::maintain, interval, interval, unit);
+    }
+
+    /**
+     * Records that a connection from the given local address to the given remote address was requested.
+     *
+     * @param localAddress  the local address
+     * @param remoteAddress the remote address. Must be resolved
+     */
+    public void record(@NonNull InetAddress localAddress, @NonNull InetSocketAddress remoteAddress) {
+        Key key = new Key(localAddress, remoteAddress);
+        Destination destination = this.tracked.get(key);
+        if (destination == null) {
+            if (this.tracked.size() >= this.maxTracked) { //don't let clients make us track an unbounded number of destinations
+                return;
+            }
+            destination = this.tracked.computeIfAbsent(key, Destination::new);
+        }
+        destination.hits.incrementAndGet();
+    }
+
+    /**
+     * Takes an idle channel from the given local address to the given remote address out of the pool.
+     * <p>
+     * The returned channel is connected, has not been half-closed by the remote peer, and has {@link ChannelOption#AUTO_READ} disabled. Any data
+     * which was received while the channel was idle is stored in {@link net.daporkchop.turbotunnel.util.BiDirectionalSocketConnector#PENDING_DATA_KEY}.
+     * Once the channel is being relayed, {@link #detach(Channel)} must be called.
+     *
+     * @param localAddress  the local address
+     * @param remoteAddress the remote address. Must be resolved
+     * @return an idle channel, or {@code null} if none are available
+     */
+    public Channel poll(@NonNull InetAddress localAddress, @NonNull InetSocketAddress remoteAddress) {
+        Destination destination = this.tracked.get(new Key(localAddress, remoteAddress));
+        if (destination == null) {
+            return null;
+        }
+
+        long now = System.nanoTime();
+        for (IdleChannel idle; (idle = destination.idle.poll()) != null; ) {
+            if (isUsable(idle.channel) && now - idle.created < this.maxAge) {
+                idle.channel.pipeline().get(WarmChannelHandler.class).release();
+                return idle.channel;
+            }
+            idle.channel.close();
+        }
+        return null;
+    }
+
+    /**
+     * Removes the pool's handler from a channel which was taken from the pool. Does nothing for other channels.
+     * <p>
+     * Until then, the handler keeps buffering data received by the channel. This must therefore only be called once the channel's relay handler
+     * has been added, so that nothing received in between is lost.
+     *
+     * @param channel the channel
+     */
+    public static void detach(@NonNull Channel channel) {
+        if (channel.pipeline().get(WarmChannelHandler.class) != null) {
+            //the relay handler has to finish being added on the event loop before data can be handed to it, so the removal is queued behind that
+            channel.eventLoop().execute(() -> {
+                if (channel.pipeline().get(WarmChannelHandler.class) != null) {
+                    channel.pipeline().remove(WarmChannelHandler.class);
+                }
+            });
+        }
+    }
+
+    private static boolean isUsable(Channel channel) {
+        return channel.isActive() && !(channel instanceof DuplexChannel && ((DuplexChannel) channel).isInputShutdown());
+    }
+
+    /**
+     * Updates the scores of all tracked pairs, closes expired channels and refills the pool.
+     */
+    private void maintain() {
+        List<Destination> destinations = new ArrayList<>(this.tracked.values());
+        destinations.forEach(destination -> destination.score = destination.score * DECAY + destination.hits.getAndSet(0L));
+        destinations.sort(Comparator.comparingDouble((Destination destination) -> destination.score).reversed());
+
+        Set<Destination> hot = new HashSet<>();
+        for (int i = 0; i < destinations.size() && hot.size() < this.destinations && destinations.get(i).score >= this.minHits; i++) {
+            hot.add(destinations.get(i));
+        }
+
+        long now = System.nanoTime();
+        for (Destination destination : destinations) {
+            boolean isHot = hot.contains(destination);
+            destination.idle.removeIf(idle -> {
+                if (!isHot || !isUsable(idle.channel) || now - idle.created >= this.maxAge) {
+                    idle.channel.close();
+                    return true;
+                } else {
+                    return false;
+                }
+            });
+
+            if (isHot) {
+                this.refill(destination);
+            } else if (destination.score < 1.0d && destination.opening.get() == 0) {
+                this.tracked.remove(destination.key, destination);
+            }
+        }
+    }
+
+    private void refill(Destination destination) {
+        while (destination.idle.size() + destination.opening.get() < this.connections) {
+            destination.opening.incrementAndGet();
+            this.bootstrap.clone()
+                    .localAddress(destination.key.localAddress, 0)
+                    .handler(new ChannelInitializer<Channel>() {
+                        @Override
+                        protected void initChannel(Channel ch) throws Exception {
+                            ch.pipeline().addLast("warm", new WarmChannelHandler(destination.idle));
+                        }
+                    })
+                    .connect(destination.key.remoteAddress)
+                    .addListener((ChannelFutureListener) f -> {
+                        destination.opening.decrementAndGet();
+                        if (f.isSuccess()) {
+                            destination.idle.add(new IdleChannel(f.channel(), System.nanoTime()));
+                            f.channel().read(); //keep a read pending so that we notice if the remote peer closes the connection
+                        } else {
+                            System.out.printf("Unable to open warm connection to %s from %s: %s\n", destination.key.remoteAddress, destination.key.localAddress, f.cause());
+                        }
+                    });
+        }
+    }
+
+    @Override
+    public void close() {
+        this.maintenance.cancel(false);
+        this.tracked.values().forEach(destination -> {
+            for (IdleChannel idle; (idle = destination.idle.poll()) != null; ) {
+                idle.channel.close();
+            }
+        });
+        this.tracked.clear();
+        this.loopGroupPool.release(this.loopGroup);
+    }
+
+    private static final class Key {
+        private final InetAddress localAddress;
+        private final InetSocketAddress remoteAddress;
+
+        public Key(@NonNull InetAddress localAddress, @NonNull InetSocketAddress remoteAddress) {
+            this.localAddress = localAddress;
+            this.remoteAddress = remoteAddress;
+        }
+
+        @Override
+        public int hashCode() {
+            return this.localAddress.hashCode() * 31 + this.remoteAddress.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            } else if (obj instanceof Key) {
+                Key other = (Key) obj;
+                return this.localAddress.equals(other.localAddress) && this.remoteAddress.equals(other.remoteAddress);
+            } else {
+                return false;
+            }
+        }
+    }
+
+    private static final class Destination {
+        private final Key key;
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicInteger opening = new AtomicInteger();
+        private final Deque<IdleChannel> idle = new ConcurrentLinkedDeque<>();
+        private double score; //only accessed by the maintenance task
+
+        public Destination(@NonNull Key key) {
+            this.key = key;
+        }
+    }
+
+    static final class IdleChannel {
+        final Channel channel;
+        final long created;
+
+        public IdleChannel(@NonNull Channel channel, long created) {
+            this.channel = channel;
+            this.created = created;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.acl;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author DaPorkchop_
+ */
+public class AccessControlListTest {
+    private static AccessControlList acl(String json) throws IOException {
+        return AccessControlList.fromJson(new JsonParser().parse(json).getAsJsonObject());
+    }
+
+    private static InetAddress address(String address) throws UnknownHostException {
+        return InetAddress.getByName(address);
+    }
+
+    @Test
+    public void testDefault() throws IOException {
+        assertTrue(acl("{}").isAllowed(address("1.2.3.4")));
+        assertFalse(acl("{\"default\":\"deny\"}").isAllowed(address("1.2.3.4")));
+    }
+
+    @Test
+    public void testMostSpecificRuleWins() throws IOException {
+        AccessControlList acl = acl("{\"deny\":[\"10.0.0.0/8\"],\"allow\":[\"10.1.0.0/16\"]}");
+        assertFalse(acl.isAllowed(address("10.2.0.1")));
+        assertTrue(acl.isAllowed(address("10.1.0.1")));
+        assertTrue(acl.isAllowed(address("11.0.0.1")));
+    }
+
+    @Test
+    public void testDenyWinsOnConflict() throws IOException {
+        AccessControlList acl = acl("{\"allow\":[\"10.0.0.0/8\",\"example.com\"],\"deny\":[\"10.0.0.0/8\",\"example.com\"]}");
+        assertFalse(acl.isAllowed(address("10.0.0.1")));
+        assertEquals(Boolean.FALSE, acl.checkHostname("example.com"));
+    }
+
+    @Test
+    public void testIPv4MappedDestination() throws IOException {
+        AccessControlList acl = acl("{\"deny\":[\"127.0.0.0/8\"]}");
+        assertFalse(acl.isAllowed(InetAddress.getByAddress(new byte[]{ 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, -1, -1, 127, 0, 0, 1 })));
+        assertTrue(acl.isAllowed(address("::1")));
+    }
+
+    @Test
+    public void testWildcardDomains() throws IOException {
+        AccessControlList acl = acl("{\"default\":\"deny\",\"allow\":[\"*.example.com\"],\"deny\":[\"admin.example.com\"]}");
+        assertEquals(Boolean.TRUE, acl.checkHostname("example.com"));
+        assertEquals(Boolean.TRUE, acl.checkHostname("www.example.com"));
+        assertEquals(Boolean.FALSE, acl.checkHostname("admin.example.com"));
+        assertEquals(Boolean.FALSE, acl.checkHostname("x.admin.example.com"));
+        assertNull(acl.checkHostname("example.org"));
+    }
+
+    @Test
+    public void testAllowedDomainStillChecksAddresses() throws IOException {
+        AccessControlList acl = acl("{\"default\":\"deny\",\"allow\":[\"example.com\"],\"deny\":[\"127.0.0.0/8\"]}");
+        Boolean hostnameAllowed = acl.checkHostname("example.com");
+        assertEquals(Boolean.TRUE, hostnameAllowed);
+        assertFalse(acl.domainsOverrideAddresses());
+
+        //the domain rule replaces the default action, but explicit deny rules still apply
+        assertTrue(acl.isAllowed(address("93.184.216.34"), hostnameAllowed));
+        assertFalse(acl.isAllowed(address("127.0.0.1"), hostnameAllowed));
+
+        //if no domain rule matched, the default action applies as well
+        assertFalse(acl.isAllowed(address("93.184.216.34"), null));
+    }
+
+    @Test
+    public void testDomainsOverrideAddresses() throws IOException {
+        assertTrue(acl("{\"domainsOverrideAddresses\":true}").domainsOverrideAddresses());
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.limit;
+
+import io.netty.channel.Channel;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.concurrent.DefaultEventExecutor;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author DaPorkchop_
+ */
+public class DestinationLimiterTest {
+    private final EventExecutor executor = new DefaultEventExecutor();
+    private final Channel src = new EmbeddedChannel();
+
+    @After
+    public void shutdown() {
+        this.executor.shutdownGracefully(0L, 0L, TimeUnit.SECONDS);
+    }
+
+    private Future<Channel> connect(DestinationLimiter limiter, String host) throws Exception {
+        return limiter.connect(host, this.src, this.executor, () -> this.executor.newSucceededFuture(new EmbeddedChannel()));
+    }
+
+    @Test
+    public void testPermitIsHandedOver() throws Exception {
+        DestinationLimiter limiter = new DestinationLimiter(1, 1, 10L, TimeUnit.SECONDS);
+
+        Future<Channel> first = this.connect(limiter, "example.com");
+        assertTrue(first.isSuccess());
+
+        Future<Channel> second = this.connect(limiter, "EXAMPLE.com"); //hosts are case-insensitive
+        assertFalse(second.isDone());
+
+        Future<Channel> third = this.connect(limiter, "example.com");
+        assertTrue(third.isDone());
+        assertTrue(third.cause() instanceof DestinationLimitException);
+
+        assertTrue(this.connect(limiter, "example.org").isSuccess()); //other destinations aren't affected
+
+        first.getNow().close();
+        assertTrue(second.await(5L, TimeUnit.SECONDS));
+        assertTrue(second.isSuccess());
+
+        second.getNow().close();
+        assertEquals(1, limiter.destinations()); //only example.org is left
+    }
+
+    @Test
+    public void testQueueTimeout() throws Exception {
+        DestinationLimiter limiter = new DestinationLimiter(1, 1, 50L, TimeUnit.MILLISECONDS);
+
+        Future<Channel> first = this.connect(limiter, "example.com");
+        Future<Channel> second = this.connect(limiter, "example.com");
+        assertTrue(second.await(5L, TimeUnit.SECONDS));
+        assertTrue(second.cause() instanceof DestinationLimitException);
+
+        first.getNow().close();
+        assertEquals(0, limiter.destinations());
+    }
+
+    @Test
+    public void testFailedConnectReleasesPermit() throws Exception {
+        DestinationLimiter limiter = new DestinationLimiter(1, 0, 10L, TimeUnit.SECONDS);
+
+        Future<Channel> failed = limiter.connect("example.com", this.src, this.executor, () -> this.executor.newFailedFuture(new IOException()));
+        assertFalse(failed.isSuccess());
+        this.executor.submit(() -> {}).sync(); //the listener releasing the permit is notified on the executor
+        assertEquals(0, limiter.destinations());
+
+        assertTrue(this.connect(limiter, "example.com").isSuccess());
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.loadbalance;
+
+import org.junit.Test;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author DaPorkchop_
+ */
+public class ConsistentHashBalancerTest {
+    private static final int KEYS = 100_000;
+
+    private static Inet4Address[] addresses(int count) throws UnknownHostException {
+        Inet4Address[] addresses = new Inet4Address[count];
+        for (int i = 0; i < count; i++) {
+            addresses[i] = (Inet4Address) InetAddress.getByAddress(new byte[]{ 10, 0, 0, (byte) i });
+        }
+        return addresses;
+    }
+
+    private static ConnectionContext context(int key) {
+        InetSocketAddress client = new InetSocketAddress(InetAddress.getLoopbackAddress(), 12345);
+        return new ConnectionContext(client, client, null, InetSocketAddress.createUnresolved("host" + key + ".example.com", 443));
+    }
+
+    private static InetAddress[] assign(ConsistentHashBalancer balancer) throws Exception {
+        InetAddress[] assigned = new InetAddress[KEYS];
+        for (int key = 0; key < KEYS; key++) {
+            assigned[key] = balancer.next(context(key), true, false);
+        }
+        return assigned;
+    }
+
+    @Test
+    public void testWeightedDistribution() throws Exception {
+        Inet4Address[] addresses = addresses(4);
+        int[] weights = { 1, 2, 3, 4 };
+        int total = Arrays.stream(weights).sum();
+        InetAddress[] assigned = assign(new ConsistentHashBalancer(addresses, weights, new Inet6Address[0], new int[0], false, StickyKey.DESTINATION, ConsistentHashBalancer.DEFAULT_VIRTUAL_NODES));
+
+        for (int i = 0; i < addresses.length; i++) {
+            InetAddress address = addresses[i];
+            double share = Arrays.stream(assigned).filter(address::equals).count() / (double) KEYS;
+            double expected = (double) weights[i] / total;
+            assertEquals("share of " + address, expected, share, expected * 0.15d);
+        }
+    }
+
+    @Test
+    public void testSticky() throws Exception {
+        ConsistentHashBalancer balancer = new ConsistentHashBalancer(addresses(8), new Inet6Address[0], false, StickyKey.DESTINATION, ConsistentHashBalancer.DEFAULT_VIRTUAL_NODES);
+        for (int key = 0; key < 1000; key++) {
+            assertEquals(balancer.next(context(key), true, false), balancer.next(context(key), true, false));
+        }
+    }
+
+    @Test
+    public void testRemovingAnAddressOnlyRemapsItsKeys() throws Exception {
+        Inet4Address[] addresses = addresses(5);
+        InetAddress[] before = assign(new ConsistentHashBalancer(addresses, new Inet6Address[0], false, StickyKey.DESTINATION, ConsistentHashBalancer.DEFAULT_VIRTUAL_NODES));
+        InetAddress[] after = assign(new ConsistentHashBalancer(Arrays.copyOf(addresses, 4), new Inet6Address[0], false, StickyKey.DESTINATION, ConsistentHashBalancer.DEFAULT_VIRTUAL_NODES));
+
+        for (int key = 0; key < KEYS; key++) {
+            if (!before[key].equals(addresses[4])) {
+                assertEquals("key " + key, before[key], after[key]);
+            }
+        }
+    }
+
+    @Test
+    public void testFilter() throws Exception {
+        Inet4Address[] addresses = addresses(3);
+        ConsistentHashBalancer balancer = new ConsistentHashBalancer(addresses, new Inet6Address[0], false, StickyKey.DESTINATION, ConsistentHashBalancer.DEFAULT_VIRTUAL_NODES);
+        for (int key = 0; key < 1000; key++) {
+            assertNotEquals(addresses[0], balancer.next(context(key), true, false, address -> !address.equals(addresses[0])));
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.loadbalance;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author DaPorkchop_
+ */
+public class SelectionStrategyTest {
+    private static InetAddress[] addresses(int count) throws UnknownHostException {
+        InetAddress[] addresses = new InetAddress[count];
+        for (int i = 0; i < count; i++) {
+            addresses[i] = InetAddress.getByAddress(new byte[]{ 10, 0, 0, (byte) i });
+        }
+        return addresses;
+    }
+
+    private static int[] count(SelectionStrategy.Selector selector, InetAddress[] addresses, int samples) {
+        int[] counts = new int[addresses.length];
+        for (int i = 0; i < samples; i++) {
+            counts[Arrays.asList(addresses).indexOf(selector.next())]++;
+        }
+        return counts;
+    }
+
+    @Test
+    public void testRoundRobinIsSmooth() throws UnknownHostException {
+        InetAddress[] addresses = addresses(3);
+        SelectionStrategy.Selector selector = SelectionStrategy.ROUND_ROBIN.newSelector(addresses, new int[]{ 5, 1, 1 });
+
+        InetAddress a = addresses[0];
+        InetAddress b = addresses[1];
+        InetAddress c = addresses[2];
+        for (int cycle = 0; cycle < 3; cycle++) {
+            InetAddress[] actual = new InetAddress[7];
+            for (int i = 0; i < actual.length; i++) {
+                actual[i] = selector.next();
+            }
+            assertArrayEquals(new InetAddress[]{ a, a, b, a, c, a, a }, actual);
+        }
+    }
+
+    @Test
+    public void testRoundRobinIsExact() throws UnknownHostException {
+        InetAddress[] addresses = addresses(4);
+        int[] weights = { 7, 3, 1, 13 };
+        int total = Arrays.stream(weights).sum();
+        SelectionStrategy.Selector selector = SelectionStrategy.ROUND_ROBIN.newSelector(addresses, weights);
+
+        for (int cycle = 0; cycle < 10; cycle++) {
+            assertArrayEquals(weights, count(selector, addresses, total));
+        }
+    }
+
+    @Test
+    public void testRandomDistribution() throws UnknownHostException {
+        InetAddress[] addresses = addresses(5);
+        int[] weights = { 1, 2, 3, 4, 10 };
+        int total = Arrays.stream(weights).sum();
+        int samples = 1_000_000;
+        int[] counts = count(SelectionStrategy.RANDOM.newSelector(addresses, weights), addresses, samples);
+
+        for (int i = 0; i < weights.length; i++) {
+            double expected = (double) weights[i] / total;
+            assertEquals("share of address " + i, expected, (double) counts[i] / samples, 0.005d);
+        }
+    }
+
+    @Test
+    public void testRandomSingleAddress() throws UnknownHostException {
+        InetAddress[] addresses = addresses(1);
+        assertArrayEquals(new int[]{ 1000 }, count(SelectionStrategy.RANDOM.newSelector(addresses, new int[]{ 3 }), addresses, 1000));
+    }
+
+    @Test
+    public void testFilterSkipsRejectedAddresses() throws UnknownHostException {
+        InetAddress[] addresses = addresses(3);
+        for (SelectionStrategy strategy : SelectionStrategy.values()) {
+            SelectionStrategy.Selector selector = strategy.newSelector(addresses, new int[]{ 100, 1, 1 });
+            for (int i = 0; i < 1000; i++) {
+                assertNotEquals(strategy.name(), addresses[0], selector.next(address -> address != addresses[0]));
+            }
+            assertEquals(strategy.name(), addresses[0], selector.next(address -> false)); //nothing is accepted, so the first choice is returned
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonPositiveWeight() throws UnknownHostException {
+        SelectionStrategy.RANDOM.newSelector(addresses(2), new int[]{ 1, 0 });
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2020 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.turbotunnel.util;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author DaPorkchop_
+ */
+public class DestinationMatcherTest {
+    private static InetAddress address(String address) throws UnknownHostException {
+        return InetAddress.getByName(address);
+    }
+
+    @Test
+    public void testLongestPrefixWins() throws UnknownHostException {
+        DestinationMatcher<String> matcher = new DestinationMatcher<String>((a, b) -> b)
+                .add("10.0.0.0/8", "/8")
+                .add("10.1.0.0/16", "/16")
+                .add("10.1.2.3", "/32")
+                .add("0.0.0.0/0", "/0");
+
+        assertEquals("/32", matcher.matchAddress(address("10.1.2.3")));
+        assertEquals("/16", matcher.matchAddress(address("10.1.2.4")));
+        assertEquals("/8", matcher.matchAddress(address("10.2.0.1")));
+        assertEquals("/0", matcher.matchAddress(address("192.168.0.1")));
+        assertNull(matcher.matchAddress(address("::1")));
+    }
+
+    @Test
+    public void testInsertionOrderDoesNotMatter() throws UnknownHostException {
+        DestinationMatcher<String> matcher = new DestinationMatcher<String>((a, b) -> b)
+                .add("2001:db8:1::/48", "/48")
+                .add("2001:db8::/32", "/32");
+
+        assertEquals("/48", matcher.matchAddress(address("2001:db8:1::1")));
+        assertEquals("/32", matcher.matchAddress(address("2001:db8:2::1")));
+        assertNull(matcher.matchAddress(address("2001:db9::1")));
+    }
+
+    @Test
+    public void testMerge() throws UnknownHostException {
+        DestinationMatcher<Boolean> matcher = new DestinationMatcher<Boolean>((a, b) -> a && b)
+                .add("10.0.0.0/8", true)
+                .add("10.0.0.0/8", false)
+                .add("10.0.0.0/8", true);
+
+        assertEquals(Boolean.FALSE, matcher.matchAddress(address("10.0.0.1")));
+    }
+
+    @Test
+    public void testIPv4Mapped() throws UnknownHostException {
+        DestinationMatcher<String> matcher = new DestinationMatcher<String>((a, b) -> b)
+                .add("10.0.0.0/8", "v4")
+                .add("::ffff:192.168.0.0/112", "mapped");
+
+        assertEquals("v4", matcher.match(InetSocketAddress.createUnresolved("::ffff:10.0.0.1", 80)));
+        assertEquals("v4", matcher.match(InetSocketAddress.createUnresolved("[::ffff:10.0.0.1]", 80)));
+        assertEquals("v4", matcher.matchAddress(InetAddress.getByAddress(new byte[]{ 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, -1, -1, 10, 0, 0, 1 })));
+        assertEquals("mapped", matcher.matchAddress(address("192.168.1.1")));
+    }
+
+    @Test
+    public void testDomains() {
+        DestinationMatcher<String> matcher = new DestinationMatcher<String>((a, b) -> b)
+                .add("example.com", "example.com")
+                .add("*.internal.example.com", "internal.example.com")
+                .add("org", "org");
+
+        assertEquals("example.com", matcher.matchHostname("example.com"));
+        assertEquals("example.com", matcher.matchHostname("www.example.com"));
+        assertEquals("example.com", matcher.matchHostname("WWW.Example.COM."));
+        assertEquals("internal.example.com", matcher.matchHostname("internal.example.com"));
+        assertEquals("internal.example.com", matcher.matchHostname("a.b.internal.example.com"));
+        assertEquals("org", matcher.matchHostname("example.org"));
+        assertNull(matcher.matchHostname("notexample.com"));
+        assertNull(matcher.matchHostname("com"));
+    }
+
+    @Test
+    public void testUnresolvedLiterals() {
+        DestinationMatcher<String> matcher = new DestinationMatcher<String>((a, b) -> b)
+                .add("127.0.0.0/8", "loopback")
+                .add("localhost", "localhost");
+
+        assertEquals("loopback", matcher.match(InetSocketAddress.createUnresolved("127.0.0.1", 80)));
+        assertEquals("localhost", matcher.match(InetSocketAddress.createUnresolved("localhost", 80)));
+        assertNull(matcher.match(InetSocketAddress.createUnresolved("128.0.0.1", 80)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidRule() {
+        new DestinationMatcher<String>((a, b) -> b).add("example.com/8", "invalid");
+    }
+}